@@ -0,0 +1,368 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * Cache of jdbc connections, used when the connection is specified by field values.
+ *
+ * Connections are keyed by driver, url, user and password. A connection is checked out
+ * for the duration of one metadata call, and released afterwards; while checked out,
+ * no one else gets it. The number of open connections is bounded: when a new connection is needed,
+ * the least recently used idle connection is closed. Connections that have been idle for too long
+ * are closed as well, and cached connections are validated before they are handed out again.
+ */
+public class JdbcConnectionCache {
+
+  /**
+   * Identifies a jdbc connection.
+   * Compared by value; the password takes part in the comparison but is never printed.
+   */
+  public static class Key {
+    private final String driver;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int hashCode;
+
+    public Key(String driver, String url, String user, String password) {
+      this.driver = driver;
+      this.url = url;
+      this.user = user;
+      this.password = password;
+      int hashCode = driver == null ? 0 : driver.hashCode();
+      hashCode = 31 * hashCode + (url == null ? 0 : url.hashCode());
+      hashCode = 31 * hashCode + (user == null ? 0 : user.hashCode());
+      hashCode = 31 * hashCode + (password == null ? 0 : password.hashCode());
+      this.hashCode = hashCode;
+    }
+
+    public String getDriver() {
+      return driver;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public String getUser() {
+      return user;
+    }
+
+    private static boolean equal(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (this == object) return true;
+      if (!(object instanceof Key)) return false;
+      Key key = (Key)object;
+      return hashCode == key.hashCode &&
+             equal(driver, key.driver) &&
+             equal(url, key.url) &&
+             equal(user, key.user) &&
+             equal(password, key.password);
+    }
+
+    @Override
+    public String toString() {
+      return driver + ";" + url + ";" + user;
+    }
+  }
+
+  private static class CacheEntry {
+    //null while the connection is being opened. The entry is checked out by whoever opens it.
+    private Connection connection;
+    private boolean checkedOut = true;
+    private long lastUsed;
+
+    private CacheEntry() {
+      this.lastUsed = System.currentTimeMillis();
+    }
+  }
+
+  //number of seconds we wait for a connection to be validated.
+  private static final int VALIDATION_TIMEOUT = 5;
+
+  //access ordered, so iteration starts at the least recently used connection.
+  private final LinkedHashMap<Key, CacheEntry> entries = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true);
+  private final int maxOpen;
+  private final long idleTimeout;
+  private final boolean validate;
+
+  private long opens = 0;
+  private long reuses = 0;
+  private long evictions = 0;
+  private long expirations = 0;
+  private long invalidations = 0;
+
+  /**
+   * @param maxOpen the maximum number of open connections. 0 means no limit.
+   * @param idleTimeout number of milliseconds after which an idle connection is closed. 0 means idle connections are kept open.
+   * @param validate whether cached connections are validated before they are reused.
+   */
+  public JdbcConnectionCache(int maxOpen, long idleTimeout, boolean validate) {
+    this.maxOpen = maxOpen;
+    this.idleTimeout = idleTimeout;
+    this.validate = validate;
+  }
+
+  /**
+   * Get a connection, either from the cache or by opening a new one.
+   * The connection must be released with release() once it is no longer in use.
+   * A connection that is being opened has an entry already, so that others asking for the same key wait for it,
+   * rather than opening a second connection for the same key.
+   * @param key identifies the connection
+   * @return the connection
+   * @throws Exception
+   */
+  public Connection checkout(Key key) throws Exception {
+    CacheEntry entry = null;
+    List<Connection> closing = new ArrayList<Connection>();
+    try {
+      synchronized (this) {
+        while (true) {
+          expire(closing);
+          entry = entries.get(key);
+          if (entry != null) {
+            if (entry.checkedOut) {
+              //someone else is using this connection, wait till it is released.
+              wait();
+              continue;
+            }
+            entry.checkedOut = true;
+            break;
+          }
+          if (maxOpen > 0 && entries.size() >= maxOpen && !evict(closing)) {
+            //all connections are in use, wait till one is released.
+            wait();
+            continue;
+          }
+          //claim the key while we open the connection.
+          entry = new CacheEntry();
+          entries.put(key, entry);
+          break;
+        }
+      }
+    }
+    finally {
+      closeAll(closing);
+    }
+    if (entry.connection != null) {
+      if (isValid(entry.connection)) {
+        synchronized (this) {
+          reuses++;
+        }
+        return entry.connection;
+      }
+      //the connection is broken. Replace it with a new one, keeping the entry checked out meanwhile.
+      close(entry.connection);
+      synchronized (this) {
+        entry.connection = null;
+        invalidations++;
+      }
+    }
+    Connection connection;
+    try {
+      Class.forName(key.driver);
+      connection = DriverManager.getConnection(key.url, key.user, key.password);
+    }
+    catch (Exception exception) {
+      synchronized (this) {
+        if (entries.get(key) == entry) entries.remove(key);
+        notifyAll();
+      }
+      throw exception;
+    }
+    synchronized (this) {
+      //if the cache was cleared meanwhile, the connection is not cached, and is closed when it is released.
+      entry.connection = connection;
+      opens++;
+    }
+    return connection;
+  }
+
+  /**
+   * Release a connection obtained with checkout(), so that it can be reused.
+   * If the connection is no longer cached (because the cache was cleared while it was checked out), it is closed.
+   * @param key identifies the connection
+   * @param connection the connection
+   */
+  public void release(Key key, Connection connection) {
+    List<Connection> closing = new ArrayList<Connection>();
+    synchronized (this) {
+      CacheEntry entry = entries.get(key);
+      if (entry != null && entry.connection == connection) {
+        entry.checkedOut = false;
+        entry.lastUsed = System.currentTimeMillis();
+      }
+      else {
+        closing.add(connection);
+      }
+      expire(closing);
+      notifyAll();
+    }
+    closeAll(closing);
+  }
+
+  private boolean isValid(Connection connection) {
+    if (!validate) return true;
+    try {
+      return connection.isValid(VALIDATION_TIMEOUT);
+    }
+    catch (Throwable throwable) {
+      //not all drivers implement isValid() (older ones throw AbstractMethodError). Make do with isClosed().
+      try {
+        return !connection.isClosed();
+      }
+      catch (Exception exception) {
+        return false;
+      }
+    }
+  }
+
+  //remove idle connections that have timed out. Called while holding the lock.
+  private void expire(List<Connection> closing) {
+    if (idleTimeout <= 0) return;
+    long now = System.currentTimeMillis();
+    Iterator<Entry<Key, CacheEntry>> iterator = entries.entrySet().iterator();
+    CacheEntry entry;
+    while (iterator.hasNext()) {
+      entry = iterator.next().getValue();
+      if (entry.checkedOut || now - entry.lastUsed <= idleTimeout) continue;
+      iterator.remove();
+      closing.add(entry.connection);
+      expirations++;
+    }
+  }
+
+  //remove the least recently used idle connection. Called while holding the lock.
+  private boolean evict(List<Connection> closing) {
+    Iterator<Entry<Key, CacheEntry>> iterator = entries.entrySet().iterator();
+    CacheEntry entry;
+    while (iterator.hasNext()) {
+      entry = iterator.next().getValue();
+      if (entry.checkedOut) continue;
+      iterator.remove();
+      closing.add(entry.connection);
+      evictions++;
+      return true;
+    }
+    return false;
+  }
+
+  private static void close(Connection connection) {
+    try {
+      if (!connection.isClosed()) connection.close();
+    }
+    catch (Exception exception) {
+      //we're getting rid of it anyway.
+    }
+  }
+
+  private static void closeAll(List<Connection> connections) {
+    for (Connection connection : connections) {
+      close(connection);
+    }
+  }
+
+  /**
+   * Close connections that have been idle for longer than the idle timeout.
+   * Expiry normally happens as a side effect of checkout() and release(),
+   * but a long-lived cache should call this periodically, so idle connections do not stay open indefinitely.
+   */
+  public void closeIdle() {
+    List<Connection> closing = new ArrayList<Connection>();
+    synchronized (this) {
+      expire(closing);
+    }
+    closeAll(closing);
+  }
+
+  /**
+   * @return the number of milliseconds after which an idle connection is closed.
+   */
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Close all connections.
+   */
+  public void clear() {
+    List<Connection> closing = new ArrayList<Connection>();
+    synchronized (this) {
+      for (CacheEntry entry : entries.values()) {
+        //connections that are being opened are closed when they are released.
+        if (entry.connection != null) closing.add(entry.connection);
+      }
+      entries.clear();
+      notifyAll();
+    }
+    closeAll(closing);
+  }
+
+  public synchronized long getOpens() {
+    return opens;
+  }
+
+  public synchronized long getReuses() {
+    return reuses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized long getExpirations() {
+    return expirations;
+  }
+
+  public synchronized long getInvalidations() {
+    return invalidations;
+  }
+
+  public synchronized int getOpenCount() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return opens + " opens, " + reuses + " reuses, " + evictions + " evictions, " +
+           expirations + " expirations, " + invalidations + " invalidations, " +
+           entries.size() + " open";
+  }
+}
@@ -22,6 +22,8 @@
 
 package org.pentaho.di.steps.jdbcmetadata;
 
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.database.Database;
 import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.exception.KettleException;
@@ -37,16 +39,21 @@ import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.lang.reflect.Array;
-import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 
 /**
@@ -123,6 +130,34 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
     }
     return argument;
   }
+  /**
+   * Utility to convert the value of an input field into an argument for a metadata method.
+   * Kettle delivers Integer fields as Long, and Boolean fields may come as "Y"/"N" strings,
+   * while the metadata methods take int and boolean arguments.
+   * @param value value of the field
+   * @param type class that represents the type of the value as it is passed as argument to a metadata method
+   * @return an object that represents the value in the specified type
+   * @throws IllegalArgumentException
+   */
+  private Object fieldToArgumentValue(Object value, Class<?> type) throws IllegalArgumentException {
+    if (value == null || type.isInstance(value)) return value;
+    if (type == String.class) {
+      return value.toString();
+    }
+    else
+    if (type == Integer.class) {
+      if (value instanceof Number) return Integer.valueOf(((Number)value).intValue());
+      return Integer.valueOf(value.toString().trim());
+    }
+    else
+    if (type == Boolean.class) {
+      if (value instanceof Number) return Boolean.valueOf(((Number)value).intValue() != 0);
+      String stringValue = value.toString().trim();
+      return "Y".equalsIgnoreCase(stringValue) || "true".equalsIgnoreCase(stringValue) ? Boolean.TRUE : Boolean.FALSE;
+    }
+    throw new IllegalArgumentException("Can't handle valueType " + type.getName());
+  }
+
   /**
    * Some method arguments are passed as arrays.
    * In Kettle, users represent this as a comma-separated list of values
@@ -165,12 +200,20 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
   private void initMethod(JdbcMetaDataMeta meta, JdbcMetaDataData data) throws Exception {
     //set up the method to call
     logDebug("Setting up method to call.");
-    Method method = meta.getMethod();
-    data.method = method;
+    data.invoker = meta.getInvoker();
+    if (meta.getIndexStatisticsOnly()) {
+      if (isIndexStatisticsOnly(meta)) {
+        data.invoker = MetaDataInvoker.getIndexStatistics(data.invoker);
+      }
+      else {
+        logBasic("Index statistics only is ignored, since the method is not getIndexInfo.");
+      }
+    }
 
     //Try to set up the arguments for the method
     logDebug("Setting up method arguments.");
-    Class<?>[] argumentTypes = method.getParameterTypes();
+    Class<?>[] argumentTypes = JdbcMetaDataMeta.getMethodParameterTypes(meta.getMethodDescriptor());
+    data.argumentTypes = argumentTypes;
     int argc = argumentTypes.length;
     logDebug("Method has " + argc + " arguments.");
     String[] arguments = meta.getArguments();
@@ -242,6 +285,7 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
         throw new Exception("Connection returned by database object is null!");
       }
       data.database = database;
+      data.connectionIdentity = getConnectionIdentity(database.getDatabaseMeta());
     }
     else
     if (JdbcMetaDataMeta.connectionSourceOptionJDBC.equals(connectionSource)) {
@@ -255,6 +299,7 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
       logDebug("Url: " + jdbcUrl);
       logDebug("User: " + jdbcUser);
       connection = createJdbcConnection(jdbcDriver, jdbcUrl, jdbcUser, jdbcPassword);
+      data.connectionIdentity = getConnectionIdentity(jdbcDriver, jdbcUrl, jdbcUser);
     }
     else
     if (JdbcMetaDataMeta.connectionSourceOptionJDBCFields.equals(connectionSource)) {
@@ -265,6 +310,27 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
       data.jdbcUrlField = -1;
       data.jdbcUserField = -1;
       data.jdbcPasswordField = -1;
+      int maxOpen = Const.toInt(environmentSubstitute(meta.getConnectionPoolMaxOpen()), 100);
+      long idleTimeout = Const.toLong(environmentSubstitute(meta.getConnectionPoolIdleTimeout()), 300) * 1000;
+      boolean validate = meta.getConnectionPoolValidate();
+      if (meta.getSharedCache()) {
+        logDebug("Using the shared connection cache.");
+        data.connectionCache = MetaDataRegistry.getInstance().getConnectionCache(maxOpen, idleTimeout, validate);
+      }
+      else {
+        logDebug("Connection cache: max " + maxOpen + " open, idle timeout " + idleTimeout + " ms, " + (validate ? "" : "not ") + "validating.");
+        data.connectionCache = new JdbcConnectionCache(maxOpen, idleTimeout, validate);
+      }
+    }
+    else
+    if (JdbcMetaDataMeta.connectionSourceOptionSnapshot.equals(connectionSource)) {
+      //Connection is a snapshot file, that answers the metadata calls without a database
+      File file = new File(environmentSubstitute(meta.getSnapshotFile()));
+      logDebug("Opening metadata snapshot " + file);
+      data.snapshot = MetaDataSnapshot.open(file);
+      logDetailed(data.snapshot.toString());
+      connection = data.snapshot.getConnection();
+      data.connectionIdentity = connectionSource + ":" + file.getAbsolutePath();
     }
     else
     if (JdbcMetaDataMeta.connectionSourceOptionConnectionField.equals(connectionSource)){
@@ -281,6 +347,22 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
     data.connection = connection;
   }
 
+  /**
+   * Set up capturing of a snapshot, if the user asked for it.
+   * (It makes no sense to capture a snapshot while reading from one.)
+   * @param meta
+   * @param data
+   */
+  private void initSnapshotCapture(JdbcMetaDataMeta meta, JdbcMetaDataData data){
+    if (!meta.getSnapshotCapture() || JdbcMetaDataMeta.connectionSourceOptionSnapshot.equals(meta.getConnectionSource())) {
+      data.snapshotWriter = null;
+      return;
+    }
+    data.snapshotFile = new File(environmentSubstitute(meta.getSnapshotFile()));
+    logDebug("Capturing metadata snapshot to " + data.snapshotFile);
+    data.snapshotWriter = new MetaDataSnapshotWriter();
+  }
+
   private void initOutputFields(JdbcMetaDataMeta meta, JdbcMetaDataData data){
     Object[] outputFields = meta.getOutputFields();
     int n = outputFields.length;
@@ -288,6 +370,7 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
 
     ValueMetaInterface[] fields = meta.getMethodResultSetDescriptor();
     int m = fields.length;
+    data.resultSetFieldCount = m;
 
     for (int i = 0; i < n; i++) {
       String[] outputField = (String[])outputFields[i];
@@ -305,185 +388,1979 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
   }
 
   /**
-   * This method is called by PDI during transformation startup.
-   *
-   * It should initialize required for step execution.
-   *
-   * The meta and data implementations passed in can safely be cast
-   * to the step's respective implementations.
-   *
-   * It is mandatory that super.init() is called to ensure correct behavior.
-   *
-   * Typical tasks executed here are establishing the connection to a database,
-   * as wall as obtaining resources, like file handles.
-   *
-   * @param smi   step meta interface implementation, containing the step settings
-   * @param sdi step data interface implementation, used to store runtime information
-   *
-   * @return true if initialization completed successfully, false if there was an error preventing the step from working.
-   *
+   * Set up diff mode. Rows are matched to the baseline by their key columns,
+   * so these are read even if they are not output. The other output columns are compared to detect changes.
+   * If the baseline is a snapshot, it is loaded here; if it comes from a step, it is read when the first row is processed.
+   * @param meta
+   * @param data
+   * @throws Exception
    */
-  public boolean init(StepMetaInterface smi, StepDataInterface sdi) {
-    boolean result = true;
-    // Casting to step-specific implementation classes is safe
-    JdbcMetaDataMeta meta = (JdbcMetaDataMeta) smi;
-    JdbcMetaDataData data = (JdbcMetaDataData) sdi;
-    if (!super.init(meta, data)) return false;
+  private void initDiff(final JdbcMetaDataMeta meta, final JdbcMetaDataData data) throws Exception {
+    data.diff = null;
+    data.requiredColumns = null;
+    data.diffBaselineStep = null;
+    if (!meta.getDiffMode()) return;
+    ValueMetaInterface[] fields = meta.getMethodResultSetDescriptor();
+    int[] keyColumns = MetaDataDiff.getKeyColumns(meta.getMethodName(), fields);
+    List<Integer> compareColumns = new ArrayList<Integer>();
+    int column;
+    for (int i = 0; i < data.resultSetIndices.length; i++) {
+      column = data.resultSetIndices[i] - 1;
+      if (column == -1 || compareColumns.contains(column)) continue;
+      for (int j = 0; j < keyColumns.length; j++) {
+        if (keyColumns[j] == column) column = -1;
+      }
+      if (column != -1) compareColumns.add(column);
+    }
+    int[] compareColumnIndices = new int[compareColumns.size()];
+    for (int i = 0; i < compareColumnIndices.length; i++) {
+      compareColumnIndices[i] = compareColumns.get(i);
+    }
+    int maxMemoryRows = Const.toInt(environmentSubstitute(meta.getDiffMaxMemoryRows()), 100000);
+    data.requiredColumns = keyColumns;
+    data.diff = new MetaDataDiff(fields, keyColumns, compareColumnIndices, maxMemoryRows);
+    data.diffOutput = new MetaDataDiff.Output() {
+      public void put(Object[] inputRow, Object[] metaDataRow, String changeType) throws Exception {
+        putOutputRow(meta, data, inputRow, metaDataRow, changeType);
+      }
+    };
+    if (JdbcMetaDataMeta.diffBaselineSourceOptionStep.equals(meta.getDiffBaselineSource())) {
+      data.diffBaselineStep = meta.getDiffBaselineStep();
+      logDebug("Diff mode: baseline is read from step " + data.diffBaselineStep);
+      return;
+    }
+    File file = new File(environmentSubstitute(meta.getDiffBaselineFile()));
+    logDebug("Diff mode: loading baseline from snapshot " + file);
+    //read, not mapped: the baseline is often the file this run writes its snapshot to,
+    //and a mapped file can't be replaced on all platforms.
+    Iterator<Object[]> rows = MetaDataSnapshot.read(file).getRowIterator(meta.getMethodName());
+    long count = 0;
+    if (rows != null) {
+      while (rows.hasNext()) {
+        data.diff.addBaseline(rows.next());
+        count++;
+      }
+    }
+    logDetailed("Loaded " + count + " baseline rows for " + meta.getMethodName() + " from " + file);
+  }
+
+  /**
+   * Make sure some resultset columns are read, even if they are not output.
+   * @param data
+   * @param columns the columns (0-based). -1 is ignored.
+   */
+  private void addRequiredColumns(JdbcMetaDataData data, int[] columns) {
+    List<Integer> requiredColumns = new ArrayList<Integer>();
+    if (data.requiredColumns != null) {
+      for (int i = 0; i < data.requiredColumns.length; i++) {
+        requiredColumns.add(data.requiredColumns[i]);
+      }
+    }
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i] != -1 && !requiredColumns.contains(columns[i])) requiredColumns.add(columns[i]);
+    }
+    data.requiredColumns = new int[requiredColumns.size()];
+    for (int i = 0; i < data.requiredColumns.length; i++) {
+      data.requiredColumns[i] = requiredColumns.get(i);
+    }
+  }
+
+  /**
+   * Set up fingerprint mode. A row's fingerprint covers the columns that are output.
+   * Rollups need the catalog, schema and table of each row, so these are read even if they are not output.
+   * (In diff mode, rows come out of order, so there are no rollups.)
+   * @param meta
+   * @param data
+   */
+  private void initFingerprint(final JdbcMetaDataMeta meta, final JdbcMetaDataData data) {
+    data.fingerprint = null;
+    if (!meta.getFingerprintMode()) return;
+    ValueMetaInterface[] fields = meta.getMethodResultSetDescriptor();
+    boolean[] output = new boolean[fields.length];
+    int n = 0;
+    for (int i = 0; i < data.resultSetIndices.length; i++) {
+      if (data.resultSetIndices[i] == 0 || output[data.resultSetIndices[i] - 1]) continue;
+      output[data.resultSetIndices[i] - 1] = true;
+      n++;
+    }
+    int[] columns = new int[n];
+    for (int i = 0, j = 0; i < output.length; i++) {
+      if (output[i]) columns[j++] = i;
+    }
+    int[] hierarchyColumns = null;
+    if (meta.getFingerprintRollup() && data.diff == null) {
+      hierarchyColumns = MetaDataFingerprint.getHierarchyColumns(meta.getMethodName(), fields);
+    }
+    if (hierarchyColumns != null) addRequiredColumns(data, hierarchyColumns);
+    logDebug("Fingerprint mode: " + n + " columns" + (hierarchyColumns == null ? ", no rollups" : ", with rollups"));
+    data.fingerprint = new MetaDataFingerprint(fields, columns, hierarchyColumns, MetaDataFingerprint.isOrderedByHierarchy(meta.getMethodName()));
+    data.fingerprintOutput = new MetaDataFingerprint.Output() {
+      public void put(Object[] inputRow, Object[] metaDataRow, String level, String fingerprint) throws Exception {
+        putFingerprintRow(meta, data, inputRow, metaDataRow, level, fingerprint);
+      }
+    };
+  }
+
+  /**
+   * Set up the mapping of column types to Kettle types, if the user asked for it and the method has column types.
+   * The type columns are read even if they are not output.
+   * @param meta
+   * @param data
+   */
+  private void initKettleTypes(JdbcMetaDataMeta meta, JdbcMetaDataData data) {
+    data.kettleTypeColumns = null;
+    data.kettleTypes = null;
+    if (!meta.getKettleTypes()) return;
+    if (meta.isGrouped()) {
+      logBasic("Grouped mode is on; not mapping Kettle types.");
+      return;
+    }
+    if (meta.isDdl()) {
+      logBasic("DDL mode is on; not mapping Kettle types.");
+      return;
+    }
+    int[] columns = MetaDataKettleTypes.getTypeColumns(meta.getMethodName(), meta.getMethodResultSetDescriptor());
+    if (columns == null) {
+      logBasic("Method " + meta.getMethodName() + " has no column types; not mapping Kettle types.");
+      return;
+    }
+    int[] requiredColumns = new int[columns.length];
+    int n = 0;
+    for (int column : columns) {
+      if (column != -1) requiredColumns[n++] = column;
+    }
+    addRequiredColumns(data, Arrays.copyOf(requiredColumns, n));
+    data.kettleTypeColumns = columns;
+    data.kettleTypes = new HashMap<String, MetaDataKettleTypes>();
+  }
+
+  /**
+   * Set up grouped mode. The grouper reads the catalog, schema and table, and the columns that make up its lists,
+   * even if they are not output.
+   * @param meta
+   * @param data
+   */
+  private void initGrouper(final JdbcMetaDataMeta meta, final JdbcMetaDataData data) {
+    data.grouper = null;
+    if (!meta.getGroupedMode()) return;
+    if (!meta.isGrouped()) {
+      logBasic("Grouped mode is ignored: method " + meta.getMethodName() + " can't be grouped, or diff or fingerprint mode is on.");
+      return;
+    }
+    addRequiredColumns(data, MetaDataGrouper.getRequiredColumns(meta.getMethodName(), meta.getMethodResultSetDescriptor()));
+    logDebug("Grouped mode: one row per table.");
+    data.grouper = new MetaDataGrouper(meta.getMethodName(), meta.getMethodResultSetDescriptor());
+    data.grouperOutput = new MetaDataGrouper.Output() {
+      public void put(Object[] inputRow, Object[] metaDataRow, Object[] aggregates) throws Exception {
+        putGroupedRow(meta, data, inputRow, metaDataRow, aggregates);
+      }
+    };
+  }
+
+  /**
+   * Set up DDL mode. The generator reads the catalog, schema and table, the column and its type,
+   * and the key columns, even if they are not output.
+   * The DDL is in the dialect of the DDL connection if there is one; otherwise in that of the connection that is read.
+   * @param meta
+   * @param data
+   * @throws KettleException
+   */
+  private void initDdlGenerator(final JdbcMetaDataMeta meta, final JdbcMetaDataData data) throws KettleException {
+    data.ddlGenerator = null;
+    data.ddlDatabaseMeta = null;
+    if (!meta.getDdlMode()) return;
+    if (!meta.isDdl()) {
+      logBasic("DDL mode is ignored: method " + meta.getMethodName() + " has no columns to generate from, or grouped, diff or fingerprint mode is on.");
+      return;
+    }
+    String ddlConnection = environmentSubstitute(meta.getDdlConnection());
+    if (ddlConnection != null && ddlConnection.length() > 0) {
+      data.ddlDatabaseMeta = getTransMeta().findDatabase(ddlConnection);
+      if (data.ddlDatabaseMeta == null) {
+        throw new KettleException("Named connection " + ddlConnection + " not found!");
+      }
+    }
+    addRequiredColumns(data, MetaDataDdlGenerator.getRequiredColumns(meta.getMethodName(), meta.getMethodResultSetDescriptor()));
+    logDebug("DDL mode" + (data.ddlDatabaseMeta == null ? "" : " for " + ddlConnection) + (meta.getDdlHistory() ? ", with history tables." : "."));
+    data.ddlGenerator = new MetaDataDdlGenerator(meta.getMethodName(), meta.getMethodResultSetDescriptor(), meta.getDdlHistory());
+    data.ddlOutput = new MetaDataDdlGenerator.Output() {
+      public void put(Object[] inputRow, Object[] metaDataRow, String objectType, String objectName, String ddl) throws Exception {
+        putDdlRow(meta, data, inputRow, metaDataRow, objectType, objectName, ddl);
+      }
+    };
+  }
+
+  /**
+   * Set up writing the documents of getTableDocuments or getSchemaDocuments to a file, if the user asked for it.
+   * The file gets one document on each line (newline delimited JSON), written as the rows come by.
+   * The document column is read even if it is not output.
+   * @param meta
+   * @param data
+   * @throws IOException
+   */
+  private void initDocumentFile(JdbcMetaDataMeta meta, JdbcMetaDataData data) throws IOException {
+    data.documentWriter = null;
+    String documentFile = environmentSubstitute(meta.getDocumentFile());
+    if (documentFile == null || documentFile.length() == 0) return;
+    ValueMetaInterface[] fields = meta.getMethodResultSetDescriptor();
+    data.documentColumn = -1;
+    for (int i = 0; i < fields.length; i++) {
+      if ("DOCUMENT".equals(fields[i].getName())) data.documentColumn = i;
+    }
+    if (data.documentColumn == -1) {
+      logBasic("Document file is ignored, since " + meta.getMethodName() + " does not return documents.");
+      return;
+    }
+    addRequiredColumns(data, new int[]{data.documentColumn});
+    data.documentFile = new File(documentFile);
+    File directory = data.documentFile.getAbsoluteFile().getParentFile();
+    if (directory != null && !directory.exists()) directory.mkdirs();
+    data.documentWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(data.documentFile), "UTF-8"), 65536);
+    data.documentCount = 0;
+    logDebug("Writing documents to " + data.documentFile);
+  }
 
+  /**
+   * Write the document of a metadata row to the document file.
+   * @param data
+   * @param metaDataRow
+   * @throws KettleException
+   */
+  private void writeDocument(JdbcMetaDataData data, Object[] metaDataRow) throws KettleException {
+    Object document = metaDataRow[data.documentColumn];
+    if (document == null) return;
     try {
-      data.databases = new HashMap<String, Database>();
-      data.connections = new HashMap<String[], Connection>();
-      data.connectionKey = new String[4];
-      initMethod(meta, data);
-      initConnection(meta, data);
-      initOutputFields(meta, data);
+      data.documentWriter.write(document.toString());
+      //always a line feed, whatever the platform.
+      data.documentWriter.write('\n');
+    }
+    catch (IOException exception) {
+      throw new KettleException("Error writing document to " + data.documentFile, exception);
+    }
+    data.documentCount++;
+  }
+
+  /**
+   * Put the grouped rows of the last table.
+   * @param data
+   * @throws KettleException
+   */
+  private void finishGrouper(JdbcMetaDataData data) throws KettleException {
+    if (data.outputRowMeta == null) return;
+    try {
+      data.grouper.finish(data.grouperOutput);
+    }
+    catch (KettleException exception) {
+      throw exception;
+    }
+    catch (Exception exception) {
+      throw new KettleException(exception);
+    }
+    logDetailed("Grouped: " + data.grouper);
+  }
+
+  /**
+   * Put the statements of the last table.
+   * @param data
+   * @throws KettleException
+   */
+  private void finishDdlGenerator(JdbcMetaDataData data) throws KettleException {
+    if (data.outputRowMeta == null) return;
+    try {
+      data.ddlGenerator.finish(data.ddlOutput);
+    }
+    catch (KettleException exception) {
+      throw exception;
+    }
+    catch (Exception exception) {
+      throw new KettleException(exception);
+    }
+    logDetailed("DDL: " + data.ddlGenerator);
+  }
+
+  /**
+   * Get the name of the connection whose database dialect applies to the rows of an input row.
+   * @param meta
+   * @param data
+   * @param inputRow the input row, or null.
+   * @return the name of the named connection; empty if there is no named connection.
+   */
+  private String getDialectConnectionName(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow) {
+    String connectionSource = meta.getConnectionSource();
+    if (JdbcMetaDataMeta.connectionSourceOptionConnection.equals(connectionSource)) {
+      return meta.getConnectionName();
+    }
+    else
+    if (JdbcMetaDataMeta.connectionSourceOptionConnectionField.equals(connectionSource) && inputRow != null) {
+      return getConnectionNameFromRow(data, inputRow);
+    }
+    else {
+      return "";
+    }
+  }
+
+  /**
+   * Get the database dialect of a connection.
+   * Named connections have their own database dialect; other connections get the generic dialect.
+   * @param data
+   * @param connectionName the name of the named connection, or empty.
+   * @return the database of the dialect. The same connection name always gets the same object.
+   */
+  private DatabaseMeta getDialect(JdbcMetaDataData data, String connectionName) {
+    synchronized (data.dialects) {
+      DatabaseMeta databaseMeta = data.dialects.get(connectionName);
+      if (databaseMeta == null) {
+        databaseMeta = connectionName.length() == 0 ? null : getTransMeta().findDatabase(connectionName);
+        if (databaseMeta == null) {
+          databaseMeta = new DatabaseMeta(connectionName, "GENERIC", "Native", null, null, null, null, null);
+        }
+        data.dialects.put(connectionName, databaseMeta);
+      }
+      return databaseMeta;
+    }
+  }
+
+  /**
+   * Get the mapping of column types to Kettle types for the connection of an input row.
+   * Named connections map with the rules of their own database dialect;
+   * other connections (and rows without an input row) map with the generic rules.
+   * @param meta
+   * @param data
+   * @param inputRow the input row, or null.
+   * @return the mapping
+   */
+  private MetaDataKettleTypes getKettleTypes(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow) {
+    String connectionName = getDialectConnectionName(meta, data, inputRow);
+    MetaDataKettleTypes kettleTypes;
+    synchronized (data.kettleTypes) {
+      kettleTypes = data.kettleTypes.get(connectionName);
+      if (kettleTypes == null) {
+        kettleTypes = new MetaDataKettleTypes(getDialect(data, connectionName), data.kettleTypeColumns);
+        data.kettleTypes.put(connectionName, kettleTypes);
+      }
+    }
+    return kettleTypes;
+  }
+
+  /**
+   * Read the baseline rows from the step that delivers them.
+   * Baseline fields are matched to the resultset columns by the name of the output field,
+   * or, for columns that are not output, by the name of the column.
+   * @param meta
+   * @param data
+   * @throws KettleException
+   */
+  private void readDiffBaseline(JdbcMetaDataMeta meta, JdbcMetaDataData data) throws KettleException {
+    String stepName = data.diffBaselineStep;
+    data.diffBaselineStep = null;
+    RowSet rowSet = findInputRowSet(stepName);
+    if (rowSet == null) {
+      throw new KettleException("The baseline step \"" + stepName + "\" does not send rows to this step.");
+    }
+    ValueMetaInterface[] fields = meta.getMethodResultSetDescriptor();
+    String[] fieldNames = new String[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      fieldNames[i] = fields[i].getName();
+    }
+    Object[] outputFields = meta.getOutputFields();
+    String[] outputField;
+    int column;
+    for (int i = 0; i < outputFields.length; i++) {
+      outputField = (String[])outputFields[i];
+      column = data.resultSetIndices[i] - 1;
+      if (column == -1 || outputField[1] == null) continue;
+      fieldNames[column] = outputField[1];
+    }
+    int[] fieldIndices = null;
+    Object[] row;
+    Object[] metaDataRow;
+    long count = 0;
+    try {
+      while ((row = getRowFrom(rowSet)) != null) {
+        if (fieldIndices == null) {
+          RowMetaInterface rowMeta = rowSet.getRowMeta();
+          fieldIndices = new int[fields.length];
+          for (int i = 0; i < fields.length; i++) {
+            fieldIndices[i] = rowMeta.indexOfValue(fieldNames[i]);
+          }
+        }
+        metaDataRow = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+          if (fieldIndices[i] == -1) continue;
+          metaDataRow[i] = row[fieldIndices[i]];
+        }
+        data.diff.addBaseline(metaDataRow);
+        count++;
+      }
+    }
+    catch (IOException exception) {
+      throw new KettleException(exception);
+    }
+    logDetailed("Read " + count + " baseline rows from step " + stepName);
+  }
+
+  /**
+   * @param meta
+   * @return whether the step only returns the table statistics rows of getIndexInfo.
+   */
+  private boolean isIndexStatisticsOnly(JdbcMetaDataMeta meta) {
+    return meta.getIndexStatisticsOnly() && "getIndexInfo".equals(meta.getMethodName());
+  }
+
+  /**
+   * Describe the method together with the columns this step reads.
+   * Metadata rows only hold the columns this step outputs (and, in diff mode, the key columns),
+   * so rows that are kept beyond this step must be identified by the method and the selection.
+   * @param meta
+   * @param data
+   * @return the method name followed by the selected columns.
+   */
+  private String getSelectedMethod(JdbcMetaDataMeta meta, JdbcMetaDataData data) {
+    StringBuilder selectedMethod = new StringBuilder(meta.getMethodName());
+    //the statistics rows are a different result than all rows.
+    if (isIndexStatisticsOnly(meta)) selectedMethod.append("[statistics]");
+    String separator = "(";
+    for (int i = 0; i < data.resultSetIndices.length; i++) {
+      if (data.resultSetIndices[i] == 0) continue;
+      selectedMethod.append(separator);
+      selectedMethod.append(data.resultSetIndices[i]);
+      separator = ",";
+    }
+    selectedMethod.append(")");
+    if (data.requiredColumns != null) {
+      selectedMethod.append(Arrays.toString(data.requiredColumns));
+    }
+    return selectedMethod.toString();
+  }
+
+  /**
+   * Set up incremental mode. The results of earlier runs are read from the state file,
+   * and replayed for the calls whose tables did not change.
+   * @param meta
+   * @param data
+   * @throws Exception
+   */
+  private void initIncremental(JdbcMetaDataMeta meta, JdbcMetaDataData data) throws Exception {
+    data.harvestState = null;
+    if (!meta.getIncrementalMode()) return;
+    if (data.catalogIndexes != null) {
+      logBasic("Incremental mode is ignored, since the catalog index answers all rows from memory.");
+      return;
+    }
+    if (!MetaDataChangeProbe.isTableMethod(meta.getMethodName())) {
+      logBasic("Incremental mode is ignored, since " + meta.getMethodName() + " does not return metadata of particular tables.");
+      return;
+    }
+    if (JdbcMetaDataMeta.connectionSourceOptionSnapshot.equals(meta.getConnectionSource())) {
+      logBasic("Incremental mode is ignored, since the connection source is a snapshot.");
+      return;
+    }
+    if (data.snapshotWriter != null) {
+      //replayed results would not be captured.
+      logBasic("Incremental mode is ignored while capturing a snapshot.");
+      return;
+    }
+    data.harvestStateFile = new File(environmentSubstitute(meta.getIncrementalStateFile()));
+    data.harvestState = MetaDataHarvestState.load(data.harvestStateFile);
+    data.harvestMethod = getSelectedMethod(meta, data);
+    data.changeProbes = new HashMap<String, MetaDataChangeProbe>();
+    logDebug("Incremental mode, state " + data.harvestStateFile + ": " + data.harvestState);
+  }
+
+  /**
+   * Get the watermark of a call: it changes whenever any of the tables the call is about changes.
+   * The signatures of the tables of a catalog and schema are read once for each connection, at the first call about them.
+   * @param meta
+   * @param data
+   * @param inputRow
+   * @param arguments
+   * @return the watermark
+   * @throws Exception
+   */
+  private String getHarvestWatermark(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow, Object[] arguments) throws Exception {
+    String connectionIdentity = getConnectionIdentity(meta, data, inputRow);
+    MetaDataChangeProbe changeProbe = data.changeProbes.get(connectionIdentity);
+    if (changeProbe == null) {
+      changeProbe = new MetaDataChangeProbe();
+      data.changeProbes.put(connectionIdentity, changeProbe);
+    }
+    List<String[]> scopes = changeProbe.getUnreadScopes(meta.getMethodName(), arguments);
+    if (!scopes.isEmpty()) {
+      Connection connection = getConnection(meta, data, inputRow);
+      try {
+        int tableCount;
+        for (String[] scope : scopes) {
+          tableCount = changeProbe.read(connection, scope[0], scope[1]);
+          logDetailed("Read the signatures of " + tableCount + " tables in catalog " + scope[0] + ", schema " + scope[1] + ": " + changeProbe);
+        }
+      }
+      finally {
+        releaseConnection(meta, data, inputRow, connection);
+      }
+    }
+    return changeProbe.getWatermark(meta.getMethodName(), arguments);
+  }
+
+  /**
+   * Set up the catalog index. The index of each connection is loaded at its first row.
+   * Matching needs the catalog, schema, table (and column) of each row, so these are read even if they are not output.
+   * Snapshots only replay the calls they recorded, so the index is not used with snapshots.
+   * @param meta
+   * @param data
+   */
+  private void initCatalogIndex(JdbcMetaDataMeta meta, JdbcMetaDataData data) {
+    data.catalogIndexes = null;
+    if (!meta.getCatalogIndex()) return;
+    if (!MetaDataCatalogIndex.isIndexable(meta.getMethodName())) {
+      logBasic("Catalog index is ignored, since calls to " + meta.getMethodName() + " can not be indexed.");
+      return;
+    }
+    if (data.snapshot != null) {
+      logBasic("Catalog index is ignored, since the connection source is a snapshot.");
+      return;
+    }
+    if (data.snapshotWriter != null) {
+      //the index makes one call for all tables, which would be the only call captured.
+      logBasic("Catalog index is ignored while capturing a snapshot.");
+      return;
+    }
+    addRequiredColumns(data, MetaDataCatalogIndex.getRequiredColumns(meta.getMethodName(), meta.getMethodResultSetDescriptor()));
+    data.catalogIndexes = new HashMap<String, MetaDataCatalogIndex>();
+    logDebug("Catalog index: arguments are evaluated against the whole catalog.");
+  }
+
+  /**
+   * Get the catalog index of the connection of a row. It is loaded with one call for all tables when it is first needed.
+   * @param meta
+   * @param data
+   * @param inputRow
+   * @return the index, or null if it could not be loaded, for instance because the driver does not accept a wildcard for the table.
+   * @throws Exception
+   */
+  private MetaDataCatalogIndex getCatalogIndex(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow) throws Exception {
+    String connectionIdentity = getConnectionIdentity(meta, data, inputRow);
+    if (data.catalogIndexes.containsKey(connectionIdentity)) return data.catalogIndexes.get(connectionIdentity);
+    MetaDataCatalogIndex catalogIndex;
+    Connection connection = getConnection(meta, data, inputRow);
+    try {
+      DatabaseMetaData databaseMetaData = getDatabaseMetaData(meta, data, inputRow, connection);
+      catalogIndex = new MetaDataCatalogIndex(
+        meta.getMethodName(), meta.getMethodResultSetDescriptor(), databaseMetaData.getSearchStringEscape(),
+        MetaDataCatalogIndex.getIgnoreCase(databaseMetaData.storesMixedCaseIdentifiers(), databaseMetaData.supportsMixedCaseIdentifiers())
+      );
+      ResultSet resultSet;
+      try {
+        resultSet = getInvoker(meta, data, databaseMetaData).invoke(databaseMetaData, catalogIndex.getLoadArguments());
+      }
+      catch (Exception exception) {
+        //don't try again for this connection.
+        Throwable cause = exception.getCause() == null ? exception : exception.getCause();
+        logBasic("Loading the catalog index failed, making a call for each row instead: " + cause.getMessage());
+        data.catalogIndexes.put(connectionIdentity, null);
+        return null;
+      }
+      try {
+        MetaDataRowReader rowReader = getRowReader(data, databaseMetaData, resultSet);
+        while (resultSet.next()) {
+          catalogIndex.addRow(rowReader.readRow(resultSet));
+        }
+      }
+      finally {
+        resultSet.close();
+      }
+      catalogIndex.finish();
+    }
+    finally {
+      releaseConnection(meta, data, inputRow, connection);
+    }
+    logDetailed("Loaded catalog index: " + catalogIndex.size() + " rows.");
+    data.catalogIndexes.put(connectionIdentity, catalogIndex);
+    return catalogIndex;
+  }
+
+  /**
+   * Set up the additional methods. They take their arguments from the arguments of the step's method, by name;
+   * the name and the pattern argument of the same kind of object (like schema and schemaPattern) are taken to be the same.
+   * Arguments that the step's method does not have are passed as null, or false for flags.
+   * A name argument that takes its value from a pattern argument only gets literal patterns (see putTargetMethodRows).
+   * @param meta
+   * @param data
+   * @throws KettleException
+   */
+  private void initTargetMethods(JdbcMetaDataMeta meta, JdbcMetaDataData data) throws KettleException {
+    data.targetMethodDescriptors = null;
+    Object[] targetMethods = meta.getTargetMethods();
+    if (targetMethods == null || targetMethods.length == 0) return;
+    Object[] arguments = (Object[])meta.getMethodDescriptor()[1];
+    int n = targetMethods.length;
+    data.targetMethodDescriptors = new Object[n][];
+    data.targetArgumentIndices = new int[n][];
+    data.targetArgumentPatterns = new boolean[n][];
+    data.targetRowReaders = new HashMap<String, MetaDataRowReader>();
+    String[] targetMethod;
+    Object[] targetArguments;
+    Object[] targetArgument;
+    for (int i = 0; i < n; i++) {
+      targetMethod = (String[])targetMethods[i];
+      data.targetMethodDescriptors[i] = JdbcMetaDataMeta.getMethodDescriptor(targetMethod[0]);
+      if (data.targetMethodDescriptors[i] == null) throw new KettleException("Unknown metadata method " + targetMethod[0]);
+      targetArguments = (Object[])data.targetMethodDescriptors[i][1];
+      data.targetArgumentIndices[i] = new int[targetArguments.length];
+      data.targetArgumentPatterns[i] = new boolean[targetArguments.length];
+      for (int j = 0; j < targetArguments.length; j++) {
+        targetArgument = (Object[])targetArguments[j];
+        data.targetArgumentIndices[i][j] = -1;
+        for (int k = 0; k < arguments.length; k++) {
+          if (!getArgumentKind(targetArgument).equals(getArgumentKind((Object[])arguments[k]))) continue;
+          data.targetArgumentIndices[i][j] = k;
+          data.targetArgumentPatterns[i][j] =
+            targetArgument[1] == String.class && !((String)targetArgument[0]).endsWith("Pattern") &&
+            ((String)((Object[])arguments[k])[0]).endsWith("Pattern");
+          break;
+        }
+        if (data.targetArgumentIndices[i][j] == -1 && targetArgument[1] == Integer.class) {
+          throw new KettleException(
+            "Argument " + targetArgument[0] + " of " + targetMethod[0] + " can not be taken from the arguments of " + meta.getMethodName()
+          );
+        }
+      }
+      logDebug("Rows of " + targetMethod[0] + " go to " + targetMethod[1] + ", arguments " + Arrays.toString(data.targetArgumentIndices[i]));
+    }
+  }
+
+  //the kind of object an argument is about: its name, without "Pattern" or "NamePattern".
+  private static String getArgumentKind(Object[] argument) {
+    String name = (String)argument[0];
+    if (name.endsWith("NamePattern")) return name.substring(0, name.length() - "NamePattern".length());
+    if (name.endsWith("Pattern")) return name.substring(0, name.length() - "Pattern".length());
+    return name;
+  }
+
+  /**
+   * Look up the row sets of the target steps of the additional methods, and the structure of their rows.
+   * The rows of the step's own method go to all other row sets.
+   * @param meta
+   * @param data
+   * @param inputRowMeta
+   * @throws KettleException
+   */
+  private void initTargetRowSets(JdbcMetaDataMeta meta, JdbcMetaDataData data, RowMetaInterface inputRowMeta) throws KettleException {
+    int n = data.targetMethodDescriptors.length;
+    data.targetRowSets = new RowSet[n];
+    data.targetRowMetas = new RowMetaInterface[n];
+    List<RowSet> mainRowSets = new ArrayList<RowSet>(getOutputRowSets());
+    String targetStep;
+    for (int i = 0; i < n; i++) {
+      targetStep = ((String[])meta.getTargetMethods()[i])[1];
+      data.targetRowSets[i] = findOutputRowSet(targetStep);
+      if (data.targetRowSets[i] == null) {
+        throw new KettleException("No hop found to target step \"" + targetStep + "\" of " + data.targetMethodDescriptors[i][0]);
+      }
+      mainRowSets.remove(data.targetRowSets[i]);
+      data.targetRowMetas[i] = (RowMetaInterface)inputRowMeta.clone();
+      meta.getFields(data.targetRowMetas[i], getStepname(), null, getTransMeta().findStep(targetStep), this);
+    }
+    data.mainRowSets = mainRowSets;
+    data.mainRowSetIndex = 0;
+  }
+
+  /**
+   * Put a row of the step's own method.
+   * If there are additional methods, their target steps do not get these rows.
+   * @param data
+   * @param outputRow
+   * @throws KettleException
+   */
+  private void putMainRow(JdbcMetaDataData data, Object[] outputRow) throws KettleException {
+    if (data.mainRowSets == null) {
+      putRow(data.outputRowMeta, outputRow);
+      return;
+    }
+    if (data.mainRowSets.isEmpty()) return;
+    //distribute the rows over the other hops, as kettle does by default.
+    putRowTo(data.outputRowMeta, outputRow, data.mainRowSets.get(data.mainRowSetIndex));
+    data.mainRowSetIndex = (data.mainRowSetIndex + 1) % data.mainRowSets.size();
+  }
+
+  /**
+   * Get the value of a name argument of an additional method.
+   * If it takes its value from a pattern argument of the step's method, only literal patterns name a particular object. "%" means any, which the methods express as null,
+   * except for a table: the methods that take a table name are about one table, and not all drivers accept null.
+   * (The methods that are not JDBC methods take table name patterns.)
+   * @param argument the name of the argument
+   * @param value the value of the argument of the step's method
+   * @param pattern whether the argument of the step's method is a pattern
+   * @param searchStringEscape the escape character of patterns
+   * @return the name, or null for any
+   * @throws IllegalArgumentException if the value does not name a particular object
+   */
+  private static String getTargetArgumentName(String argument, Object value, boolean pattern, String searchStringEscape) {
+    boolean table = isTableArgument(argument);
+    if (value == null && table) throw new IllegalArgumentException("no table");
+    if (value == null || !pattern) return (String)value;
+    JdbcPattern jdbcPattern = new JdbcPattern(value.toString(), searchStringEscape, false);
+    if (jdbcPattern.isLiteral()) return jdbcPattern.getLiteral();
+    if ("%".equals(value) && !table) return null;
+    throw new IllegalArgumentException("pattern " + value);
+  }
+
+  //whether an argument is the name of a table, like the table argument of getPrimaryKeys and the parentTable argument of getCrossReference.
+  private static boolean isTableArgument(String argument) {
+    return "table".equals(argument) || argument.endsWith("Table");
+  }
+
+  /**
+   * Call the additional methods for an input row, all on the same connection,
+   * and put their rows to their target steps.
+   * Methods that take the name of a table are only called if the row names a particular table.
+   * @param meta
+   * @param data
+   * @param inputRow
+   * @param arguments the arguments of the step's method for this row
+   * @throws Exception
+   */
+  private void putTargetMethodRows(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow, Object[] arguments) throws Exception {
+    Connection connection = getConnection(meta, data, inputRow);
+    try {
+      DatabaseMetaData databaseMetaData = getDatabaseMetaData(meta, data, inputRow, connection);
+      Object[] targetMethodDescriptor;
+      int[] targetArgumentIndices;
+      Object[] targetArguments;
+      Object[] targetArgument;
+      String skip;
+      for (int i = 0; i < data.targetMethodDescriptors.length; i++) {
+        targetMethodDescriptor = data.targetMethodDescriptors[i];
+        targetArgumentIndices = data.targetArgumentIndices[i];
+        targetArguments = new Object[targetArgumentIndices.length];
+        skip = null;
+        for (int j = 0; j < targetArguments.length; j++) {
+          targetArgument = (Object[])((Object[])targetMethodDescriptor[1])[j];
+          if (targetArgumentIndices[j] != -1) {
+            targetArguments[j] = arguments[targetArgumentIndices[j]];
+          }
+          else
+          if (targetArgument[1] == Boolean.class) {
+            targetArguments[j] = Boolean.FALSE;
+          }
+          if (data.targetArgumentPatterns[i][j] || isTableArgument((String)targetArgument[0])) {
+            try {
+              targetArguments[j] = getTargetArgumentName(
+                (String)targetArgument[0], targetArguments[j], data.targetArgumentPatterns[i][j], databaseMetaData.getSearchStringEscape()
+              );
+            }
+            catch (IllegalArgumentException exception) {
+              skip = targetArgument[0] + ": " + exception.getMessage();
+              break;
+            }
+          }
+        }
+        if (skip != null) {
+          logRowlevel("Not calling " + targetMethodDescriptor[0] + ", since the row does not name a particular object (" + skip + ").");
+          continue;
+        }
+        ResultSet resultSet = ((MetaDataInvoker)targetMethodDescriptor[3]).invoke(databaseMetaData, targetArguments);
+        try {
+          MetaDataRowReader rowReader = getTargetRowReader(data, i, databaseMetaData, resultSet);
+          RowMetaInterface rowMeta = data.targetRowMetas[i];
+          Object[] metaDataRow;
+          Object[] outputRow;
+          while (resultSet.next()) {
+            metaDataRow = rowReader.readRow(resultSet);
+            outputRow = createOutputRow(data, inputRow, rowMeta.size());
+            System.arraycopy(metaDataRow, 0, outputRow, data.outputRowOffset, metaDataRow.length);
+            putRowTo(rowMeta, outputRow, data.targetRowSets[i]);
+          }
+        }
+        finally {
+          resultSet.close();
+        }
+      }
+    }
+    finally {
+      releaseConnection(meta, data, inputRow, connection);
+    }
+  }
+
+  /**
+   * Get the reader for the rows of an additional method. It reads all columns of the method.
+   * @param data
+   * @param targetMethodIndex
+   * @param databaseMetaData
+   * @param resultSet
+   * @return
+   * @throws Exception
+   */
+  private MetaDataRowReader getTargetRowReader(JdbcMetaDataData data, int targetMethodIndex, DatabaseMetaData databaseMetaData, ResultSet resultSet) throws Exception {
+    String key = targetMethodIndex + ":" + MetaDataSnapshotWriter.getTarget(databaseMetaData).getClass().getName();
+    MetaDataRowReader rowReader = data.targetRowReaders.get(key);
+    if (rowReader == null) {
+      int fieldCount = ((ValueMetaInterface[])data.targetMethodDescriptors[targetMethodIndex][2]).length;
+      int[] resultSetIndices = new int[fieldCount];
+      for (int i = 0; i < fieldCount; i++) {
+        resultSetIndices[i] = i + 1;
+      }
+      rowReader = MetaDataRowReader.create(
+        data.targetRowMetas[targetMethodIndex], data.outputRowOffset, resultSetIndices,
+        fieldCount, null, resultSet.getMetaData()
+      );
+      data.targetRowReaders.put(key, rowReader);
+    }
+    return rowReader;
+  }
+
+  /**
+   * Set up native queries. The invoker for each driver is created at its first call, as it depends on the database.
+   * The queries only compute the columns that are read.
+   * Snapshots record and replay the DatabaseMetaData calls themselves, so native queries are not used with snapshots.
+   * @param meta
+   * @param data
+   */
+  private void initNativeQueries(JdbcMetaDataMeta meta, JdbcMetaDataData data) {
+    data.nativeInvokers = null;
+    if (!meta.getNativeQueries()) return;
+    if (data.snapshot != null) {
+      logBasic("Native queries are not used, since the connection source is a snapshot.");
+      return;
+    }
+    if (data.snapshotWriter != null) {
+      logBasic("Native queries are not used while capturing a snapshot.");
+      return;
+    }
+    data.nativeReadColumns = new boolean[data.resultSetFieldCount];
+    for (int i = 0; i < data.resultSetIndices.length; i++) {
+      if (data.resultSetIndices[i] != 0) data.nativeReadColumns[data.resultSetIndices[i] - 1] = true;
+    }
+    if (data.requiredColumns != null) {
+      for (int i = 0; i < data.requiredColumns.length; i++) {
+        data.nativeReadColumns[data.requiredColumns[i]] = true;
+      }
+    }
+    data.nativeInvokers = new HashMap<String, MetaDataInvoker>();
+  }
+
+  /**
+   * Get the invoker that answers the metadata calls.
+   * With native queries, this is a native query if we know the database, and the method otherwise.
+   * Invokers are created once for each driver and database url, at the first call, and then reused.
+   * This way, a native query that fails or differs from the driver on one database is still tried on others.
+   * (In parallel mode, this may be called by a worker thread.)
+   * @param meta
+   * @param data
+   * @param databaseMetaData
+   * @return
+   * @throws Exception
+   */
+  private MetaDataInvoker getInvoker(JdbcMetaDataMeta meta, JdbcMetaDataData data, DatabaseMetaData databaseMetaData) throws Exception {
+    if (data.nativeInvokers == null) return data.invoker;
+    String driver = databaseMetaData.getClass().getName() + " " + databaseMetaData.getURL();
+    MetaDataInvoker invoker;
+    synchronized (data.nativeInvokers) {
+      invoker = data.nativeInvokers.get(driver);
+      if (invoker == null) {
+        invoker = MetaDataNativeQuery.create(meta.getMethodDescriptor(), data.nativeReadColumns, databaseMetaData, data.invoker);
+        if (invoker == data.invoker) {
+          logBasic("No native query for " + meta.getMethodName() + " on " + databaseMetaData.getDatabaseProductName() + ", calling the driver.");
+        }
+        else {
+          logDebug("Using a native query for " + meta.getMethodName() + " on " + databaseMetaData.getDatabaseProductName());
+        }
+        data.nativeInvokers.put(driver, invoker);
+      }
+    }
+    return invoker;
+  }
+
+  /**
+   * Set up the cache for metadata results.
+   * If the arguments do not come from fields, every row asks for the same result,
+   * so in that case we always cache - even if the user did not ask for it.
+   * If the shared cache is used, the cache is obtained from the registry, and shared by all steps in the JVM.
+   * @param meta
+   * @param data
+   */
+  private void initResultCache(JdbcMetaDataMeta meta, JdbcMetaDataData data){
+    if (data.catalogIndexes != null) {
+      if (meta.getCacheResults() || meta.getSharedCache()) logBasic("Result cache is ignored, since the catalog index answers all rows from memory.");
+      data.resultCache = null;
+      return;
+    }
+    boolean constantArguments = !meta.getArgumentSourceFields() || data.arguments.length == 0;
+    if (!meta.getCacheResults() && !meta.getSharedCache() && !constantArguments) {
+      data.resultCache = null;
+      return;
+    }
+    int maxEntries = Const.toInt(environmentSubstitute(meta.getCacheMaxEntries()), 1000);
+    long maxSize = Const.toLong(environmentSubstitute(meta.getCacheMaxSize()), 64) * 1024 * 1024;
+    long timeToLive = Const.toLong(environmentSubstitute(meta.getCacheTimeToLive()), 0) * 1000;
+    boolean cacheEmptyResults = meta.getCacheEmptyResults() || !meta.getCacheResults();
+    data.resultCacheMethod = meta.getMethodName();
+    if (meta.getSharedCache() && data.snapshotWriter != null) {
+      //results that other steps put in the shared cache would not be captured.
+      logBasic("The shared cache is not used while capturing a snapshot.");
+    }
+    else
+    if (meta.getSharedCache()) {
+      //other steps may output other columns, so the selection must be part of the key.
+      data.resultCacheMethod = getSelectedMethod(meta, data);
+      long offHeapThreshold = Const.toLong(environmentSubstitute(meta.getSharedCacheOffHeapThreshold()), 1024) * 1024;
+      data.resultCacheEpoch = environmentSubstitute(meta.getSharedCacheEpoch());
+      logDebug("Using the shared result cache, epoch " + data.resultCacheEpoch + ".");
+      //off-heap results have their own budget, of the same size as the heap budget.
+      data.resultCache = MetaDataRegistry.getInstance().getResultCache(
+        maxEntries, maxSize, timeToLive, cacheEmptyResults, offHeapThreshold, maxSize
+      );
+      if (MetaDataRegistry.getInstance().setEpoch(data.resultCacheEpoch)) {
+        logBasic("The epoch of the shared result cache changed to " + data.resultCacheEpoch + ", the results of the old epoch were dropped.");
+      }
+      MetaDataResultCache resultCache = data.resultCache;
+      if (
+        resultCache.getMaxEntries() != maxEntries || resultCache.getMaxSize() != maxSize ||
+        resultCache.getTimeToLive() != timeToLive || resultCache.getCacheEmptyResults() != cacheEmptyResults ||
+        resultCache.getOffHeapThreshold() != offHeapThreshold
+      ) {
+        logBasic(
+          "The shared result cache was created by another step, and keeps its settings: max " + resultCache.getMaxEntries() + " entries, " +
+          "max " + resultCache.getMaxSize() + " bytes, time to live " + resultCache.getTimeToLive() + " ms."
+        );
+      }
+      return;
+    }
+    logDebug("Caching results: max " + maxEntries + " entries, max " + maxSize + " bytes, time to live " + timeToLive + " ms.");
+    data.resultCache = new MetaDataResultCache(maxEntries, maxSize, timeToLive, cacheEmptyResults);
+  }
+
+  /**
+   * Set up the buffer for batch mode.
+   * Batching only makes sense if the arguments come from fields, and only some methods support it.
+   * @param meta
+   * @param data
+   */
+  private void initBatch(JdbcMetaDataMeta meta, JdbcMetaDataData data){
+    data.batch = null;
+    if (!meta.getBatchMode()) return;
+    if (data.catalogIndexes != null) {
+      logBasic("Batch mode is ignored, since the catalog index answers all rows from memory.");
+      return;
+    }
+    if (data.harvestState != null) {
+      logBasic("Batch mode is ignored, since in incremental mode only the tables that changed are fetched.");
+      return;
+    }
+    if (!meta.getArgumentSourceFields()) {
+      logBasic("Batch mode is ignored, since arguments do not come from fields.");
+      return;
+    }
+    if (!MetaDataBatch.isBatchable(meta.getMethodName())) {
+      logBasic("Batch mode is ignored, since calls to " + meta.getMethodName() + " can not be batched.");
+      return;
+    }
+    data.batchWindowSize = Const.toInt(environmentSubstitute(meta.getBatchWindowSize()), 500);
+    data.batchMaxRows = Const.toInt(environmentSubstitute(meta.getBatchMaxRows()), 100000);
+    logDebug("Batch mode: window of " + data.batchWindowSize + " rows, at most " + data.batchMaxRows + " rows per call.");
+    data.batch = new MetaDataBatch(meta.getMethodName(), meta.getMethodResultSetDescriptor());
+  }
+
+  /**
+   * Set up the fetcher for parallel and prefetch mode.
+   * Parallel mode only makes sense if the connection may be different for each row.
+   * Prefetch mode makes calls ahead of the input rows, so that waiting for the driver overlaps with putting rows.
+   * @param meta
+   * @param data
+   */
+  private void initFetcher(final JdbcMetaDataMeta meta, final JdbcMetaDataData data){
+    data.fetcher = null;
+    boolean parallel = meta.getParallelMode();
+    boolean prefetch = meta.getPrefetchMode();
+    if (!parallel && !prefetch) return;
+    if (data.catalogIndexes != null) {
+      logBasic("Parallel and prefetch mode are ignored, since the catalog index answers all rows from memory.");
+      return;
+    }
+    if (data.harvestState != null) {
+      logBasic("Parallel and prefetch mode are ignored in incremental mode.");
+      return;
+    }
+    String connectionSource = meta.getConnectionSource();
+    if (parallel && !(
+      JdbcMetaDataMeta.connectionSourceOptionConnectionField.equals(connectionSource) ||
+      JdbcMetaDataMeta.connectionSourceOptionJDBCFields.equals(connectionSource)
+    )) {
+      logBasic("Parallel mode is ignored, since the connection is the same for all rows.");
+      parallel = false;
+      if (!prefetch) return;
+    }
+    if (data.batch != null) {
+      logBasic("Parallel and prefetch mode are ignored, since batch mode is enabled.");
+      return;
+    }
+    if (meta.getTargetMethods() != null && meta.getTargetMethods().length > 0) {
+      //the additional methods are called on the step's thread, so the calls would share the connection with the fetcher's threads.
+      logBasic("Parallel and prefetch mode are ignored, since there are additional methods.");
+      return;
+    }
+    int parallelism = 1;
+    int maxPerHost = 0;
+    boolean preserveOrder = true;
+    String executorOption = MetaDataFetcher.executorOptionThreads;
+    if (parallel) {
+      parallelism = Const.toInt(environmentSubstitute(meta.getParallelism()), 4);
+      maxPerHost = Const.toInt(environmentSubstitute(meta.getParallelMaxPerHost()), 0);
+      preserveOrder = meta.getParallelPreserveOrder();
+      executorOption = meta.getParallelExecutor();
+    }
+    //without prefetch mode, results are buffered in full, but we don't run too far ahead of the input.
+    int maxInFlight = 4 * parallelism;
+    long maxBufferSize = 0;
+    if (prefetch) {
+      maxInFlight = Const.toInt(environmentSubstitute(meta.getPrefetchRows()), 16);
+      maxBufferSize = Const.toLong(environmentSubstitute(meta.getPrefetchBufferSize()), 16) * 1024 * 1024;
+    }
+    data.fetcher = new MetaDataFetcher(
+      parallelism, maxPerHost, preserveOrder, executorOption,
+      maxInFlight, maxBufferSize, getStepname()
+    );
+    data.fetch = new MetaDataFetcher.Fetch() {
+      public void fetch(Object[] inputRow, Object[] arguments, MetaDataFetcher.Task task) throws Exception {
+        bufferMetaDataRows(meta, data, inputRow, arguments, task);
+      }
+    };
+    logDebug(
+      "Fetching ahead: " + parallelism + " concurrent calls, " + maxPerHost + " per host, " +
+      maxInFlight + " input rows ahead, " + maxBufferSize + " bytes buffered, " +
+      (preserveOrder ? "preserving" : "not preserving") + " order, using " + data.fetcher.getExecutorDescription()
+    );
+  }
+
+  /**
+   * Put the rollup rows of the last table, schema and catalog.
+   * @param data
+   * @throws KettleException
+   */
+  private void finishFingerprint(JdbcMetaDataData data) throws KettleException {
+    if (data.outputRowMeta == null) return;
+    try {
+      data.fingerprint.finish(data.fingerprintOutput);
+    }
+    catch (KettleException exception) {
+      throw exception;
+    }
+    catch (Exception exception) {
+      throw new KettleException(exception);
+    }
+    logDetailed("Fingerprints: " + data.fingerprint);
+  }
+
+  /**
+   * Put the rows that were removed, and any changed rows that were spilled to disk.
+   * @param data
+   * @throws KettleException
+   */
+  private void finishDiff(JdbcMetaDataData data) throws KettleException {
+    if (data.outputRowMeta == null) {
+      //without input rows, no metadata was retrieved, so there is nothing to compare.
+      logBasic("Diff: no input rows, so nothing was compared to the baseline.");
+      return;
+    }
+    try {
+      data.diff.finish(data.diffOutput);
+    }
+    catch (KettleException exception) {
+      throw exception;
+    }
+    catch (Exception exception) {
+      throw new KettleException(exception);
+    }
+    logBasic("Diff: " + data.diff);
+  }
+
+  /**
+   * This method is called by PDI during transformation startup.
+   *
+   * It should initialize required for step execution.
+   *
+   * The meta and data implementations passed in can safely be cast
+   * to the step's respective implementations.
+   *
+   * It is mandatory that super.init() is called to ensure correct behavior.
+   *
+   * Typical tasks executed here are establishing the connection to a database,
+   * as wall as obtaining resources, like file handles.
+   *
+   * @param smi   step meta interface implementation, containing the step settings
+   * @param sdi step data interface implementation, used to store runtime information
+   *
+   * @return true if initialization completed successfully, false if there was an error preventing the step from working.
+   *
+   */
+  public boolean init(StepMetaInterface smi, StepDataInterface sdi) {
+    boolean result = true;
+    // Casting to step-specific implementation classes is safe
+    JdbcMetaDataMeta meta = (JdbcMetaDataMeta) smi;
+    JdbcMetaDataData data = (JdbcMetaDataData) sdi;
+    if (!super.init(meta, data)) return false;
+
+    try {
+      data.databases = new HashMap<String, Database>();
+      data.connectionIdentities = new HashMap<String, String>();
+      data.rowReaders = new HashMap<String, MetaDataRowReader>();
+      initMethod(meta, data);
+      initConnection(meta, data);
+      initSnapshotCapture(meta, data);
+      initOutputFields(meta, data);
+      initDiff(meta, data);
+      initFingerprint(meta, data);
+      initKettleTypes(meta, data);
+      initGrouper(meta, data);
+      initDdlGenerator(meta, data);
+      initDocumentFile(meta, data);
+      initCatalogIndex(meta, data);
+      initNativeQueries(meta, data);
+      initIncremental(meta, data);
+      initResultCache(meta, data);
+      initBatch(meta, data);
+      initFetcher(meta, data);
+      initTargetMethods(meta, data);
+    }
+    catch(Exception exception) {
+      logError("Unexpected " + exception.getClass().getName() +" initializing step: " + exception.getMessage());
+      exception.printStackTrace();
+      result = false;
+    }
+    return result;
+  }
+
+  private String getConnectionNameFromRow(JdbcMetaDataData data, Object[] row){
+    return (String)(row[data.connectionField]);
+  }
+
+  private String getJdbcDriverFromRow(JdbcMetaDataData data, Object[] row) {
+    return (String)(row[data.jdbcDriverField]);
+  }
+
+  private String getJdbcUrlFromRow(JdbcMetaDataData data, Object[] row) {
+    return (String)(row[data.jdbcUrlField]);
+  }
+
+  private String getJdbcUserFromRow(JdbcMetaDataData data, Object[] row) {
+    return (String)(row[data.jdbcUserField]);
+  }
+
+  private String getJdbcPasswordFromRow(JdbcMetaDataData data, Object[] row) {
+    return (String)(row[data.jdbcPasswordField]);
+  }
+
+  /**
+   * This is called in the processRow function to obtain a string that identifies the connection,
+   * so that metadata results from different connections are not mixed up in the cache.
+   * The identity is made up of the driver, url and user, so that it means the same thing in every step
+   * (which matters for the shared cache). Note that the password is deliberately not part of the identity;
+   * the result cache adds a hash of it (see getCacheIdentity).
+   * @param meta
+   * @param data
+   * @param row
+   * @return
+   * @throws KettleException
+   */
+  private String getConnectionIdentity(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] row) throws KettleException {
+    String connectionSource = meta.getConnectionSource();
+    if (JdbcMetaDataMeta.connectionSourceOptionConnectionField.equals(connectionSource)) {
+      String connectionName = getConnectionNameFromRow(data, row);
+      String connectionIdentity;
+      synchronized (data.connectionIdentities) {
+        connectionIdentity = data.connectionIdentities.get(connectionName);
+        if (connectionIdentity == null) {
+          DatabaseMeta databaseMeta = getTransMeta().findDatabase(connectionName);
+          if (databaseMeta == null) {
+            throw new KettleException("Named connection " + connectionName + " not found!");
+          }
+          connectionIdentity = getConnectionIdentity(databaseMeta);
+          data.connectionIdentities.put(connectionName, connectionIdentity);
+        }
+      }
+      return connectionIdentity;
+    }
+    else
+    if (JdbcMetaDataMeta.connectionSourceOptionJDBCFields.equals(connectionSource)) {
+      return getConnectionIdentity(getJdbcDriverFromRow(data, row), getJdbcUrlFromRow(data, row), getJdbcUserFromRow(data, row));
+    }
+    else {
+      //the connection is the same for all rows.
+      return data.connectionIdentity;
+    }
+  }
+
+  /**
+   * Get the identity of the connection of a row in the result cache: the connection identity, and a hash of the password.
+   * The shared cache is used by all steps in the JVM, so a step must not find results that were read with other credentials.
+   * @param meta
+   * @param data
+   * @param row
+   * @return
+   * @throws KettleException
+   */
+  private String getCacheIdentity(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] row) throws KettleException {
+    return getConnectionIdentity(meta, data, row) + ";" + MetaDataRegistry.getInstance().getCredentialHash(getConnectionPassword(meta, data, row));
+  }
+
+  private String getConnectionPassword(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] row) {
+    String connectionSource = meta.getConnectionSource();
+    DatabaseMeta databaseMeta = null;
+    if (JdbcMetaDataMeta.connectionSourceOptionConnection.equals(connectionSource)) {
+      databaseMeta = data.database.getDatabaseMeta();
+    }
+    else
+    if (JdbcMetaDataMeta.connectionSourceOptionConnectionField.equals(connectionSource)) {
+      databaseMeta = getTransMeta().findDatabase(getConnectionNameFromRow(data, row));
+    }
+    else
+    if (JdbcMetaDataMeta.connectionSourceOptionJDBC.equals(connectionSource)) {
+      return environmentSubstitute(meta.getJdbcPasswordField());
+    }
+    else
+    if (JdbcMetaDataMeta.connectionSourceOptionJDBCFields.equals(connectionSource)) {
+      return getJdbcPasswordFromRow(data, row);
+    }
+    return databaseMeta == null ? null : databaseMeta.environmentSubstitute(databaseMeta.getPassword());
+  }
+
+  private static String getConnectionIdentity(String driver, String url, String user) {
+    return driver + ";" + url + ";" + user;
+  }
+
+  private static String getConnectionIdentity(DatabaseMeta databaseMeta) throws KettleException {
+    return getConnectionIdentity(
+      databaseMeta.getDriverClass(),
+      databaseMeta.getURL(),
+      databaseMeta.environmentSubstitute(databaseMeta.getUsername())
+    );
+  }
+
+  /**
+   * This is called in the processRow function to obtain the key of the jdbc connection in the connection cache.
+   * @param data
+   * @param row
+   * @return
+   */
+  private JdbcConnectionCache.Key getConnectionKey(JdbcMetaDataData data, Object[] row){
+    return new JdbcConnectionCache.Key(
+      getJdbcDriverFromRow(data, row),
+      getJdbcUrlFromRow(data, row),
+      getJdbcUserFromRow(data, row),
+      getJdbcPasswordFromRow(data, row)
+    );
+  }
+
+  /**
+   * This is called in the processRow function to obtain the host of the connection,
+   * so that the number of concurrent calls per host can be limited in parallel mode.
+   * @param meta
+   * @param data
+   * @param row
+   * @return the host, or null if it can't be determined.
+   */
+  private String getConnectionHost(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] row){
+    String connectionSource = meta.getConnectionSource();
+    if (JdbcMetaDataMeta.connectionSourceOptionConnectionField.equals(connectionSource)) {
+      DatabaseMeta databaseMeta = getTransMeta().findDatabase(getConnectionNameFromRow(data, row));
+      if (databaseMeta == null) return null;
+      return environmentSubstitute(databaseMeta.getHostname());
+    }
+    else
+    if (JdbcMetaDataMeta.connectionSourceOptionJDBCFields.equals(connectionSource)) {
+      return MetaDataFetcher.getHost(getJdbcUrlFromRow(data, row));
+    }
+    else {
+      return null;
+    }
+  }
+
+  /**
+   * This is called in the processRow function to obtain the contain to apply the metadat method to.
+   * @param meta
+   * @param data
+   * @param row
+   * @return
+   * @throws Exception
+   */
+  private Connection getConnection(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] row) throws Exception{
+    Connection connection;
+    if (data.connection == null) {
+      //connection could not be initialized at init, so we have to obtain it now on a row by row basis.
+      String connectionSource = meta.getConnectionSource();
+      if (JdbcMetaDataMeta.connectionSourceOptionConnectionField.equals(connectionSource)) {
+        //connection is a named kettle connection specified by a field value
+        String connectionName = getConnectionNameFromRow(data, row);
+        //try to get this named connection from the cache
+        //(in parallel mode, the cache is shared by the worker threads,
+        //but a particular connection is only ever used by one thread at a time.)
+        Database database;
+        synchronized (data.databases) {
+          database = data.databases.get(connectionName);
+        }
+        if (database == null) {
+          //we haven't seen this named connection before, try to find it.
+          database = findDatabase(connectionName);
+          database.connect();
+          connection = database.getConnection();
+          if (connection == null) {
+            throw new IllegalArgumentException("Connection returned by database is null!");
+          }
+          //cache the database for later use
+          synchronized (data.databases) {
+            data.databases.put(connectionName, database);
+          }
+        }
+        else {
+          //database found in cache, get its connection
+          connection = database.getConnection();
+        }
+      }
+      else
+      if (JdbcMetaDataMeta.connectionSourceOptionJDBCFields.equals(connectionSource)) {
+        //database connectin is a jdbc connection defined by field values.
+        //get it from the connection cache, which opens it if necessary.
+        //It's ours until we release it.
+        connection = data.connectionCache.checkout(getConnectionKey(data, row));
+      }
+      else {
+        throw new Exception("Unexpected error acquiring connection");
+      }
+    }
+    else {
+      connection = data.connection;
+    }
+    return connection;
+  }
+
+  /**
+   * Get the DatabaseMetaData to call the metadata method on.
+   * When capturing a snapshot, the calls made on it are captured.
+   * @param meta
+   * @param data
+   * @param row
+   * @param connection the connection obtained with getConnection
+   * @return
+   * @throws Exception
+   */
+  private DatabaseMetaData getDatabaseMetaData(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] row, Connection connection) throws Exception {
+    DatabaseMetaData databaseMetaData = connection.getMetaData();
+    if (data.snapshotWriter != null) {
+      databaseMetaData = data.snapshotWriter.capture(databaseMetaData, getConnectionIdentity(meta, data, row));
+    }
+    return databaseMetaData;
+  }
+
+  /**
+   * Release the connection obtained with getConnection, once the metadata call is done.
+   * @param meta
+   * @param data
+   * @param row
+   * @param connection
+   */
+  private void releaseConnection(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] row, Connection connection){
+    if (data.connection != null) return;
+    if (!JdbcMetaDataMeta.connectionSourceOptionJDBCFields.equals(meta.getConnectionSource())) return;
+    data.connectionCache.release(getConnectionKey(data, row), connection);
+  }
+
+  /**
+   * This is called in the processRow function to get the actual arguments for the jdbc metadata method
+   * @param meta
+   * @param data
+   * @param row
+   * @throws Exception
+   */
+  private void prepareMethodArguments(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] row) throws Exception {
+    //if the arguments are not from fields, then we already took care of it in the init phase, so leave
+    if (!meta.getArgumentSourceFields()) return;
+    //if the arguments are from fields, then we already stored the right indices to take the values from
+    Object[] args = data.arguments;
+    int[] indices = data.argumentFieldIndices;
+    int index;
+    Class<?>[] argumentTypes = data.argumentTypes;
+    Class<?> argumentType;
+    Object argument;
+    for (int i = 0; i < args.length; i++){
+      index = indices[i];
+      if (index == -2) {
+        argument = null;
+      }
+      else {
+        argument = row[index];
+      }
+      argumentType = argumentTypes[i];
+      if (argumentType.isArray() && argument != null) {
+        if ("".equals(argument)) {
+          logDebug("Converted empty string to null for argument array");
+          argument = null;
+        }
+        else {
+          argument = stringListToObjectArray(argument.toString(), argumentType.getComponentType());
+        }
+      }
+      else {
+        argument = fieldToArgumentValue(argument, argumentType);
+      }
+      args[i] = argument;
+    }
+  }
+
+  /**
+   * This is called in the processRow function to obtain a output row.
+   * @param meta
+   * @param data
+   * @param inputRow
+   * @return
+   */
+  private Object[] createOutputRow(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow){
+    return createOutputRow(data, inputRow, data.outputRowMeta.size());
+  }
+
+  /**
+   * Create an output row of the given size, holding the input fields that are passed on.
+   * @param data
+   * @param inputRow
+   * @param size
+   * @return
+   */
+  private Object[] createOutputRow(JdbcMetaDataData data, Object[] inputRow, int size){
+    Object[] outputRow = new Object[size];
+    if (data.inputFieldsToCopy == null) {
+      System.arraycopy(inputRow, 0, outputRow, 0, getInputRowMeta().size());
+    }
+    else {
+      for (int i = 0; i < data.inputFieldsToCopy.length; i++) {
+        outputRow[i] = inputRow[data.inputFieldsToCopy[i]];
+      }
+    }
+    return outputRow;
+  }
+  /**
+   * Get the reader that converts rows of the metadata resultset into metadata rows.
+   * Readers are built once for each driver, at the first call, and then reused.
+   * (In parallel mode, this may be called by a worker thread.)
+   * @param data
+   * @param databaseMetaData
+   * @param resultSet
+   * @return
+   * @throws Exception
+   */
+  private MetaDataRowReader getRowReader(JdbcMetaDataData data, DatabaseMetaData databaseMetaData, ResultSet resultSet) throws Exception {
+    //when capturing, look past the capturing wrapper, as the reader depends on the actual driver.
+    String driver = MetaDataSnapshotWriter.getTarget(databaseMetaData).getClass().getName();
+    MetaDataRowReader rowReader;
+    synchronized (data.rowReaders) {
+      rowReader = data.rowReaders.get(driver);
+      if (rowReader == null) {
+        logDebug("Building row reader for " + driver);
+        rowReader = MetaDataRowReader.create(
+          data.outputRowMeta, data.outputRowOffset, data.resultSetIndices,
+          data.resultSetFieldCount, data.requiredColumns, resultSet.getMetaData()
+        );
+        data.rowReaders.put(driver, rowReader);
+      }
+    }
+    return rowReader;
+  }
+
+  /**
+   * Put one output row, combining the input row with a metadata row.
+   * @param meta
+   * @param data
+   * @param inputRow
+   * @param metaDataRow
+   * @return true if any metadata field was added to the output row.
+   * @throws KettleException
+   */
+  private boolean putMetaDataRow(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow, Object[] metaDataRow) throws KettleException {
+    if (data.documentWriter != null) writeDocument(data, metaDataRow);
+    if (data.diff == null && data.grouper == null && data.ddlGenerator == null) return putOutputRow(meta, data, inputRow, metaDataRow, null);
+    //in diff mode, the diff decides whether the row is put.
+    //in grouped mode, the grouper puts a row once it has all rows of a table.
+    //in DDL mode, the generator puts the statements of a table once it has all rows of the table.
+    try {
+      if (data.diff != null) {
+        data.diff.add(inputRow, metaDataRow, data.diffOutput);
+      }
+      else
+      if (data.grouper != null) {
+        data.grouper.add(inputRow, metaDataRow, data.grouperOutput);
+      }
+      else {
+        DatabaseMeta databaseMeta = data.ddlDatabaseMeta;
+        if (databaseMeta == null) databaseMeta = getDialect(data, getDialectConnectionName(meta, data, inputRow));
+        data.ddlGenerator.add(databaseMeta, inputRow, metaDataRow, data.ddlOutput);
+      }
+    }
+    catch (KettleException exception) {
+      throw exception;
     }
-    catch(Exception exception) {
-      logError("Unexpected " + exception.getClass().getName() +" initializing step: " + exception.getMessage());
-      exception.printStackTrace();
-      result = false;
+    catch (Exception exception) {
+      throw new KettleException(exception);
     }
-    return result;
+    return true;
   }
 
-  private String getConnectionNameFromRow(JdbcMetaDataData data, Object[] row){
-    return (String)(row[data.connectionField]);
+  /**
+   * Copy the metadata fields from the metadata row to the output row.
+   * @param data
+   * @param outputRow
+   * @param metaDataRow
+   * @return true if any metadata field was copied.
+   */
+  private boolean setMetaDataFields(JdbcMetaDataData data, Object[] outputRow, Object[] metaDataRow) {
+    boolean outputFields = false;
+    int k;
+    for (int i = data.outputRowOffset, j = 0; j < data.resultSetIndices.length; i++, j++) {
+      k = data.resultSetIndices[j];
+      if (k == 0 || k > metaDataRow.length) continue;
+      outputRow[i] = metaDataRow[k - 1];
+      outputFields = true;
+    }
+    return outputFields;
   }
 
-  private String getJdbcDriverFromRow(JdbcMetaDataData data, Object[] row) {
-    return (String)(row[data.jdbcDriverField]);
+  /**
+   * Put a rollup row in fingerprint mode. Of the metadata fields, only the catalog, schema and table are filled in.
+   * @param meta
+   * @param data
+   * @param inputRow
+   * @param metaDataRow
+   * @param level
+   * @param fingerprint
+   * @throws KettleException
+   */
+  private void putFingerprintRow(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow, Object[] metaDataRow, String level, String fingerprint) throws KettleException {
+    logRowlevel("Putting " + level + " fingerprint row.");
+    Object[] outputRow = createOutputRow(meta, data, inputRow);
+    setMetaDataFields(data, outputRow, metaDataRow);
+    outputRow[data.fingerprintFieldIndex] = fingerprint;
+    outputRow[data.fingerprintFieldIndex + 1] = level;
+    putMainRow(data, outputRow);
   }
 
-  private String getJdbcUrlFromRow(JdbcMetaDataData data, Object[] row) {
-    return (String)(row[data.jdbcUrlField]);
+  /**
+   * Put a grouped row in grouped mode. Of the metadata fields, only the catalog, schema and table are filled in.
+   * @param meta
+   * @param data
+   * @param inputRow
+   * @param metaDataRow
+   * @param aggregates
+   * @throws KettleException
+   */
+  private void putGroupedRow(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow, Object[] metaDataRow, Object[] aggregates) throws KettleException {
+    logRowlevel("Putting 1 grouped row.");
+    Object[] outputRow = createOutputRow(meta, data, inputRow);
+    setMetaDataFields(data, outputRow, metaDataRow);
+    System.arraycopy(aggregates, 0, outputRow, data.outputRowMeta.size() - aggregates.length, aggregates.length);
+    putMainRow(data, outputRow);
   }
 
-  private String getJdbcUserFromRow(JdbcMetaDataData data, Object[] row) {
-    return (String)(row[data.jdbcUserField]);
+  /**
+   * Put a statement in DDL mode. Of the metadata fields, only the catalog, schema and table are filled in.
+   * @param meta
+   * @param data
+   * @param inputRow
+   * @param metaDataRow
+   * @param objectType
+   * @param objectName
+   * @param ddl
+   * @throws KettleException
+   */
+  private void putDdlRow(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow, Object[] metaDataRow, String objectType, String objectName, String ddl) throws KettleException {
+    logRowlevel("Putting 1 " + objectType + " statement.");
+    Object[] outputRow = createOutputRow(meta, data, inputRow);
+    setMetaDataFields(data, outputRow, metaDataRow);
+    int index = data.outputRowMeta.size() - MetaDataDdlGenerator.FIELD_NAMES.length;
+    outputRow[index] = objectType;
+    outputRow[index + 1] = objectName;
+    outputRow[index + 2] = ddl;
+    putMainRow(data, outputRow);
   }
 
-  private String getJdbcPasswordFromRow(JdbcMetaDataData data, Object[] row) {
-    return (String)(row[data.jdbcPasswordField]);
+  /**
+   * Put one output row.
+   * @param meta
+   * @param data
+   * @param inputRow the input row, or null if the row does not belong to an input row (a removed row in diff mode).
+   * @param metaDataRow
+   * @param changeType in diff mode, the kind of change; otherwise null.
+   * @return true if any metadata field was added to the output row.
+   * @throws KettleException
+   */
+  private boolean putOutputRow(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow, Object[] metaDataRow, String changeType) throws KettleException {
+    logRowlevel("Processing 1 output row.");
+    Object[] outputRow = inputRow == null ? new Object[data.outputRowMeta.size()] : createOutputRow(meta, data, inputRow);
+    boolean outputFields = setMetaDataFields(data, outputRow, metaDataRow);
+    if (data.kettleTypes != null) {
+      Object[] kettleType = getKettleTypes(meta, data, inputRow).getKettleType(metaDataRow);
+      System.arraycopy(kettleType, 0, outputRow, data.kettleTypeFieldIndex, kettleType.length);
+    }
+    if (data.fingerprint != null) {
+      //this may put the rollups of the previous table first.
+      try {
+        outputRow[data.fingerprintFieldIndex] = data.fingerprint.add(inputRow, metaDataRow, data.fingerprintOutput);
+      }
+      catch (KettleException exception) {
+        throw exception;
+      }
+      catch (Exception exception) {
+        throw new KettleException(exception);
+      }
+      outputRow[data.fingerprintFieldIndex + 1] = MetaDataFingerprint.LEVEL_ROW;
+    }
+    if (changeType != null) outputRow[data.outputRowMeta.size() - 1] = changeType;
+    // put the row to the output row stream
+    putMainRow(data, outputRow);
+    logRowlevel("Done processing 1 output row.");
+    return outputFields;
   }
 
   /**
-   * This is called in the processRow function to obtain the contain to apply the metadat method to.
+   * Call the metadata method, and put an output row for each row in the metadata resultset.
+   * If we have a cache key, the rows are collected and stored in the cache as well.
    * @param meta
    * @param data
-   * @param row
-   * @return
+   * @param inputRow
+   * @param arguments
+   * @param cacheKey
+   * @param harvestRows if not null, all rows are added to this list, to keep them in the incremental state.
+   * @return true if any metadata field was output.
    * @throws Exception
    */
-  private Connection getConnection(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] row) throws Exception{
-    Connection connection;
-    if (data.connection == null) {
-      //connection could not be initialized at init, so we have to obtain it now on a row by row basis.
-      String connectionSource = meta.getConnectionSource();
-      if (JdbcMetaDataMeta.connectionSourceOptionConnectionField.equals(connectionSource)) {
-        //connection is a named kettle connection specified by a field value
-        String connectionName = getConnectionNameFromRow(data, row);
-        //try to get this named connection from the cache
-        Database database = data.databases.get(connectionName);
-        if (database == null) {
-          //we haven't seen this named connection before, try to find it.
-          database = findDatabase(connectionName);
-          database.connect();
-          connection = database.getConnection();
-          if (connection == null) {
-            throw new IllegalArgumentException("Connection returned by database is null!");
+  private boolean fetchMetaDataRows(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow, Object[] arguments, MetaDataResultCache.Key cacheKey, List<Object[]> harvestRows) throws Exception {
+    Connection connection = getConnection(meta, data, inputRow);
+    try {
+      DatabaseMetaData databaseMetaData = getDatabaseMetaData(meta, data, inputRow, connection);
+      ResultSet resultSet = getInvoker(meta, data, databaseMetaData).invoke(databaseMetaData, arguments);
+      boolean outputRows = false;
+      List<Object[]> cacheRows = cacheKey == null ? null : new ArrayList<Object[]>();
+      long cacheRowsSize = 0;
+      try {
+        MetaDataRowReader rowReader = getRowReader(data, databaseMetaData, resultSet);
+        Object[] metaDataRow;
+        while (resultSet.next()) {
+          metaDataRow = rowReader.readRow(resultSet);
+          if (putMetaDataRow(meta, data, inputRow, metaDataRow)) outputRows = true;
+          if (harvestRows != null) harvestRows.add(metaDataRow);
+          if (cacheRows == null) continue;
+          cacheRowsSize += MetaDataResultCache.estimateSize(metaDataRow);
+          if (data.resultCache.fits(cacheRowsSize)) {
+            cacheRows.add(metaDataRow);
+          }
+          else {
+            //this result is too large to cache, no need to keep collecting it.
+            logDebug("Result of " + cacheKey + " is too large to cache.");
+            cacheRows = null;
           }
-          //cache the database for later use
-          data.databases.put(connectionName, database);
         }
-        else {
-          //database found in cache, get its connection
-          connection = database.getConnection();
+      }
+      finally {
+        resultSet.close();
+      }
+      if (cacheRows != null) {
+        data.resultCache.put(cacheKey, cacheRows, cacheRowsSize);
+      }
+      return outputRows;
+    }
+    finally {
+      releaseConnection(meta, data, inputRow, connection);
+    }
+  }
+
+  /**
+   * Get the metadata rows for one input row, and add them to the buffer of a fetcher task.
+   * This is used in parallel and prefetch mode, and is called by a worker thread.
+   * @param meta
+   * @param data
+   * @param inputRow
+   * @param arguments
+   * @param task
+   * @throws Exception
+   */
+  private void bufferMetaDataRows(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow, Object[] arguments, MetaDataFetcher.Task task) throws Exception {
+    MetaDataResultCache.Key cacheKey = null;
+    if (data.resultCache != null) {
+      cacheKey = new MetaDataResultCache.Key(data.resultCacheEpoch, getCacheIdentity(meta, data, inputRow), data.resultCacheMethod, arguments);
+      List<Object[]> cachedRows = data.resultCache.get(cacheKey);
+      if (cachedRows != null) {
+        for (Object[] metaDataRow : cachedRows) {
+          task.addRow(metaDataRow, 0);
         }
+        return;
       }
-      else
-      if (JdbcMetaDataMeta.connectionSourceOptionJDBCFields.equals(connectionSource)) {
-        //database connectin is a jdbc connection defined by field values.
-        //try to find this connection in the cache
-        String[] key = data.connectionKey;
-        key[0] = getJdbcDriverFromRow(data, row);
-        key[1] = getJdbcUrlFromRow(data, row);
-        key[2] = getJdbcUserFromRow(data, row);
-        key[3] = getJdbcPasswordFromRow(data, row);
-        connection = data.connections.get(key);
-        if (connection == null) {
-          //connection not yet in the cache. Let's create it and cahce it.
-          connection = createJdbcConnection(key[0], key[1], key[2], key[3]);
-          data.connections.put(key, connection);
+    }
+    Connection connection = getConnection(meta, data, inputRow);
+    try {
+      DatabaseMetaData databaseMetaData = getDatabaseMetaData(meta, data, inputRow, connection);
+      ResultSet resultSet = getInvoker(meta, data, databaseMetaData).invoke(databaseMetaData, arguments);
+      List<Object[]> cacheRows = cacheKey == null ? null : new ArrayList<Object[]>();
+      long cacheRowsSize = 0;
+      try {
+        MetaDataRowReader rowReader = getRowReader(data, databaseMetaData, resultSet);
+        Object[] metaDataRow;
+        long size;
+        while (resultSet.next()) {
+          metaDataRow = rowReader.readRow(resultSet);
+          size = MetaDataResultCache.estimateSize(metaDataRow);
+          task.addRow(metaDataRow, size);
+          if (cacheRows == null) continue;
+          cacheRowsSize += size;
+          if (data.resultCache.fits(cacheRowsSize)) {
+            cacheRows.add(metaDataRow);
+          }
+          else {
+            cacheRows = null;
+          }
         }
       }
-      else {
-        throw new Exception("Unexpected error acquiring connection");
+      finally {
+        resultSet.close();
+      }
+      if (cacheRows != null) {
+        data.resultCache.put(cacheKey, cacheRows, cacheRowsSize);
+      }
+    }
+    finally {
+      releaseConnection(meta, data, inputRow, connection);
+    }
+  }
+
+  /**
+   * Put an output row for each of the metadata rows.
+   * @param meta
+   * @param data
+   * @param inputRow
+   * @param metaDataRows
+   * @return true if any metadata field was output.
+   * @throws KettleException
+   */
+  private boolean putMetaDataRows(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow, List<Object[]> metaDataRows) throws KettleException {
+    boolean outputRows = false;
+    for (Object[] metaDataRow : metaDataRows) {
+      if (putMetaDataRow(meta, data, inputRow, metaDataRow)) outputRows = true;
+    }
+    return outputRows;
+  }
+
+  /**
+   * Get the metadata for one input row and put the output rows.
+   * @param meta
+   * @param data
+   * @param inputRow
+   * @param arguments the prepared arguments for the method call
+   * @throws Exception
+   */
+  private void processInputRow(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow, Object[] arguments) throws Exception {
+    boolean outputRows;
+    MetaDataResultCache.Key cacheKey = null;
+    List<Object[]> cachedRows = null;
+    String harvestKey = null;
+    String harvestWatermark = null;
+    if (data.harvestState != null) {
+      harvestKey = MetaDataHarvestState.getKey(getConnectionIdentity(meta, data, inputRow), data.harvestMethod, arguments);
+      harvestWatermark = getHarvestWatermark(meta, data, inputRow, arguments);
+      cachedRows = data.harvestState.getRows(harvestKey, harvestWatermark);
+      if (cachedRows != null) {
+        logRowlevel("Tables did not change, replaying " + cachedRows.size() + " rows from the incremental state.");
+        harvestKey = null;
       }
     }
+    if (cachedRows == null && data.resultCache != null) {
+      cacheKey = new MetaDataResultCache.Key(data.resultCacheEpoch, getCacheIdentity(meta, data, inputRow), data.resultCacheMethod, arguments);
+      cachedRows = data.resultCache.get(cacheKey);
+      if (cachedRows != null) logRowlevel("Found " + cachedRows.size() + " rows in the result cache.");
+    }
+    MetaDataCatalogIndex catalogIndex = data.catalogIndexes == null ? null : getCatalogIndex(meta, data, inputRow);
+    if (catalogIndex != null) {
+      outputRows = putMetaDataRows(meta, data, inputRow, catalogIndex.getRows(arguments));
+    }
+    else
+    if (cachedRows == null) {
+      List<Object[]> harvestRows = harvestKey == null ? null : new ArrayList<Object[]>();
+      outputRows = fetchMetaDataRows(meta, data, inputRow, arguments, cacheKey, harvestRows);
+      if (harvestRows != null) data.harvestState.put(harvestKey, harvestWatermark, harvestRows);
+    }
     else {
-      connection = data.connection;
+      outputRows = putMetaDataRows(meta, data, inputRow, cachedRows);
+      if (harvestKey != null) data.harvestState.put(harvestKey, harvestWatermark, cachedRows);
+    }
+    if (!outputRows && meta.getAlwaysPassInputRow() && data.diff == null) {
+      Object[] outputRow = createOutputRow(meta, data, inputRow);
+      putMainRow(data, outputRow);
     }
-    return connection;
   }
 
   /**
-   * This is called in the processRow function to get the actual arguments for the jdbc metadata method
+   * Make one call for all tables of a group of buffered input rows.
+   * If the call fails, or returns too many rows, the group is left unfetched
+   * so that its rows are processed one by one.
+   * Methods whose table argument is not a pattern are called with null for the table, which is outside the JDBC contract:
+   * a driver may return no rows rather than fail. So until the driver was seen to return rows for such a call,
+   * an empty result is not trusted, and the rows are processed one by one as well.
    * @param meta
    * @param data
-   * @param row
+   * @param group
    * @throws Exception
    */
-  private void prepareMethodArguments(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] row) throws Exception {
-    //if the arguments are not from fields, then we already took care of it in the init phase, so leave
-    if (!meta.getArgumentSourceFields()) return;
-    //if the arguments are from fields, then we already stored the right indices to take the values from
-    Object[] args = data.arguments;
-    int[] indices = data.argumentFieldIndices;
-    int index;
-    Class<?>[] argumentTypes = data.method.getParameterTypes();
-    Class<?> argumentType;
-    Object argument;
-    for (int i = 0; i < args.length; i++){
-      index = indices[i];
-      if (index == -2) {
-        argument = null;
+  private void fetchBatchGroup(JdbcMetaDataMeta meta, JdbcMetaDataData data, MetaDataBatch.Group group) throws Exception {
+    Object[] inputRow = group.getEntries().get(0).getInputRow();
+    Connection connection = getConnection(meta, data, inputRow);
+    try {
+      DatabaseMetaData databaseMetaData = getDatabaseMetaData(meta, data, inputRow, connection);
+      String schemaVariant = data.batch.getSchemaVariant();
+      boolean confirmed = schemaVariant == null || MetaDataDriverProbe.isReturningRows(databaseMetaData, schemaVariant);
+      if (!confirmed && Boolean.FALSE.equals(MetaDataDriverProbe.isSupported(databaseMetaData, schemaVariant))) return;
+      group.setSearchStringEscape(databaseMetaData.getSearchStringEscape());
+      group.setIgnoreCase(
+        MetaDataCatalogIndex.getIgnoreCase(databaseMetaData.storesMixedCaseIdentifiers(), databaseMetaData.supportsMixedCaseIdentifiers())
+      );
+      ResultSet resultSet;
+      try {
+        resultSet = getInvoker(meta, data, databaseMetaData).invoke(databaseMetaData, group.getArguments());
       }
-      else {
-        argument = row[index];
+      catch (Exception exception) {
+        //probably the driver does not accept a wildcard for the table. Don't try again.
+        Throwable cause = exception.getCause() == null ? exception : exception.getCause();
+        logBasic("Batch call failed, processing rows one by one from now on: " + cause.getMessage());
+        if (schemaVariant != null) MetaDataDriverProbe.setFailed(databaseMetaData, schemaVariant, cause);
+        data.batch.setCoalescingSupported(false);
+        return;
       }
-      argumentType = argumentTypes[i];
-      if (argumentType.isArray() && argument != null) {
-        if ("".equals(argument)) {
-          logDebug("Converted empty string to null for argument array");
-          argument = null;
+      int tableColumnIndex = data.batch.getTableColumnIndex();
+      try {
+        MetaDataRowReader rowReader = getRowReader(data, databaseMetaData, resultSet);
+        Object[] metaDataRow;
+        while (resultSet.next()) {
+          if (group.getRowCount() >= data.batchMaxRows) {
+            logDetailed("Batch call returned more than " + data.batchMaxRows + " rows, processing its rows one by one.");
+            group.reset();
+            return;
+          }
+          metaDataRow = rowReader.readRow(resultSet);
+          //we need the table name to match the row, even if it is not output.
+          if (metaDataRow[tableColumnIndex] == null) {
+            metaDataRow[tableColumnIndex] = resultSet.getObject(tableColumnIndex + 1);
+          }
+          group.addRow(metaDataRow);
+        }
+      }
+      finally {
+        resultSet.close();
+      }
+      logDetailed("Batch call for " + group.getEntries().size() + " input rows returned " + group.getRowCount() + " rows.");
+      if (!confirmed) {
+        if (group.getRowCount() == 0) {
+          logDetailed("Batch call returned no rows, which does not prove the driver accepts null for the table; processing its rows one by one.");
+          return;
+        }
+        MetaDataDriverProbe.setReturningRows(databaseMetaData, schemaVariant);
+      }
+      group.setFetched(true);
+    }
+    finally {
+      releaseConnection(meta, data, inputRow, connection);
+    }
+  }
+
+  /**
+   * Process the input rows buffered in batch mode.
+   * Output rows are put in the order of the input rows, exactly as if each input row was processed on its own.
+   * @param meta
+   * @param data
+   * @throws KettleException
+   */
+  private void flushBatch(JdbcMetaDataMeta meta, JdbcMetaDataData data) throws KettleException {
+    MetaDataBatch batch = data.batch;
+    if (batch.size() == 0) return;
+    logDebug("Processing batch of " + batch.size() + " input rows.");
+    try {
+      for (MetaDataBatch.Group group : batch.getGroups()) {
+        //a group of just one row is served equally well by a normal call.
+        if (group.getEntries().size() < 2 || !batch.getCoalescingSupported()) continue;
+        fetchBatchGroup(meta, data, group);
+      }
+      for (MetaDataBatch.Entry entry : batch.getEntries()) {
+        MetaDataBatch.Group group = entry.getGroup();
+        Object[] inputRow = entry.getInputRow();
+        if (group.isFetched()) {
+          boolean outputRows = putMetaDataRows(meta, data, inputRow, group.getRows(entry));
+          if (!outputRows && meta.getAlwaysPassInputRow() && data.diff == null) {
+            putMainRow(data, createOutputRow(meta, data, inputRow));
+          }
         }
         else {
-          argument = stringListToObjectArray((String)argument, argumentType.getComponentType());
+          processInputRow(meta, data, inputRow, entry.getArguments());
         }
       }
-      args[i] = argument;
+    }
+    catch (Exception exception) {
+      logError("Unexpected " + exception.getClass().getName() + " processing batch: " + exception.getMessage());
+      if (exception instanceof KettleException) {
+        throw (KettleException)exception;
+      }
+      else {
+        throw new KettleException(exception);
+      }
+    }
+    finally {
+      batch.clear();
     }
   }
 
   /**
-   * This is called in the processRow function to obtain a output row.
+   * Put the output rows for a call that was executed by the fetcher.
    * @param meta
    * @param data
-   * @param inputRow
-   * @return
+   * @param task
+   * @throws Exception
    */
-  private Object[] createOutputRow(JdbcMetaDataMeta meta, JdbcMetaDataData data, Object[] inputRow){
-    Object[] outputRow = new Object[data.outputRowMeta.size()];
-    if (data.inputFieldsToCopy == null) {
-      System.arraycopy(inputRow, 0, outputRow, 0, getInputRowMeta().size());
+  private void putFetchedRows(JdbcMetaDataMeta meta, JdbcMetaDataData data, MetaDataFetcher.Task task) throws Exception {
+    Object[] inputRow = task.getInputRow();
+    boolean outputRows = false;
+    Object[] metaDataRow;
+    while ((metaDataRow = task.nextRow()) != null) {
+      if (putMetaDataRow(meta, data, inputRow, metaDataRow)) outputRows = true;
     }
-    else {
-      for (int i = 0; i < data.inputFieldsToCopy.length; i++) {
-        outputRow[i] = inputRow[data.inputFieldsToCopy[i]];
+    if (!outputRows && meta.getAlwaysPassInputRow() && data.diff == null) {
+      putMainRow(data, createOutputRow(meta, data, inputRow));
+    }
+  }
+
+  /**
+   * Put the output rows for the calls that were executed by the fetcher.
+   * @param meta
+   * @param data
+   * @param wait if true, wait until all calls have completed. If false, only put rows for calls that have completed already,
+   * unless too many calls are pending.
+   * @throws KettleException
+   */
+  private void putFetchedRows(JdbcMetaDataMeta meta, JdbcMetaDataData data, boolean wait) throws KettleException {
+    MetaDataFetcher fetcher = data.fetcher;
+    MetaDataFetcher.Task task;
+    try {
+      while (fetcher.hasPending() && !isStopped()) {
+        if (wait || fetcher.isFull()) {
+          task = fetcher.take();
+        }
+        else {
+          task = fetcher.poll();
+          if (task == null) break;
+        }
+        putFetchedRows(meta, data, task);
+      }
+    }
+    catch (Exception exception) {
+      logError("Unexpected " + exception.getClass().getName() + " putting fetched rows: " + exception.getMessage());
+      if (exception instanceof KettleException) {
+        throw (KettleException)exception;
+      }
+      else {
+        throw new KettleException(exception);
       }
     }
-    return outputRow;
   }
+
   /**
    * Once the transformation starts executing, the processRow() method is called repeatedly
    * by PDI for as long as it returns true. To indicate that a step has finished processing rows
@@ -511,11 +2388,26 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
     JdbcMetaDataMeta meta = (JdbcMetaDataMeta) smi;
     JdbcMetaDataData data = (JdbcMetaDataData) sdi;
 
+    //in diff mode, the baseline must be complete before we can compare any row.
+    if (data.diffBaselineStep != null) readDiffBaseline(meta, data);
+
     // get incoming row, getRow() potentially blocks waiting for more rows, returns null if no more rows expected
     Object[] r = getRow();
 
     // if no more rows are expected, indicate step is finished and processRow() should not be called again
     if (r == null){
+      //in batch mode, we may still have some buffered rows.
+      if (data.batch != null) flushBatch(meta, data);
+      //in parallel or prefetch mode, we may still have some calls in progress.
+      if (data.fetcher != null) putFetchedRows(meta, data, true);
+      //in diff mode, what's left in the baseline was removed.
+      if (data.diff != null) finishDiff(data);
+      //in fingerprint mode, the last table, schema and catalog are not rolled up yet.
+      if (data.fingerprint != null) finishFingerprint(data);
+      //in grouped mode, the last table is not put yet.
+      if (data.grouper != null) finishGrouper(data);
+      //in DDL mode, the statements of the last table are not put yet.
+      if (data.ddlGenerator != null) finishDdlGenerator(data);
       setOutputDone();
       return false;
     }
@@ -663,11 +2555,20 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
       data.outputRowMeta = (RowMetaInterface) inputRowMeta.clone();
       // use meta.getFields() to change it, so it reflects the output row structure
       meta.getFields(data.outputRowMeta, getStepname(), null, null, this);
+      //the fingerprint fields come after the metadata fields, and before the change type.
+      if (meta.getFingerprintMode()) {
+        data.fingerprintFieldIndex = data.outputRowMeta.size() - (meta.getDiffMode() ? 3 : 2);
+      }
+      //the Kettle type fields come right after the metadata fields.
+      if (data.kettleTypes != null) {
+        data.kettleTypeFieldIndex = data.outputRowMeta.size() - MetaDataKettleTypes.FIELD_NAMES.length
+          - (meta.getFingerprintMode() ? 2 : 0) - (meta.getDiffMode() ? 1 : 0);
+      }
+      if (data.targetMethodDescriptors != null) initTargetRowSets(meta, data, inputRowMeta);
     } // end of first
 
     try {
       logRowlevel("Processing 1 input row");
-      Connection connection = getConnection(meta, data, r);
       prepareMethodArguments(meta, data, r);
       if (getLogLevel() == LogLevel.ROWLEVEL){
         logRowlevel("About to invoke method");
@@ -675,53 +2576,20 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
           logRowlevel("Argument " + i +"; " + (data.arguments[i] == null ? "null" : data.arguments[i].toString() + "; " + data.arguments[i].getClass().getName()));
         }
       }
-      DatabaseMetaData databaseMetaData = connection.getMetaData();
-      ResultSet resultSet = (ResultSet)data.method.invoke(databaseMetaData, data.arguments);
-      ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
-      int columnCount = resultSetMetaData.getColumnCount();
-      ValueMetaInterface valueMetaInterface;
-      Object value;
-      boolean outputRows = false;
-      int k;
-      while (resultSet.next()) {
-        logRowlevel("Processing 1 output row.");
-        Object[] outputRow = createOutputRow(meta, data, r);
-        for (int i = data.outputRowOffset, j = 0; i < data.outputRowMeta.size(); i++, j++) {
-          k = data.resultSetIndices[j];
-          if (k > columnCount) continue;
-          valueMetaInterface = data.outputRowMeta.getValueMeta(i);
-          switch (valueMetaInterface.getType()) {
-            case ValueMetaInterface.TYPE_BOOLEAN: //while the JDBC spec prescribes boolean, not all drivers actually can deliver.
-              boolean v;
-              switch (resultSetMetaData.getColumnType(k)) {
-                case Types.INTEGER:
-                case Types.SMALLINT:
-                case Types.TINYINT:
-                  v = resultSet.getInt(k) == 1 ? true : false;
-                  break;
-                default:
-                  v = resultSet.getBoolean(k);
-              }
-              value = new Boolean(v);
-              break;
-            case ValueMetaInterface.TYPE_INTEGER:
-              value = new Long(resultSet.getInt(k));
-              break;
-            default:
-              value = resultSet.getObject(k);
-          }
-          outputRow[i] = value;
-          outputRows = true;
-        }
-        // put the row to the output row stream
-        putRow(data.outputRowMeta, outputRow);
-        logRowlevel("Done processing 1 output row.");
+      if (data.fetcher != null) {
+        //the arguments array is reused for the next row, so each call gets its own copy.
+        data.fetcher.submit(data.fetch, getConnectionIdentity(meta, data, r), getConnectionHost(meta, data, r), r, data.arguments.clone());
+        putFetchedRows(meta, data, false);
       }
-      resultSet.close();
-      if (!outputRows && meta.getAlwaysPassInputRow()) {
-        Object[] outputRow = createOutputRow(meta, data, r);
-        putRow(data.outputRowMeta, outputRow);
+      else
+      if (data.batch == null) {
+        processInputRow(meta, data, r, data.arguments);
+      }
+      else {
+        data.batch.add(r, data.arguments, getConnectionIdentity(meta, data, r));
+        if (data.batch.size() >= data.batchWindowSize) flushBatch(meta, data);
       }
+      if (data.targetMethodDescriptors != null) putTargetMethodRows(meta, data, r, data.arguments);
       logRowlevel("Done processing 1 input row.");
     }
     catch (Exception exception) {
@@ -762,6 +2630,61 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
     JdbcMetaDataMeta meta = (JdbcMetaDataMeta) smi;
     JdbcMetaDataData data = (JdbcMetaDataData) sdi;
 
+    //stop any calls still in progress before closing their connections
+    if (data.fetcher != null) {
+      data.fetcher.shutdown();
+      data.fetcher = null;
+      data.fetch = null;
+    }
+
+    //write the captured snapshot. If the step failed, the snapshot would be incomplete, so don't.
+    if (data.snapshotWriter != null) {
+      if (getErrors() == 0) {
+        try {
+          data.snapshotWriter.write(data.snapshotFile);
+          logBasic("Wrote metadata snapshot " + data.snapshotFile + ": " + data.snapshotWriter);
+        }
+        catch (Exception ex) {
+          logError("Error writing metadata snapshot " + data.snapshotFile + ": " + ex.getMessage());
+        }
+      }
+      else {
+        logBasic("Metadata snapshot " + data.snapshotFile + " was not written, since the step failed.");
+      }
+      data.snapshotWriter = null;
+      data.snapshotFile = null;
+    }
+    data.snapshot = null;
+
+    //close the document file
+    if (data.documentWriter != null) {
+      try {
+        data.documentWriter.close();
+        logBasic("Wrote " + data.documentCount + " documents to " + data.documentFile);
+      }
+      catch (IOException ex) {
+        logError("Error writing documents to " + data.documentFile + ": " + ex.getMessage());
+      }
+      data.documentWriter = null;
+      data.documentFile = null;
+    }
+
+    //write the incremental state. If the step failed, the state would be incomplete, but what is in it is right.
+    if (data.harvestState != null) {
+      logBasic("Incremental state: " + data.harvestState);
+      if (data.harvestState.isChanged()) {
+        try {
+          data.harvestState.write(data.harvestStateFile);
+        }
+        catch (Exception ex) {
+          logError("Error writing incremental state " + data.harvestStateFile + ": " + ex.getMessage());
+        }
+      }
+      data.harvestState = null;
+      data.harvestStateFile = null;
+      data.changeProbes = null;
+    }
+
     //clean up the database
     try {
       if (data.database != null) {
@@ -800,28 +2723,78 @@ public class JdbcMetaData extends BaseStep implements StepInterface {
     data.databases.clear();
     data.databases = null;
 
-    //clean up the connection map
-    Iterator<Entry<String[], Connection>> connectionIterator = data.connections.entrySet().iterator();
-    while (connectionIterator.hasNext()){
-      Connection connection = connectionIterator.next().getValue();
-      try {
-        if (!connection.isClosed()) {
-          connection.close();
-        }
+    //clean up the connection cache (unless it is shared, then it's the registry's business)
+    if (data.connectionCache != null) {
+      logBasic("Connection cache: " + data.connectionCache);
+      if (!meta.getSharedCache()) data.connectionCache.clear();
+      data.connectionCache = null;
+    }
+
+    data.batch = null;
+    data.targetMethodDescriptors = null;
+    data.targetArgumentIndices = null;
+    data.targetRowSets = null;
+    data.targetRowMetas = null;
+    data.targetRowReaders = null;
+    data.mainRowSets = null;
+
+    //remove any spill files of the diff
+    if (data.diff != null) {
+      data.diff.close();
+      data.diff = null;
+      data.diffOutput = null;
+    }
+    data.requiredColumns = null;
+    data.fingerprint = null;
+    data.fingerprintOutput = null;
+
+    //report on the Kettle type mappings
+    if (data.kettleTypes != null) {
+      for (Entry<String, MetaDataKettleTypes> entry : data.kettleTypes.entrySet()) {
+        logDetailed("Kettle types" + (entry.getKey().length() == 0 ? "" : " of " + entry.getKey()) + ": " + entry.getValue());
+      }
+      data.kettleTypes = null;
+    }
+    data.kettleTypeColumns = null;
+    data.grouper = null;
+    data.grouperOutput = null;
+    data.ddlGenerator = null;
+    data.ddlOutput = null;
+    data.ddlDatabaseMeta = null;
+    data.dialects.clear();
+
+    //report on the catalog index
+    if (data.catalogIndexes != null) {
+      for (MetaDataCatalogIndex catalogIndex : data.catalogIndexes.values()) {
+        if (catalogIndex != null) logBasic("Catalog index: " + catalogIndex);
       }
-      catch (Exception ex){
-        logError("Error cleaning up connection: " + ex.getMessage());
+      data.catalogIndexes = null;
+    }
+
+    //report on native queries
+    if (data.nativeInvokers != null) {
+      for (MetaDataInvoker invoker : data.nativeInvokers.values()) {
+        if (invoker instanceof MetaDataNativeQuery) logBasic("Native queries: " + invoker);
       }
+      data.nativeInvokers = null;
+    }
+
+    //report and clean up the result cache
+    if (data.resultCache != null) {
+      logBasic("Result cache: " + data.resultCache);
+      if (!meta.getSharedCache()) data.resultCache.clear();
+      data.resultCache = null;
     }
-    data.connections.clear();
-    data.connections = null;
 
     data.arguments = null;
-    data.method = null;
+    data.invoker = null;
+    data.argumentTypes = null;
     data.argumentFieldIndices = null;
     data.inputFieldsToCopy = null;
     data.resultSetIndices = null;
-    data.connectionKey = null;
+    data.rowReaders = null;
+    data.connectionIdentity = null;
+    data.connectionIdentities = null;
 
     data.jdbcDriverField = -1;
     data.jdbcUrlField = -1;
@@ -23,14 +23,18 @@
 package org.pentaho.di.steps.jdbcmetadata;
 
 
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.database.Database;
+import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
 
-import java.lang.reflect.Method;
+import java.io.File;
+import java.io.Writer;
 import java.sql.Connection;
 
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -61,16 +65,20 @@ public class JdbcMetaDataData extends BaseStepData implements StepDataInterface
   public Database database;
   //used to store the actual jdbc connection
   public Connection connection;
-  //used to store the DatabaseMetaData method that generates the data
-  public Method method;
+  //used to store the invoker of the DatabaseMetaData method that generates the data
+  public MetaDataInvoker invoker;
+  //the types of the arguments of the method
+  public Class<?>[] argumentTypes;
   //use to store the arguments to the method
   public Object[] arguments;
   //named kettle connection cache. Used when connection is a named connection specified by input fields
   public Map<String, Database> databases = null;
+  //identifies the connection, if it is the same for all rows.
+  public String connectionIdentity;
+  //identities of named kettle connections, keyed by connection name.
+  public Map<String, String> connectionIdentities = null;
   //connection cache. Used when connection is a jdbc connection specified by input fields
-  public Map<String[], Connection> connections = null;
-  //key to the connection cache.
-  public String[] connectionKey = null;
+  public JdbcConnectionCache connectionCache = null;
   //field index for named kettle connection
   public int connectionField = -1;
   //field indices for jdbc connections
@@ -87,6 +95,100 @@ public class JdbcMetaDataData extends BaseStepData implements StepDataInterface
   public int[] inputFieldsToCopy;
   //the indices of the columns in the resultset
   public int[] resultSetIndices;
+  //the number of columns in the resultset descriptor of the method
+  public int resultSetFieldCount;
+  //readers that convert resultset rows to metadata rows, keyed by driver.
+  public Map<String, MetaDataRowReader> rowReaders;
+  //the method part of the result cache keys.
+  public String resultCacheMethod;
+  //the epoch part of the result cache keys; only set when using the shared cache.
+  public String resultCacheEpoch;
+  //cache of metadata results, keyed by connection, method and arguments.
+  public MetaDataResultCache resultCache;
+  //buffer of input rows, used in batch mode.
+  public MetaDataBatch batch;
+  //number of input rows to buffer in batch mode.
+  public int batchWindowSize;
+  //maximum number of rows a coalesced call may return.
+  public int batchMaxRows;
+  //runs metadata calls for different connections concurrently, used in parallel mode.
+  public MetaDataFetcher fetcher;
+  //the work the fetcher does for each input row.
+  public MetaDataFetcher.Fetch fetch;
+  //the snapshot that answers the metadata calls, if the connection source is a snapshot.
+  public MetaDataSnapshot snapshot;
+  //captures the metadata calls, if a snapshot is captured.
+  public MetaDataSnapshotWriter snapshotWriter;
+  //the file the captured snapshot is written to.
+  public File snapshotFile;
+  //compares the metadata rows to the baseline, in diff mode.
+  public MetaDataDiff diff;
+  //receives the rows that differ from the baseline.
+  public MetaDataDiff.Output diffOutput;
+  //the step that delivers the baseline, as long as its rows have not been read.
+  public String diffBaselineStep;
+  //computes the fingerprints, in fingerprint mode.
+  public MetaDataFingerprint fingerprint;
+  //receives the rollup rows.
+  public MetaDataFingerprint.Output fingerprintOutput;
+  //index of the fingerprint field in the output row. The level field follows it.
+  public int fingerprintFieldIndex = -1;
+  //writes the documents to the document file, if any.
+  public Writer documentWriter;
+  //the document file.
+  public File documentFile;
+  //index of the document column (0-based) in the metadata rows.
+  public int documentColumn = -1;
+  //the number of documents written.
+  public long documentCount;
+  //groups the metadata rows into one row per table, in grouped mode.
+  public MetaDataGrouper grouper;
+  //receives the grouped rows.
+  public MetaDataGrouper.Output grouperOutput;
+  //the data type, type name, size and scale columns, if the column types are mapped to Kettle types; otherwise null.
+  public int[] kettleTypeColumns;
+  //the mappings of the column types to Kettle types, keyed by connection name (empty if there is no named connection).
+  public Map<String, MetaDataKettleTypes> kettleTypes;
+  //index of the first Kettle type field in the output row.
+  public int kettleTypeFieldIndex = -1;
+  //the databases whose dialect the column types are mapped and the DDL is generated in, keyed by connection name (empty if there is no named connection).
+  public Map<String, DatabaseMeta> dialects = new HashMap<String, DatabaseMeta>();
+  //generates the DDL statements from the metadata rows, in DDL mode.
+  public MetaDataDdlGenerator ddlGenerator;
+  //receives the statements.
+  public MetaDataDdlGenerator.Output ddlOutput;
+  //the database whose dialect the DDL is generated in, if there is a DDL connection; otherwise null.
+  public DatabaseMeta ddlDatabaseMeta;
+  //the invokers that answer the metadata calls with native queries, keyed by driver and database url.
+  public Map<String, MetaDataInvoker> nativeInvokers;
+  //for each resultset column (0-based), whether it is read, and so must be computed by native queries.
+  public boolean[] nativeReadColumns;
+  //the catalog indexes, keyed by connection identity. null for a connection whose index could not be loaded.
+  public Map<String, MetaDataCatalogIndex> catalogIndexes;
+  //the descriptors of the additional methods, whose rows go to their own target step.
+  public Object[][] targetMethodDescriptors;
+  //for each additional method and each of its arguments, the index of the argument of the step's method it takes its value from, or -1.
+  public int[][] targetArgumentIndices;
+  //for each additional method and each of its arguments, whether it is a name that takes its value from a pattern.
+  public boolean[][] targetArgumentPatterns;
+  //for each additional method, the row set of its target step, and the structure of its rows.
+  public RowSet[] targetRowSets;
+  public RowMetaInterface[] targetRowMetas;
+  //the row readers of the additional methods, keyed by method and driver.
+  public Map<String, MetaDataRowReader> targetRowReaders;
+  //if there are additional methods, the row sets that get the rows of the step's own method; otherwise null.
+  public List<RowSet> mainRowSets;
+  public int mainRowSetIndex;
+  //indices of the resultset columns (0-based) that are read even if they are not output.
+  public int[] requiredColumns;
+  //the results and watermarks of earlier runs, in incremental mode.
+  public MetaDataHarvestState harvestState;
+  //the file the incremental state is kept in.
+  public File harvestStateFile;
+  //the method part of the incremental state keys.
+  public String harvestMethod;
+  //the table signatures of each connection, keyed by connection identity.
+  public Map<String, MetaDataChangeProbe> changeProbes;
   
   public JdbcMetaDataData() {
     super();
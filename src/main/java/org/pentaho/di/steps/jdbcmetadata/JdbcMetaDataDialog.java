@@ -65,6 +65,7 @@ import org.pentaho.di.trans.step.StepDialogInterface;
 import org.pentaho.di.ui.core.widget.ColumnInfo;
 import org.pentaho.di.ui.core.widget.TableView;
 import org.pentaho.di.ui.core.widget.ComboVar;
+import org.pentaho.di.ui.core.widget.TextVar;
 
 import org.pentaho.di.core.exception.KettleException;
 
@@ -118,6 +119,10 @@ public class JdbcMetaDataDialog extends BaseStepDialog implements StepDialogInte
   private ComboVar jdbcUserField;
   // text field holding the name of the field containing the password
   private ComboVar jdbcPasswordField;
+  // text field holding the name of the snapshot file
+  private TextVar snapshotFileText;
+  //
+  private Button snapshotCaptureButton;
 
   //
   private Label alwaysPassInputRowLabel;
@@ -137,6 +142,89 @@ public class JdbcMetaDataDialog extends BaseStepDialog implements StepDialogInte
   private Button removeArgumentFieldsButton;
   //
   private TableView outputFieldsTableView;
+  //
+  private TableView targetMethodsTableView;
+  //
+  private Button cacheResultsButton;
+  //
+  private TextVar cacheMaxEntriesText;
+  //
+  private TextVar cacheMaxSizeText;
+  //
+  private TextVar cacheTimeToLiveText;
+  //
+  private Button cacheEmptyResultsButton;
+  //
+  private Button batchModeButton;
+  //
+  private TextVar batchWindowSizeText;
+  //
+  private TextVar batchMaxRowsText;
+  //
+  private Button parallelModeButton;
+  //
+  private TextVar parallelismText;
+  //
+  private TextVar parallelMaxPerHostText;
+  //
+  private Button parallelPreserveOrderButton;
+  //
+  private CCombo parallelExecutorCombo;
+  //
+  private Button prefetchModeButton;
+  //
+  private TextVar prefetchRowsText;
+  //
+  private TextVar prefetchBufferSizeText;
+  //
+  private TextVar connectionPoolMaxOpenText;
+  //
+  private TextVar connectionPoolIdleTimeoutText;
+  //
+  private Button connectionPoolValidateButton;
+  //
+  private Button sharedCacheButton;
+  //
+  private TextVar sharedCacheEpochText;
+  //
+  private TextVar sharedCacheOffHeapThresholdText;
+  //
+  private Button incrementalModeButton;
+  //
+  private TextVar incrementalStateFileText;
+  //
+  private Button nativeQueriesButton;
+  private Button catalogIndexButton;
+  private Button indexStatisticsOnlyButton;
+  private Button kettleTypesButton;
+  private TextVar documentFileText;
+  //
+  private Button diffModeButton;
+  //
+  private CCombo diffBaselineSourceCombo;
+  //
+  private TextVar diffBaselineFileText;
+  //
+  private CCombo diffBaselineStepCombo;
+  //
+  private TextVar diffChangeTypeFieldText;
+  //
+  private TextVar diffMaxMemoryRowsText;
+  //
+  private Button fingerprintModeButton;
+  //
+  private Button fingerprintRollupButton;
+  private Button groupedModeButton;
+  //
+  private Button ddlModeButton;
+  //
+  private Button ddlHistoryButton;
+  //
+  private CCombo ddlConnectionCombo;
+  //
+  private TextVar fingerprintFieldText;
+  //
+  private TextVar fingerprintLevelFieldText;
   /**
    * The constructor should simply invoke super() and save the incoming meta
    * object to a local variable, so it can conveniently read and write settings
@@ -179,7 +267,8 @@ public class JdbcMetaDataDialog extends BaseStepDialog implements StepDialogInte
         connectionFieldEnabled = true;
         connectionField.setItems(getFieldListForCombo());
       }
-      else {
+      else
+      if (!JdbcMetaDataMeta.connectionSourceOptionSnapshot.equals(option)) {
         otherFieldsEnabled = true;
         if (JdbcMetaDataMeta.connectionSourceOptionJDBCFields.equals(option)){
           fields = getFieldListForCombo();
@@ -196,6 +285,170 @@ public class JdbcMetaDataDialog extends BaseStepDialog implements StepDialogInte
     jdbcUserField.setItems(fields);
     jdbcPasswordField.setEnabled(otherFieldsEnabled);
     jdbcPasswordField.setItems(fields);
+    snapshotUpdated();
+  }
+
+  private void snapshotUpdated(){
+    int selectedIndex = connectionSourceCombo.getSelectionIndex();
+    boolean snapshotSource = selectedIndex != -1 &&
+      JdbcMetaDataMeta.connectionSourceOptionSnapshot.equals(JdbcMetaDataMeta.connectionSourceOptions[selectedIndex]);
+    snapshotCaptureButton.setEnabled(!snapshotSource);
+    snapshotFileText.setEnabled(snapshotSource || snapshotCaptureButton.getSelection());
+  }
+
+  /**
+   * Create a right aligned label for an option.
+   * @param composite the composite to add the label to
+   * @param key the message key; the label text and tooltip are read from key.Label and key.Tooltip
+   * @param lastControl the control to place the label under
+   * @return the label
+   */
+  private Label createOptionLabel(Composite composite, String key, Control lastControl){
+    Label label = new Label(composite, SWT.RIGHT);
+    label.setText(BaseMessages.getString(PKG, key + ".Label"));
+    label.setToolTipText(BaseMessages.getString(PKG, key + ".Tooltip"));
+    props.setLook(label);
+    FormData labelFormData = new FormData();
+    labelFormData.left = new FormAttachment(0, 0);
+    labelFormData.right = new FormAttachment(middle, -margin);
+    labelFormData.top = new FormAttachment(lastControl, margin);
+    label.setLayoutData(labelFormData);
+    return label;
+  }
+
+  /**
+   * Create a labeled checkbox for a boolean option.
+   * @param composite the composite to add the checkbox to
+   * @param key the message key for the label
+   * @param lastControl the control to place the checkbox under
+   * @return the checkbox
+   */
+  private Button createOptionCheckbox(Composite composite, String key, Control lastControl){
+    createOptionLabel(composite, key, lastControl);
+    Button button = new Button(composite, SWT.CHECK);
+    props.setLook(button);
+    FormData buttonFormData = new FormData();
+    buttonFormData.left = new FormAttachment(middle, 0);
+    buttonFormData.right = new FormAttachment(100, 0);
+    buttonFormData.top = new FormAttachment(lastControl, margin);
+    button.setLayoutData(buttonFormData);
+    button.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        dialogChanged = true;
+      }
+    });
+    return button;
+  }
+
+  /**
+   * Create a labeled text field (which may contain variables) for an option.
+   * @param composite the composite to add the text field to
+   * @param key the message key for the label
+   * @param lastControl the control to place the text field under
+   * @return the text field
+   */
+  private TextVar createOptionText(Composite composite, String key, Control lastControl){
+    createOptionLabel(composite, key, lastControl);
+    TextVar textVar = new TextVar(transMeta, composite, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(textVar);
+    textVar.addModifyListener(lsMod);
+    FormData textVarFormData = new FormData();
+    textVarFormData.left = new FormAttachment(middle, 0);
+    textVarFormData.right = new FormAttachment(100, 0);
+    textVarFormData.top = new FormAttachment(lastControl, margin);
+    textVar.setLayoutData(textVarFormData);
+    return textVar;
+  }
+
+  /**
+   * Create a labeled read-only dropdown for an option that has a fixed set of values.
+   * The items are read from the messages as key.options.value
+   * @param composite the composite to add the dropdown to
+   * @param key the message key for the label
+   * @param options the option values
+   * @param lastControl the control to place the dropdown under
+   * @return the dropdown
+   */
+  private CCombo createOptionCombo(Composite composite, String key, String[] options, Control lastControl){
+    createOptionLabel(composite, key, lastControl);
+    CCombo combo = new CCombo(composite, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(combo);
+    combo.addModifyListener(lsMod);
+    FormData comboFormData = new FormData();
+    comboFormData.left = new FormAttachment(middle, 0);
+    comboFormData.right = new FormAttachment(100, 0);
+    comboFormData.top = new FormAttachment(lastControl, margin);
+    combo.setLayoutData(comboFormData);
+    String[] items = new String[options.length];
+    for (int i = 0; i < options.length; i++) {
+      items[i] = BaseMessages.getString(PKG, key + ".options." + options[i]);
+    }
+    combo.setItems(items);
+    combo.setEditable(false);
+    return combo;
+  }
+
+  private void cacheResultsUpdated(){
+    boolean enabled = cacheResultsButton.getSelection();
+    cacheMaxEntriesText.setEnabled(enabled);
+    cacheMaxSizeText.setEnabled(enabled);
+    cacheTimeToLiveText.setEnabled(enabled);
+    cacheEmptyResultsButton.setEnabled(enabled);
+  }
+
+  private void batchModeUpdated(){
+    boolean enabled = batchModeButton.getSelection();
+    batchWindowSizeText.setEnabled(enabled);
+    batchMaxRowsText.setEnabled(enabled);
+  }
+
+  private void parallelModeUpdated(){
+    boolean enabled = parallelModeButton.getSelection();
+    parallelismText.setEnabled(enabled);
+    parallelMaxPerHostText.setEnabled(enabled);
+    parallelPreserveOrderButton.setEnabled(enabled);
+    parallelExecutorCombo.setEnabled(enabled);
+  }
+
+  private void prefetchModeUpdated(){
+    boolean enabled = prefetchModeButton.getSelection();
+    prefetchRowsText.setEnabled(enabled);
+    prefetchBufferSizeText.setEnabled(enabled);
+  }
+
+  private void sharedCacheUpdated(){
+    boolean enabled = sharedCacheButton.getSelection();
+    sharedCacheEpochText.setEnabled(enabled);
+    sharedCacheOffHeapThresholdText.setEnabled(enabled);
+  }
+
+  private void incrementalModeUpdated(){
+    incrementalStateFileText.setEnabled(incrementalModeButton.getSelection());
+  }
+
+  private void ddlModeUpdated(){
+    boolean enabled = ddlModeButton.getSelection();
+    ddlHistoryButton.setEnabled(enabled);
+    ddlConnectionCombo.setEnabled(enabled);
+  }
+
+  private void fingerprintModeUpdated(){
+    boolean enabled = fingerprintModeButton.getSelection();
+    fingerprintRollupButton.setEnabled(enabled);
+    fingerprintFieldText.setEnabled(enabled);
+    fingerprintLevelFieldText.setEnabled(enabled);
+  }
+
+  private void diffModeUpdated(){
+    boolean enabled = diffModeButton.getSelection();
+    boolean stepSource = diffBaselineSourceCombo.getSelectionIndex() == JdbcMetaDataMeta.getDiffBaselineSourceOptionIndex(
+      JdbcMetaDataMeta.diffBaselineSourceOptionStep
+    );
+    diffBaselineSourceCombo.setEnabled(enabled);
+    diffBaselineFileText.setEnabled(enabled && !stepSource);
+    diffBaselineStepCombo.setEnabled(enabled && stepSource);
+    diffChangeTypeFieldText.setEnabled(enabled);
+    diffMaxMemoryRowsText.setEnabled(enabled);
   }
 
   /**
@@ -647,6 +900,17 @@ public class JdbcMetaDataDialog extends BaseStepDialog implements StepDialogInte
 
     lastControl = jdbcPasswordField;
 
+    //snapshot
+    snapshotFileText = createOptionText(connectionComposite, "JdbcMetadata.snapshotFile", lastControl);
+    lastControl = snapshotFileText;
+    snapshotCaptureButton = createOptionCheckbox(connectionComposite, "JdbcMetadata.snapshotCapture", lastControl);
+    snapshotCaptureButton.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        snapshotUpdated();
+      }
+    });
+    lastControl = snapshotCaptureButton;
+
     //layout the connection tab
     FormData connectionTabFormData = new FormData();
     connectionTabFormData.left = new FormAttachment( 0, 0 );
@@ -799,13 +1063,16 @@ public class JdbcMetaDataDialog extends BaseStepDialog implements StepDialogInte
     fieldsComposite.setLayout(fieldsTabLayout);
 
     //add UI for the fields tab.
+    kettleTypesButton = createOptionCheckbox(fieldsComposite, "JdbcMetadata.kettleTypes", null);
+    documentFileText = createOptionText(fieldsComposite, "JdbcMetadata.documentFile", kettleTypesButton);
+
     Label outputFieldsTableViewLabel = new Label(fieldsComposite, SWT.NONE );
     outputFieldsTableViewLabel.setText(BaseMessages.getString( PKG, "JdbcMetadata.FieldsTab.Label" ) );
     outputFieldsTableViewLabel.setToolTipText(BaseMessages.getString( PKG, "JdbcMetadata.FieldsTab.Tooltip" ) );
     props.setLook(outputFieldsTableViewLabel);
     FormData outputFieldsTableViewLabelFormData = new FormData();
     outputFieldsTableViewLabelFormData.left = new FormAttachment( 0, 0 );
-    outputFieldsTableViewLabelFormData.top = new FormAttachment( 0, margin );
+    outputFieldsTableViewLabelFormData.top = new FormAttachment(documentFileText, margin );
     outputFieldsTableViewLabel.setLayoutData(outputFieldsTableViewLabelFormData);
 
     ColumnInfo[] columnInfo = new ColumnInfo[]{
@@ -862,6 +1129,275 @@ public class JdbcMetaDataDialog extends BaseStepDialog implements StepDialogInte
     fieldsComposite.layout();
     fieldsTab.setControl(fieldsComposite);
 
+    //Targets tab
+    CTabItem targetsTab = new CTabItem( cTabFolder, SWT.NONE );
+    targetsTab.setText(BaseMessages.getString(PKG, "JdbcMetadata.TargetsTab.Label"));
+    targetsTab.setToolTipText(BaseMessages.getString(PKG, "JdbcMetadata.TargetsTab.Tooltip"));
+
+    FormLayout targetsTabLayout = new FormLayout();
+    targetsTabLayout.marginWidth = Const.FORM_MARGIN;
+    targetsTabLayout.marginHeight = Const.FORM_MARGIN;
+
+    Composite targetsComposite = new Composite( cTabFolder, SWT.NONE );
+    props.setLook(targetsComposite);
+    targetsComposite.setLayout(targetsTabLayout);
+
+    Label targetMethodsTableViewLabel = new Label(targetsComposite, SWT.NONE );
+    targetMethodsTableViewLabel.setText(BaseMessages.getString( PKG, "JdbcMetadata.targetMethods.Label" ) );
+    targetMethodsTableViewLabel.setToolTipText(BaseMessages.getString( PKG, "JdbcMetadata.targetMethods.Tooltip" ) );
+    props.setLook(targetMethodsTableViewLabel);
+    FormData targetMethodsTableViewLabelFormData = new FormData();
+    targetMethodsTableViewLabelFormData.left = new FormAttachment( 0, 0 );
+    targetMethodsTableViewLabelFormData.top = new FormAttachment( 0, margin );
+    targetMethodsTableViewLabel.setLayoutData(targetMethodsTableViewLabelFormData);
+
+    String[] methodNames = new String[JdbcMetaDataMeta.methodDescriptors.length];
+    for (int i = 0; i < methodNames.length; i++) {
+      methodNames[i] = JdbcMetaDataMeta.getMethodName(i);
+    }
+    String[] nextStepNames = transMeta.getNextStepNames(transMeta.findStep(stepname));
+    ColumnInfo[] targetMethodsColumnInfo = new ColumnInfo[]{
+      new ColumnInfo(
+        BaseMessages.getString(PKG, "JdbcMetadata.targetMethodName.Label"),
+        ColumnInfo.COLUMN_TYPE_CCOMBO, methodNames, true
+      ),
+      new ColumnInfo(
+        BaseMessages.getString(PKG, "JdbcMetadata.targetStep.Label"),
+        ColumnInfo.COLUMN_TYPE_CCOMBO, nextStepNames == null ? emptyFieldList : nextStepNames, false
+      )
+    };
+    targetMethodsTableView = new TableView(
+      transMeta,
+      targetsComposite,
+      SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI | SWT.V_SCROLL | SWT.H_SCROLL,
+      targetMethodsColumnInfo, 1, lsMod, props
+    );
+    FormData targetMethodsTableViewFormData = new FormData();
+    targetMethodsTableViewFormData.left = new FormAttachment( 0, 0 );
+    targetMethodsTableViewFormData.top = new FormAttachment(targetMethodsTableViewLabel, margin );
+    targetMethodsTableViewFormData.right = new FormAttachment( 100, 0 );
+    targetMethodsTableViewFormData.bottom = new FormAttachment( 100, -2*margin );
+    targetMethodsTableView.setLayoutData(targetMethodsTableViewFormData);
+
+    //layout the targets tab
+    FormData targetsTabFormData = new FormData();
+    targetsTabFormData.left = new FormAttachment( 0, 0 );
+    targetsTabFormData.top = new FormAttachment( 0, 0 );
+    targetsTabFormData.right = new FormAttachment( 100, 0 );
+    targetsTabFormData.bottom = new FormAttachment( 100, 0 );
+    targetsComposite.setLayoutData(targetsTabFormData);
+    targetsComposite.layout();
+    targetsTab.setControl(targetsComposite);
+
+    //Diff tab
+    CTabItem diffTab = new CTabItem( cTabFolder, SWT.NONE );
+    diffTab.setText(BaseMessages.getString(PKG, "JdbcMetadata.DiffTab.Label"));
+    diffTab.setToolTipText(BaseMessages.getString(PKG, "JdbcMetadata.DiffTab.Tooltip"));
+
+    FormLayout diffTabLayout = new FormLayout();
+    diffTabLayout.marginWidth = Const.FORM_MARGIN;
+    diffTabLayout.marginHeight = Const.FORM_MARGIN;
+
+    Composite diffComposite = new Composite( cTabFolder, SWT.NONE );
+    props.setLook(diffComposite);
+    diffComposite.setLayout(diffTabLayout);
+
+    diffModeButton = createOptionCheckbox(diffComposite, "JdbcMetadata.diffMode", null);
+    diffModeButton.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        diffModeUpdated();
+      }
+    });
+    lastControl = diffModeButton;
+    diffBaselineSourceCombo = createOptionCombo(diffComposite, "JdbcMetadata.diffBaselineSource", JdbcMetaDataMeta.diffBaselineSourceOptions, lastControl);
+    diffBaselineSourceCombo.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        diffModeUpdated();
+      }
+    });
+    lastControl = diffBaselineSourceCombo;
+    diffBaselineFileText = createOptionText(diffComposite, "JdbcMetadata.diffBaselineFile", lastControl);
+    lastControl = diffBaselineFileText;
+    diffBaselineStepCombo = createOptionCombo(diffComposite, "JdbcMetadata.diffBaselineStep", emptyFieldList, lastControl);
+    diffBaselineStepCombo.setItems(transMeta.getPrevStepNames(stepname));
+    diffBaselineStepCombo.setEditable(true);
+    lastControl = diffBaselineStepCombo;
+    diffChangeTypeFieldText = createOptionText(diffComposite, "JdbcMetadata.diffChangeTypeField", lastControl);
+    lastControl = diffChangeTypeFieldText;
+    diffMaxMemoryRowsText = createOptionText(diffComposite, "JdbcMetadata.diffMaxMemoryRows", lastControl);
+    lastControl = diffMaxMemoryRowsText;
+
+    //fingerprints
+    fingerprintModeButton = createOptionCheckbox(diffComposite, "JdbcMetadata.fingerprintMode", lastControl);
+    fingerprintModeButton.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        fingerprintModeUpdated();
+      }
+    });
+    lastControl = fingerprintModeButton;
+    fingerprintRollupButton = createOptionCheckbox(diffComposite, "JdbcMetadata.fingerprintRollup", lastControl);
+    lastControl = fingerprintRollupButton;
+    fingerprintFieldText = createOptionText(diffComposite, "JdbcMetadata.fingerprintField", lastControl);
+    lastControl = fingerprintFieldText;
+    fingerprintLevelFieldText = createOptionText(diffComposite, "JdbcMetadata.fingerprintLevelField", lastControl);
+    lastControl = fingerprintLevelFieldText;
+
+    //grouping
+    groupedModeButton = createOptionCheckbox(diffComposite, "JdbcMetadata.groupedMode", lastControl);
+    lastControl = groupedModeButton;
+
+    //DDL
+    ddlModeButton = createOptionCheckbox(diffComposite, "JdbcMetadata.ddlMode", lastControl);
+    ddlModeButton.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        ddlModeUpdated();
+      }
+    });
+    lastControl = ddlModeButton;
+    ddlHistoryButton = createOptionCheckbox(diffComposite, "JdbcMetadata.ddlHistory", lastControl);
+    lastControl = ddlHistoryButton;
+    ddlConnectionCombo = createOptionCombo(diffComposite, "JdbcMetadata.ddlConnection", emptyFieldList, lastControl);
+    ddlConnectionCombo.setItems(transMeta.getDatabaseNames());
+    ddlConnectionCombo.setEditable(true);
+    lastControl = ddlConnectionCombo;
+
+    //layout the diff tab
+    FormData diffTabFormData = new FormData();
+    diffTabFormData.left = new FormAttachment( 0, 0 );
+    diffTabFormData.top = new FormAttachment( 0, 0 );
+    diffTabFormData.right = new FormAttachment( 100, 0 );
+    diffTabFormData.bottom = new FormAttachment( 100, 0 );
+    diffComposite.setLayoutData(diffTabFormData);
+    diffComposite.layout();
+    diffTab.setControl(diffComposite);
+
+    //Performance tab
+    CTabItem performanceTab = new CTabItem( cTabFolder, SWT.NONE );
+    performanceTab.setText(BaseMessages.getString(PKG, "JdbcMetadata.PerformanceTab.Label"));
+    performanceTab.setToolTipText(BaseMessages.getString(PKG, "JdbcMetadata.PerformanceTab.Tooltip"));
+
+    FormLayout performanceTabLayout = new FormLayout();
+    performanceTabLayout.marginWidth = Const.FORM_MARGIN;
+    performanceTabLayout.marginHeight = Const.FORM_MARGIN;
+
+    Composite performanceComposite = new Composite( cTabFolder, SWT.NONE );
+    props.setLook(performanceComposite);
+    performanceComposite.setLayout(performanceTabLayout);
+
+    //result cache
+    cacheResultsButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.cacheResults", null);
+    cacheResultsButton.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        cacheResultsUpdated();
+      }
+    });
+    lastControl = cacheResultsButton;
+    cacheMaxEntriesText = createOptionText(performanceComposite, "JdbcMetadata.cacheMaxEntries", lastControl);
+    lastControl = cacheMaxEntriesText;
+    cacheMaxSizeText = createOptionText(performanceComposite, "JdbcMetadata.cacheMaxSize", lastControl);
+    lastControl = cacheMaxSizeText;
+    cacheTimeToLiveText = createOptionText(performanceComposite, "JdbcMetadata.cacheTimeToLive", lastControl);
+    lastControl = cacheTimeToLiveText;
+    cacheEmptyResultsButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.cacheEmptyResults", lastControl);
+    lastControl = cacheEmptyResultsButton;
+
+    //batch mode
+    batchModeButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.batchMode", lastControl);
+    batchModeButton.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        batchModeUpdated();
+      }
+    });
+    lastControl = batchModeButton;
+    batchWindowSizeText = createOptionText(performanceComposite, "JdbcMetadata.batchWindowSize", lastControl);
+    lastControl = batchWindowSizeText;
+    batchMaxRowsText = createOptionText(performanceComposite, "JdbcMetadata.batchMaxRows", lastControl);
+    lastControl = batchMaxRowsText;
+
+    //parallel mode
+    parallelModeButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.parallelMode", lastControl);
+    parallelModeButton.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        parallelModeUpdated();
+      }
+    });
+    lastControl = parallelModeButton;
+    parallelismText = createOptionText(performanceComposite, "JdbcMetadata.parallelism", lastControl);
+    lastControl = parallelismText;
+    parallelMaxPerHostText = createOptionText(performanceComposite, "JdbcMetadata.parallelMaxPerHost", lastControl);
+    lastControl = parallelMaxPerHostText;
+    parallelPreserveOrderButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.parallelPreserveOrder", lastControl);
+    lastControl = parallelPreserveOrderButton;
+    parallelExecutorCombo = createOptionCombo(performanceComposite, "JdbcMetadata.parallelExecutor", MetaDataFetcher.executorOptions, lastControl);
+    lastControl = parallelExecutorCombo;
+
+    //prefetch mode
+    prefetchModeButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.prefetchMode", lastControl);
+    prefetchModeButton.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        prefetchModeUpdated();
+      }
+    });
+    lastControl = prefetchModeButton;
+    prefetchRowsText = createOptionText(performanceComposite, "JdbcMetadata.prefetchRows", lastControl);
+    lastControl = prefetchRowsText;
+    prefetchBufferSizeText = createOptionText(performanceComposite, "JdbcMetadata.prefetchBufferSize", lastControl);
+    lastControl = prefetchBufferSizeText;
+
+    //connection pool
+    connectionPoolMaxOpenText = createOptionText(performanceComposite, "JdbcMetadata.connectionPoolMaxOpen", lastControl);
+    lastControl = connectionPoolMaxOpenText;
+    connectionPoolIdleTimeoutText = createOptionText(performanceComposite, "JdbcMetadata.connectionPoolIdleTimeout", lastControl);
+    lastControl = connectionPoolIdleTimeoutText;
+    connectionPoolValidateButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.connectionPoolValidate", lastControl);
+    lastControl = connectionPoolValidateButton;
+
+    //shared cache
+    sharedCacheButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.sharedCache", lastControl);
+    sharedCacheButton.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        sharedCacheUpdated();
+      }
+    });
+    lastControl = sharedCacheButton;
+    sharedCacheEpochText = createOptionText(performanceComposite, "JdbcMetadata.sharedCacheEpoch", lastControl);
+    lastControl = sharedCacheEpochText;
+    sharedCacheOffHeapThresholdText = createOptionText(performanceComposite, "JdbcMetadata.sharedCacheOffHeapThreshold", lastControl);
+    lastControl = sharedCacheOffHeapThresholdText;
+
+    //incremental mode
+    incrementalModeButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.incrementalMode", lastControl);
+    incrementalModeButton.addSelectionListener(new SelectionAdapter(){
+      public void widgetSelected(SelectionEvent selectionEvent) {
+        incrementalModeUpdated();
+      }
+    });
+    lastControl = incrementalModeButton;
+    incrementalStateFileText = createOptionText(performanceComposite, "JdbcMetadata.incrementalStateFile", lastControl);
+    lastControl = incrementalStateFileText;
+
+    //native queries
+    nativeQueriesButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.nativeQueries", lastControl);
+    lastControl = nativeQueriesButton;
+
+    //catalog index
+    catalogIndexButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.catalogIndex", lastControl);
+    lastControl = catalogIndexButton;
+
+    //index statistics only
+    indexStatisticsOnlyButton = createOptionCheckbox(performanceComposite, "JdbcMetadata.indexStatisticsOnly", lastControl);
+    lastControl = indexStatisticsOnlyButton;
+
+    //layout the performance tab
+    FormData performanceTabFormData = new FormData();
+    performanceTabFormData.left = new FormAttachment( 0, 0 );
+    performanceTabFormData.top = new FormAttachment( 0, 0 );
+    performanceTabFormData.right = new FormAttachment( 100, 0 );
+    performanceTabFormData.bottom = new FormAttachment( 100, 0 );
+    performanceComposite.setLayoutData(performanceTabFormData);
+    performanceComposite.layout();
+    performanceTab.setControl(performanceComposite);
+
     // OK and cancel buttons
     wOK = new Button(shell, SWT.PUSH);
     wOK.setText(BaseMessages.getString(PKG, "System.Button.OK"));
@@ -967,6 +1503,11 @@ public class JdbcMetaDataDialog extends BaseStepDialog implements StepDialogInte
     value = meta.getJdbcPasswordField();
     if (value != null) jdbcPasswordField.setText(value);
 
+    value = meta.getSnapshotFile();
+    if (value != null) snapshotFileText.setText(value);
+    snapshotCaptureButton.setSelection(meta.getSnapshotCapture());
+    snapshotUpdated();
+
     alwaysPassInputRowButton.setSelection(meta.getAlwaysPassInputRow());
 
     value = meta.getMethodName();
@@ -977,8 +1518,97 @@ public class JdbcMetaDataDialog extends BaseStepDialog implements StepDialogInte
 
     logDebug("Calling methodUpdated from populate dialog.");
     updateOutputFields(meta.getOutputFields());
+    updateTargetMethods(meta.getTargetMethods());
     removeArgumentFieldsButton.setSelection(meta.getRemoveArgumentFields());
     removeArgumentFieldsButton.setEnabled(meta.getArgumentSourceFields());
+
+    cacheResultsButton.setSelection(meta.getCacheResults());
+    value = meta.getCacheMaxEntries();
+    if (value != null) cacheMaxEntriesText.setText(value);
+    value = meta.getCacheMaxSize();
+    if (value != null) cacheMaxSizeText.setText(value);
+    value = meta.getCacheTimeToLive();
+    if (value != null) cacheTimeToLiveText.setText(value);
+    cacheEmptyResultsButton.setSelection(meta.getCacheEmptyResults());
+    cacheResultsUpdated();
+
+    batchModeButton.setSelection(meta.getBatchMode());
+    value = meta.getBatchWindowSize();
+    if (value != null) batchWindowSizeText.setText(value);
+    value = meta.getBatchMaxRows();
+    if (value != null) batchMaxRowsText.setText(value);
+    batchModeUpdated();
+
+    parallelModeButton.setSelection(meta.getParallelMode());
+    value = meta.getParallelism();
+    if (value != null) parallelismText.setText(value);
+    value = meta.getParallelMaxPerHost();
+    if (value != null) parallelMaxPerHostText.setText(value);
+    parallelPreserveOrderButton.setSelection(meta.getParallelPreserveOrder());
+    int index = Const.indexOfString(meta.getParallelExecutor(), MetaDataFetcher.executorOptions);
+    parallelExecutorCombo.select(index == -1 ? 0 : index);
+    parallelModeUpdated();
+
+    prefetchModeButton.setSelection(meta.getPrefetchMode());
+    value = meta.getPrefetchRows();
+    if (value != null) prefetchRowsText.setText(value);
+    value = meta.getPrefetchBufferSize();
+    if (value != null) prefetchBufferSizeText.setText(value);
+    prefetchModeUpdated();
+
+    value = meta.getConnectionPoolMaxOpen();
+    if (value != null) connectionPoolMaxOpenText.setText(value);
+    value = meta.getConnectionPoolIdleTimeout();
+    if (value != null) connectionPoolIdleTimeoutText.setText(value);
+    connectionPoolValidateButton.setSelection(meta.getConnectionPoolValidate());
+
+    sharedCacheButton.setSelection(meta.getSharedCache());
+    value = meta.getSharedCacheEpoch();
+    if (value != null) sharedCacheEpochText.setText(value);
+    value = meta.getSharedCacheOffHeapThreshold();
+    if (value != null) sharedCacheOffHeapThresholdText.setText(value);
+    sharedCacheUpdated();
+
+    incrementalModeButton.setSelection(meta.getIncrementalMode());
+    value = meta.getIncrementalStateFile();
+    if (value != null) incrementalStateFileText.setText(value);
+    incrementalModeUpdated();
+
+    nativeQueriesButton.setSelection(meta.getNativeQueries());
+    catalogIndexButton.setSelection(meta.getCatalogIndex());
+    indexStatisticsOnlyButton.setSelection(meta.getIndexStatisticsOnly());
+    kettleTypesButton.setSelection(meta.getKettleTypes());
+    value = meta.getDocumentFile();
+    if (value != null) documentFileText.setText(value);
+
+    diffModeButton.setSelection(meta.getDiffMode());
+    index = JdbcMetaDataMeta.getDiffBaselineSourceOptionIndex(meta.getDiffBaselineSource());
+    diffBaselineSourceCombo.select(index == -1 ? 0 : index);
+    value = meta.getDiffBaselineFile();
+    if (value != null) diffBaselineFileText.setText(value);
+    value = meta.getDiffBaselineStep();
+    if (value != null) diffBaselineStepCombo.setText(value);
+    value = meta.getDiffChangeTypeField();
+    if (value != null) diffChangeTypeFieldText.setText(value);
+    value = meta.getDiffMaxMemoryRows();
+    if (value != null) diffMaxMemoryRowsText.setText(value);
+    diffModeUpdated();
+
+    fingerprintModeButton.setSelection(meta.getFingerprintMode());
+    fingerprintRollupButton.setSelection(meta.getFingerprintRollup());
+    value = meta.getFingerprintField();
+    if (value != null) fingerprintFieldText.setText(value);
+    value = meta.getFingerprintLevelField();
+    if (value != null) fingerprintLevelFieldText.setText(value);
+    fingerprintModeUpdated();
+
+    groupedModeButton.setSelection(meta.getGroupedMode());
+
+    ddlModeButton.setSelection(meta.getDdlMode());
+    ddlHistoryButton.setSelection(meta.getDdlHistory());
+    value = meta.getDdlConnection();
+    if (value != null) ddlConnectionCombo.setText(value);
+    ddlModeUpdated();
   }
 
   /**
@@ -1009,12 +1639,63 @@ public class JdbcMetaDataDialog extends BaseStepDialog implements StepDialogInte
     meta.setJdbcUrlField(jdbcUrlField.getText());
     meta.setJdbcUserField(jdbcUserField.getText());
     meta.setJdbcPasswordField(jdbcPasswordField.getText());
+    meta.setSnapshotFile(snapshotFileText.getText());
+    meta.setSnapshotCapture(snapshotCaptureButton.getSelection());
     meta.setAlwaysPassInputRow(alwaysPassInputRowButton.getSelection());
     meta.setMethodName(JdbcMetaDataMeta.getMethodName(methodCombo.getSelectionIndex()));
     meta.setArgumentSourceFields(argumentSourceFields.getSelection());
     meta.setArguments(getArguments());
     meta.setRemoveArgumentFields(removeArgumentFieldsButton.getSelection());
     meta.setOutputFields(getOutputFields());
+    meta.setTargetMethods(getTargetMethods());
+    meta.setCacheResults(cacheResultsButton.getSelection());
+    meta.setCacheMaxEntries(cacheMaxEntriesText.getText());
+    meta.setCacheMaxSize(cacheMaxSizeText.getText());
+    meta.setCacheTimeToLive(cacheTimeToLiveText.getText());
+    meta.setCacheEmptyResults(cacheEmptyResultsButton.getSelection());
+    meta.setBatchMode(batchModeButton.getSelection());
+    meta.setBatchWindowSize(batchWindowSizeText.getText());
+    meta.setBatchMaxRows(batchMaxRowsText.getText());
+    meta.setParallelMode(parallelModeButton.getSelection());
+    meta.setParallelism(parallelismText.getText());
+    meta.setParallelMaxPerHost(parallelMaxPerHostText.getText());
+    meta.setParallelPreserveOrder(parallelPreserveOrderButton.getSelection());
+    meta.setParallelExecutor(MetaDataFetcher.executorOptions[parallelExecutorCombo.getSelectionIndex()]);
+    meta.setPrefetchMode(prefetchModeButton.getSelection());
+    meta.setPrefetchRows(prefetchRowsText.getText());
+    meta.setPrefetchBufferSize(prefetchBufferSizeText.getText());
+    meta.setConnectionPoolMaxOpen(connectionPoolMaxOpenText.getText());
+    meta.setConnectionPoolIdleTimeout(connectionPoolIdleTimeoutText.getText());
+    meta.setConnectionPoolValidate(connectionPoolValidateButton.getSelection());
+    meta.setSharedCache(sharedCacheButton.getSelection());
+    meta.setSharedCacheEpoch(sharedCacheEpochText.getText());
+    meta.setSharedCacheOffHeapThreshold(sharedCacheOffHeapThresholdText.getText());
+    meta.setIncrementalMode(incrementalModeButton.getSelection());
+    meta.setIncrementalStateFile(incrementalStateFileText.getText());
+    meta.setNativeQueries(nativeQueriesButton.getSelection());
+    meta.setCatalogIndex(catalogIndexButton.getSelection());
+    meta.setIndexStatisticsOnly(indexStatisticsOnlyButton.getSelection());
+    meta.setKettleTypes(kettleTypesButton.getSelection());
+    meta.setDocumentFile(documentFileText.getText());
+    meta.setDiffMode(diffModeButton.getSelection());
+    meta.setDiffBaselineSource(JdbcMetaDataMeta.diffBaselineSourceOptions[diffBaselineSourceCombo.getSelectionIndex()]);
+    meta.setDiffBaselineFile(diffBaselineFileText.getText());
+    meta.setDiffBaselineStep(diffBaselineStepCombo.getText());
+    meta.setDiffChangeTypeField(diffChangeTypeFieldText.getText());
+    meta.setDiffMaxMemoryRows(diffMaxMemoryRowsText.getText());
+    meta.setFingerprintMode(fingerprintModeButton.getSelection());
+    meta.setFingerprintRollup(fingerprintRollupButton.getSelection());
+    meta.setFingerprintField(fingerprintFieldText.getText());
+    meta.setFingerprintLevelField(fingerprintLevelFieldText.getText());
+    meta.setGroupedMode(groupedModeButton.getSelection());
+    meta.setDdlMode(ddlModeButton.getSelection());
+    meta.setDdlHistory(ddlHistoryButton.getSelection());
+    meta.setDdlConnection(ddlConnectionCombo.getText());
+    //hook up the baseline step as info stream
+    meta.getStepIOMeta().getInfoStreams().get(0).setStepMeta(
+      meta.getDiffMode() && JdbcMetaDataMeta.diffBaselineSourceOptionStep.equals(meta.getDiffBaselineSource()) ?
+      transMeta.findStep(meta.getDiffBaselineStep()) : null
+    );
 
     meta.setChanged(dialogChanged || changed);
     // close the SWT dialog window
@@ -1037,6 +1718,35 @@ public class JdbcMetaDataDialog extends BaseStepDialog implements StepDialogInte
     return arguments;
   }
 
+  private void updateTargetMethods(Object[] targetMethods){
+    targetMethodsTableView.clearAll();
+    if (targetMethods == null || targetMethods.length == 0) return;
+    Table table = targetMethodsTableView.table;
+    table.setItemCount(targetMethods.length);
+    String[] targetMethod;
+    TableItem tableItem;
+    for (int i = 0; i < targetMethods.length; i++) {
+      targetMethod = (String[])targetMethods[i];
+      tableItem = table.getItem(i);
+      tableItem.setText(1, targetMethod[0] == null ? "" : targetMethod[0]);
+      tableItem.setText(2, targetMethod[1] == null ? "" : targetMethod[1]);
+    }
+    targetMethodsTableView.setRowNums();
+    targetMethodsTableView.optWidth(true);
+  }
+
+  private Object[] getTargetMethods(){
+    int n = targetMethodsTableView.nrNonEmpty();
+    List<String[]> targetMethods = new ArrayList<String[]>();
+    TableItem tableItem;
+    for (int i = 0; i < n; i++) {
+      tableItem = targetMethodsTableView.getNonEmpty(i);
+      if (tableItem.getText(1).length() == 0 || tableItem.getText(2).length() == 0) continue;
+      targetMethods.add(new String[]{tableItem.getText(1), tableItem.getText(2)});
+    }
+    return targetMethods.toArray();
+  }
+
   private Object[] getOutputFields(){
     Table table = outputFieldsTableView.table;
     int n = table.getItemCount();
@@ -22,7 +22,6 @@
 
 package org.pentaho.di.steps.jdbcmetadata;
 
-import java.lang.reflect.Method;
 import java.sql.DatabaseMetaData;
 import java.util.HashMap;
 import java.util.List;
@@ -50,9 +49,15 @@ import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.StepDialogInterface;
+import org.pentaho.di.trans.step.StepIOMeta;
+import org.pentaho.di.trans.step.StepIOMetaInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.step.errorhandling.Stream;
+import org.pentaho.di.trans.step.errorhandling.StreamIcon;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface.StreamType;
 import org.w3c.dom.Node;
 
 /**
@@ -153,6 +158,28 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
   private final static ValueMeta COL_SCOPE_TABLE = new ValueMeta("SCOPE_TABLE", ValueMetaInterface.TYPE_STRING);
   private final static ValueMeta COL_IS_AUTOINCREMENT = new ValueMeta("IS_AUTOINCREMENT", ValueMetaInterface.TYPE_STRING);
   private final static ValueMeta COL_IS_GENERATEDCOLUMN = new ValueMeta("IS_GENERATEDCOLUMN", ValueMetaInterface.TYPE_STRING);
+  private final static ValueMeta COL_NON_UNIQUE = new ValueMeta("NON_UNIQUE", ValueMetaInterface.TYPE_BOOLEAN);
+  private final static ValueMeta COL_INDEX_QUALIFIER = new ValueMeta("INDEX_QUALIFIER", ValueMetaInterface.TYPE_STRING);
+  private final static ValueMeta COL_INDEX_NAME = new ValueMeta("INDEX_NAME", ValueMetaInterface.TYPE_STRING);
+  private final static ValueMeta COL_TYPE = new ValueMeta("TYPE", ValueMetaInterface.TYPE_INTEGER);
+  private final static ValueMeta COL_ASC_OR_DESC = new ValueMeta("ASC_OR_DESC", ValueMetaInterface.TYPE_STRING);
+  private final static ValueMeta COL_CARDINALITY = new ValueMeta("CARDINALITY", ValueMetaInterface.TYPE_INTEGER);
+  private final static ValueMeta COL_PAGES = new ValueMeta("PAGES", ValueMetaInterface.TYPE_INTEGER);
+  private final static ValueMeta COL_FILTER_CONDITION = new ValueMeta("FILTER_CONDITION", ValueMetaInterface.TYPE_STRING);
+  private final static ValueMeta COL_CAPABILITY_NAME = new ValueMeta("CAPABILITY_NAME", ValueMetaInterface.TYPE_STRING);
+  private final static ValueMeta COL_CAPABILITY_VALUE = new ValueMeta("CAPABILITY_VALUE", ValueMetaInterface.TYPE_STRING);
+  private final static ValueMeta COL_CAPABILITY_NUMBER = new ValueMeta("CAPABILITY_NUMBER", ValueMetaInterface.TYPE_INTEGER);
+  private final static ValueMeta COL_TABLE_REMARKS = new ValueMeta("TABLE_REMARKS", ValueMetaInterface.TYPE_STRING);
+  private final static ValueMeta COL_INDEX_NAMES = new ValueMeta("INDEX_NAMES", ValueMetaInterface.TYPE_STRING);
+  private final static ValueMeta COL_LOAD_RANK = new ValueMeta("LOAD_RANK", ValueMetaInterface.TYPE_INTEGER);
+  private final static ValueMeta COL_LOAD_WAVE = new ValueMeta("LOAD_WAVE", ValueMetaInterface.TYPE_INTEGER);
+  private final static ValueMeta COL_CYCLE_ID = new ValueMeta("CYCLE_ID", ValueMetaInterface.TYPE_INTEGER);
+  private final static ValueMeta COL_CYCLE_SIZE = new ValueMeta("CYCLE_SIZE", ValueMetaInterface.TYPE_INTEGER);
+  private final static ValueMeta COL_DEPENDENCY_COUNT = new ValueMeta("DEPENDENCY_COUNT", ValueMetaInterface.TYPE_INTEGER);
+  private final static ValueMeta COL_DEPENDENT_COUNT = new ValueMeta("DEPENDENT_COUNT", ValueMetaInterface.TYPE_INTEGER);
+  private final static ValueMeta COL_KEY_SOURCE = new ValueMeta("KEY_SOURCE", ValueMetaInterface.TYPE_STRING);
+  private final static ValueMeta COL_KEY_NAME = new ValueMeta("KEY_NAME", ValueMetaInterface.TYPE_STRING);
+  private final static ValueMeta COL_DOCUMENT = new ValueMeta("DOCUMENT", ValueMetaInterface.TYPE_STRING);
 
   //following of argument descriptors describe arguments to metdata methods
   //1) name of the argument
@@ -162,6 +189,8 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
   private final static Object[] ARG_TABLE = new Object[]{"table", String.class};
   private final static Object[] ARG_COLUMN_NAME_PATTERN = new Object[]{"columnNamePattern", String.class};
   private final static Object[] ARG_NULLABLE = new Object[]{"nullable", Boolean.class, new Object[]{}};
+  private final static Object[] ARG_UNIQUE = new Object[]{"unique", Boolean.class, new Object[]{}};
+  private final static Object[] ARG_APPROXIMATE = new Object[]{"approximate", Boolean.class, new Object[]{}};
   private final static Object[] ARG_SCHEMA_PATTERN = new Object[]{"schemaPattern", String.class};
   private final static Object[] ARG_SCOPE = new Object[]{"scope", Integer.class, OPTIONS_SCOPE};
   private final static Object[] ARG_TABLE_TYPES = new Object[]{"tableTypes", String[].class};
@@ -177,13 +206,29 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
   //1) name of the java.sql.DatabaseMetaData method
   //2) array of argument descriptors
   //3) array of return fields
-  //4) initially empty slot where the actual Method object is lazily stored.
+  //4) the invoker that calls the method.
   public final static Object[] methodDescriptors = new Object[]{
+    //not a JDBC method: the values of the methods that do not return a resultset. See MetaDataCapabilityProfile.
+    new Object[]{
+      "getCapabilityProfile",
+      new Object[]{},
+      new ValueMetaInterface[]{COL_CAPABILITY_NAME, COL_CAPABILITY_VALUE, COL_CAPABILITY_NUMBER},
+      MetaDataInvoker.GET_CAPABILITY_PROFILE
+    },
     new Object[]{
       "getCatalogs",
       new Object[]{},
       new ValueMetaInterface[]{COL_TABLE_CAT},
-      null
+      MetaDataInvoker.GET_CATALOGS
+    },
+    //not a JDBC method: the primary key, or else a unique index, or else the best row identifier. See MetaDataKeyDiscovery.
+    new Object[]{
+      "discoverKeys",
+      new Object[]{ARG_CATALOG, ARG_SCHEMA_PATTERN, ARG_TABLE_NAME_PATTERN},
+      new ValueMetaInterface[]{
+        COL_TABLE_CAT, COL_TABLE_SCHEM, COL_TABLE_NAME, COL_KEY_SOURCE, COL_KEY_NAME, COL_KEY_SEQ, COL_COLUMN_NAME
+      },
+      MetaDataInvoker.DISCOVER_KEYS
     },
     new Object[]{
       "getBestRowIdentifier",
@@ -192,7 +237,7 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         COL_SCOPE, COL_COLUMN_NAME, COL_DATA_TYPE, COL_TYPE_NAME,
         COL_COLUMN_SIZE, COL_BUFFER_LENGTH, COL_DECIMAL_DIGITS, COL_PSEUDO_COLUMN
       },
-      null
+      MetaDataInvoker.GET_BEST_ROW_IDENTIFIER
     },
     new Object[]{
       "getColumnPrivileges",
@@ -201,7 +246,7 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         COL_TABLE_CAT, COL_TABLE_SCHEM, COL_TABLE_NAME, COL_COLUMN_NAME,
         COL_GRANTOR, COL_GRANTEE, COL_PRIVILEGE, COL_IS_GRANTABLE
       },
-      null
+      MetaDataInvoker.GET_COLUMN_PRIVILEGES
     },
     new Object[]{
       "getColumns",
@@ -214,7 +259,7 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         COL_SCOPE_CATALOG, COL_SCOPE_SCHEMA, COL_SCOPE_TABLE,
         COL_SOURCE_DATA_TYPE, COL_IS_AUTOINCREMENT, COL_IS_GENERATEDCOLUMN
       },
-      null
+      MetaDataInvoker.GET_COLUMNS
     },
     new Object[]{
       "getCrossReference",
@@ -227,7 +272,7 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         COL_FKTABLE_CAT, COL_FKTABLE_SCHEM, COL_FKTABLE_NAME, COL_FKCOLUMN_NAME,
         COL_KEY_SEQ, COL_UPDATE_RULE, COL_DELETE_RULE, COL_FK_NAME, COL_PK_NAME, COL_DEFERRABILITY
       },
-      null
+      MetaDataInvoker.GET_CROSS_REFERENCE
     },
     new Object[]{
       "getExportedKeys",
@@ -237,7 +282,7 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         COL_FKTABLE_CAT, COL_FKTABLE_SCHEM, COL_FKTABLE_NAME, COL_FKCOLUMN_NAME,
         COL_KEY_SEQ, COL_UPDATE_RULE, COL_DELETE_RULE, COL_FK_NAME, COL_PK_NAME, COL_DEFERRABILITY
       },
-      null
+      MetaDataInvoker.GET_EXPORTED_KEYS
     },
     new Object[]{
       "getImportedKeys",
@@ -247,28 +292,52 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         COL_FKTABLE_CAT, COL_FKTABLE_SCHEM, COL_FKTABLE_NAME, COL_FKCOLUMN_NAME,
         COL_KEY_SEQ, COL_UPDATE_RULE, COL_DELETE_RULE, COL_FK_NAME, COL_PK_NAME, COL_DEFERRABILITY
       },
-      null
+      MetaDataInvoker.GET_IMPORTED_KEYS
+    },
+    new Object[]{
+      "getIndexInfo",
+      new Object[]{ARG_CATALOG, ARG_SCHEMA, ARG_TABLE, ARG_UNIQUE, ARG_APPROXIMATE},
+      new ValueMetaInterface[]{
+        COL_TABLE_CAT, COL_TABLE_SCHEM, COL_TABLE_NAME, COL_NON_UNIQUE, COL_INDEX_QUALIFIER, COL_INDEX_NAME,
+        COL_TYPE, COL_ORDINAL_POSITION, COL_COLUMN_NAME, COL_ASC_OR_DESC, COL_CARDINALITY, COL_PAGES, COL_FILTER_CONDITION
+      },
+      MetaDataInvoker.GET_INDEX_INFO
     },
     new Object[]{
       "getPrimaryKeys",
       new Object[]{ARG_CATALOG, ARG_SCHEMA, ARG_TABLE},
       new ValueMetaInterface[]{COL_TABLE_CAT, COL_TABLE_SCHEM, COL_TABLE_NAME, COL_COLUMN_NAME,COL_KEY_SEQ, COL_PK_NAME},
-      null
+      MetaDataInvoker.GET_PRIMARY_KEYS
     },
+    //not a JDBC method: a JSON document for each schema, with its tables, columns, keys and indexes. See MetaDataDocumentHarvester.
     new Object[]{
-      "getSchemas",
-      new Object[]{},
-      new ValueMetaInterface[]{COL_TABLE_SCHEM, COL_TABLE_CATALOG},
-      null
+      "getSchemaDocuments",
+      new Object[]{ARG_CATALOG, ARG_SCHEMA_PATTERN, ARG_TABLE_NAME_PATTERN},
+      new ValueMetaInterface[]{COL_TABLE_CAT, COL_TABLE_SCHEM, COL_DOCUMENT},
+      MetaDataInvoker.GET_SCHEMA_DOCUMENTS
     },
-    /*  We'd love to use this version of getSchemas, but we found that calling it throws AbstractMethodError in h2 and sqlite (possibly others)
+    //not a JDBC method: the columns of the tables, joined with their tables, primary and foreign keys and indexes.
+    new Object[]{
+      "getSchemaSnapshot",
+      new Object[]{ARG_CATALOG, ARG_SCHEMA_PATTERN, ARG_TABLE_NAME_PATTERN},
+      new ValueMetaInterface[]{
+        COL_TABLE_CAT, COL_TABLE_SCHEM, COL_TABLE_NAME, COL_TABLE_TYPE, COL_TABLE_REMARKS,
+        COL_COLUMN_NAME, COL_ORDINAL_POSITION, COL_DATA_TYPE, COL_TYPE_NAME, COL_COLUMN_SIZE, COL_DECIMAL_DIGITS,
+        COL_NULLABLE, COL_IS_NULLABLE, COL_COLUMN_DEF, COL_REMARKS, COL_IS_AUTOINCREMENT,
+        COL_PK_NAME, COL_KEY_SEQ,
+        COL_FK_NAME, COL_PKTABLE_CAT, COL_PKTABLE_SCHEM, COL_PKTABLE_NAME, COL_PKCOLUMN_NAME,
+        COL_INDEX_NAMES
+      },
+      MetaDataInvoker.GET_SCHEMA_SNAPSHOT
+    },
+    //calling getSchemas(catalog, schemaPattern) throws AbstractMethodError in h2 and sqlite (possibly others).
+    //For these, the invoker calls getSchemas() and filters the schemas itself. See MetaDataDriverProbe.
     new Object[]{
       "getSchemas",
       new Object[]{ARG_CATALOG, ARG_SCHEMA_PATTERN},
       new ValueMetaInterface[]{COL_TABLE_SCHEM, COL_TABLE_CATALOG},
-      null
+      MetaDataInvoker.GET_SCHEMAS
     },
-    */
     new Object[]{
       "getTablePrivileges",
       new Object[]{ARG_CATALOG, ARG_SCHEMA_PATTERN, ARG_TABLE_NAME_PATTERN},
@@ -276,13 +345,30 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         COL_TABLE_CAT, COL_TABLE_SCHEM, COL_TABLE_NAME,
         COL_GRANTOR, COL_GRANTEE, COL_PRIVILEGE, COL_IS_GRANTABLE
       },
-      null
+      MetaDataInvoker.GET_TABLE_PRIVILEGES
+    },
+    //not a JDBC method: the tables in foreign key dependency order. See MetaDataDependencyGraph.
+    new Object[]{
+      "getTableDependencies",
+      new Object[]{ARG_CATALOG, ARG_SCHEMA_PATTERN, ARG_TABLE_NAME_PATTERN},
+      new ValueMetaInterface[]{
+        COL_TABLE_CAT, COL_TABLE_SCHEM, COL_TABLE_NAME, COL_TABLE_TYPE,
+        COL_LOAD_RANK, COL_LOAD_WAVE, COL_CYCLE_ID, COL_CYCLE_SIZE, COL_DEPENDENCY_COUNT, COL_DEPENDENT_COUNT
+      },
+      MetaDataInvoker.GET_TABLE_DEPENDENCIES
+    },
+    //not a JDBC method: a JSON document for each table, with its columns, keys and indexes. See MetaDataDocumentHarvester.
+    new Object[]{
+      "getTableDocuments",
+      new Object[]{ARG_CATALOG, ARG_SCHEMA_PATTERN, ARG_TABLE_NAME_PATTERN},
+      new ValueMetaInterface[]{COL_TABLE_CAT, COL_TABLE_SCHEM, COL_TABLE_NAME, COL_DOCUMENT},
+      MetaDataInvoker.GET_TABLE_DOCUMENTS
     },
     new Object[]{
       "getTableTypes",
       new Object[]{},
       new ValueMetaInterface[]{COL_TABLE_TYPE},
-      null
+      MetaDataInvoker.GET_TABLE_TYPES
     },
     new Object[]{
       "getTables",
@@ -292,7 +378,7 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         COL_TYPE_CAT, COL_TYPE_SCHEM, COL_TYPE_NAME, COL_SELF_REFERENCING_COL_NAME,
         COL_REF_GENERATION
       },
-      null
+      MetaDataInvoker.GET_TABLES
     },
     new Object[]{
       "getTypeInfo",
@@ -303,7 +389,7 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         COL_FIXED_PREC_SCALE, COL_AUTO_INCREMENT, COL_LOCAL_TYPE_NAME,
         COL_MINIMUM_SCALE, COL_MAXIMUM_SCALE, COL_SQL_DATA_TYPE, COL_SQL_DATETIME_SUB, COL_NUM_PREC_RADIX
       },
-      null
+      MetaDataInvoker.GET_TYPE_INFO
     },
     new Object[]{
       "getVersionColumns",
@@ -312,7 +398,7 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         COL_SCOPE, COL_COLUMN_NAME, COL_DATA_TYPE, COL_TYPE_NAME,
         COL_COLUMN_SIZE, COL_BUFFER_LENGTH, COL_DECIMAL_DIGITS, COL_PSEUDO_COLUMN
       },
-      null
+      MetaDataInvoker.GET_VERSION_COLUMNS
     }
   };
 
@@ -333,6 +419,55 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
   private final static String OUTPUT_FIELDS = OUTPUT_FIELD + "s";
   private final static String FIELD_NAME = "name";
   private final static String FIELD_RENAME = "rename";
+  private final static String TARGET_METHOD = "targetMethod";
+  private final static String TARGET_METHODS = TARGET_METHOD + "s";
+  private final static String TARGET_METHOD_NAME = "targetMethodName";
+  private final static String TARGET_STEP = "targetStep";
+  private final static String CACHE_RESULTS = "cacheResults";
+  private final static String CACHE_MAX_ENTRIES = "cacheMaxEntries";
+  private final static String CACHE_MAX_SIZE = "cacheMaxSize";
+  private final static String CACHE_TIME_TO_LIVE = "cacheTimeToLive";
+  private final static String CACHE_EMPTY_RESULTS = "cacheEmptyResults";
+  private final static String BATCH_MODE = "batchMode";
+  private final static String BATCH_WINDOW_SIZE = "batchWindowSize";
+  private final static String BATCH_MAX_ROWS = "batchMaxRows";
+  private final static String PARALLEL_MODE = "parallelMode";
+  private final static String PARALLELISM = "parallelism";
+  private final static String PARALLEL_MAX_PER_HOST = "parallelMaxPerHost";
+  private final static String PARALLEL_PRESERVE_ORDER = "parallelPreserveOrder";
+  private final static String PARALLEL_EXECUTOR = "parallelExecutor";
+  private final static String PREFETCH_MODE = "prefetchMode";
+  private final static String PREFETCH_ROWS = "prefetchRows";
+  private final static String PREFETCH_BUFFER_SIZE = "prefetchBufferSize";
+  private final static String CONNECTION_POOL_MAX_OPEN = "connectionPoolMaxOpen";
+  private final static String CONNECTION_POOL_IDLE_TIMEOUT = "connectionPoolIdleTimeout";
+  private final static String CONNECTION_POOL_VALIDATE = "connectionPoolValidate";
+  private final static String SHARED_CACHE = "sharedCache";
+  private final static String SHARED_CACHE_EPOCH = "sharedCacheEpoch";
+  private final static String SHARED_CACHE_OFF_HEAP_THRESHOLD = "sharedCacheOffHeapThreshold";
+  private final static String SNAPSHOT_FILE = "snapshotFile";
+  private final static String SNAPSHOT_CAPTURE = "snapshotCapture";
+  private final static String DIFF_MODE = "diffMode";
+  private final static String DIFF_BASELINE_SOURCE = "diffBaselineSource";
+  private final static String DIFF_BASELINE_FILE = "diffBaselineFile";
+  private final static String DIFF_BASELINE_STEP = "diffBaselineStep";
+  private final static String DIFF_CHANGE_TYPE_FIELD = "diffChangeTypeField";
+  private final static String DIFF_MAX_MEMORY_ROWS = "diffMaxMemoryRows";
+  private final static String INCREMENTAL_MODE = "incrementalMode";
+  private final static String INCREMENTAL_STATE_FILE = "incrementalStateFile";
+  private final static String FINGERPRINT_MODE = "fingerprintMode";
+  private final static String FINGERPRINT_ROLLUP = "fingerprintRollup";
+  private final static String FINGERPRINT_FIELD = "fingerprintField";
+  private final static String FINGERPRINT_LEVEL_FIELD = "fingerprintLevelField";
+  private final static String NATIVE_QUERIES = "nativeQueries";
+  private final static String CATALOG_INDEX = "catalogIndex";
+  private final static String INDEX_STATISTICS_ONLY = "indexStatisticsOnly";
+  private final static String KETTLE_TYPES = "kettleTypes";
+  private final static String GROUPED_MODE = "groupedMode";
+  private final static String DOCUMENT_FILE = "documentFile";
+  private final static String DDL_MODE = "ddlMode";
+  private final static String DDL_HISTORY = "ddlHistory";
+  private final static String DDL_CONNECTION = "ddlConnection";
 
   /**
    *  The PKG member is used when looking up internationalized strings.
@@ -345,12 +480,22 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
   public static final String connectionSourceOptionConnectionField = "ConnectionField";
   public static final String connectionSourceOptionJDBC = "JDBC";
   public static final String connectionSourceOptionJDBCFields= "JDBCFields";
+  public static final String connectionSourceOptionSnapshot = "Snapshot";
 
   public static final String[] connectionSourceOptions = new String[]{
     connectionSourceOptionConnection,
     connectionSourceOptionConnectionField,
     connectionSourceOptionJDBC,
-    connectionSourceOptionJDBCFields
+    connectionSourceOptionJDBCFields,
+    connectionSourceOptionSnapshot
+  };
+
+  public static final String diffBaselineSourceOptionSnapshot = "Snapshot";
+  public static final String diffBaselineSourceOptionStep = "Step";
+
+  public static final String[] diffBaselineSourceOptions = new String[]{
+    diffBaselineSourceOptionSnapshot,
+    diffBaselineSourceOptionStep
   };
 
   /**
@@ -418,6 +563,52 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
     jdbcPasswordField = "";
     methodName = "getCatalogs";
     argumentSourceFields = false;
+    targetMethods = new Object[0];
+    cacheResults = false;
+    cacheMaxEntries = "1000";
+    cacheMaxSize = "64";
+    cacheTimeToLive = "0";
+    cacheEmptyResults = true;
+    batchMode = false;
+    batchWindowSize = "500";
+    batchMaxRows = "100000";
+    parallelMode = false;
+    parallelism = "4";
+    parallelMaxPerHost = "0";
+    parallelPreserveOrder = true;
+    parallelExecutor = MetaDataFetcher.executorOptionThreads;
+    prefetchMode = false;
+    prefetchRows = "16";
+    prefetchBufferSize = "16";
+    connectionPoolMaxOpen = "100";
+    connectionPoolIdleTimeout = "300";
+    connectionPoolValidate = true;
+    sharedCache = false;
+    sharedCacheEpoch = "";
+    sharedCacheOffHeapThreshold = "1024";
+    snapshotFile = "";
+    snapshotCapture = false;
+    diffMode = false;
+    diffBaselineSource = diffBaselineSourceOptions[0];
+    diffBaselineFile = "";
+    diffBaselineStep = "";
+    diffChangeTypeField = "CHANGE_TYPE";
+    diffMaxMemoryRows = "100000";
+    incrementalMode = false;
+    incrementalStateFile = "";
+    fingerprintMode = false;
+    fingerprintRollup = true;
+    fingerprintField = "FINGERPRINT";
+    fingerprintLevelField = "FINGERPRINT_LEVEL";
+    nativeQueries = false;
+    catalogIndex = false;
+    indexStatisticsOnly = false;
+    kettleTypes = false;
+    groupedMode = false;
+    documentFile = "";
+    ddlMode = false;
+    ddlHistory = false;
+    ddlConnection = "";
   }
 
   /**
@@ -435,6 +626,17 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
     }
     return -1;
   }
+  /**
+   * Get the index of the diff baseline source option
+   * @param diffBaselineSourceOption
+   * @return
+   */
+  public static int getDiffBaselineSourceOptionIndex(String diffBaselineSourceOption){
+    for (int i = 0; i < diffBaselineSourceOptions.length; i++) {
+      if (diffBaselineSourceOptions[i].equals(diffBaselineSourceOption)) return i;
+    }
+    return -1;
+  }
   /**
    * Getter for the name of the field containing the connection source
    * @return the source of the connection data
@@ -604,7 +806,7 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
     this.methodName = methodName;
   }
 
-  private static Object[] getMethodDescriptor(String methodName) {
+  public static Object[] getMethodDescriptor(String methodName) {
     for (Object o : JdbcMetaDataMeta.methodDescriptors) {
       Object[] oo = (Object[])o;
       if (!oo[0].toString().equals(methodName)) continue;
@@ -657,20 +859,13 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
     return parameterTypes;
   }
 
-  public static Method getMethod(String methodName) throws Exception {
-    Method method;
+  public static MetaDataInvoker getInvoker(String methodName) {
     Object[] methodDescriptor = getMethodDescriptor(methodName);
-    method = (Method)methodDescriptor[3];
-    if (method != null) return method;
-    Class<?> dbmd = Class.forName("java.sql.DatabaseMetaData");
-    Class<?>[] parameterTypes = getMethodParameterTypes(methodDescriptor);
-    method = dbmd.getDeclaredMethod(methodName, parameterTypes);
-    methodDescriptor[3] = method;
-    return method;
+    return (MetaDataInvoker)methodDescriptor[3];
   }
 
-  public Method getMethod() throws Exception {
-    return JdbcMetaDataMeta.getMethod(methodName);
+  public MetaDataInvoker getInvoker() {
+    return JdbcMetaDataMeta.getInvoker(methodName);
   }
 
   /**
@@ -724,6 +919,22 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
     this.arguments = arguments;
   }
 
+  /**
+   * Steps that were saved before their method took arguments (like getSchemas) have fewer arguments than the method.
+   * The missing arguments are added as blank, which the methods take as "no filter".
+   * @param arguments the arguments as they were saved
+   * @return the arguments, as many as the method has.
+   */
+  private String[] padArguments(String[] arguments) {
+    Object[] methodDescriptor = getMethodDescriptor();
+    if (methodDescriptor == null) return arguments;
+    int argc = ((Object[])methodDescriptor[1]).length;
+    if (arguments.length >= argc) return arguments;
+    String[] paddedArguments = new String[argc];
+    System.arraycopy(arguments, 0, paddedArguments, 0, arguments.length);
+    return paddedArguments;
+  }
+
   /**
    * Stores the selection of fields that are added to the stream
    */
@@ -742,197 +953,1289 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
   }
 
   /**
-   * This method is used when a step is duplicated in Spoon. It needs to return a deep copy of this
-   * step meta object. Be sure to create proper deep copies if the step configuration is stored in
-   * modifiable objects.
-   *
-   * See org.pentaho.di.trans.steps.rowgenerator.RowGeneratorMeta.clone() for an example on creating
-   * a deep copy.
-   *
-   * @return a deep copy of this
+   * Stores the additional methods that are called for each row, and the target steps that receive their rows
    */
-  public Object clone() {
-    Object retval = super.clone();
-    return retval;
+  private Object[] targetMethods;
+  /**
+   * @return the additional methods. Each is a String[] holding the name of the method and the name of its target step.
+   */
+  public Object[] getTargetMethods() {
+    return targetMethods;
   }
-
   /**
-   * This method is called by Spoon when a step needs to serialize its configuration to XML. The expected
-   * return value is an XML fragment consisting of one or more XML tags.
-   *
-   * Please use org.pentaho.di.core.xml.XMLHandler to conveniently generate the XML.
-   *
-   * @return a string containing the XML serialization of this step
+   * @param targetMethods the additional methods. Each is a String[] holding the name of the method and the name of its target step.
    */
-  public String getXML() throws KettleValueException {
-    // only one field to serialize
-    StringBuilder xml = new StringBuilder();
-    String indent = "    ";
-    xml.append(indent);
-    xml.append(XMLHandler.addTagValue(CONNECTION_SOURCE, connectionSource));
-    xml.append(indent);
-    xml.append(XMLHandler.addTagValue(CONNECTION_NAME, connectionName));
-    xml.append(indent);
-    xml.append(XMLHandler.addTagValue(CONNECTION_FIELD, connectionField));
-    xml.append(indent);
-    xml.append(XMLHandler.addTagValue(JDBC_DRIVER_FIELD, jdbcDriverField));
-    xml.append(indent);
-    xml.append(XMLHandler.addTagValue(JDBC_URL_FIELD, jdbcUrlField));
-    xml.append(indent);
-    xml.append(XMLHandler.addTagValue(JDBC_USER_FIELD, jdbcUserField));
-    xml.append(indent);
-    xml.append(XMLHandler.addTagValue(JDBC_PASSWORD_FIELD, jdbcPasswordField));
-    xml.append(indent);
-    xml.append(XMLHandler.addTagValue(ALWAYS_PASS_INPUT_ROW, alwaysPassInputRow));
-    xml.append(indent);
-    xml.append(XMLHandler.addTagValue(METHOD_NAME, methodName));
-    xml.append(indent);
-    xml.append(XMLHandler.addTagValue(REMOVE_ARGUMENT_FIELDS, removeArgumentFields));
-    xml.append(indent);
-    xml.append(XMLHandler.addTagValue(ARGUMENT_SOURCE_FIELDS, argumentSourceFields));
+  public void setTargetMethods(Object[] targetMethods) {
+    this.targetMethods = targetMethods;
+    //the target streams follow the additional methods.
+    ioMeta = null;
+  }
 
-    xml.append(indent);
-    xml.append("<" + ARGUMENTS + ">\n");
-    for (int i = 0; i < arguments.length; i++) {
-      xml.append(indent).append(indent);
-      xml.append(XMLHandler.addTagValue(ARGUMENT, arguments[i]));
+  /**
+   * @param stepName name of a step this step is passing rows to
+   * @return the index of the additional method whose rows go to this step, or -1 if it gets the rows of the step's own method.
+   */
+  public int getTargetMethodIndex(String stepName) {
+    if (targetMethods == null || stepName == null) return -1;
+    for (int i = 0; i < targetMethods.length; i++) {
+      if (stepName.equals(((String[])targetMethods[i])[1])) return i;
     }
-    xml.append(indent);
-    xml.append("</" + ARGUMENTS + ">\n");
+    return -1;
+  }
 
-    xml.append(indent);
-    xml.append("<" + OUTPUT_FIELDS + ">\n");
-    if (outputFields != null) {
-      Object[] outputField;
-      for (int i = 0; i < outputFields.length; i++) {
-        outputField = (Object[])outputFields[i];
-        xml.append(indent).append(indent);
-        xml.append("<" + OUTPUT_FIELD + ">\n");
-        xml.append(indent).append(indent).append(indent);
-        xml.append(XMLHandler.addTagValue(FIELD_NAME, (String)outputField[0]));
-        xml.append(indent).append(indent).append(indent);
-        xml.append(XMLHandler.addTagValue(FIELD_RENAME, (String)outputField[1]));
-        xml.append(indent).append(indent);
-        xml.append("</" + OUTPUT_FIELD + ">\n");
-      }
-    }
-    xml.append(indent);
-    xml.append("</" + OUTPUT_FIELDS + ">\n");
+  /**
+   * Stores whether metadata results are cached across input rows
+   */
+  private boolean cacheResults;
+  /**
+   * @return whether metadata results are cached across input rows
+   */
+  public boolean getCacheResults() {
+    return cacheResults;
+  }
+  /**
+   * @param cacheResults whether metadata results should be cached across input rows
+   */
+  public void setCacheResults(boolean cacheResults) {
+    this.cacheResults = cacheResults;
+  }
 
-    return xml.toString();
+  /**
+   * Stores the maximum number of metadata results kept in the cache
+   */
+  private String cacheMaxEntries;
+  /**
+   * @return the maximum number of metadata results kept in the cache
+   */
+  public String getCacheMaxEntries() {
+    return cacheMaxEntries;
+  }
+  /**
+   * @param cacheMaxEntries the maximum number of metadata results kept in the cache
+   */
+  public void setCacheMaxEntries(String cacheMaxEntries) {
+    this.cacheMaxEntries = cacheMaxEntries;
   }
 
   /**
-   * This method is called by PDI when a step needs to load its configuration from XML.
-   *
-   * Please use org.pentaho.di.core.xml.XMLHandler to conveniently read from the
-   * XML node passed in.
-   *
-   * @param stepnode  the XML node containing the configuration
-   * @param databases the databases available in the transformation
-   * @param counters  the counters available in the transformation
+   * Stores the maximum size (in megabytes) of the cache
    */
-  public void loadXML(Node stepnode, List<DatabaseMeta> databases, Map<String, Counter> counters) throws KettleXMLException {
-    try {
-      setConnectionSource(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CONNECTION_SOURCE)));
-      setConnectionName(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CONNECTION_NAME)));
-      setConnectionField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CONNECTION_FIELD)));
-      setJdbcDriverField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, JDBC_DRIVER_FIELD)));
-      setJdbcUrlField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, JDBC_URL_FIELD)));
-      setJdbcUserField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, JDBC_USER_FIELD)));
-      setJdbcPasswordField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, JDBC_PASSWORD_FIELD)));
-      setAlwaysPassInputRow("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, ALWAYS_PASS_INPUT_ROW))));
-      setMethodName(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, METHOD_NAME)));
-      setArgumentSourceFields("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, ARGUMENT_SOURCE_FIELDS))));
-      setRemoveArgumentFields("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, REMOVE_ARGUMENT_FIELDS))));
+  private String cacheMaxSize;
+  /**
+   * @return the maximum size (in megabytes) of the cache
+   */
+  public String getCacheMaxSize() {
+    return cacheMaxSize;
+  }
+  /**
+   * @param cacheMaxSize the maximum size (in megabytes) of the cache
+   */
+  public void setCacheMaxSize(String cacheMaxSize) {
+    this.cacheMaxSize = cacheMaxSize;
+  }
 
-      Node argumentNodes = XMLHandler.getSubNode( stepnode, ARGUMENTS);
-      int n;
-      n = XMLHandler.countNodes(argumentNodes, ARGUMENT );
-      String[] arguments = new String[n];
-      for (int i = 0; i < n; i++) {
-        Node argumentNode = XMLHandler.getSubNodeByNr(argumentNodes, ARGUMENT, i);
-        arguments[i] = XMLHandler.getNodeValue(argumentNode);
-      }
-      setArguments(arguments);
+  /**
+   * Stores the number of seconds a cached result remains valid. 0 means it never expires.
+   */
+  private String cacheTimeToLive;
+  /**
+   * @return the number of seconds a cached result remains valid
+   */
+  public String getCacheTimeToLive() {
+    return cacheTimeToLive;
+  }
+  /**
+   * @param cacheTimeToLive the number of seconds a cached result remains valid
+   */
+  public void setCacheTimeToLive(String cacheTimeToLive) {
+    this.cacheTimeToLive = cacheTimeToLive;
+  }
 
-      Node outputFieldNodes = XMLHandler.getSubNode(stepnode, OUTPUT_FIELDS);
-      n = XMLHandler.countNodes(outputFieldNodes, OUTPUT_FIELD);
-      outputFields = new Object[n];
-      String[] outputField;
-      for (int i = 0; i < n; i++) {
-        Node outputFieldNode = XMLHandler.getSubNodeByNr(outputFieldNodes, OUTPUT_FIELD, i);
-        Node outputFieldName = XMLHandler.getSubNode(outputFieldNode, FIELD_NAME);
-        Node outputFieldRename = XMLHandler.getSubNode(outputFieldNode, FIELD_RENAME);
-        outputField = new String[]{
-          XMLHandler.getNodeValue(outputFieldName),
-          XMLHandler.getNodeValue(outputFieldRename)
-        };
-        outputFields[i] = outputField;
-      }
-    } catch (Exception e) {
-      throw new KettleXMLException("Unable to read step info from XML node", e);
-    }
+  /**
+   * Stores whether calls that return no rows are cached too
+   */
+  private boolean cacheEmptyResults;
+  /**
+   * @return whether calls that return no rows are cached too
+   */
+  public boolean getCacheEmptyResults() {
+    return cacheEmptyResults;
+  }
+  /**
+   * @param cacheEmptyResults whether calls that return no rows should be cached too
+   */
+  public void setCacheEmptyResults(boolean cacheEmptyResults) {
+    this.cacheEmptyResults = cacheEmptyResults;
   }
 
   /**
-   * This method is called by Spoon when a step needs to serialize its configuration to a repository.
-   * The repository implementation provides the necessary methods to save the step attributes.
-   *
-   * @param rep the repository to save to
-   * @param id_transformation the id to use for the transformation when saving
-   * @param id_step the id to use for the step  when saving
+   * Stores whether calls for different tables of the same schema are coalesced into one call
    */
-  public void saveRep(Repository rep, ObjectId id_transformation, ObjectId id_step) throws KettleException {
-    try{
-      rep.saveStepAttribute(id_transformation, id_step, CONNECTION_SOURCE, connectionSource);
-      rep.saveStepAttribute(id_transformation, id_step, CONNECTION_NAME, connectionName);
-      rep.saveStepAttribute(id_transformation, id_step, CONNECTION_FIELD, connectionField);
-      rep.saveStepAttribute(id_transformation, id_step, JDBC_DRIVER_FIELD, jdbcDriverField);
-      rep.saveStepAttribute(id_transformation, id_step, JDBC_URL_FIELD, jdbcUrlField);
-      rep.saveStepAttribute(id_transformation, id_step, JDBC_USER_FIELD, jdbcUserField);
-      rep.saveStepAttribute(id_transformation, id_step, JDBC_PASSWORD_FIELD, jdbcPasswordField);
-      rep.saveStepAttribute(id_transformation, id_step, ALWAYS_PASS_INPUT_ROW, alwaysPassInputRow);
-      rep.saveStepAttribute(id_transformation, id_step, METHOD_NAME, methodName);
-      rep.saveStepAttribute(id_transformation, id_step, ARGUMENT_SOURCE_FIELDS, argumentSourceFields);
-      rep.saveStepAttribute(id_transformation, id_step, REMOVE_ARGUMENT_FIELDS, removeArgumentFields);
-      for (int i = 0; i < arguments.length; i++) {
-        rep.saveStepAttribute(id_transformation, id_step, i, ARGUMENT, arguments[i] == null ? "" : arguments[i]);
-      }
-      String[] outputField;
-      for (int i = 0; i < outputFields.length; i++) {
-        outputField = (String[])outputFields[i];
-        rep.saveStepAttribute(id_transformation, id_step, i, FIELD_NAME, outputField[0]);
-        rep.saveStepAttribute(id_transformation, id_step, i, FIELD_RENAME, outputField[1]);
-      }
-    }
-    catch(Exception e){
-      throw new KettleException("Unable to save step into repository: "+id_step, e);
-    }
+  private boolean batchMode;
+  /**
+   * @return whether calls for different tables of the same schema are coalesced into one call
+   */
+  public boolean getBatchMode() {
+    return batchMode;
+  }
+  /**
+   * @param batchMode whether calls for different tables of the same schema should be coalesced into one call
+   */
+  public void setBatchMode(boolean batchMode) {
+    this.batchMode = batchMode;
   }
 
   /**
-   * This method is called by PDI when a step needs to read its configuration from a repository.
-   * The repository implementation provides the necessary methods to read the step attributes.
-   *
-   * @param rep   the repository to read from
-   * @param id_step the id of the step being read
-   * @param databases the databases available in the transformation
-   * @param counters  the counters available in the transformation
+   * Stores the number of input rows that are buffered in batch mode
    */
-  public void readRep(Repository rep, ObjectId id_step, List<DatabaseMeta> databases, Map<String, Counter> counters) throws KettleException {
-    try{
-      setConnectionSource(rep.getStepAttributeString(id_step, CONNECTION_SOURCE));
-      setConnectionName(rep.getStepAttributeString(id_step, CONNECTION_NAME));
-      setConnectionField(rep.getStepAttributeString(id_step, CONNECTION_FIELD));
-      setJdbcDriverField(rep.getStepAttributeString(id_step, JDBC_DRIVER_FIELD));
-      setJdbcUrlField(rep.getStepAttributeString(id_step, JDBC_URL_FIELD));
-      setJdbcUserField(rep.getStepAttributeString(id_step, JDBC_USER_FIELD));
-      setJdbcPasswordField(rep.getStepAttributeString(id_step, JDBC_PASSWORD_FIELD));
-      setAlwaysPassInputRow((rep.getStepAttributeBoolean(id_step, ALWAYS_PASS_INPUT_ROW)));
-      setMethodName(rep.getStepAttributeString(id_step, METHOD_NAME));
+  private String batchWindowSize;
+  /**
+   * @return the number of input rows that are buffered in batch mode
+   */
+  public String getBatchWindowSize() {
+    return batchWindowSize;
+  }
+  /**
+   * @param batchWindowSize the number of input rows that are buffered in batch mode
+   */
+  public void setBatchWindowSize(String batchWindowSize) {
+    this.batchWindowSize = batchWindowSize;
+  }
+
+  /**
+   * Stores the maximum number of rows a coalesced call may return before we fall back to one call per row
+   */
+  private String batchMaxRows;
+  /**
+   * @return the maximum number of rows a coalesced call may return
+   */
+  public String getBatchMaxRows() {
+    return batchMaxRows;
+  }
+  /**
+   * @param batchMaxRows the maximum number of rows a coalesced call may return
+   */
+  public void setBatchMaxRows(String batchMaxRows) {
+    this.batchMaxRows = batchMaxRows;
+  }
+
+  /**
+   * Stores whether calls for different connections are executed concurrently
+   */
+  private boolean parallelMode;
+  /**
+   * @return whether calls for different connections are executed concurrently
+   */
+  public boolean getParallelMode() {
+    return parallelMode;
+  }
+  /**
+   * @param parallelMode whether calls for different connections should be executed concurrently
+   */
+  public void setParallelMode(boolean parallelMode) {
+    this.parallelMode = parallelMode;
+  }
+
+  /**
+   * Stores the maximum number of concurrent calls in parallel mode
+   */
+  private String parallelism;
+  /**
+   * @return the maximum number of concurrent calls in parallel mode
+   */
+  public String getParallelism() {
+    return parallelism;
+  }
+  /**
+   * @param parallelism the maximum number of concurrent calls in parallel mode
+   */
+  public void setParallelism(String parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Stores the maximum number of concurrent calls per database host in parallel mode. 0 means no limit.
+   */
+  private String parallelMaxPerHost;
+  /**
+   * @return the maximum number of concurrent calls per database host
+   */
+  public String getParallelMaxPerHost() {
+    return parallelMaxPerHost;
+  }
+  /**
+   * @param parallelMaxPerHost the maximum number of concurrent calls per database host
+   */
+  public void setParallelMaxPerHost(String parallelMaxPerHost) {
+    this.parallelMaxPerHost = parallelMaxPerHost;
+  }
+
+  /**
+   * Stores whether output rows keep the order of the input rows in parallel mode
+   */
+  private boolean parallelPreserveOrder;
+  /**
+   * @return whether output rows keep the order of the input rows in parallel mode
+   */
+  public boolean getParallelPreserveOrder() {
+    return parallelPreserveOrder;
+  }
+  /**
+   * @param parallelPreserveOrder whether output rows should keep the order of the input rows
+   */
+  public void setParallelPreserveOrder(boolean parallelPreserveOrder) {
+    this.parallelPreserveOrder = parallelPreserveOrder;
+  }
+
+  /**
+   * Stores the kind of threads used in parallel mode. One of MetaDataFetcher.executorOptions
+   */
+  private String parallelExecutor;
+  /**
+   * @return the kind of threads used in parallel mode
+   */
+  public String getParallelExecutor() {
+    return parallelExecutor;
+  }
+  /**
+   * @param parallelExecutor the kind of threads used in parallel mode
+   */
+  public void setParallelExecutor(String parallelExecutor) {
+    this.parallelExecutor = parallelExecutor;
+  }
+
+  /**
+   * Stores whether metadata calls are made ahead of the input rows on a separate thread
+   */
+  private boolean prefetchMode;
+  /**
+   * @return whether metadata calls are made ahead of the input rows on a separate thread
+   */
+  public boolean getPrefetchMode() {
+    return prefetchMode;
+  }
+  /**
+   * @param prefetchMode whether metadata calls should be made ahead of the input rows on a separate thread
+   */
+  public void setPrefetchMode(boolean prefetchMode) {
+    this.prefetchMode = prefetchMode;
+  }
+
+  /**
+   * Stores the number of input rows for which calls are made ahead in prefetch mode
+   */
+  private String prefetchRows;
+  /**
+   * @return the number of input rows for which calls are made ahead in prefetch mode
+   */
+  public String getPrefetchRows() {
+    return prefetchRows;
+  }
+  /**
+   * @param prefetchRows the number of input rows for which calls are made ahead in prefetch mode
+   */
+  public void setPrefetchRows(String prefetchRows) {
+    this.prefetchRows = prefetchRows;
+  }
+
+  /**
+   * Stores the maximum size (in MB) of the rows buffered in prefetch mode
+   */
+  private String prefetchBufferSize;
+  /**
+   * @return the maximum size (in MB) of the rows buffered in prefetch mode
+   */
+  public String getPrefetchBufferSize() {
+    return prefetchBufferSize;
+  }
+  /**
+   * @param prefetchBufferSize the maximum size (in MB) of the rows buffered in prefetch mode
+   */
+  public void setPrefetchBufferSize(String prefetchBufferSize) {
+    this.prefetchBufferSize = prefetchBufferSize;
+  }
+
+  /**
+   * Stores the maximum number of open jdbc connections when the connection is defined by fields
+   */
+  private String connectionPoolMaxOpen;
+  /**
+   * @return the maximum number of open jdbc connections when the connection is defined by fields
+   */
+  public String getConnectionPoolMaxOpen() {
+    return connectionPoolMaxOpen;
+  }
+  /**
+   * @param connectionPoolMaxOpen the maximum number of open jdbc connections when the connection is defined by fields
+   */
+  public void setConnectionPoolMaxOpen(String connectionPoolMaxOpen) {
+    this.connectionPoolMaxOpen = connectionPoolMaxOpen;
+  }
+
+  /**
+   * Stores the number of seconds after which an idle jdbc connection is closed
+   */
+  private String connectionPoolIdleTimeout;
+  /**
+   * @return the number of seconds after which an idle jdbc connection is closed
+   */
+  public String getConnectionPoolIdleTimeout() {
+    return connectionPoolIdleTimeout;
+  }
+  /**
+   * @param connectionPoolIdleTimeout the number of seconds after which an idle jdbc connection is closed
+   */
+  public void setConnectionPoolIdleTimeout(String connectionPoolIdleTimeout) {
+    this.connectionPoolIdleTimeout = connectionPoolIdleTimeout;
+  }
+
+  /**
+   * Stores whether cached jdbc connections are validated before they are reused
+   */
+  private boolean connectionPoolValidate;
+  /**
+   * @return whether cached jdbc connections are validated before they are reused
+   */
+  public boolean getConnectionPoolValidate() {
+    return connectionPoolValidate;
+  }
+  /**
+   * @param connectionPoolValidate whether cached jdbc connections are validated before they are reused
+   */
+  public void setConnectionPoolValidate(boolean connectionPoolValidate) {
+    this.connectionPoolValidate = connectionPoolValidate;
+  }
+
+  /**
+   * Stores whether metadata results and jdbc connections are shared with all steps in the JVM
+   */
+  private boolean sharedCache;
+  /**
+   * @return whether metadata results and jdbc connections are shared with all steps in the JVM
+   */
+  public boolean getSharedCache() {
+    return sharedCache;
+  }
+  /**
+   * @param sharedCache whether metadata results and jdbc connections are shared with all steps in the JVM
+   */
+  public void setSharedCache(boolean sharedCache) {
+    this.sharedCache = sharedCache;
+  }
+
+  /**
+   * Stores the epoch of the shared results. Steps only find shared results of their own epoch
+   */
+  private String sharedCacheEpoch;
+  /**
+   * @return the epoch of the shared results. Steps only find shared results of their own epoch
+   */
+  public String getSharedCacheEpoch() {
+    return sharedCacheEpoch;
+  }
+  /**
+   * @param sharedCacheEpoch the epoch of the shared results. Steps only find shared results of their own epoch
+   */
+  public void setSharedCacheEpoch(String sharedCacheEpoch) {
+    this.sharedCacheEpoch = sharedCacheEpoch;
+  }
+
+  /**
+   * Stores the size in KB from which shared results are stored off the java heap
+   */
+  private String sharedCacheOffHeapThreshold;
+  /**
+   * @return the size in KB from which shared results are stored off the java heap
+   */
+  public String getSharedCacheOffHeapThreshold() {
+    return sharedCacheOffHeapThreshold;
+  }
+  /**
+   * @param sharedCacheOffHeapThreshold the size in KB from which shared results are stored off the java heap
+   */
+  public void setSharedCacheOffHeapThreshold(String sharedCacheOffHeapThreshold) {
+    this.sharedCacheOffHeapThreshold = sharedCacheOffHeapThreshold;
+  }
+
+  /**
+   * Stores the name of the metadata snapshot file, read when the connection source is a snapshot, and written when capturing a snapshot
+   */
+  private String snapshotFile;
+  /**
+   * @return the name of the metadata snapshot file, read when the connection source is a snapshot, and written when capturing a snapshot
+   */
+  public String getSnapshotFile() {
+    return snapshotFile;
+  }
+  /**
+   * @param snapshotFile the name of the metadata snapshot file, read when the connection source is a snapshot, and written when capturing a snapshot
+   */
+  public void setSnapshotFile(String snapshotFile) {
+    this.snapshotFile = snapshotFile;
+  }
+
+  /**
+   * Stores whether the results of the metadata calls are captured in a snapshot file
+   */
+  private boolean snapshotCapture;
+  /**
+   * @return whether the results of the metadata calls are captured in a snapshot file
+   */
+  public boolean getSnapshotCapture() {
+    return snapshotCapture;
+  }
+  /**
+   * @param snapshotCapture whether the results of the metadata calls are captured in a snapshot file
+   */
+  public void setSnapshotCapture(boolean snapshotCapture) {
+    this.snapshotCapture = snapshotCapture;
+  }
+
+  /**
+   * Stores whether only the metadata rows that differ from a baseline are output
+   */
+  private boolean diffMode;
+  /**
+   * @return whether only the metadata rows that differ from a baseline are output
+   */
+  public boolean getDiffMode() {
+    return diffMode;
+  }
+  /**
+   * @param diffMode whether only the metadata rows that differ from a baseline are output
+   */
+  public void setDiffMode(boolean diffMode) {
+    this.diffMode = diffMode;
+  }
+
+  /**
+   * Stores where the baseline comes from: a snapshot file, or a step
+   */
+  private String diffBaselineSource;
+  /**
+   * @return where the baseline comes from: a snapshot file, or a step
+   */
+  public String getDiffBaselineSource() {
+    return diffBaselineSource;
+  }
+  /**
+   * @param diffBaselineSource where the baseline comes from: a snapshot file, or a step
+   */
+  public void setDiffBaselineSource(String diffBaselineSource) {
+    if (diffBaselineSource == null) diffBaselineSource = diffBaselineSourceOptions[0];
+    this.diffBaselineSource = diffBaselineSource;
+  }
+
+  /**
+   * Stores the name of the snapshot file that holds the baseline
+   */
+  private String diffBaselineFile;
+  /**
+   * @return the name of the snapshot file that holds the baseline
+   */
+  public String getDiffBaselineFile() {
+    return diffBaselineFile;
+  }
+  /**
+   * @param diffBaselineFile the name of the snapshot file that holds the baseline
+   */
+  public void setDiffBaselineFile(String diffBaselineFile) {
+    this.diffBaselineFile = diffBaselineFile;
+  }
+
+  /**
+   * Stores the name of the step that delivers the baseline rows
+   */
+  private String diffBaselineStep;
+  /**
+   * @return the name of the step that delivers the baseline rows
+   */
+  public String getDiffBaselineStep() {
+    return diffBaselineStep;
+  }
+  /**
+   * @param diffBaselineStep the name of the step that delivers the baseline rows
+   */
+  public void setDiffBaselineStep(String diffBaselineStep) {
+    this.diffBaselineStep = diffBaselineStep;
+  }
+
+  /**
+   * Stores the name of the field that holds the type of change (ADDED, MODIFIED or REMOVED)
+   */
+  private String diffChangeTypeField;
+  /**
+   * @return the name of the field that holds the type of change (ADDED, MODIFIED or REMOVED)
+   */
+  public String getDiffChangeTypeField() {
+    return diffChangeTypeField;
+  }
+  /**
+   * @param diffChangeTypeField the name of the field that holds the type of change (ADDED, MODIFIED or REMOVED)
+   */
+  public void setDiffChangeTypeField(String diffChangeTypeField) {
+    this.diffChangeTypeField = diffChangeTypeField;
+  }
+
+  /**
+   * Stores the maximum number of baseline rows kept in memory before spilling to disk
+   */
+  private String diffMaxMemoryRows;
+  /**
+   * @return the maximum number of baseline rows kept in memory before spilling to disk
+   */
+  public String getDiffMaxMemoryRows() {
+    return diffMaxMemoryRows;
+  }
+  /**
+   * @param diffMaxMemoryRows the maximum number of baseline rows kept in memory before spilling to disk
+   */
+  public void setDiffMaxMemoryRows(String diffMaxMemoryRows) {
+    this.diffMaxMemoryRows = diffMaxMemoryRows;
+  }
+
+  /**
+   * Stores whether metadata calls are only made for tables that changed since the last run
+   */
+  private boolean incrementalMode;
+  /**
+   * @return whether metadata calls are only made for tables that changed since the last run
+   */
+  public boolean getIncrementalMode() {
+    return incrementalMode;
+  }
+  /**
+   * @param incrementalMode whether metadata calls are only made for tables that changed since the last run
+   */
+  public void setIncrementalMode(boolean incrementalMode) {
+    this.incrementalMode = incrementalMode;
+  }
+
+  /**
+   * Stores the name of the file that keeps the results and watermarks of earlier runs
+   */
+  private String incrementalStateFile;
+  /**
+   * @return the name of the file that keeps the results and watermarks of earlier runs
+   */
+  public String getIncrementalStateFile() {
+    return incrementalStateFile;
+  }
+  /**
+   * @param incrementalStateFile the name of the file that keeps the results and watermarks of earlier runs
+   */
+  public void setIncrementalStateFile(String incrementalStateFile) {
+    this.incrementalStateFile = incrementalStateFile;
+  }
+
+  /**
+   * Stores whether each output row gets a structural fingerprint
+   */
+  private boolean fingerprintMode;
+  /**
+   * @return whether each output row gets a structural fingerprint
+   */
+  public boolean getFingerprintMode() {
+    return fingerprintMode;
+  }
+  /**
+   * @param fingerprintMode whether each output row gets a structural fingerprint
+   */
+  public void setFingerprintMode(boolean fingerprintMode) {
+    this.fingerprintMode = fingerprintMode;
+  }
+
+  /**
+   * Stores whether fingerprints are rolled up into rows for each table, schema and catalog
+   */
+  private boolean fingerprintRollup;
+  /**
+   * @return whether fingerprints are rolled up into rows for each table, schema and catalog
+   */
+  public boolean getFingerprintRollup() {
+    return fingerprintRollup;
+  }
+  /**
+   * @param fingerprintRollup whether fingerprints are rolled up into rows for each table, schema and catalog
+   */
+  public void setFingerprintRollup(boolean fingerprintRollup) {
+    this.fingerprintRollup = fingerprintRollup;
+  }
+
+  /**
+   * Stores the name of the field that holds the fingerprint
+   */
+  private String fingerprintField;
+  /**
+   * @return the name of the field that holds the fingerprint
+   */
+  public String getFingerprintField() {
+    return fingerprintField;
+  }
+  /**
+   * @param fingerprintField the name of the field that holds the fingerprint
+   */
+  public void setFingerprintField(String fingerprintField) {
+    this.fingerprintField = fingerprintField;
+  }
+
+  /**
+   * Stores the name of the field that tells what the fingerprint is about (ROW, TABLE, SCHEMA or CATALOG)
+   */
+  private String fingerprintLevelField;
+  /**
+   * @return the name of the field that tells what the fingerprint is about (ROW, TABLE, SCHEMA or CATALOG)
+   */
+  public String getFingerprintLevelField() {
+    return fingerprintLevelField;
+  }
+  /**
+   * @param fingerprintLevelField the name of the field that tells what the fingerprint is about (ROW, TABLE, SCHEMA or CATALOG)
+   */
+  public void setFingerprintLevelField(String fingerprintLevelField) {
+    this.fingerprintLevelField = fingerprintLevelField;
+  }
+
+  /**
+   * Stores whether metadata is read with queries against the native catalog, for the databases we know
+   */
+  private boolean nativeQueries;
+  /**
+   * @return whether metadata is read with queries against the native catalog, for the databases we know
+   */
+  public boolean getNativeQueries() {
+    return nativeQueries;
+  }
+  /**
+   * @param nativeQueries whether metadata is read with queries against the native catalog, for the databases we know
+   */
+  public void setNativeQueries(boolean nativeQueries) {
+    this.nativeQueries = nativeQueries;
+  }
+
+  /**
+   * Stores whether the whole catalog is read once, and the arguments of each row are evaluated against it
+   */
+  private boolean catalogIndex;
+  /**
+   * @return whether the whole catalog is read once, and the arguments of each row are evaluated against it
+   */
+  public boolean getCatalogIndex() {
+    return catalogIndex;
+  }
+  /**
+   * @param catalogIndex whether the whole catalog is read once, and the arguments of each row are evaluated against it
+   */
+  public void setCatalogIndex(boolean catalogIndex) {
+    this.catalogIndex = catalogIndex;
+  }
+
+  /**
+   * Stores whether getIndexInfo only returns the table statistics rows
+   */
+  private boolean indexStatisticsOnly;
+  /**
+   * @return whether getIndexInfo only returns the table statistics rows
+   */
+  public boolean getIndexStatisticsOnly() {
+    return indexStatisticsOnly;
+  }
+  /**
+   * @param indexStatisticsOnly whether getIndexInfo only returns the table statistics rows
+   */
+  public void setIndexStatisticsOnly(boolean indexStatisticsOnly) {
+    this.indexStatisticsOnly = indexStatisticsOnly;
+  }
+
+  /**
+   * Stores whether each column type is mapped to the Kettle type a step reading the column would get
+   */
+  private boolean kettleTypes;
+  /**
+   * @return whether each column type is mapped to the Kettle type a step reading the column would get
+   */
+  public boolean getKettleTypes() {
+    return kettleTypes;
+  }
+  /**
+   * @param kettleTypes whether each column type is mapped to the Kettle type a step reading the column would get
+   */
+  public void setKettleTypes(boolean kettleTypes) {
+    this.kettleTypes = kettleTypes;
+  }
+
+  /**
+   * Stores whether the rows are grouped into one row per table, with its column lists
+   */
+  private boolean groupedMode;
+  /**
+   * @return whether the rows are grouped into one row per table, with its column lists
+   */
+  public boolean getGroupedMode() {
+    return groupedMode;
+  }
+  /**
+   * @param groupedMode whether the rows are grouped into one row per table, with its column lists
+   */
+  public void setGroupedMode(boolean groupedMode) {
+    this.groupedMode = groupedMode;
+  }
+
+  /**
+   * Stores the file the documents are written to, one on each line. Empty for no file
+   */
+  private String documentFile;
+  /**
+   * @return the file the documents are written to, one on each line. Empty for no file
+   */
+  public String getDocumentFile() {
+    return documentFile;
+  }
+  /**
+   * @param documentFile the file the documents are written to, one on each line. Empty for no file
+   */
+  public void setDocumentFile(String documentFile) {
+    this.documentFile = documentFile;
+  }
+
+  /**
+   * Stores whether DDL statements are generated from the columns, instead of outputting the metadata rows
+   */
+  private boolean ddlMode;
+  /**
+   * @return whether DDL statements are generated from the columns, instead of outputting the metadata rows
+   */
+  public boolean getDdlMode() {
+    return ddlMode;
+  }
+  /**
+   * @param ddlMode whether DDL statements are generated from the columns, instead of outputting the metadata rows
+   */
+  public void setDdlMode(boolean ddlMode) {
+    this.ddlMode = ddlMode;
+  }
+
+  /**
+   * Stores whether a history table is also generated for each table, to keep the versions of its rows
+   */
+  private boolean ddlHistory;
+  /**
+   * @return whether a history table is also generated for each table, to keep the versions of its rows
+   */
+  public boolean getDdlHistory() {
+    return ddlHistory;
+  }
+  /**
+   * @param ddlHistory whether a history table is also generated for each table, to keep the versions of its rows
+   */
+  public void setDdlHistory(boolean ddlHistory) {
+    this.ddlHistory = ddlHistory;
+  }
+
+  /**
+   * Stores the name of the connection whose dialect the DDL is in. Empty for the connection that is read
+   */
+  private String ddlConnection;
+  /**
+   * @return the name of the connection whose dialect the DDL is in. Empty for the connection that is read
+   */
+  public String getDdlConnection() {
+    return ddlConnection;
+  }
+  /**
+   * @param ddlConnection the name of the connection whose dialect the DDL is in. Empty for the connection that is read
+   */
+  public void setDdlConnection(String ddlConnection) {
+    this.ddlConnection = ddlConnection;
+  }
+  /**
+   * Grouped mode does not combine with diff and fingerprint mode, as these are about the individual rows.
+   * @return whether the rows are actually grouped: grouped mode is on, the method can be grouped, and diff and fingerprint mode are off.
+   */
+  public boolean isGrouped() {
+    return groupedMode && !diffMode && !fingerprintMode &&
+      MetaDataGrouper.getRequiredColumns(getMethodName(), getMethodResultSetDescriptor()) != null
+    ;
+  }
+  /**
+   * Like grouped mode, DDL mode does not combine with diff and fingerprint mode. Grouped mode goes first.
+   * @return whether DDL is actually generated: DDL mode is on, the method has columns to generate from, and the other modes are off.
+   */
+  public boolean isDdl() {
+    return ddlMode && !diffMode && !fingerprintMode && !isGrouped() &&
+      MetaDataDdlGenerator.isGeneratorMethod(getMethodName())
+    ;
+  }
+
+  /**
+   * This method is used when a step is duplicated in Spoon. It needs to return a deep copy of this
+   * step meta object. Be sure to create proper deep copies if the step configuration is stored in
+   * modifiable objects.
+   *
+   * See org.pentaho.di.trans.steps.rowgenerator.RowGeneratorMeta.clone() for an example on creating
+   * a deep copy.
+   *
+   * @return a deep copy of this
+   */
+  public Object clone() {
+    JdbcMetaDataMeta retval = (JdbcMetaDataMeta)super.clone();
+    if (arguments != null) retval.arguments = arguments.clone();
+    retval.outputFields = cloneRows(outputFields);
+    retval.targetMethods = cloneRows(targetMethods);
+    //the copy builds its own streams, so changing its target steps does not change ours.
+    retval.ioMeta = null;
+    return retval;
+  }
+
+  //copy an array of String[] rows, such as the output fields and the target methods.
+  private static Object[] cloneRows(Object[] rows) {
+    if (rows == null) return null;
+    Object[] copy = new Object[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      copy[i] = rows[i] == null ? null : ((Object[])rows[i]).clone();
+    }
+    return copy;
+  }
+
+  /**
+   * This method is called by Spoon when a step needs to serialize its configuration to XML. The expected
+   * return value is an XML fragment consisting of one or more XML tags.
+   *
+   * Please use org.pentaho.di.core.xml.XMLHandler to conveniently generate the XML.
+   *
+   * @return a string containing the XML serialization of this step
+   */
+  public String getXML() throws KettleValueException {
+    // only one field to serialize
+    StringBuilder xml = new StringBuilder();
+    String indent = "    ";
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CONNECTION_SOURCE, connectionSource));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CONNECTION_NAME, connectionName));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CONNECTION_FIELD, connectionField));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(JDBC_DRIVER_FIELD, jdbcDriverField));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(JDBC_URL_FIELD, jdbcUrlField));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(JDBC_USER_FIELD, jdbcUserField));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(JDBC_PASSWORD_FIELD, jdbcPasswordField));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(ALWAYS_PASS_INPUT_ROW, alwaysPassInputRow));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(METHOD_NAME, methodName));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(REMOVE_ARGUMENT_FIELDS, removeArgumentFields));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(ARGUMENT_SOURCE_FIELDS, argumentSourceFields));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CACHE_RESULTS, cacheResults));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CACHE_MAX_ENTRIES, cacheMaxEntries));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CACHE_MAX_SIZE, cacheMaxSize));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CACHE_TIME_TO_LIVE, cacheTimeToLive));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CACHE_EMPTY_RESULTS, cacheEmptyResults));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(BATCH_MODE, batchMode));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(BATCH_WINDOW_SIZE, batchWindowSize));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(BATCH_MAX_ROWS, batchMaxRows));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(PARALLEL_MODE, parallelMode));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(PARALLELISM, parallelism));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(PARALLEL_MAX_PER_HOST, parallelMaxPerHost));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(PARALLEL_PRESERVE_ORDER, parallelPreserveOrder));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(PARALLEL_EXECUTOR, parallelExecutor));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(PREFETCH_MODE, prefetchMode));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(PREFETCH_ROWS, prefetchRows));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(PREFETCH_BUFFER_SIZE, prefetchBufferSize));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CONNECTION_POOL_MAX_OPEN, connectionPoolMaxOpen));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CONNECTION_POOL_IDLE_TIMEOUT, connectionPoolIdleTimeout));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CONNECTION_POOL_VALIDATE, connectionPoolValidate));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(SHARED_CACHE, sharedCache));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(SHARED_CACHE_EPOCH, sharedCacheEpoch));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(SHARED_CACHE_OFF_HEAP_THRESHOLD, sharedCacheOffHeapThreshold));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(SNAPSHOT_FILE, snapshotFile));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(SNAPSHOT_CAPTURE, snapshotCapture));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(DIFF_MODE, diffMode));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(DIFF_BASELINE_SOURCE, diffBaselineSource));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(DIFF_BASELINE_FILE, diffBaselineFile));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(DIFF_BASELINE_STEP, diffBaselineStep));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(DIFF_CHANGE_TYPE_FIELD, diffChangeTypeField));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(DIFF_MAX_MEMORY_ROWS, diffMaxMemoryRows));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(INCREMENTAL_MODE, incrementalMode));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(INCREMENTAL_STATE_FILE, incrementalStateFile));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(FINGERPRINT_MODE, fingerprintMode));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(FINGERPRINT_ROLLUP, fingerprintRollup));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(FINGERPRINT_FIELD, fingerprintField));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(FINGERPRINT_LEVEL_FIELD, fingerprintLevelField));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(NATIVE_QUERIES, nativeQueries));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(CATALOG_INDEX, catalogIndex));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(INDEX_STATISTICS_ONLY, indexStatisticsOnly));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(KETTLE_TYPES, kettleTypes));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(GROUPED_MODE, groupedMode));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(DOCUMENT_FILE, documentFile));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(DDL_MODE, ddlMode));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(DDL_HISTORY, ddlHistory));
+    xml.append(indent);
+    xml.append(XMLHandler.addTagValue(DDL_CONNECTION, ddlConnection));
+
+    xml.append(indent);
+    xml.append("<" + ARGUMENTS + ">\n");
+    for (int i = 0; i < arguments.length; i++) {
+      xml.append(indent).append(indent);
+      xml.append(XMLHandler.addTagValue(ARGUMENT, arguments[i]));
+    }
+    xml.append(indent);
+    xml.append("</" + ARGUMENTS + ">\n");
+
+    xml.append(indent);
+    xml.append("<" + OUTPUT_FIELDS + ">\n");
+    if (outputFields != null) {
+      Object[] outputField;
+      for (int i = 0; i < outputFields.length; i++) {
+        outputField = (Object[])outputFields[i];
+        xml.append(indent).append(indent);
+        xml.append("<" + OUTPUT_FIELD + ">\n");
+        xml.append(indent).append(indent).append(indent);
+        xml.append(XMLHandler.addTagValue(FIELD_NAME, (String)outputField[0]));
+        xml.append(indent).append(indent).append(indent);
+        xml.append(XMLHandler.addTagValue(FIELD_RENAME, (String)outputField[1]));
+        xml.append(indent).append(indent);
+        xml.append("</" + OUTPUT_FIELD + ">\n");
+      }
+    }
+    xml.append(indent);
+    xml.append("</" + OUTPUT_FIELDS + ">\n");
+
+    xml.append(indent);
+    xml.append("<" + TARGET_METHODS + ">\n");
+    if (targetMethods != null) {
+      String[] targetMethod;
+      for (int i = 0; i < targetMethods.length; i++) {
+        targetMethod = (String[])targetMethods[i];
+        xml.append(indent).append(indent);
+        xml.append("<" + TARGET_METHOD + ">\n");
+        xml.append(indent).append(indent).append(indent);
+        xml.append(XMLHandler.addTagValue(TARGET_METHOD_NAME, targetMethod[0]));
+        xml.append(indent).append(indent).append(indent);
+        xml.append(XMLHandler.addTagValue(TARGET_STEP, targetMethod[1]));
+        xml.append(indent).append(indent);
+        xml.append("</" + TARGET_METHOD + ">\n");
+      }
+    }
+    xml.append(indent);
+    xml.append("</" + TARGET_METHODS + ">\n");
+
+    return xml.toString();
+  }
+
+  /**
+   * This method is called by PDI when a step needs to load its configuration from XML.
+   *
+   * Please use org.pentaho.di.core.xml.XMLHandler to conveniently read from the
+   * XML node passed in.
+   *
+   * @param stepnode  the XML node containing the configuration
+   * @param databases the databases available in the transformation
+   * @param counters  the counters available in the transformation
+   */
+  public void loadXML(Node stepnode, List<DatabaseMeta> databases, Map<String, Counter> counters) throws KettleXMLException {
+    try {
+      setConnectionSource(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CONNECTION_SOURCE)));
+      setConnectionName(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CONNECTION_NAME)));
+      setConnectionField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CONNECTION_FIELD)));
+      setJdbcDriverField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, JDBC_DRIVER_FIELD)));
+      setJdbcUrlField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, JDBC_URL_FIELD)));
+      setJdbcUserField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, JDBC_USER_FIELD)));
+      setJdbcPasswordField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, JDBC_PASSWORD_FIELD)));
+      setAlwaysPassInputRow("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, ALWAYS_PASS_INPUT_ROW))));
+      setMethodName(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, METHOD_NAME)));
+      setArgumentSourceFields("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, ARGUMENT_SOURCE_FIELDS))));
+      setRemoveArgumentFields("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, REMOVE_ARGUMENT_FIELDS))));
+      setCacheResults("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CACHE_RESULTS))));
+      setCacheMaxEntries(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CACHE_MAX_ENTRIES)));
+      setCacheMaxSize(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CACHE_MAX_SIZE)));
+      setCacheTimeToLive(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CACHE_TIME_TO_LIVE)));
+      setCacheEmptyResults(!"N".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CACHE_EMPTY_RESULTS))));
+      setBatchMode("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, BATCH_MODE))));
+      setBatchWindowSize(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, BATCH_WINDOW_SIZE)));
+      setBatchMaxRows(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, BATCH_MAX_ROWS)));
+      setParallelMode("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, PARALLEL_MODE))));
+      setParallelism(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, PARALLELISM)));
+      setParallelMaxPerHost(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, PARALLEL_MAX_PER_HOST)));
+      setParallelPreserveOrder(!"N".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, PARALLEL_PRESERVE_ORDER))));
+      setParallelExecutor(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, PARALLEL_EXECUTOR)));
+      setPrefetchMode("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, PREFETCH_MODE))));
+      setPrefetchRows(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, PREFETCH_ROWS)));
+      setPrefetchBufferSize(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, PREFETCH_BUFFER_SIZE)));
+      setConnectionPoolMaxOpen(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CONNECTION_POOL_MAX_OPEN)));
+      setConnectionPoolIdleTimeout(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CONNECTION_POOL_IDLE_TIMEOUT)));
+      setConnectionPoolValidate(!"N".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CONNECTION_POOL_VALIDATE))));
+      setSharedCache("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, SHARED_CACHE))));
+      setSharedCacheEpoch(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, SHARED_CACHE_EPOCH)));
+      setSharedCacheOffHeapThreshold(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, SHARED_CACHE_OFF_HEAP_THRESHOLD)));
+      setSnapshotFile(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, SNAPSHOT_FILE)));
+      setSnapshotCapture("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, SNAPSHOT_CAPTURE))));
+      setDiffMode("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, DIFF_MODE))));
+      setDiffBaselineSource(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, DIFF_BASELINE_SOURCE)));
+      setDiffBaselineFile(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, DIFF_BASELINE_FILE)));
+      setDiffBaselineStep(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, DIFF_BASELINE_STEP)));
+      setDiffChangeTypeField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, DIFF_CHANGE_TYPE_FIELD)));
+      setDiffMaxMemoryRows(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, DIFF_MAX_MEMORY_ROWS)));
+      setIncrementalMode("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, INCREMENTAL_MODE))));
+      setIncrementalStateFile(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, INCREMENTAL_STATE_FILE)));
+      setFingerprintMode("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, FINGERPRINT_MODE))));
+      setFingerprintRollup(!"N".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, FINGERPRINT_ROLLUP))));
+      setFingerprintField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, FINGERPRINT_FIELD)));
+      setFingerprintLevelField(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, FINGERPRINT_LEVEL_FIELD)));
+      setNativeQueries("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, NATIVE_QUERIES))));
+      setCatalogIndex("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, CATALOG_INDEX))));
+      setIndexStatisticsOnly("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, INDEX_STATISTICS_ONLY))));
+      setKettleTypes("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, KETTLE_TYPES))));
+      setGroupedMode("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, GROUPED_MODE))));
+      setDocumentFile(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, DOCUMENT_FILE)));
+      setDdlMode("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, DDL_MODE))));
+      setDdlHistory("Y".equals(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, DDL_HISTORY))));
+      setDdlConnection(XMLHandler.getNodeValue(XMLHandler.getSubNode(stepnode, DDL_CONNECTION)));
+
+      Node argumentNodes = XMLHandler.getSubNode( stepnode, ARGUMENTS);
+      int n;
+      n = XMLHandler.countNodes(argumentNodes, ARGUMENT );
+      String[] arguments = new String[n];
+      for (int i = 0; i < n; i++) {
+        Node argumentNode = XMLHandler.getSubNodeByNr(argumentNodes, ARGUMENT, i);
+        arguments[i] = XMLHandler.getNodeValue(argumentNode);
+      }
+      setArguments(padArguments(arguments));
+
+      Node outputFieldNodes = XMLHandler.getSubNode(stepnode, OUTPUT_FIELDS);
+      n = XMLHandler.countNodes(outputFieldNodes, OUTPUT_FIELD);
+      outputFields = new Object[n];
+      String[] outputField;
+      for (int i = 0; i < n; i++) {
+        Node outputFieldNode = XMLHandler.getSubNodeByNr(outputFieldNodes, OUTPUT_FIELD, i);
+        Node outputFieldName = XMLHandler.getSubNode(outputFieldNode, FIELD_NAME);
+        Node outputFieldRename = XMLHandler.getSubNode(outputFieldNode, FIELD_RENAME);
+        outputField = new String[]{
+          XMLHandler.getNodeValue(outputFieldName),
+          XMLHandler.getNodeValue(outputFieldRename)
+        };
+        outputFields[i] = outputField;
+      }
+
+      Node targetMethodNodes = XMLHandler.getSubNode(stepnode, TARGET_METHODS);
+      n = targetMethodNodes == null ? 0 : XMLHandler.countNodes(targetMethodNodes, TARGET_METHOD);
+      Object[] targetMethods = new Object[n];
+      for (int i = 0; i < n; i++) {
+        Node targetMethodNode = XMLHandler.getSubNodeByNr(targetMethodNodes, TARGET_METHOD, i);
+        targetMethods[i] = new String[]{
+          XMLHandler.getNodeValue(XMLHandler.getSubNode(targetMethodNode, TARGET_METHOD_NAME)),
+          XMLHandler.getNodeValue(XMLHandler.getSubNode(targetMethodNode, TARGET_STEP))
+        };
+      }
+      setTargetMethods(targetMethods);
+    } catch (Exception e) {
+      throw new KettleXMLException("Unable to read step info from XML node", e);
+    }
+  }
+
+  /**
+   * This method is called by Spoon when a step needs to serialize its configuration to a repository.
+   * The repository implementation provides the necessary methods to save the step attributes.
+   *
+   * @param rep the repository to save to
+   * @param id_transformation the id to use for the transformation when saving
+   * @param id_step the id to use for the step  when saving
+   */
+  public void saveRep(Repository rep, ObjectId id_transformation, ObjectId id_step) throws KettleException {
+    try{
+      rep.saveStepAttribute(id_transformation, id_step, CONNECTION_SOURCE, connectionSource);
+      rep.saveStepAttribute(id_transformation, id_step, CONNECTION_NAME, connectionName);
+      rep.saveStepAttribute(id_transformation, id_step, CONNECTION_FIELD, connectionField);
+      rep.saveStepAttribute(id_transformation, id_step, JDBC_DRIVER_FIELD, jdbcDriverField);
+      rep.saveStepAttribute(id_transformation, id_step, JDBC_URL_FIELD, jdbcUrlField);
+      rep.saveStepAttribute(id_transformation, id_step, JDBC_USER_FIELD, jdbcUserField);
+      rep.saveStepAttribute(id_transformation, id_step, JDBC_PASSWORD_FIELD, jdbcPasswordField);
+      rep.saveStepAttribute(id_transformation, id_step, ALWAYS_PASS_INPUT_ROW, alwaysPassInputRow);
+      rep.saveStepAttribute(id_transformation, id_step, METHOD_NAME, methodName);
+      rep.saveStepAttribute(id_transformation, id_step, ARGUMENT_SOURCE_FIELDS, argumentSourceFields);
+      rep.saveStepAttribute(id_transformation, id_step, REMOVE_ARGUMENT_FIELDS, removeArgumentFields);
+      rep.saveStepAttribute(id_transformation, id_step, CACHE_RESULTS, cacheResults);
+      rep.saveStepAttribute(id_transformation, id_step, CACHE_MAX_ENTRIES, cacheMaxEntries);
+      rep.saveStepAttribute(id_transformation, id_step, CACHE_MAX_SIZE, cacheMaxSize);
+      rep.saveStepAttribute(id_transformation, id_step, CACHE_TIME_TO_LIVE, cacheTimeToLive);
+      rep.saveStepAttribute(id_transformation, id_step, CACHE_EMPTY_RESULTS, cacheEmptyResults);
+      rep.saveStepAttribute(id_transformation, id_step, BATCH_MODE, batchMode);
+      rep.saveStepAttribute(id_transformation, id_step, BATCH_WINDOW_SIZE, batchWindowSize);
+      rep.saveStepAttribute(id_transformation, id_step, BATCH_MAX_ROWS, batchMaxRows);
+      rep.saveStepAttribute(id_transformation, id_step, PARALLEL_MODE, parallelMode);
+      rep.saveStepAttribute(id_transformation, id_step, PARALLELISM, parallelism);
+      rep.saveStepAttribute(id_transformation, id_step, PARALLEL_MAX_PER_HOST, parallelMaxPerHost);
+      rep.saveStepAttribute(id_transformation, id_step, PARALLEL_PRESERVE_ORDER, parallelPreserveOrder);
+      rep.saveStepAttribute(id_transformation, id_step, PARALLEL_EXECUTOR, parallelExecutor);
+      rep.saveStepAttribute(id_transformation, id_step, PREFETCH_MODE, prefetchMode);
+      rep.saveStepAttribute(id_transformation, id_step, PREFETCH_ROWS, prefetchRows);
+      rep.saveStepAttribute(id_transformation, id_step, PREFETCH_BUFFER_SIZE, prefetchBufferSize);
+      rep.saveStepAttribute(id_transformation, id_step, CONNECTION_POOL_MAX_OPEN, connectionPoolMaxOpen);
+      rep.saveStepAttribute(id_transformation, id_step, CONNECTION_POOL_IDLE_TIMEOUT, connectionPoolIdleTimeout);
+      rep.saveStepAttribute(id_transformation, id_step, CONNECTION_POOL_VALIDATE, connectionPoolValidate);
+      rep.saveStepAttribute(id_transformation, id_step, SHARED_CACHE, sharedCache);
+      rep.saveStepAttribute(id_transformation, id_step, SHARED_CACHE_EPOCH, sharedCacheEpoch);
+      rep.saveStepAttribute(id_transformation, id_step, SHARED_CACHE_OFF_HEAP_THRESHOLD, sharedCacheOffHeapThreshold);
+      rep.saveStepAttribute(id_transformation, id_step, SNAPSHOT_FILE, snapshotFile);
+      rep.saveStepAttribute(id_transformation, id_step, SNAPSHOT_CAPTURE, snapshotCapture);
+      rep.saveStepAttribute(id_transformation, id_step, DIFF_MODE, diffMode);
+      rep.saveStepAttribute(id_transformation, id_step, DIFF_BASELINE_SOURCE, diffBaselineSource);
+      rep.saveStepAttribute(id_transformation, id_step, DIFF_BASELINE_FILE, diffBaselineFile);
+      rep.saveStepAttribute(id_transformation, id_step, DIFF_BASELINE_STEP, diffBaselineStep);
+      rep.saveStepAttribute(id_transformation, id_step, DIFF_CHANGE_TYPE_FIELD, diffChangeTypeField);
+      rep.saveStepAttribute(id_transformation, id_step, DIFF_MAX_MEMORY_ROWS, diffMaxMemoryRows);
+      rep.saveStepAttribute(id_transformation, id_step, INCREMENTAL_MODE, incrementalMode);
+      rep.saveStepAttribute(id_transformation, id_step, INCREMENTAL_STATE_FILE, incrementalStateFile);
+      rep.saveStepAttribute(id_transformation, id_step, FINGERPRINT_MODE, fingerprintMode);
+      rep.saveStepAttribute(id_transformation, id_step, FINGERPRINT_ROLLUP, fingerprintRollup);
+      rep.saveStepAttribute(id_transformation, id_step, FINGERPRINT_FIELD, fingerprintField);
+      rep.saveStepAttribute(id_transformation, id_step, FINGERPRINT_LEVEL_FIELD, fingerprintLevelField);
+      rep.saveStepAttribute(id_transformation, id_step, NATIVE_QUERIES, nativeQueries);
+      rep.saveStepAttribute(id_transformation, id_step, CATALOG_INDEX, catalogIndex);
+      rep.saveStepAttribute(id_transformation, id_step, INDEX_STATISTICS_ONLY, indexStatisticsOnly);
+      rep.saveStepAttribute(id_transformation, id_step, KETTLE_TYPES, kettleTypes);
+      rep.saveStepAttribute(id_transformation, id_step, GROUPED_MODE, groupedMode);
+      rep.saveStepAttribute(id_transformation, id_step, DOCUMENT_FILE, documentFile);
+      rep.saveStepAttribute(id_transformation, id_step, DDL_MODE, ddlMode);
+      rep.saveStepAttribute(id_transformation, id_step, DDL_HISTORY, ddlHistory);
+      rep.saveStepAttribute(id_transformation, id_step, DDL_CONNECTION, ddlConnection);
+      for (int i = 0; i < arguments.length; i++) {
+        rep.saveStepAttribute(id_transformation, id_step, i, ARGUMENT, arguments[i] == null ? "" : arguments[i]);
+      }
+      String[] outputField;
+      for (int i = 0; i < outputFields.length; i++) {
+        outputField = (String[])outputFields[i];
+        rep.saveStepAttribute(id_transformation, id_step, i, FIELD_NAME, outputField[0]);
+        rep.saveStepAttribute(id_transformation, id_step, i, FIELD_RENAME, outputField[1]);
+      }
+      String[] targetMethod;
+      for (int i = 0; i < targetMethods.length; i++) {
+        targetMethod = (String[])targetMethods[i];
+        rep.saveStepAttribute(id_transformation, id_step, i, TARGET_METHOD_NAME, targetMethod[0]);
+        rep.saveStepAttribute(id_transformation, id_step, i, TARGET_STEP, targetMethod[1]);
+      }
+    }
+    catch(Exception e){
+      throw new KettleException("Unable to save step into repository: "+id_step, e);
+    }
+  }
+
+  /**
+   * This method is called by PDI when a step needs to read its configuration from a repository.
+   * The repository implementation provides the necessary methods to read the step attributes.
+   *
+   * @param rep   the repository to read from
+   * @param id_step the id of the step being read
+   * @param databases the databases available in the transformation
+   * @param counters  the counters available in the transformation
+   */
+  public void readRep(Repository rep, ObjectId id_step, List<DatabaseMeta> databases, Map<String, Counter> counters) throws KettleException {
+    try{
+      setConnectionSource(rep.getStepAttributeString(id_step, CONNECTION_SOURCE));
+      setConnectionName(rep.getStepAttributeString(id_step, CONNECTION_NAME));
+      setConnectionField(rep.getStepAttributeString(id_step, CONNECTION_FIELD));
+      setJdbcDriverField(rep.getStepAttributeString(id_step, JDBC_DRIVER_FIELD));
+      setJdbcUrlField(rep.getStepAttributeString(id_step, JDBC_URL_FIELD));
+      setJdbcUserField(rep.getStepAttributeString(id_step, JDBC_USER_FIELD));
+      setJdbcPasswordField(rep.getStepAttributeString(id_step, JDBC_PASSWORD_FIELD));
+      setAlwaysPassInputRow((rep.getStepAttributeBoolean(id_step, ALWAYS_PASS_INPUT_ROW)));
+      setMethodName(rep.getStepAttributeString(id_step, METHOD_NAME));
       setArgumentSourceFields(rep.getStepAttributeBoolean(id_step, ARGUMENT_SOURCE_FIELDS));
       setRemoveArgumentFields(rep.getStepAttributeBoolean(id_step, REMOVE_ARGUMENT_FIELDS));
+      setCacheResults(rep.getStepAttributeBoolean(id_step, CACHE_RESULTS));
+      setCacheMaxEntries(rep.getStepAttributeString(id_step, CACHE_MAX_ENTRIES));
+      setCacheMaxSize(rep.getStepAttributeString(id_step, CACHE_MAX_SIZE));
+      setCacheTimeToLive(rep.getStepAttributeString(id_step, CACHE_TIME_TO_LIVE));
+      setCacheEmptyResults(rep.getStepAttributeBoolean(id_step, 0, CACHE_EMPTY_RESULTS, true));
+      setBatchMode(rep.getStepAttributeBoolean(id_step, BATCH_MODE));
+      setBatchWindowSize(rep.getStepAttributeString(id_step, BATCH_WINDOW_SIZE));
+      setBatchMaxRows(rep.getStepAttributeString(id_step, BATCH_MAX_ROWS));
+      setParallelMode(rep.getStepAttributeBoolean(id_step, PARALLEL_MODE));
+      setParallelism(rep.getStepAttributeString(id_step, PARALLELISM));
+      setParallelMaxPerHost(rep.getStepAttributeString(id_step, PARALLEL_MAX_PER_HOST));
+      setParallelPreserveOrder(rep.getStepAttributeBoolean(id_step, 0, PARALLEL_PRESERVE_ORDER, true));
+      setParallelExecutor(rep.getStepAttributeString(id_step, PARALLEL_EXECUTOR));
+      setPrefetchMode(rep.getStepAttributeBoolean(id_step, PREFETCH_MODE));
+      setPrefetchRows(rep.getStepAttributeString(id_step, PREFETCH_ROWS));
+      setPrefetchBufferSize(rep.getStepAttributeString(id_step, PREFETCH_BUFFER_SIZE));
+      setConnectionPoolMaxOpen(rep.getStepAttributeString(id_step, CONNECTION_POOL_MAX_OPEN));
+      setConnectionPoolIdleTimeout(rep.getStepAttributeString(id_step, CONNECTION_POOL_IDLE_TIMEOUT));
+      setConnectionPoolValidate(rep.getStepAttributeBoolean(id_step, 0, CONNECTION_POOL_VALIDATE, true));
+      setSharedCache(rep.getStepAttributeBoolean(id_step, SHARED_CACHE));
+      setSharedCacheEpoch(rep.getStepAttributeString(id_step, SHARED_CACHE_EPOCH));
+      setSharedCacheOffHeapThreshold(rep.getStepAttributeString(id_step, SHARED_CACHE_OFF_HEAP_THRESHOLD));
+      setSnapshotFile(rep.getStepAttributeString(id_step, SNAPSHOT_FILE));
+      setSnapshotCapture(rep.getStepAttributeBoolean(id_step, SNAPSHOT_CAPTURE));
+      setDiffMode(rep.getStepAttributeBoolean(id_step, DIFF_MODE));
+      setDiffBaselineSource(rep.getStepAttributeString(id_step, DIFF_BASELINE_SOURCE));
+      setDiffBaselineFile(rep.getStepAttributeString(id_step, DIFF_BASELINE_FILE));
+      setDiffBaselineStep(rep.getStepAttributeString(id_step, DIFF_BASELINE_STEP));
+      setDiffChangeTypeField(rep.getStepAttributeString(id_step, DIFF_CHANGE_TYPE_FIELD));
+      setDiffMaxMemoryRows(rep.getStepAttributeString(id_step, DIFF_MAX_MEMORY_ROWS));
+      setIncrementalMode(rep.getStepAttributeBoolean(id_step, INCREMENTAL_MODE));
+      setIncrementalStateFile(rep.getStepAttributeString(id_step, INCREMENTAL_STATE_FILE));
+      setFingerprintMode(rep.getStepAttributeBoolean(id_step, FINGERPRINT_MODE));
+      setFingerprintRollup(rep.getStepAttributeBoolean(id_step, 0, FINGERPRINT_ROLLUP, true));
+      setFingerprintField(rep.getStepAttributeString(id_step, FINGERPRINT_FIELD));
+      setFingerprintLevelField(rep.getStepAttributeString(id_step, FINGERPRINT_LEVEL_FIELD));
+      setNativeQueries(rep.getStepAttributeBoolean(id_step, NATIVE_QUERIES));
+      setCatalogIndex(rep.getStepAttributeBoolean(id_step, CATALOG_INDEX));
+      setIndexStatisticsOnly(rep.getStepAttributeBoolean(id_step, INDEX_STATISTICS_ONLY));
+      setKettleTypes(rep.getStepAttributeBoolean(id_step, KETTLE_TYPES));
+      setGroupedMode(rep.getStepAttributeBoolean(id_step, GROUPED_MODE));
+      setDocumentFile(rep.getStepAttributeString(id_step, DOCUMENT_FILE));
+      setDdlMode(rep.getStepAttributeBoolean(id_step, DDL_MODE));
+      setDdlHistory(rep.getStepAttributeBoolean(id_step, DDL_HISTORY));
+      setDdlConnection(rep.getStepAttributeString(id_step, DDL_CONNECTION));
 
       int n;
       n = rep.countNrStepAttributes(id_step, ARGUMENT);
@@ -940,6 +2243,7 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
       for (int i = 0; i < n; i++) {
         arguments[i] = rep.getStepAttributeString(id_step, i, ARGUMENT);
       }
+      arguments = padArguments(arguments);
 
       n = rep.countNrStepAttributes(id_step, FIELD_NAME);
       outputFields = new Object[n];
@@ -951,6 +2255,16 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         };
         outputFields[i] = outputField;
       }
+
+      n = rep.countNrStepAttributes(id_step, TARGET_METHOD_NAME);
+      Object[] targetMethods = new Object[n];
+      for (int i = 0; i < n; i++) {
+        targetMethods[i] = new String[]{
+          rep.getStepAttributeString(id_step, i, TARGET_METHOD_NAME),
+          rep.getStepAttributeString(id_step, i, TARGET_STEP)
+        };
+      }
+      setTargetMethods(targetMethods);
     }
     catch(Exception e){
       throw new KettleException("Unable to load step from repository", e);
@@ -984,6 +2298,20 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
       }
     }
 
+    //the target step of an additional method gets all columns of that method.
+    int targetMethodIndex = nextStep == null ? -1 : getTargetMethodIndex(nextStep.getName());
+    if (targetMethodIndex != -1) {
+      Object[] targetMethodDescriptor = getMethodDescriptor(((String[])targetMethods[targetMethodIndex])[0]);
+      if (targetMethodDescriptor == null) return;
+      ValueMetaInterface field;
+      for (ValueMetaInterface column : (ValueMetaInterface[])targetMethodDescriptor[2]) {
+        field = new ValueMeta(column.getName(), column.getType());
+        field.setOrigin(origin);
+        r.addValueMeta(field);
+      }
+      return;
+    }
+
     //add the outputfields added by this step.
     Object[] outputFields = getOutputFields();
     String[] outputField;
@@ -1012,6 +2340,97 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
         break;
       }
     }
+
+    //in grouped mode, each row is about a table, and gets the lists of its columns.
+    if (isGrouped()) {
+      for (int i = 0; i < MetaDataGrouper.FIELD_NAMES.length; i++) {
+        field = new ValueMeta(MetaDataGrouper.FIELD_NAMES[i], MetaDataGrouper.FIELD_TYPES[i]);
+        field.setOrigin(origin);
+        r.addValueMeta(field);
+      }
+    }
+    //in DDL mode, each row is a statement about a table.
+    else
+    if (isDdl()) {
+      for (int i = 0; i < MetaDataDdlGenerator.FIELD_NAMES.length; i++) {
+        field = new ValueMeta(MetaDataDdlGenerator.FIELD_NAMES[i], ValueMetaInterface.TYPE_STRING);
+        field.setOrigin(origin);
+        r.addValueMeta(field);
+      }
+    }
+    //otherwise, each column type can be mapped to the Kettle type a step reading that column would get.
+    else
+    if (kettleTypes && MetaDataKettleTypes.getTypeColumns(getMethodName(), fields) != null) {
+      for (int i = 0; i < MetaDataKettleTypes.FIELD_NAMES.length; i++) {
+        field = new ValueMeta(MetaDataKettleTypes.FIELD_NAMES[i], MetaDataKettleTypes.FIELD_TYPES[i]);
+        field.setOrigin(origin);
+        r.addValueMeta(field);
+      }
+    }
+
+    //in fingerprint mode, each row gets a hash of its structure, and tells what level of the hierarchy it is about.
+    if (fingerprintMode) {
+      field = new ValueMeta(fingerprintField, ValueMetaInterface.TYPE_STRING);
+      field.setOrigin(origin);
+      r.addValueMeta(field);
+      field = new ValueMeta(fingerprintLevelField, ValueMetaInterface.TYPE_STRING);
+      field.setOrigin(origin);
+      r.addValueMeta(field);
+    }
+
+    //in diff mode, each row tells what kind of change it is.
+    if (diffMode) {
+      field = new ValueMeta(diffChangeTypeField, ValueMetaInterface.TYPE_STRING);
+      field.setOrigin(origin);
+      r.addValueMeta(field);
+    }
+  }
+
+  /**
+   * In diff mode, the baseline may come from another step. That step is hooked up as an info stream.
+   * The target steps of the additional methods are hooked up as target streams.
+   */
+  @Override
+  public StepIOMetaInterface getStepIOMeta() {
+    if (ioMeta == null) {
+      ioMeta = new StepIOMeta(true, true, false, false, false, false);
+      ioMeta.addStream(new Stream(
+        StreamType.INFO, null,
+        BaseMessages.getString(PKG, "JdbcMetadata.diffBaselineStep.StreamDescription"),
+        StreamIcon.INFO, null
+      ));
+      if (targetMethods != null) {
+        String[] targetMethod;
+        for (int i = 0; i < targetMethods.length; i++) {
+          targetMethod = (String[])targetMethods[i];
+          ioMeta.addStream(new Stream(
+            StreamType.TARGET, null,
+            BaseMessages.getString(PKG, "JdbcMetadata.targetMethods.StreamDescription", targetMethod[0]),
+            StreamIcon.TARGET, targetMethod[0]
+          ));
+        }
+      }
+    }
+    return ioMeta;
+  }
+
+  /**
+   * Look up the step that delivers the baseline, and the target steps of the additional methods.
+   * @param steps all steps of the transformation
+   */
+  @Override
+  public void searchInfoAndTargetSteps(List<StepMeta> steps) {
+    StreamInterface stream = getStepIOMeta().getInfoStreams().get(0);
+    if (diffMode && diffBaselineSourceOptionStep.equals(diffBaselineSource)) {
+      stream.setStepMeta(StepMeta.findStep(steps, diffBaselineStep));
+    }
+    else {
+      stream.setStepMeta(null);
+    }
+    List<StreamInterface> targetStreams = getStepIOMeta().getTargetStreams();
+    for (int i = 0; i < targetStreams.size(); i++) {
+      targetStreams.get(i).setStepMeta(StepMeta.findStep(steps, ((String[])targetMethods[i])[1]));
+    }
   }
 
   /**
@@ -1051,6 +2470,11 @@ public class JdbcMetaDataMeta extends BaseStepMeta implements StepMetaInterface
       cr = new CheckResult(CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(PKG, "Demo.CheckResult.ReceivingRows.ERROR"), stepMeta);
       remarks.add(cr);
     }
+    //the additional methods are called on the step's own connection, which the fetcher's threads can't share.
+    if (targetMethods != null && targetMethods.length > 0 && (getParallelMode() || getPrefetchMode())) {
+      cr = new CheckResult(CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString(PKG, "JdbcMetaData.CheckResult.TargetMethodsFetcher.WARNING"), stepMeta);
+      remarks.add(cr);
+    }
   }
 
 }
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+/**
+ * A compiled JDBC search pattern, as passed to the pattern arguments of DatabaseMetaData methods.
+ *
+ * '%' matches any sequence of characters, '_' matches any single character,
+ * and the search string escape (as reported by DatabaseMetaData.getSearchStringEscape())
+ * makes the next character match literally.
+ */
+public class JdbcPattern {
+
+  private static final char ANY_SEQUENCE = '%';
+  private static final char ANY_CHARACTER = '_';
+
+  //the pattern characters, with escapes removed.
+  private final char[] characters;
+  //for each character, whether it is a wildcard.
+  private final boolean[] wildcards;
+  private final boolean literal;
+  private final boolean ignoreCase;
+
+  /**
+   * @param pattern the pattern
+   * @param escape the search string escape. May be null or empty if the driver does not support escaping.
+   * @param ignoreCase whether names should be compared case insensitively
+   */
+  public JdbcPattern(String pattern, String escape, boolean ignoreCase) {
+    int n = pattern.length();
+    char[] characters = new char[n];
+    boolean[] wildcards = new boolean[n];
+    boolean literal = true;
+    int m = 0;
+    boolean hasEscape = escape != null && escape.length() > 0;
+    char c;
+    for (int i = 0; i < n; i++) {
+      if (hasEscape && pattern.startsWith(escape, i) && i + escape.length() < n) {
+        i += escape.length();
+        characters[m] = pattern.charAt(i);
+        wildcards[m++] = false;
+        continue;
+      }
+      c = pattern.charAt(i);
+      characters[m] = c;
+      if (c == ANY_SEQUENCE || c == ANY_CHARACTER) {
+        wildcards[m] = true;
+        literal = false;
+      }
+      m++;
+    }
+    this.characters = new char[m];
+    System.arraycopy(characters, 0, this.characters, 0, m);
+    this.wildcards = new boolean[m];
+    System.arraycopy(wildcards, 0, this.wildcards, 0, m);
+    this.literal = literal;
+    this.ignoreCase = ignoreCase;
+  }
+
+  /**
+   * @return true if the pattern does not contain any wildcards, so it can only match one name.
+   */
+  public boolean isLiteral() {
+    return literal;
+  }
+
+  /**
+   * @return the text of the pattern, with escapes removed.
+   * For literal patterns, this is the only name the pattern matches.
+   */
+  public String getLiteral() {
+    return new String(characters);
+  }
+
+  /**
+   * @return the literal text the pattern starts with, up to the first wildcard.
+   */
+  public String getPrefix() {
+    int i = 0;
+    while (i < characters.length && !wildcards[i]) i++;
+    return new String(characters, 0, i);
+  }
+
+  /**
+   * @param escape the escape character of the LIKE predicate the pattern is used in
+   * @return the pattern as the operand of a SQL LIKE predicate with the given escape character.
+   */
+  public String toLike(char escape) {
+    StringBuilder like = new StringBuilder(characters.length + 4);
+    char c;
+    for (int i = 0; i < characters.length; i++) {
+      c = characters[i];
+      if (!wildcards[i] && (c == ANY_SEQUENCE || c == ANY_CHARACTER || c == escape)) like.append(escape);
+      like.append(c);
+    }
+    return like.toString();
+  }
+
+  private boolean equal(char a, char b) {
+    if (a == b) return true;
+    if (!ignoreCase) return false;
+    return Character.toUpperCase(a) == Character.toUpperCase(b) ||
+           Character.toLowerCase(a) == Character.toLowerCase(b);
+  }
+
+  /**
+   * Check whether a name matches this pattern.
+   * @param name the name to check. null never matches.
+   * @return true if the name matches.
+   */
+  public boolean matches(String name) {
+    if (name == null) return false;
+    int n = characters.length;
+    int m = name.length();
+    int p = 0, s = 0;
+    //position in the pattern just after the last '%', and position in the name where it started matching.
+    int star = -1, mark = 0;
+    while (s < m) {
+      if (p < n && wildcards[p] && characters[p] == ANY_SEQUENCE) {
+        star = ++p;
+        mark = s;
+      }
+      else
+      if (p < n && (wildcards[p] || equal(characters[p], name.charAt(s)))) {
+        p++;
+        s++;
+      }
+      else
+      if (star != -1) {
+        //backtrack: let the last '%' swallow one more character.
+        p = star;
+        s = ++mark;
+      }
+      else {
+        return false;
+      }
+    }
+    while (p < n && wildcards[p] && characters[p] == ANY_SEQUENCE) p++;
+    return p == n;
+  }
+
+  @Override
+  public String toString() {
+    return new String(characters);
+  }
+}
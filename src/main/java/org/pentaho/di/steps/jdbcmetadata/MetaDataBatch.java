@@ -0,0 +1,331 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Buffers a window of input rows so that calls for different tables of the same
+ * connection, catalog and schema can be coalesced into one call for all tables.
+ *
+ * The rows returned by the coalesced call are indexed by table name,
+ * and then handed out again to the buffered input rows that asked for them.
+ */
+public class MetaDataBatch {
+
+  //the methods we know how to coalesce.
+  //1) name of the method
+  //2) index of the argument that specifies the table
+  //3) name of the resultset column that holds the table name
+  //4) whether the table argument is a pattern (if not, we pass null to ask for all tables)
+  //5) if the table argument is not a pattern, the variant that passes null (see MetaDataDriverProbe).
+  //   Passing null is outside the JDBC contract, so these are only coalesced once the driver was seen to return rows for it.
+  private final static Object[][] batchableMethods = new Object[][]{
+    new Object[]{"getColumns", 2, "TABLE_NAME", Boolean.TRUE, null},
+    new Object[]{"getTables", 2, "TABLE_NAME", Boolean.TRUE, null},
+    new Object[]{"getTablePrivileges", 2, "TABLE_NAME", Boolean.TRUE, null},
+    new Object[]{"getColumnPrivileges", 2, "TABLE_NAME", Boolean.FALSE, MetaDataDriverProbe.COLUMN_PRIVILEGES_OF_SCHEMA},
+    new Object[]{"getPrimaryKeys", 2, "TABLE_NAME", Boolean.FALSE, MetaDataDriverProbe.PRIMARY_KEYS_OF_SCHEMA},
+    new Object[]{"getIndexInfo", 2, "TABLE_NAME", Boolean.FALSE, MetaDataDriverProbe.INDEX_INFO_OF_SCHEMA},
+    new Object[]{"getImportedKeys", 2, "FKTABLE_NAME", Boolean.FALSE, MetaDataDriverProbe.IMPORTED_KEYS_OF_SCHEMA},
+    new Object[]{"getExportedKeys", 2, "PKTABLE_NAME", Boolean.FALSE, MetaDataDriverProbe.EXPORTED_KEYS_OF_SCHEMA}
+  };
+
+  private static Object[] getBatchableMethod(String methodName) {
+    for (Object[] batchableMethod : batchableMethods) {
+      if (batchableMethod[0].equals(methodName)) return batchableMethod;
+    }
+    return null;
+  }
+
+  /**
+   * @param methodName name of the metadata method
+   * @return whether calls to this method can be coalesced.
+   */
+  public static boolean isBatchable(String methodName) {
+    return getBatchableMethod(methodName) != null;
+  }
+
+  /**
+   * One buffered input row.
+   */
+  public static class Entry {
+    private final Object[] inputRow;
+    private final Object[] arguments;
+    private final Group group;
+
+    private Entry(Object[] inputRow, Object[] arguments, Group group) {
+      this.inputRow = inputRow;
+      this.arguments = arguments;
+      this.group = group;
+    }
+
+    public Object[] getInputRow() {
+      return inputRow;
+    }
+
+    public Object[] getArguments() {
+      return arguments;
+    }
+
+    public Group getGroup() {
+      return group;
+    }
+  }
+
+  /**
+   * The buffered input rows that can be served by one coalesced call.
+   */
+  public class Group {
+    private final Object[] arguments;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Map<String, List<Object[]>> rowsByTable = new LinkedHashMap<String, List<Object[]>>();
+    private int rowCount = 0;
+    private boolean fetched = false;
+    private String searchStringEscape;
+    private boolean ignoreCase;
+
+    private Group(Object[] arguments) {
+      this.arguments = arguments;
+    }
+
+    /**
+     * @return the arguments for the coalesced call.
+     */
+    public Object[] getArguments() {
+      return arguments;
+    }
+
+    public List<Entry> getEntries() {
+      return entries;
+    }
+
+    public int getRowCount() {
+      return rowCount;
+    }
+
+    public boolean isFetched() {
+      return fetched;
+    }
+
+    public void setFetched(boolean fetched) {
+      this.fetched = fetched;
+    }
+
+    public void setSearchStringEscape(String searchStringEscape) {
+      this.searchStringEscape = searchStringEscape;
+    }
+
+    /**
+     * @param ignoreCase whether the database compares table names case insensitively
+     * (see MetaDataCatalogIndex.getIgnoreCase). Must be set before rows are added.
+     */
+    public void setIgnoreCase(boolean ignoreCase) {
+      this.ignoreCase = ignoreCase;
+    }
+
+    private String getKey(String tableName) {
+      return ignoreCase ? MetaDataCatalogIndex.foldCase(tableName) : tableName;
+    }
+
+    /**
+     * Add a row returned by the coalesced call.
+     * @param metaDataRow the row. The table name column must be filled in.
+     */
+    public void addRow(Object[] metaDataRow) {
+      String tableName = getKey((String)metaDataRow[tableColumnIndex]);
+      List<Object[]> rows = rowsByTable.get(tableName);
+      if (rows == null) {
+        rows = new ArrayList<Object[]>();
+        rowsByTable.put(tableName, rows);
+      }
+      rows.add(metaDataRow);
+      rowCount++;
+    }
+
+    /**
+     * Forget the rows of the coalesced call, for instance because it returned too many rows.
+     */
+    public void reset() {
+      rowsByTable.clear();
+      rowCount = 0;
+      fetched = false;
+    }
+
+    /**
+     * Get the rows a buffered input row would have gotten from its own call.
+     * @param entry the buffered input row
+     * @return the rows, in the order the driver returned them.
+     */
+    public List<Object[]> getRows(Entry entry) {
+      Object table = entry.getArguments()[tableArgumentIndex];
+      if (table == null) {
+        return getAllRows();
+      }
+      String tableName = table.toString();
+      if (!tablePattern) {
+        return getRows(tableName);
+      }
+      JdbcPattern pattern = new JdbcPattern(tableName, searchStringEscape, ignoreCase);
+      if (pattern.isLiteral()) {
+        return getRows(pattern.getLiteral());
+      }
+      List<Object[]> rows = new ArrayList<Object[]>();
+      for (Map.Entry<String, List<Object[]>> tableRows : rowsByTable.entrySet()) {
+        if (!pattern.matches(tableRows.getKey())) continue;
+        rows.addAll(tableRows.getValue());
+      }
+      return rows;
+    }
+
+    private List<Object[]> getRows(String tableName) {
+      List<Object[]> rows = rowsByTable.get(getKey(tableName));
+      if (rows == null) return Collections.emptyList();
+      return rows;
+    }
+
+    private List<Object[]> getAllRows() {
+      List<Object[]> rows = new ArrayList<Object[]>(rowCount);
+      for (List<Object[]> tableRows : rowsByTable.values()) {
+        rows.addAll(tableRows);
+      }
+      return rows;
+    }
+  }
+
+  private final String methodName;
+  private final int tableArgumentIndex;
+  private final int tableColumnIndex;
+  private final boolean tablePattern;
+  private final String schemaVariant;
+  private final List<Entry> entries = new ArrayList<Entry>();
+  private final Map<MetaDataResultCache.Key, Group> groups = new LinkedHashMap<MetaDataResultCache.Key, Group>();
+  private boolean coalescingSupported = true;
+
+  /**
+   * @param methodName name of the metadata method. Must be batchable.
+   * @param resultSetDescriptor the resultset descriptor of the method.
+   */
+  public MetaDataBatch(String methodName, ValueMetaInterface[] resultSetDescriptor) {
+    Object[] batchableMethod = getBatchableMethod(methodName);
+    if (batchableMethod == null) {
+      throw new IllegalArgumentException("Calls to " + methodName + " can not be batched.");
+    }
+    this.methodName = methodName;
+    this.tableArgumentIndex = (Integer)batchableMethod[1];
+    this.tablePattern = (Boolean)batchableMethod[3];
+    this.schemaVariant = (String)batchableMethod[4];
+    String tableColumn = (String)batchableMethod[2];
+    int tableColumnIndex = -1;
+    for (int i = 0; i < resultSetDescriptor.length; i++) {
+      if (!tableColumn.equals(resultSetDescriptor[i].getName())) continue;
+      tableColumnIndex = i;
+      break;
+    }
+    this.tableColumnIndex = tableColumnIndex;
+  }
+
+  /**
+   * @return the variant of MetaDataDriverProbe that the coalesced call is, or null if the coalesced call
+   * passes a pattern for the table, which every driver supports.
+   */
+  public String getSchemaVariant() {
+    return schemaVariant;
+  }
+
+  /**
+   * @return the index in the resultset of the column that holds the table name.
+   */
+  public int getTableColumnIndex() {
+    return tableColumnIndex;
+  }
+
+  /**
+   * Buffer an input row.
+   * @param inputRow the input row
+   * @param arguments the arguments for the method call of this row. (A copy is stored.)
+   * @param connection identifies the connection of this row
+   */
+  public void add(Object[] inputRow, Object[] arguments, String connection) {
+    arguments = arguments.clone();
+    Object[] groupArguments = arguments.clone();
+    groupArguments[tableArgumentIndex] = tablePattern ? "%" : null;
+    MetaDataResultCache.Key key = new MetaDataResultCache.Key(connection, methodName, groupArguments);
+    Group group = groups.get(key);
+    if (group == null) {
+      group = new Group(groupArguments);
+      groups.put(key, group);
+    }
+    Entry entry = new Entry(inputRow, arguments, group);
+    group.entries.add(entry);
+    entries.add(entry);
+  }
+
+  /**
+   * @return the number of buffered input rows.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the buffered input rows, in input order.
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return the groups of buffered input rows that share a coalesced call.
+   */
+  public Collection<Group> getGroups() {
+    return groups.values();
+  }
+
+  /**
+   * @return false if an earlier coalesced call failed, for instance because the driver
+   * does not accept null for the table argument.
+   */
+  public boolean getCoalescingSupported() {
+    return coalescingSupported;
+  }
+
+  public void setCoalescingSupported(boolean coalescingSupported) {
+    this.coalescingSupported = coalescingSupported;
+  }
+
+  /**
+   * Forget all buffered input rows.
+   */
+  public void clear() {
+    entries.clear();
+    groups.clear();
+  }
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Produces the rows of the getCapabilityProfile pseudo-method: the values of the DatabaseMetaData methods
+ * that do not return a resultset, like supportsBatchUpdates and getMaxStatements, one row for each.
+ *
+ * The values depend on the driver and the database, so they are read once for each driver and database version,
+ * and kept for the life of the JVM. Values that depend on the user or the connection (like getUserName) are left out.
+ *
+ * The methods are called by reflection, so that methods of later JDBC versions can be listed too:
+ * a value the driver does not have (because the method does not exist, or the driver throws) is null.
+ */
+public class MetaDataCapabilityProfile {
+
+  //the methods in the profile. A method that takes arguments is listed once for each set of arguments,
+  //with the arguments as names of the constants in java.sql.ResultSet or java.sql.Connection.
+  static final String[] CAPABILITY_METHODS = new String[]{
+    //product and versions
+    "getDatabaseProductName", "getDatabaseProductVersion", "getDatabaseMajorVersion", "getDatabaseMinorVersion",
+    "getDriverName", "getDriverVersion", "getDriverMajorVersion", "getDriverMinorVersion",
+    "getJDBCMajorVersion", "getJDBCMinorVersion",
+    //transactions
+    "supportsTransactions", "getDefaultTransactionIsolation",
+    "supportsTransactionIsolationLevel(TRANSACTION_NONE)",
+    "supportsTransactionIsolationLevel(TRANSACTION_READ_UNCOMMITTED)",
+    "supportsTransactionIsolationLevel(TRANSACTION_READ_COMMITTED)",
+    "supportsTransactionIsolationLevel(TRANSACTION_REPEATABLE_READ)",
+    "supportsTransactionIsolationLevel(TRANSACTION_SERIALIZABLE)",
+    "supportsMultipleTransactions", "supportsSavepoints",
+    "supportsDataDefinitionAndDataManipulationTransactions", "supportsDataManipulationTransactionsOnly",
+    "dataDefinitionCausesTransactionCommit", "dataDefinitionIgnoredInTransactions",
+    "supportsOpenCursorsAcrossCommit", "supportsOpenCursorsAcrossRollback",
+    "supportsOpenStatementsAcrossCommit", "supportsOpenStatementsAcrossRollback",
+    "autoCommitFailureClosesAllResultSets",
+    //statements and batches
+    "supportsBatchUpdates", "supportsGetGeneratedKeys", "generatedKeyAlwaysReturned",
+    "supportsMultipleResultSets", "supportsMultipleOpenResults", "supportsNamedParameters",
+    "supportsStatementPooling", "supportsStoredProcedures", "supportsStoredFunctionsUsingCallSyntax",
+    "supportsSelectForUpdate", "supportsPositionedDelete", "supportsPositionedUpdate",
+    //resultsets
+    "getResultSetHoldability",
+    "supportsResultSetHoldability(HOLD_CURSORS_OVER_COMMIT)",
+    "supportsResultSetHoldability(CLOSE_CURSORS_AT_COMMIT)",
+    "supportsResultSetType(TYPE_FORWARD_ONLY)",
+    "supportsResultSetType(TYPE_SCROLL_INSENSITIVE)",
+    "supportsResultSetType(TYPE_SCROLL_SENSITIVE)",
+    "supportsResultSetConcurrency(TYPE_FORWARD_ONLY, CONCUR_READ_ONLY)",
+    "supportsResultSetConcurrency(TYPE_FORWARD_ONLY, CONCUR_UPDATABLE)",
+    "supportsResultSetConcurrency(TYPE_SCROLL_INSENSITIVE, CONCUR_READ_ONLY)",
+    "supportsResultSetConcurrency(TYPE_SCROLL_INSENSITIVE, CONCUR_UPDATABLE)",
+    "supportsResultSetConcurrency(TYPE_SCROLL_SENSITIVE, CONCUR_READ_ONLY)",
+    "supportsResultSetConcurrency(TYPE_SCROLL_SENSITIVE, CONCUR_UPDATABLE)",
+    "supportsRefCursors",
+    //limits. 0 means there is no limit, or it is not known.
+    "getMaxConnections", "getMaxStatements", "getMaxStatementLength", "getMaxRowSize", "doesMaxRowSizeIncludeBlobs",
+    "getMaxLogicalLobSize", "getMaxBinaryLiteralLength", "getMaxCharLiteralLength",
+    "getMaxColumnsInTable", "getMaxColumnsInSelect", "getMaxColumnsInIndex", "getMaxColumnsInGroupBy", "getMaxColumnsInOrderBy",
+    "getMaxTablesInSelect", "getMaxIndexLength",
+    "getMaxCatalogNameLength", "getMaxSchemaNameLength", "getMaxTableNameLength", "getMaxColumnNameLength",
+    "getMaxProcedureNameLength", "getMaxCursorNameLength", "getMaxUserNameLength",
+    //identifiers
+    "getIdentifierQuoteString", "getSearchStringEscape", "getExtraNameCharacters",
+    "getCatalogTerm", "getCatalogSeparator", "isCatalogAtStart", "getSchemaTerm", "getProcedureTerm",
+    "supportsMixedCaseIdentifiers", "storesUpperCaseIdentifiers", "storesLowerCaseIdentifiers", "storesMixedCaseIdentifiers",
+    "supportsMixedCaseQuotedIdentifiers", "storesUpperCaseQuotedIdentifiers", "storesLowerCaseQuotedIdentifiers",
+    "storesMixedCaseQuotedIdentifiers",
+    "supportsCatalogsInDataManipulation", "supportsCatalogsInTableDefinitions",
+    "supportsSchemasInDataManipulation", "supportsSchemasInTableDefinitions",
+    //SQL
+    "supportsANSI92EntryLevelSQL", "supportsANSI92IntermediateSQL", "supportsANSI92FullSQL",
+    "supportsIntegrityEnhancementFacility", "supportsNonNullableColumns",
+    "supportsAlterTableWithAddColumn", "supportsAlterTableWithDropColumn",
+    "supportsOuterJoins", "supportsFullOuterJoins", "supportsUnion", "supportsUnionAll",
+    "supportsSubqueriesInExists", "supportsSubqueriesInIns", "supportsLikeEscapeClause",
+    "nullPlusNonNullIsNull", "nullsAreSortedHigh", "nullsAreSortedLow", "nullsAreSortedAtStart", "nullsAreSortedAtEnd",
+    "getSQLStateType", "getRowIdLifetime", "locatorsUpdateCopy", "usesLocalFiles", "usesLocalFilePerTable",
+    "getSQLKeywords", "getNumericFunctions", "getStringFunctions", "getSystemFunctions", "getTimeDateFunctions"
+  };
+
+  //the profiles we read, by driver and database version.
+  private static final Map<String, List<Object[]>> profiles = new HashMap<String, List<Object[]>>();
+
+  private MetaDataCapabilityProfile() {
+  }
+
+  /**
+   * Get the capability profile of a database.
+   * @param databaseMetaData the metadata of a connection to the database
+   * @param resultSetDescriptor the columns of the getCapabilityProfile method
+   * @return a resultset with a row for each capability.
+   * @throws SQLException
+   */
+  public static ResultSet harvest(DatabaseMetaData databaseMetaData, ValueMetaInterface[] resultSetDescriptor) throws SQLException {
+    String key = MetaDataSnapshot.getKey(new Object[]{
+      databaseMetaData.getClass().getName(), databaseMetaData.getDriverVersion(),
+      databaseMetaData.getDatabaseProductName(), databaseMetaData.getDatabaseProductVersion()
+    });
+    List<Object[]> rows;
+    synchronized (profiles) {
+      rows = profiles.get(key);
+    }
+    if (rows == null) {
+      rows = Collections.unmodifiableList(read(databaseMetaData));
+      synchronized (profiles) {
+        profiles.put(key, rows);
+      }
+    }
+    return MetaDataSnapshot.createResultSet(resultSetDescriptor, rows);
+  }
+
+  //resolve the name of a constant in java.sql.ResultSet or java.sql.Connection.
+  private static Integer getConstant(String name) throws Exception {
+    try {
+      return (Integer)ResultSet.class.getField(name).get(null);
+    }
+    catch (NoSuchFieldException exception) {
+      return (Integer)Connection.class.getField(name).get(null);
+    }
+  }
+
+  private static Object getValue(DatabaseMetaData databaseMetaData, String capability) {
+    try {
+      int parenthesis = capability.indexOf('(');
+      if (parenthesis == -1) return DatabaseMetaData.class.getMethod(capability).invoke(databaseMetaData);
+      String[] names = capability.substring(parenthesis + 1, capability.length() - 1).split(", ");
+      Class<?>[] parameterTypes = new Class<?>[names.length];
+      Object[] arguments = new Object[names.length];
+      for (int i = 0; i < names.length; i++) {
+        parameterTypes[i] = int.class;
+        arguments[i] = getConstant(names[i]);
+      }
+      Method method = DatabaseMetaData.class.getMethod(capability.substring(0, parenthesis), parameterTypes);
+      return method.invoke(databaseMetaData, arguments);
+    }
+    catch (Exception exception) {
+      //the method does not exist in this JDBC version, or the driver does not implement it.
+      return null;
+    }
+  }
+
+  private static List<Object[]> read(DatabaseMetaData databaseMetaData) {
+    List<Object[]> rows = new ArrayList<Object[]>(CAPABILITY_METHODS.length);
+    Object value;
+    Long number;
+    for (String capability : CAPABILITY_METHODS) {
+      value = getValue(databaseMetaData, capability);
+      if (value instanceof Number) {
+        number = Long.valueOf(((Number)value).longValue());
+      }
+      else
+      if (value instanceof Boolean) {
+        number = Long.valueOf(((Boolean)value).booleanValue() ? 1 : 0);
+      }
+      else {
+        number = null;
+      }
+      rows.add(new Object[]{capability, value == null ? null : value.toString(), number});
+    }
+    return rows;
+  }
+}
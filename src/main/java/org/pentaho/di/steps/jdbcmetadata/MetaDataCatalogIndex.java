@@ -0,0 +1,358 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * An in-memory index of the result of one call of a metadata method for all tables of a connection.
+ *
+ * Instead of making a call for each input row, the whole catalog is read once, and the catalog, schema, table
+ * and column arguments of each input row are evaluated against the index, with the same semantics as the driver:
+ * the catalog is matched as a name, the others as JDBC patterns with the driver's search string escape (see JdbcPattern).
+ *
+ * The names of each level are kept in a sorted map, so that a literal name, or the literal prefix of a pattern,
+ * narrows the search down to a range of names rather than all of them. A name that does not exist is found to not exist
+ * by a single lookup. The strings of the rows are shared between rows, as the same values
+ * (catalog and schema names, type names, YES and NO) come back over and over again.
+ *
+ * Rows are returned in the order the driver returned them, exactly as if the call had been made.
+ */
+public class MetaDataCatalogIndex {
+
+  //the methods we know how to index.
+  //1) name of the method
+  //2) the names of the columns of the levels, from the top down. The level's argument has the same index as the level.
+  //   The first level is the catalog, which is matched as a name; the other levels are patterns.
+  //3) index of an argument that is a list of values, or -1 if there is none
+  //4) name of the column that is matched against the list
+  private final static Object[][] indexableMethods = new Object[][]{
+    new Object[]{"getColumns", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME"}, -1, null},
+    new Object[]{"getTablePrivileges", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}, -1, null},
+    new Object[]{"getTables", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}, 3, "TABLE_TYPE"}
+  };
+
+  private static Object[] getIndexableMethod(String methodName) {
+    for (Object[] indexableMethod : indexableMethods) {
+      if (indexableMethod[0].equals(methodName)) return indexableMethod;
+    }
+    return null;
+  }
+
+  /**
+   * @param methodName name of the metadata method
+   * @return whether calls to this method can be answered from an index.
+   */
+  public static boolean isIndexable(String methodName) {
+    return getIndexableMethod(methodName) != null;
+  }
+
+  /**
+   * Get the columns that are needed to evaluate the arguments, and that must be read even if they are not output.
+   * @param methodName name of the metadata method. Must be indexable.
+   * @param resultSetDescriptor the resultset descriptor of the method
+   * @return the indices (0-based) of the columns
+   */
+  public static int[] getRequiredColumns(String methodName, ValueMetaInterface[] resultSetDescriptor) {
+    Object[] indexableMethod = getIndexableMethod(methodName);
+    String[] levelColumns = (String[])indexableMethod[1];
+    int[] columns = new int[levelColumns.length + (indexableMethod[3] == null ? 0 : 1)];
+    for (int i = 0; i < levelColumns.length; i++) {
+      columns[i] = getColumnIndex(resultSetDescriptor, levelColumns[i]);
+    }
+    if (indexableMethod[3] != null) columns[levelColumns.length] = getColumnIndex(resultSetDescriptor, (String)indexableMethod[3]);
+    return columns;
+  }
+
+  private static int getColumnIndex(ValueMetaInterface[] resultSetDescriptor, String columnName) {
+    for (int i = 0; i < resultSetDescriptor.length; i++) {
+      if (columnName.equals(resultSetDescriptor[i].getName())) return i;
+    }
+    throw new IllegalArgumentException("No column " + columnName);
+  }
+
+  /**
+   * One name of a level: a catalog, schema, table or column.
+   */
+  private static class Node {
+    private final String name;
+    //the next node whose name has the same key, if names are compared case insensitively.
+    private Node sibling;
+    //the names of the next level, by key. null at the last level.
+    private TreeMap<String, Node> children;
+    //the child with a null name (no catalog, no schema)
+    private Node nullChild;
+    //at the last level: the positions of the rows of this name.
+    private int[] rows;
+    private int rowCount;
+
+    private Node(String name) {
+      this.name = name;
+    }
+
+    private void addRow(int row) {
+      if (rows == null) {
+        rows = new int[1];
+      }
+      else
+      if (rowCount == rows.length) {
+        rows = Arrays.copyOf(rows, rowCount * 2);
+      }
+      rows[rowCount++] = row;
+    }
+  }
+
+  private final int[] levelColumns;
+  private final int listArgumentIndex;
+  private final int listColumn;
+  private final int argumentCount;
+  private final String searchStringEscape;
+  private final boolean ignoreCase;
+
+  private final Node root = new Node(null);
+  private final List<Object[]> rows = new ArrayList<Object[]>();
+  //for each level, whether any name is not null. If not, the database does not have that level, and its argument is ignored.
+  private final boolean[] named;
+  //the shared instances of the strings in the rows.
+  private Map<String, String> strings = new HashMap<String, String>();
+
+  private long calls = 0;
+
+  /**
+   * @param methodName name of the metadata method. Must be indexable.
+   * @param resultSetDescriptor the resultset descriptor of the method.
+   * @param searchStringEscape the search string escape of the driver
+   * @param ignoreCase whether the database compares identifiers case insensitively.
+   */
+  public MetaDataCatalogIndex(String methodName, ValueMetaInterface[] resultSetDescriptor, String searchStringEscape, boolean ignoreCase) {
+    Object[] indexableMethod = getIndexableMethod(methodName);
+    if (indexableMethod == null) {
+      throw new IllegalArgumentException("Calls to " + methodName + " can not be indexed.");
+    }
+    int[] columns = getRequiredColumns(methodName, resultSetDescriptor);
+    int levelCount = ((String[])indexableMethod[1]).length;
+    this.levelColumns = Arrays.copyOf(columns, levelCount);
+    this.listArgumentIndex = (Integer)indexableMethod[2];
+    this.listColumn = listArgumentIndex == -1 ? -1 : columns[levelCount];
+    this.argumentCount = Math.max(levelCount, listArgumentIndex + 1);
+    this.searchStringEscape = searchStringEscape;
+    this.ignoreCase = ignoreCase;
+    this.named = new boolean[levelCount];
+  }
+
+  /**
+   * Decide whether the database compares identifiers case insensitively, from what the driver reports.
+   * A database that stores identifiers in upper or lower case compares the stored names exactly;
+   * one that stores them as they are written, but does not treat mixed case identifiers as different, does not.
+   * @param storesMixedCaseIdentifiers as reported by DatabaseMetaData.storesMixedCaseIdentifiers()
+   * @param supportsMixedCaseIdentifiers as reported by DatabaseMetaData.supportsMixedCaseIdentifiers()
+   * @return whether names should be matched case insensitively.
+   */
+  public static boolean getIgnoreCase(boolean storesMixedCaseIdentifiers, boolean supportsMixedCaseIdentifiers) {
+    return storesMixedCaseIdentifiers && !supportsMixedCaseIdentifiers;
+  }
+
+  /**
+   * @return the arguments of the call that returns the rows of all tables.
+   */
+  public Object[] getLoadArguments() {
+    Object[] arguments = new Object[argumentCount];
+    //null for the catalog and schema, as some drivers do not match a pattern against a null schema.
+    for (int i = 2; i < levelColumns.length; i++) {
+      arguments[i] = "%";
+    }
+    return arguments;
+  }
+
+  private String getKey(String name) {
+    if (!ignoreCase) return name;
+    return foldCase(name);
+  }
+
+  /**
+   * @param name an identifier
+   * @return the identifier in the one case that names which compare case insensitively share.
+   */
+  static String foldCase(String name) {
+    char[] characters = name.toCharArray();
+    for (int i = 0; i < characters.length; i++) {
+      characters[i] = Character.toLowerCase(Character.toUpperCase(characters[i]));
+    }
+    return new String(characters);
+  }
+
+  private Object share(Object value) {
+    if (!(value instanceof String)) return value;
+    String string = strings.get(value);
+    if (string != null) return string;
+    strings.put((String)value, (String)value);
+    return value;
+  }
+
+  private Node getChild(Node node, String name) {
+    if (name == null) {
+      if (node.nullChild == null) node.nullChild = new Node(null);
+      return node.nullChild;
+    }
+    if (node.children == null) node.children = new TreeMap<String, Node>();
+    String key = getKey(name);
+    Node child = node.children.get(key);
+    if (child == null) {
+      child = new Node(name);
+      node.children.put(key, child);
+      return child;
+    }
+    while (!child.name.equals(name)) {
+      if (child.sibling == null) child.sibling = new Node(name);
+      child = child.sibling;
+    }
+    return child;
+  }
+
+  /**
+   * Add a row of the call that returns the rows of all tables. Rows must be added in the order the driver returns them.
+   * @param metaDataRow the row. The columns returned by getRequiredColumns must be filled in.
+   */
+  public void addRow(Object[] metaDataRow) {
+    for (int i = 0; i < metaDataRow.length; i++) {
+      metaDataRow[i] = share(metaDataRow[i]);
+    }
+    Node node = root;
+    Object name;
+    for (int i = 0; i < levelColumns.length; i++) {
+      name = metaDataRow[levelColumns[i]];
+      if (name != null) named[i] = true;
+      node = getChild(node, name == null ? null : name.toString());
+    }
+    node.addRow(rows.size());
+    rows.add(metaDataRow);
+  }
+
+  /**
+   * Call this once all rows are added.
+   */
+  public void finish() {
+    strings = null;
+  }
+
+  //collect the nodes of the given level that match the argument.
+  private void addMatches(List<Node> matches, Node node, int level, Object argument) {
+    if (argument == null || !named[level]) {
+      if (node.nullChild != null) matches.add(node.nullChild);
+      if (node.children == null) return;
+      for (Node child : node.children.values()) {
+        for (; child != null; child = child.sibling) matches.add(child);
+      }
+      return;
+    }
+    String string = argument.toString();
+    //an empty catalog or schema means: the ones without a catalog or schema.
+    if (level < 2 && string.length() == 0) {
+      if (node.nullChild != null) matches.add(node.nullChild);
+      return;
+    }
+    if (node.children == null) return;
+    //the catalog is a name, not a pattern.
+    JdbcPattern pattern = level == 0 ? null : new JdbcPattern(string, searchStringEscape, ignoreCase);
+    String literal = pattern == null ? string : pattern.isLiteral() ? pattern.getLiteral() : null;
+    if (literal != null) {
+      for (Node child = node.children.get(getKey(literal)); child != null; child = child.sibling) {
+        if (ignoreCase || child.name.equals(literal)) matches.add(child);
+      }
+      return;
+    }
+    String prefix = getKey(pattern.getPrefix());
+    Map<String, Node> children = prefix.length() == 0 ? node.children : node.children.tailMap(prefix);
+    for (Map.Entry<String, Node> entry : children.entrySet()) {
+      if (!entry.getKey().startsWith(prefix)) break;
+      for (Node child = entry.getValue(); child != null; child = child.sibling) {
+        if (pattern.matches(child.name)) matches.add(child);
+      }
+    }
+  }
+
+  /**
+   * Get the rows a call with the given arguments would return.
+   * @param arguments the arguments of the call
+   * @return the rows, in the order the driver returned them.
+   */
+  public List<Object[]> getRows(Object[] arguments) {
+    calls++;
+    List<Node> nodes = new ArrayList<Node>();
+    nodes.add(root);
+    List<Node> matches;
+    for (int level = 0; level < levelColumns.length && !nodes.isEmpty(); level++) {
+      matches = new ArrayList<Node>();
+      for (Node node : nodes) {
+        addMatches(matches, node, level, arguments[level]);
+      }
+      nodes = matches;
+    }
+    int rowCount = 0;
+    for (Node node : nodes) {
+      rowCount += node.rowCount;
+    }
+    int[] positions = new int[rowCount];
+    rowCount = 0;
+    for (Node node : nodes) {
+      System.arraycopy(node.rows, 0, positions, rowCount, node.rowCount);
+      rowCount += node.rowCount;
+    }
+    if (nodes.size() > 1) Arrays.sort(positions);
+    Object[] values = listArgumentIndex == -1 ? null : (Object[])arguments[listArgumentIndex];
+    List<Object[]> result = new ArrayList<Object[]>(rowCount);
+    Object[] row;
+    for (int i = 0; i < positions.length; i++) {
+      row = rows.get(positions[i]);
+      if (values != null && !contains(values, row[listColumn])) continue;
+      result.add(row);
+    }
+    return result;
+  }
+
+  private static boolean contains(Object[] values, Object value) {
+    for (Object object : values) {
+      if (object == null ? value == null : object.equals(value)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of rows in the index.
+   */
+  public int size() {
+    return rows.size();
+  }
+
+  @Override
+  public String toString() {
+    return rows.size() + " rows" + (ignoreCase ? ", names compared case insensitively" : "") + ", " + calls + " calls answered";
+  }
+}
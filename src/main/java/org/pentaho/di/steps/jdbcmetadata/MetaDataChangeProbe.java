@@ -0,0 +1,496 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds out which tables changed, by computing a signature for the structure of each table.
+ *
+ * The signatures are read at the first call for a catalog and schema, for all tables of that catalog and schema at once;
+ * the catalog and schema arguments of the call are bound in the queries, so only the tables of the call's scope are read.
+ * If we know the database, the signatures come from its native catalog:
+ *
+ *   H2:         the modification id of the table.
+ *   MySQL:      the columns, indexes, keys and privileges of the table, from INFORMATION_SCHEMA.
+ *               (The create time of the table is not reset by ALTER TABLE ... ALGORITHM=INPLACE or INSTANT.)
+ *   PostgreSQL: the transaction ids that last wrote the catalog rows of the table, its columns, column defaults,
+ *               constraints, indexes and comments.
+ *   SQLite:     the DDL of the table and its indexes, as kept in sqlite_master.
+ *   Derby:      the columns, constraints and indexes of the table, from the system tables.
+ *
+ * (Not all of these databases keep a DDL timestamp, so where they don't, the catalog itself is the signature.)
+ * For other databases, or if the native query fails, the signature is what getTables returns for the table,
+ * obtained with one getTables call for the scope. This is cheap, but only sees changes that show in getTables:
+ * for these databases, changes to the columns, keys or indexes of a table that keeps its type and remarks go unnoticed.
+ * The native queries run on the connection of the step. If that connection is in a transaction, they run within a savepoint,
+ * so that a failing query does not spoil the transaction; if the driver has no savepoints, the generic probe is used.
+ *
+ * The watermark of a metadata call combines the signatures of all tables the call is about.
+ * If the watermark did not change since the last time, neither did the result of the call.
+ */
+public class MetaDataChangeProbe {
+
+  //the methods that return metadata of particular tables.
+  //1) name of the method
+  //2) for each table the method is about, the indices of its catalog, schema and table arguments.
+  //   A table index of -1 means the method depends on all tables of the catalog and schema.
+  //   (The exported keys of a table are defined by the tables that refer to it.)
+  private final static Object[][] tableMethods = new Object[][]{
+    new Object[]{"discoverKeys", new int[][]{{0, 1, 2}}},
+    new Object[]{"getBestRowIdentifier", new int[][]{{0, 1, 2}}},
+    new Object[]{"getColumnPrivileges", new int[][]{{0, 1, 2}}},
+    new Object[]{"getColumns", new int[][]{{0, 1, 2}}},
+    new Object[]{"getCrossReference", new int[][]{{0, 1, 2}, {3, 4, 5}}},
+    new Object[]{"getExportedKeys", new int[][]{{0, 1, -1}}},
+    new Object[]{"getImportedKeys", new int[][]{{0, 1, 2}}},
+    new Object[]{"getIndexInfo", new int[][]{{0, 1, 2}}},
+    new Object[]{"getPrimaryKeys", new int[][]{{0, 1, 2}}},
+    new Object[]{"getSchemaDocuments", new int[][]{{0, 1, 2}}},
+    new Object[]{"getSchemaSnapshot", new int[][]{{0, 1, 2}}},
+    new Object[]{"getTableDependencies", new int[][]{{0, 1, -1}}},
+    new Object[]{"getTableDocuments", new int[][]{{0, 1, 2}}},
+    new Object[]{"getTablePrivileges", new int[][]{{0, 1, 2}}},
+    new Object[]{"getTables", new int[][]{{0, 1, 2}}},
+    new Object[]{"getVersionColumns", new int[][]{{0, 1, 2}}}
+  };
+
+  private static int[][] getTableArguments(String methodName) {
+    for (Object[] tableMethod : tableMethods) {
+      if (tableMethod[0].equals(methodName)) return (int[][])tableMethod[1];
+    }
+    return null;
+  }
+
+  /**
+   * @param methodName name of the metadata method
+   * @return whether the method returns metadata of particular tables, so that its results can be kept per table.
+   */
+  public static boolean isTableMethod(String methodName) {
+    return getTableArguments(methodName) != null;
+  }
+
+  //MySQL drivers report databases as catalogs.
+  //The second signature column tags the kind of row, so rows of different queries can't be mistaken for one another.
+  private final static String[][] MYSQL_QUERIES = new String[][]{
+    {"SELECT TABLE_SCHEMA, NULL, TABLE_NAME, 'T', TABLE_TYPE, TABLE_COMMENT FROM INFORMATION_SCHEMA.TABLES", "TABLE_SCHEMA", null},
+    {"SELECT TABLE_SCHEMA, NULL, TABLE_NAME, 'C', COLUMN_NAME, ORDINAL_POSITION, COLUMN_TYPE, IS_NULLABLE, COLUMN_DEFAULT," +
+     " EXTRA, COLUMN_COMMENT, CHARACTER_SET_NAME, COLLATION_NAME FROM INFORMATION_SCHEMA.COLUMNS", "TABLE_SCHEMA", null},
+    {"SELECT TABLE_SCHEMA, NULL, TABLE_NAME, 'I', INDEX_NAME, SEQ_IN_INDEX, COLUMN_NAME, NON_UNIQUE, INDEX_TYPE, SUB_PART" +
+     " FROM INFORMATION_SCHEMA.STATISTICS", "TABLE_SCHEMA", null},
+    {"SELECT TABLE_SCHEMA, NULL, TABLE_NAME, 'K', CONSTRAINT_NAME, ORDINAL_POSITION, COLUMN_NAME," +
+     " REFERENCED_TABLE_SCHEMA, REFERENCED_TABLE_NAME, REFERENCED_COLUMN_NAME FROM INFORMATION_SCHEMA.KEY_COLUMN_USAGE", "TABLE_SCHEMA", null},
+    {"SELECT CONSTRAINT_SCHEMA, NULL, TABLE_NAME, 'R', CONSTRAINT_NAME, UPDATE_RULE, DELETE_RULE" +
+     " FROM INFORMATION_SCHEMA.REFERENTIAL_CONSTRAINTS", "CONSTRAINT_SCHEMA", null},
+    {"SELECT TABLE_SCHEMA, NULL, TABLE_NAME, 'P', GRANTEE, PRIVILEGE_TYPE, IS_GRANTABLE FROM INFORMATION_SCHEMA.TABLE_PRIVILEGES",
+     "TABLE_SCHEMA", null},
+    {"SELECT TABLE_SCHEMA, NULL, TABLE_NAME, 'Q', COLUMN_NAME, GRANTEE, PRIVILEGE_TYPE, IS_GRANTABLE" +
+     " FROM INFORMATION_SCHEMA.COLUMN_PRIVILEGES", "TABLE_SCHEMA", null}
+  };
+
+  //the queries that read table signatures from the native catalog.
+  //1) the start of the database product name
+  //2) the queries. Each returns the catalog, schema and name of a table, followed by any number of columns that make up its signature.
+  //   A table may have any number of rows.
+  //   Each query comes with the expressions for the catalog and schema of a table (null if the scope can't be narrowed on that level);
+  //   the conditions on these are added to the WHERE clause of the query if it ends with one, or else make up its WHERE clause.
+  private final static Object[][] nativeQueries = new Object[][]{
+    new Object[]{"H2", new String[][]{
+      {"SELECT TABLE_CATALOG, TABLE_SCHEMA, TABLE_NAME, LAST_MODIFICATION FROM INFORMATION_SCHEMA.TABLES", "TABLE_CATALOG", "TABLE_SCHEMA"}
+    }},
+    new Object[]{"MySQL", MYSQL_QUERIES},
+    new Object[]{"MariaDB", MYSQL_QUERIES},
+    //a connection only sees the catalog of its own database.
+    new Object[]{"PostgreSQL", new String[][]{
+      {"SELECT current_database(), n.nspname, c.relname, c.xmin::text" +
+       ", (SELECT string_agg(a.xmin::text, ',' ORDER BY a.attnum) FROM pg_attribute a WHERE a.attrelid = c.oid)" +
+       ", (SELECT string_agg(k.xmin::text, ',' ORDER BY k.oid) FROM pg_constraint k WHERE k.conrelid = c.oid)" +
+       ", (SELECT string_agg(i.xmin::text, ',' ORDER BY i.indexrelid) FROM pg_index i WHERE i.indrelid = c.oid)" +
+       ", (SELECT string_agg(f.xmin::text, ',' ORDER BY f.adnum) FROM pg_attrdef f WHERE f.adrelid = c.oid)" +
+       ", (SELECT string_agg(d.xmin::text, ',' ORDER BY d.objsubid) FROM pg_description d" +
+       " WHERE d.objoid = c.oid AND d.classoid = 'pg_class'::regclass)" +
+       " FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace" +
+       " WHERE c.relkind IN ('r', 'v', 'm', 'p', 'f')", null, "n.nspname"}
+    }},
+    //one file, one catalog.
+    new Object[]{"SQLite", new String[][]{
+      {"SELECT NULL, NULL, tbl_name, type, name, sql FROM sqlite_master WHERE type IN ('table', 'view', 'index', 'trigger')", null, null}
+    }},
+    new Object[]{"Apache Derby", new String[][]{
+      {"SELECT CAST(NULL AS VARCHAR(128)), s.SCHEMANAME, t.TABLENAME, c.COLUMNNAME, c.COLUMNNUMBER, c.COLUMNDATATYPE, c.COLUMNDEFAULT" +
+       " FROM SYS.SYSCOLUMNS c JOIN SYS.SYSTABLES t ON t.TABLEID = c.REFERENCEID JOIN SYS.SYSSCHEMAS s ON s.SCHEMAID = t.SCHEMAID",
+       null, "s.SCHEMANAME"},
+      {"SELECT CAST(NULL AS VARCHAR(128)), s.SCHEMANAME, t.TABLENAME, k.CONSTRAINTNAME, k.TYPE, k.STATE" +
+       " FROM SYS.SYSCONSTRAINTS k JOIN SYS.SYSTABLES t ON t.TABLEID = k.TABLEID JOIN SYS.SYSSCHEMAS s ON s.SCHEMAID = t.SCHEMAID",
+       null, "s.SCHEMANAME"},
+      {"SELECT CAST(NULL AS VARCHAR(128)), s.SCHEMANAME, t.TABLENAME, g.CONGLOMERATENAME, g.DESCRIPTOR" +
+       " FROM SYS.SYSCONGLOMERATES g JOIN SYS.SYSTABLES t ON t.TABLEID = g.TABLEID JOIN SYS.SYSSCHEMAS s ON s.SCHEMAID = t.SCHEMAID" +
+       " WHERE g.ISINDEX", null, "s.SCHEMANAME"}
+    }}
+  };
+
+  //the escape character of the LIKE predicates that narrow the native queries to a schema pattern.
+  private static final char LIKE_ESCAPE = '!';
+
+  private static String[][] getNativeQueries(String productName) {
+    if (productName == null) return null;
+    for (Object[] nativeQuery : nativeQueries) {
+      if (productName.startsWith((String)nativeQuery[0])) return (String[][])nativeQuery[1];
+    }
+    return null;
+  }
+
+  //the getTables columns that make up the signature of a table, if we have no native query.
+  private final static String[] tableSignature = new String[]{"TABLE_TYPE", "REMARKS"};
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static long hash(long hash, String value) {
+    if (value == null) return (hash ^ 0xff) * FNV_PRIME;
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    return (hash ^ 0xfe) * FNV_PRIME;
+  }
+
+  /**
+   * The signature of one table.
+   */
+  private static class Table {
+    private final String catalog;
+    private final String schema;
+    private final String name;
+    //the signature values, as they are read. These are sorted and hashed once all rows are read.
+    private List<String> values = new ArrayList<String>();
+    private long signature;
+
+    private Table(String catalog, String schema, String name) {
+      this.catalog = catalog;
+      this.schema = schema;
+      this.name = name;
+    }
+
+    private void seal() {
+      Collections.sort(values);
+      long hash = FNV_OFFSET;
+      for (String value : values) {
+        hash = hash(hash, value);
+      }
+      signature = hash;
+      values = null;
+    }
+  }
+
+  //how the signatures were last obtained.
+  private String method;
+  private String searchStringEscape;
+  //the catalogs and schema patterns whose tables were read. null means any.
+  private final List<String[]> scopes = new ArrayList<String[]>();
+  //all tables that were read, sorted by catalog, schema and name.
+  private final Map<String, Table> tables = new TreeMap<String, Table>();
+  //the tables by name, for calls that name a table.
+  private final Map<String, List<Table>> tablesByName = new HashMap<String, List<Table>>();
+
+  private static String getKey(String catalog, String schema, String name) {
+    return catalog + '\u0001' + schema + '\u0001' + name;
+  }
+
+  private static Table getTable(Map<String, Table> tables, String catalog, String schema, String name) {
+    String key = getKey(catalog, schema, name);
+    Table table = tables.get(key);
+    if (table == null) {
+      table = new Table(catalog, schema, name);
+      tables.put(key, table);
+    }
+    return table;
+  }
+
+  //add a condition that narrows a native query to a catalog or schema.
+  private static void addCondition(StringBuilder sql, List<String> parameters, String expression, String value, JdbcPattern pattern) {
+    if (expression == null || value == null || value.length() == 0) return;
+    sql.append(parameters.isEmpty() ? " " : " AND ");
+    if (pattern == null || pattern.isLiteral()) {
+      sql.append(expression).append(" = ?");
+      parameters.add(pattern == null ? value : pattern.getLiteral());
+    }
+    else {
+      sql.append(expression).append(" LIKE ? ESCAPE '").append(LIKE_ESCAPE).append("'");
+      parameters.add(pattern.toLike(LIKE_ESCAPE));
+    }
+  }
+
+  private static void readNativeQuery(
+    Connection connection, String[] query, String catalog, String schemaPattern, String searchStringEscape, Map<String, Table> tables
+  ) throws SQLException {
+    String sql = query[0];
+    StringBuilder conditions = new StringBuilder();
+    List<String> parameters = new ArrayList<String>(2);
+    addCondition(conditions, parameters, query[1], catalog, null);
+    addCondition(
+      conditions, parameters, query[2], schemaPattern,
+      schemaPattern == null ? null : new JdbcPattern(schemaPattern, searchStringEscape, false)
+    );
+    if (!parameters.isEmpty()) {
+      //subqueries in the select list come before the FROM clause of the query itself.
+      sql += (sql.lastIndexOf(" WHERE ") > sql.lastIndexOf(" FROM ") ? " AND" : " WHERE") + conditions;
+    }
+    PreparedStatement statement = connection.prepareStatement(sql);
+    try {
+      for (int i = 0; i < parameters.size(); i++) {
+        statement.setString(i + 1, parameters.get(i));
+      }
+      ResultSet resultSet = statement.executeQuery();
+      try {
+        int columnCount = resultSet.getMetaData().getColumnCount();
+        Table table;
+        Object value;
+        StringBuilder values = new StringBuilder();
+        while (resultSet.next()) {
+          table = getTable(tables, resultSet.getString(1), resultSet.getString(2), resultSet.getString(3));
+          values.setLength(0);
+          for (int i = 4; i <= columnCount; i++) {
+            value = resultSet.getObject(i);
+            values.append(value == null ? "" : value.toString()).append('\u0001');
+          }
+          table.values.add(values.toString());
+        }
+      }
+      finally {
+        resultSet.close();
+      }
+    }
+    finally {
+      statement.close();
+    }
+  }
+
+  private static void readTables(
+    DatabaseMetaData databaseMetaData, String catalog, String schemaPattern, Map<String, Table> tables
+  ) throws SQLException {
+    ResultSet resultSet = databaseMetaData.getTables(catalog, schemaPattern, "%", null);
+    try {
+      Table table;
+      StringBuilder values = new StringBuilder();
+      while (resultSet.next()) {
+        table = getTable(tables, resultSet.getString("TABLE_CAT"), resultSet.getString("TABLE_SCHEM"), resultSet.getString("TABLE_NAME"));
+        values.setLength(0);
+        for (int i = 0; i < tableSignature.length; i++) {
+          values.append(resultSet.getString(tableSignature[i])).append('\u0001');
+        }
+        table.values.add(values.toString());
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+  }
+
+  /**
+   * Set a savepoint, if the driver supports it.
+   * @return the savepoint, or null if the driver does not support savepoints.
+   */
+  static Savepoint setSavepoint(Connection connection, DatabaseMetaData databaseMetaData) {
+    try {
+      return databaseMetaData.supportsSavepoints() ? connection.setSavepoint() : null;
+    }
+    catch (SQLException exception) {
+      return null;
+    }
+  }
+
+  /**
+   * Release a savepoint. Not all drivers support this; their savepoints go away with the transaction.
+   */
+  static void releaseSavepoint(Connection connection, Savepoint savepoint) {
+    try {
+      connection.releaseSavepoint(savepoint);
+    }
+    catch (SQLException exception) {
+      //the savepoint is released when the transaction ends.
+    }
+  }
+
+  private static boolean covers(String read, String wanted) {
+    return read == null || read.equals(wanted);
+  }
+
+  //the catalog or schema argument of a call as a scope; a schema pattern that matches anything is no scope.
+  private static String getScope(Object argument) {
+    if (argument == null) return null;
+    String scope = argument.toString();
+    return "%".equals(scope) ? null : scope;
+  }
+
+  /**
+   * Get the catalogs and schemas whose tables the watermark of a call needs, and that were not read yet.
+   * @param methodName name of the metadata method
+   * @param arguments the arguments of the call
+   * @return the catalog and schema pattern of each scope to read, either of which may be null for any.
+   */
+  public List<String[]> getUnreadScopes(String methodName, Object[] arguments) {
+    int[][] tableArguments = getTableArguments(methodName);
+    List<String[]> unreadScopes = new ArrayList<String[]>(1);
+    if (tableArguments == null) return unreadScopes;
+    String catalog, schemaPattern;
+    boolean read;
+    for (int[] tableArgument : tableArguments) {
+      catalog = getScope(arguments[tableArgument[0]]);
+      schemaPattern = getScope(arguments[tableArgument[1]]);
+      read = false;
+      for (String[] scope : scopes) {
+        if (covers(scope[0], catalog) && covers(scope[1], schemaPattern)) read = true;
+      }
+      for (String[] scope : unreadScopes) {
+        if (covers(scope[0], catalog) && covers(scope[1], schemaPattern)) read = true;
+      }
+      if (!read) unreadScopes.add(new String[]{catalog, schemaPattern});
+    }
+    return unreadScopes;
+  }
+
+  /**
+   * Read the signatures of the tables of a catalog and schema.
+   * @param connection the connection to the database
+   * @param catalog the catalog, as in getTables; null for all catalogs.
+   * @param schemaPattern the schema pattern, as in getTables; null for all schemas.
+   * @return the number of tables read
+   * @throws SQLException
+   */
+  public int read(Connection connection, String catalog, String schemaPattern) throws SQLException {
+    DatabaseMetaData databaseMetaData = connection.getMetaData();
+    searchStringEscape = databaseMetaData.getSearchStringEscape();
+    String productName = databaseMetaData.getDatabaseProductName();
+    String[][] queries = getNativeQueries(productName);
+    Map<String, Table> tables = new HashMap<String, Table>();
+    String method = null;
+    Savepoint savepoint = null;
+    if (queries != null && !connection.getAutoCommit()) {
+      //the transaction is not ours, so a failing query must not spoil it.
+      savepoint = setSavepoint(connection, databaseMetaData);
+      if (savepoint == null) queries = null;
+    }
+    if (queries != null) {
+      try {
+        for (String[] query : queries) {
+          readNativeQuery(connection, query, catalog, schemaPattern, searchStringEscape, tables);
+        }
+        method = productName + " catalog";
+        if (savepoint != null) releaseSavepoint(connection, savepoint);
+      }
+      catch (SQLException exception) {
+        //this version of the database does not have what we're asking for. Use the generic probe.
+        tables.clear();
+        //some databases refuse anything else in a transaction after an error.
+        if (savepoint != null) connection.rollback(savepoint);
+      }
+    }
+    if (method == null) {
+      readTables(databaseMetaData, catalog, schemaPattern, tables);
+      method = "getTables";
+    }
+    this.method = method;
+    scopes.add(new String[]{catalog, schemaPattern});
+    for (Table table : tables.values()) {
+      table.seal();
+      this.tables.put(getKey(table.catalog, table.schema, table.name), table);
+    }
+    tablesByName.clear();
+    List<Table> tablesWithName;
+    for (Table table : this.tables.values()) {
+      tablesWithName = tablesByName.get(table.name);
+      if (tablesWithName == null) {
+        tablesWithName = new ArrayList<Table>(1);
+        tablesByName.put(table.name, tablesWithName);
+      }
+      tablesWithName.add(table);
+    }
+    return tables.size();
+  }
+
+  private JdbcPattern getPattern(Object argument) {
+    return argument == null ? null : new JdbcPattern(argument.toString(), searchStringEscape, false);
+  }
+
+  private static boolean matches(JdbcPattern pattern, String name) {
+    //a null argument means any; a null name means the database does not have this level.
+    return pattern == null || name == null || pattern.matches(name);
+  }
+
+  /**
+   * Get the watermark of a metadata call. The scopes of the call must have been read.
+   * Catalog, schema and table arguments are treated as patterns, even if the method takes names:
+   * at worst, a few more tables contribute to the watermark than strictly needed.
+   * @param methodName name of the metadata method
+   * @param arguments the arguments of the call
+   * @return the watermark, or null if the method does not return metadata of particular tables.
+   */
+  public String getWatermark(String methodName, Object[] arguments) {
+    int[][] tableArguments = getTableArguments(methodName);
+    if (tableArguments == null) return null;
+    long hash = FNV_OFFSET;
+    JdbcPattern catalogPattern, schemaPattern, tablePattern;
+    Collection<Table> candidates;
+    for (int[] tableArgument : tableArguments) {
+      catalogPattern = getPattern(arguments[tableArgument[0]]);
+      schemaPattern = getPattern(arguments[tableArgument[1]]);
+      tablePattern = tableArgument[2] == -1 ? null : getPattern(arguments[tableArgument[2]]);
+      if (tablePattern != null && tablePattern.isLiteral()) {
+        candidates = tablesByName.get(tablePattern.getLiteral());
+        if (candidates == null) candidates = Collections.emptyList();
+        tablePattern = null;
+      }
+      else {
+        candidates = tables.values();
+      }
+      for (Table table : candidates) {
+        if (!matches(catalogPattern, table.catalog) || !matches(schemaPattern, table.schema) || !matches(tablePattern, table.name)) continue;
+        hash = hash(hash, getKey(table.catalog, table.schema, table.name));
+        hash = hash(hash, Long.toHexString(table.signature));
+      }
+      hash = hash(hash, null);
+    }
+    return Long.toHexString(hash);
+  }
+
+  public int getTableCount() {
+    return tables.size();
+  }
+
+  @Override
+  public String toString() {
+    return tables.size() + " tables in " + scopes.size() + " scopes, last from " + method;
+  }
+}
@@ -0,0 +1,426 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleDatabaseException;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Generates DDL statements from the column rows of a table: CREATE TABLE, its primary key and foreign keys,
+ * and optionally a history table to keep the versions of its rows (a type 2 slowly changing dimension).
+ *
+ * The statements are rendered in the dialect of a database connection.
+ * The column types are mapped as Kettle would map them (see MetaDataKettleTypes), and the column definitions
+ * are those Kettle itself would use to create a table in that database.
+ * The type mappings are kept for each dialect, so each distinct type is only mapped once.
+ * Types that Kettle does not map keep the type name and size of the source.
+ *
+ * Like MetaDataGrouper, the rows are grouped as they stream by, holding on to the rows of one table only.
+ * The keys are only known for getSchemaSnapshot; getColumns gives only the CREATE TABLE statements.
+ */
+public class MetaDataDdlGenerator {
+
+  //the kinds of objects a statement can be about.
+  public static final String OBJECT_TABLE = "TABLE";
+  public static final String OBJECT_PRIMARY_KEY = "PRIMARY KEY";
+  public static final String OBJECT_FOREIGN_KEY = "FOREIGN KEY";
+  public static final String OBJECT_HISTORY_TABLE = "HISTORY TABLE";
+
+  //the names of the fields that hold the statements. All are strings.
+  public static final String[] FIELD_NAMES = new String[]{"DDL_OBJECT_TYPE", "DDL_OBJECT_NAME", "DDL"};
+
+  //the history table is named after the table, and has these columns in front of those of the table.
+  public static final String HISTORY_SUFFIX = "_HST";
+  private static final String HISTORY_ID = "HST_ID";
+  private static final String HISTORY_VERSION = "HST_VERSION";
+  private static final String HISTORY_DATE_FROM = "HST_DATE_FROM";
+  private static final String HISTORY_DATE_TO = "HST_DATE_TO";
+
+  //the methods whose rows are generated from.
+  private static final String[] METHODS = new String[]{"getColumns", "getSchemaSnapshot"};
+
+  //the columns that are read, if the method has them. The type columns are read as well.
+  private static final String[] COLUMNS = new String[]{
+    "TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME", "ORDINAL_POSITION", "NULLABLE",
+    "PK_NAME", "KEY_SEQ", "FK_NAME", "PKTABLE_SCHEM", "PKTABLE_NAME", "PKCOLUMN_NAME"
+  };
+  private static final int TABLE_CAT = 0;
+  private static final int TABLE_SCHEM = 1;
+  private static final int TABLE_NAME = 2;
+  private static final int COLUMN_NAME = 3;
+  private static final int ORDINAL_POSITION = 4;
+  private static final int NULLABLE = 5;
+  private static final int PK_NAME = 6;
+  private static final int KEY_SEQ = 7;
+  private static final int FK_NAME = 8;
+  private static final int PKTABLE_SCHEM = 9;
+  private static final int PKTABLE_NAME = 10;
+  private static final int PKCOLUMN_NAME = 11;
+
+  /**
+   * @param methodName name of the metadata method
+   * @return whether DDL can be generated from the rows of the method.
+   */
+  public static boolean isGeneratorMethod(String methodName) {
+    for (String method : METHODS) {
+      if (method.equals(methodName)) return true;
+    }
+    return false;
+  }
+
+  private static int[] getColumns(ValueMetaInterface[] resultSetDescriptor) {
+    int[] columns = new int[COLUMNS.length];
+    for (int i = 0; i < COLUMNS.length; i++) {
+      columns[i] = -1;
+      for (int j = 0; j < resultSetDescriptor.length; j++) {
+        if (resultSetDescriptor[j].getName().equals(COLUMNS[i])) columns[i] = j;
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Get all columns the generator reads.
+   * @param methodName name of the metadata method
+   * @param resultSetDescriptor the columns of the method
+   * @return the indices (0-based) of the columns; or null if DDL can't be generated from the method.
+   */
+  public static int[] getRequiredColumns(String methodName, ValueMetaInterface[] resultSetDescriptor) {
+    if (!isGeneratorMethod(methodName)) return null;
+    List<Integer> columns = new ArrayList<Integer>();
+    for (int[] group : new int[][]{getColumns(resultSetDescriptor), MetaDataKettleTypes.getTypeColumns(methodName, resultSetDescriptor)}) {
+      for (int column : group) {
+        if (column != -1 && !columns.contains(column)) columns.add(column);
+      }
+    }
+    int[] requiredColumns = new int[columns.size()];
+    for (int i = 0; i < requiredColumns.length; i++) {
+      requiredColumns[i] = columns.get(i);
+    }
+    return requiredColumns;
+  }
+
+  /**
+   * Receives the statements.
+   */
+  public interface Output {
+    /**
+     * @param inputRow the input row of the rows of the table.
+     * @param metaDataRow a metadata row that holds only the catalog, schema and table.
+     * @param objectType what the statement is about: TABLE, PRIMARY KEY, FOREIGN KEY or HISTORY TABLE.
+     * @param objectName the name of the table or key.
+     * @param ddl the statement
+     * @throws Exception
+     */
+    void put(Object[] inputRow, Object[] metaDataRow, String objectType, String objectName, String ddl) throws Exception;
+  }
+
+  //the values kept for each column.
+  private static final int POSITION = 0;
+  private static final int NAME = 1;
+  private static final int DEFINITION = 2;
+  private static final int NOT_NULL = 3;
+  private static final int KEY_NAME = 4;
+  private static final int KEY_SEQUENCE = 5;
+  private static final int FOREIGN_KEY_NAME = 6;
+  private static final int REFERENCED_SCHEMA = 7;
+  private static final int REFERENCED_TABLE = 8;
+  private static final int REFERENCED_COLUMN = 9;
+
+  //orders the columns of a table by their position, and the key columns by their key sequence.
+  private static final Comparator<Object[]> POSITION_ORDER = new Comparator<Object[]>() {
+    public int compare(Object[] column1, Object[] column2) {
+      return compareNumbers((Number)column1[POSITION], (Number)column2[POSITION]);
+    }
+  };
+  private static final Comparator<Object[]> KEY_ORDER = new Comparator<Object[]>() {
+    public int compare(Object[] column1, Object[] column2) {
+      return compareNumbers((Number)column1[KEY_SEQUENCE], (Number)column2[KEY_SEQUENCE]);
+    }
+  };
+
+  private static int compareNumbers(Number number1, Number number2) {
+    if (number1 == null || number2 == null) return number1 == null ? (number2 == null ? 0 : 1) : -1;
+    long value1 = number1.longValue();
+    long value2 = number2.longValue();
+    return value1 < value2 ? -1 : (value1 == value2 ? 0 : 1);
+  }
+
+  private final String methodName;
+  private final int resultSetFieldCount;
+  private final int[] columns;
+  private final int[] typeColumns;
+  private final boolean history;
+  //the type mappings of each dialect.
+  private final Map<DatabaseMeta, MetaDataKettleTypes> dialects = new IdentityHashMap<DatabaseMeta, MetaDataKettleTypes>();
+
+  //the table we're in: its input row and dialect, its catalog, schema and table, and its columns so far.
+  private boolean open = false;
+  private Object[] inputRow;
+  private DatabaseMeta databaseMeta;
+  private final Object[] names = new Object[3];
+  //for each column: its position, name, definition, whether it is not nullable, and its primary and foreign key.
+  private final List<Object[]> tableColumns = new ArrayList<Object[]>();
+
+  private long rowCount = 0;
+  private long statementCount = 0;
+
+  /**
+   * @param methodName name of the metadata method
+   * @param resultSetDescriptor the columns of the method
+   * @param history whether a history table is generated for each table.
+   */
+  public MetaDataDdlGenerator(String methodName, ValueMetaInterface[] resultSetDescriptor, boolean history) {
+    this.methodName = methodName;
+    this.resultSetFieldCount = resultSetDescriptor.length;
+    this.columns = getColumns(resultSetDescriptor);
+    this.typeColumns = MetaDataKettleTypes.getTypeColumns(methodName, resultSetDescriptor);
+    this.history = history;
+  }
+
+  private Object getValue(Object[] row, int column) {
+    int index = columns[column];
+    return index == -1 || index >= row.length ? null : row[index];
+  }
+
+  private static Object getValue(Object[] row, int[] columns, int column) {
+    int index = columns[column];
+    return index == -1 || index >= row.length ? null : row[index];
+  }
+
+  private boolean isSameTable(Object[] row) {
+    Object name;
+    for (int i = TABLE_CAT; i <= TABLE_NAME; i++) {
+      name = getValue(row, i);
+      if (names[i] == null ? name != null : !names[i].equals(name)) return false;
+    }
+    return true;
+  }
+
+  //the definition of a column, without its name: the definition Kettle would use for its Kettle type,
+  //or if Kettle does not map the type, the type name with its size and scale.
+  private String getDefinition(Object[] row) throws KettleDatabaseException {
+    MetaDataKettleTypes kettleTypes = dialects.get(databaseMeta);
+    if (kettleTypes == null) {
+      kettleTypes = new MetaDataKettleTypes(databaseMeta, typeColumns);
+      dialects.put(databaseMeta, kettleTypes);
+    }
+    ValueMetaInterface valueMeta = kettleTypes.getValueMeta(row);
+    if (valueMeta != null) {
+      return databaseMeta.getFieldDefinition(valueMeta, null, null, false, false, false).trim();
+    }
+    Object typeName = getValue(row, typeColumns, 1);
+    if (typeName == null) return null;
+    Object size = getValue(row, typeColumns, 2);
+    Object scale = getValue(row, typeColumns, 3);
+    if (size == null) return typeName.toString();
+    return typeName + "(" + size + (scale == null ? "" : "," + scale) + ")";
+  }
+
+  /**
+   * Add a row to the rows of its table.
+   * If the row is not in the same table as the previous row, or belongs to another input row or dialect,
+   * the statements of the previous table are put first.
+   * @param databaseMeta the database whose dialect the statements are in
+   * @param inputRow the input row of the metadata row
+   * @param row the metadata row
+   * @param output receives the statements
+   * @throws Exception
+   */
+  public void add(DatabaseMeta databaseMeta, Object[] inputRow, Object[] row, Output output) throws Exception {
+    rowCount++;
+    if (open && (inputRow != this.inputRow || databaseMeta != this.databaseMeta || !isSameTable(row))) close(output);
+    if (!open) {
+      open = true;
+      this.inputRow = inputRow;
+      this.databaseMeta = databaseMeta;
+      for (int i = TABLE_CAT; i <= TABLE_NAME; i++) {
+        names[i] = getValue(row, i);
+      }
+    }
+    Object columnName = getValue(row, COLUMN_NAME);
+    if (columnName == null) return;
+    Object nullable = getValue(row, NULLABLE);
+    tableColumns.add(new Object[]{
+      getValue(row, ORDINAL_POSITION),
+      columnName.toString(),
+      getDefinition(row),
+      Boolean.valueOf(nullable instanceof Number && ((Number)nullable).intValue() == java.sql.DatabaseMetaData.columnNoNulls),
+      getValue(row, PK_NAME),
+      getValue(row, KEY_SEQ),
+      getValue(row, FK_NAME),
+      getValue(row, PKTABLE_SCHEM),
+      getValue(row, PKTABLE_NAME),
+      getValue(row, PKCOLUMN_NAME)
+    });
+  }
+
+  private String quote(Object name) {
+    return databaseMeta.quoteField(name.toString());
+  }
+
+  private String quoteTable(Object schema, Object table) {
+    return databaseMeta.getQuotedSchemaTableCombination(schema == null ? null : schema.toString(), table.toString());
+  }
+
+  //the quoted names of a column of some columns, separated by commas.
+  private String getNameList(List<Object[]> columns, int column) {
+    StringBuilder nameList = new StringBuilder();
+    for (Object[] tableColumn : columns) {
+      if (nameList.length() > 0) nameList.append(", ");
+      nameList.append(quote(tableColumn[column]));
+    }
+    return nameList.toString();
+  }
+
+  private String getCreateTable(String table, List<String> definitions) {
+    StringBuilder ddl = new StringBuilder();
+    ddl.append("CREATE TABLE ").append(table).append("\n(");
+    for (int i = 0; i < definitions.size(); i++) {
+      ddl.append(i == 0 ? "\n  " : ",\n  ").append(definitions.get(i));
+    }
+    return ddl.append("\n)").toString();
+  }
+
+  //put the statements of the table we're in.
+  private void close(Output output) throws Exception {
+    open = false;
+    Collections.sort(tableColumns, POSITION_ORDER);
+    Object schema = names[TABLE_SCHEM];
+    Object table = names[TABLE_NAME];
+    String quotedTable = quoteTable(schema, table);
+    List<String[]> statements = new ArrayList<String[]>();
+
+    //the table, with the primary key and foreign key columns, in the order the columns came by.
+    List<String> definitions = new ArrayList<String>();
+    List<Object[]> keyColumns = new ArrayList<Object[]>();
+    Map<String, List<Object[]>> foreignKeys = new LinkedHashMap<String, List<Object[]>>();
+    for (Object[] column : tableColumns) {
+      definitions.add(
+        quote(column[NAME]) +
+        (column[DEFINITION] == null ? "" : " " + column[DEFINITION]) +
+        (Boolean.TRUE.equals(column[NOT_NULL]) ? " NOT NULL" : "")
+      );
+      if (column[KEY_SEQUENCE] != null) keyColumns.add(column);
+      Object referencedTable = column[REFERENCED_TABLE];
+      if (referencedTable == null) continue;
+      //an unnamed foreign key is told apart by the table it refers to.
+      Object foreignKeyName = column[FOREIGN_KEY_NAME];
+      String foreignKey = foreignKeyName == null ? MetaDataSnapshot.getKey(new Object[]{column[REFERENCED_SCHEMA], referencedTable}) : foreignKeyName.toString();
+      List<Object[]> foreignKeyColumns = foreignKeys.get(foreignKey);
+      if (foreignKeyColumns == null) {
+        foreignKeyColumns = new ArrayList<Object[]>();
+        foreignKeys.put(foreignKey, foreignKeyColumns);
+      }
+      foreignKeyColumns.add(column);
+    }
+    statements.add(new String[]{OBJECT_TABLE, table.toString(), getCreateTable(quotedTable, definitions)});
+
+    Collections.sort(keyColumns, KEY_ORDER);
+    String keyList = getNameList(keyColumns, NAME);
+    if (!keyColumns.isEmpty()) {
+      Object keyName = keyColumns.get(0)[KEY_NAME];
+      statements.add(new String[]{
+        OBJECT_PRIMARY_KEY, keyName == null ? table.toString() : keyName.toString(),
+        "ALTER TABLE " + quotedTable + " ADD " + (keyName == null ? "" : "CONSTRAINT " + quote(keyName) + " ") + "PRIMARY KEY (" + keyList + ")"
+      });
+    }
+
+    Object[] first;
+    for (List<Object[]> foreignKeyColumns : foreignKeys.values()) {
+      first = foreignKeyColumns.get(0);
+      Object keyName = first[FOREIGN_KEY_NAME];
+      statements.add(new String[]{
+        OBJECT_FOREIGN_KEY, keyName == null ? null : keyName.toString(),
+        "ALTER TABLE " + quotedTable + " ADD " + (keyName == null ? "" : "CONSTRAINT " + quote(keyName) + " ") +
+        "FOREIGN KEY (" + getNameList(foreignKeyColumns, NAME) + ")" +
+        " REFERENCES " + quoteTable(first[REFERENCED_SCHEMA], first[REFERENCED_TABLE]) +
+        " (" + getNameList(foreignKeyColumns, REFERENCED_COLUMN) + ")"
+      });
+    }
+
+    //the history table has a surrogate key, and a version and validity period for each version of a row.
+    //The columns of the table are all nullable, and the primary key of the table is unique with the version.
+    if (history) {
+      String historyTable = table + HISTORY_SUFFIX;
+      String historyId = quote(HISTORY_ID);
+      List<String> historyDefinitions = new ArrayList<String>();
+      historyDefinitions.add(getHistoryDefinition(historyId, ValueMetaInterface.TYPE_INTEGER, true));
+      historyDefinitions.add(getHistoryDefinition(quote(HISTORY_VERSION), ValueMetaInterface.TYPE_INTEGER, false));
+      historyDefinitions.add(getHistoryDefinition(quote(HISTORY_DATE_FROM), ValueMetaInterface.TYPE_DATE, false));
+      historyDefinitions.add(getHistoryDefinition(quote(HISTORY_DATE_TO), ValueMetaInterface.TYPE_DATE, false));
+      for (Object[] column : tableColumns) {
+        historyDefinitions.add(quote(column[NAME]) + (column[DEFINITION] == null ? "" : " " + column[DEFINITION]));
+      }
+      if (databaseMeta.requiresCreateTablePrimaryKeyAppend()) {
+        historyDefinitions.add("PRIMARY KEY (" + historyId + ")");
+      }
+      if (!keyColumns.isEmpty()) {
+        historyDefinitions.add("UNIQUE (" + keyList + ", " + quote(HISTORY_VERSION) + ")");
+      }
+      statements.add(new String[]{OBJECT_HISTORY_TABLE, historyTable, getCreateTable(quoteTable(schema, historyTable), historyDefinitions)});
+    }
+
+    Object[] metaDataRow = new Object[resultSetFieldCount];
+    for (int i = TABLE_CAT; i <= TABLE_NAME; i++) {
+      if (columns[i] != -1) metaDataRow[columns[i]] = names[i];
+    }
+    Object[] inputRow = this.inputRow;
+    this.inputRow = null;
+    tableColumns.clear();
+    for (String[] statement : statements) {
+      statementCount++;
+      output.put(inputRow, metaDataRow.clone(), statement[0], statement[1], statement[2]);
+    }
+  }
+
+  //the definition of a column of the history table. The surrogate key is an auto-increment technical key.
+  private String getHistoryDefinition(String name, int type, boolean technicalKey) {
+    ValueMetaInterface valueMeta = new ValueMeta(name, type);
+    return databaseMeta.getFieldDefinition(valueMeta, technicalKey ? name : null, null, technicalKey, true, false).trim();
+  }
+
+  /**
+   * Put the statements of the last table.
+   * @param output receives the statements
+   * @throws Exception
+   */
+  public void finish(Output output) throws Exception {
+    if (open) close(output);
+  }
+
+  @Override
+  public String toString() {
+    return methodName + ": " + rowCount + " rows, " + statementCount + " statements";
+  }
+}
@@ -0,0 +1,348 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Produces the rows of the getTableDependencies pseudo-method: the tables of a schema,
+ * in an order they can be loaded in without violating their foreign keys.
+ *
+ * All foreign keys of the schema are read at once (or table by table, if the driver needs a table name),
+ * and turned into a graph that has an edge from each table to each table it refers to. Tables are numbered,
+ * and the graph is held in int arrays. Its strongly connected components (the tables that refer to each other
+ * through a cycle of foreign keys) are found with Tarjan's algorithm, which yields them in load order.
+ *
+ * For each table, the rows have:
+ * - the load wave: a table is in the first wave if it refers to no other tables, else in the wave after
+ *   the last of the tables it refers to. Tables in the same wave can be loaded at the same time.
+ * - the rank: the position of the table if the tables are loaded one at a time.
+ * - the cycle, if the table is in one. All tables of a cycle are in the same wave,
+ *   and have to be loaded together, with their foreign keys disabled or deferred.
+ *
+ * Foreign keys to tables that are not selected are left out: these tables are taken to be loaded already.
+ */
+public class MetaDataDependencyGraph {
+
+  private final DatabaseMetaData databaseMetaData;
+  private final String catalog;
+  private final String schema;
+
+  //the tables: catalog, schema, name and type, by number.
+  private final List<Object[]> tables = new ArrayList<Object[]>();
+  //the numbers of the tables, by key.
+  private final Map<String, Integer> tableNumbers = new HashMap<String, Integer>();
+  //the edges, as (referring table << 32 | referred table), without duplicates.
+  private final Set<Long> edges = new HashSet<Long>();
+
+  //the adjacency lists: the tables referred to by table i are targets[offsets[i]] up to targets[offsets[i + 1]].
+  private int[] offsets;
+  private int[] targets;
+  //whether a table refers to itself.
+  private boolean[] selfReferencing;
+  //the number of tables that refer to a table.
+  private int[] dependents;
+
+  private MetaDataDependencyGraph(DatabaseMetaData databaseMetaData, String catalog, String schema) {
+    this.databaseMetaData = databaseMetaData;
+    this.catalog = catalog;
+    this.schema = schema;
+  }
+
+  /**
+   * Build the dependency graph of the tables, and compute their load order.
+   * @param databaseMetaData the metadata
+   * @param catalog the catalog, as in getTables
+   * @param schemaPattern the schema pattern, as in getTables
+   * @param tableNamePattern the table name pattern, as in getTables
+   * @param resultSetDescriptor the columns of the getTableDependencies method
+   * @return a resultset with a row for each table, in load order.
+   * @throws SQLException
+   */
+  public static ResultSet harvest(
+    DatabaseMetaData databaseMetaData, String catalog, String schemaPattern, String tableNamePattern, ValueMetaInterface[] resultSetDescriptor
+  ) throws SQLException {
+    if (tableNamePattern == null) tableNamePattern = "%";
+    MetaDataDependencyGraph graph = new MetaDataDependencyGraph(
+      databaseMetaData, catalog, MetaDataSchemaHarvester.getSchemaName(databaseMetaData, schemaPattern)
+    );
+    graph.readTables(schemaPattern, tableNamePattern);
+    graph.readEdges();
+    graph.buildAdjacency();
+    return MetaDataSnapshot.createResultSet(resultSetDescriptor, graph.getRows(resultSetDescriptor));
+  }
+
+  private static String getTableKey(Object catalog, Object schema, Object table) {
+    return MetaDataSnapshot.getKey(new Object[]{catalog, schema, table});
+  }
+
+  private void readTables(String schemaPattern, String tableNamePattern) throws SQLException {
+    ResultSet resultSet = databaseMetaData.getTables(catalog, schemaPattern, tableNamePattern, null);
+    try {
+      Object[] table;
+      while (resultSet.next()) {
+        table = new Object[]{
+          resultSet.getString("TABLE_CAT"), resultSet.getString("TABLE_SCHEM"),
+          resultSet.getString("TABLE_NAME"), resultSet.getString("TABLE_TYPE")
+        };
+        tableNumbers.put(getTableKey(table[0], table[1], table[2]), Integer.valueOf(tables.size()));
+        tables.add(table);
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+  }
+
+  //read the imported keys into edges. Returns the number of rows.
+  private int readEdges(String table) throws SQLException {
+    ResultSet resultSet = databaseMetaData.getImportedKeys(catalog, schema, table);
+    int count = 0;
+    try {
+      Integer from, to;
+      while (resultSet.next()) {
+        count++;
+        from = tableNumbers.get(getTableKey(
+          resultSet.getString("FKTABLE_CAT"), resultSet.getString("FKTABLE_SCHEM"), resultSet.getString("FKTABLE_NAME")
+        ));
+        to = tableNumbers.get(getTableKey(
+          resultSet.getString("PKTABLE_CAT"), resultSet.getString("PKTABLE_SCHEM"), resultSet.getString("PKTABLE_NAME")
+        ));
+        if (from == null || to == null) continue;
+        edges.add(Long.valueOf(((long)from.intValue() << 32) | to.intValue()));
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return count;
+  }
+
+  //read the imported keys of all tables at once; if the driver needs a table name, read them table by table.
+  private void readEdges() throws SQLException {
+    if (tables.isEmpty()) return;
+    if (!Boolean.FALSE.equals(MetaDataDriverProbe.isSupported(databaseMetaData, MetaDataDriverProbe.IMPORTED_KEYS_OF_SCHEMA))) {
+      try {
+        if (readEdges(null) > 0) {
+          MetaDataDriverProbe.setSupported(databaseMetaData, MetaDataDriverProbe.IMPORTED_KEYS_OF_SCHEMA, true);
+          return;
+        }
+      }
+      catch (SQLException exception) {
+        //the driver needs a table name.
+        MetaDataDriverProbe.setFailed(databaseMetaData, MetaDataDriverProbe.IMPORTED_KEYS_OF_SCHEMA, exception);
+      }
+    }
+    for (Object[] table : tables) {
+      readEdges((String)table[2]);
+    }
+  }
+
+  private void buildAdjacency() {
+    int n = tables.size();
+    offsets = new int[n + 1];
+    selfReferencing = new boolean[n];
+    dependents = new int[n];
+    int from, to;
+    for (Long edge : edges) {
+      from = (int)(edge.longValue() >>> 32);
+      to = (int)edge.longValue();
+      if (from == to) {
+        selfReferencing[from] = true;
+        continue;
+      }
+      offsets[from + 1]++;
+      dependents[to]++;
+    }
+    for (int i = 0; i < n; i++) {
+      offsets[i + 1] += offsets[i];
+    }
+    targets = new int[offsets[n]];
+    int[] positions = Arrays.copyOf(offsets, n);
+    for (Long edge : edges) {
+      from = (int)(edge.longValue() >>> 32);
+      to = (int)edge.longValue();
+      if (from != to) targets[positions[from]++] = to;
+    }
+  }
+
+  /**
+   * Find the strongly connected components, with Tarjan's algorithm.
+   * The recursion is unrolled onto explicit stacks, so that long chains of foreign keys do not overflow the call stack.
+   * @return for each table, the number of its component. Components are numbered in the order they are found,
+   * which is a load order: a component only refers to components with a lower number.
+   */
+  private int[] getComponents() {
+    int n = tables.size();
+    int[] index = new int[n];
+    int[] lowLink = new int[n];
+    int[] component = new int[n];
+    boolean[] onStack = new boolean[n];
+    int[] stack = new int[n];
+    int[] callNodes = new int[n];
+    int[] callEdges = new int[n];
+    Arrays.fill(index, -1);
+    int stackSize = 0, callSize, counter = 0, components = 0;
+    int node, edge, target;
+    for (int start = 0; start < n; start++) {
+      if (index[start] != -1) continue;
+      index[start] = lowLink[start] = counter++;
+      stack[stackSize++] = start;
+      onStack[start] = true;
+      callNodes[0] = start;
+      callEdges[0] = offsets[start];
+      callSize = 1;
+      while (callSize > 0) {
+        node = callNodes[callSize - 1];
+        edge = callEdges[callSize - 1];
+        if (edge < offsets[node + 1]) {
+          callEdges[callSize - 1]++;
+          target = targets[edge];
+          if (index[target] == -1) {
+            index[target] = lowLink[target] = counter++;
+            stack[stackSize++] = target;
+            onStack[target] = true;
+            callNodes[callSize] = target;
+            callEdges[callSize] = offsets[target];
+            callSize++;
+          }
+          else
+          if (onStack[target] && index[target] < lowLink[node]) {
+            lowLink[node] = index[target];
+          }
+          continue;
+        }
+        callSize--;
+        if (lowLink[node] == index[node]) {
+          do {
+            target = stack[--stackSize];
+            onStack[target] = false;
+            component[target] = components;
+          } while (target != node);
+          components++;
+        }
+        if (callSize > 0 && lowLink[node] < lowLink[callNodes[callSize - 1]]) {
+          lowLink[callNodes[callSize - 1]] = lowLink[node];
+        }
+      }
+    }
+    return component;
+  }
+
+  private static int compare(String a, String b) {
+    if (a == null) return b == null ? 0 : -1;
+    if (b == null) return 1;
+    return a.compareTo(b);
+  }
+
+  private List<Object[]> getRows(ValueMetaInterface[] resultSetDescriptor) {
+    final int n = tables.size();
+    int[] component = getComponents();
+    int components = 0;
+    for (int i = 0; i < n; i++) {
+      if (component[i] >= components) components = component[i] + 1;
+    }
+
+    //components only refer to components with a lower number, so the waves can be computed in one pass.
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = Integer.valueOf(i);
+    }
+    final int[] componentOf = component;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return componentOf[a.intValue()] - componentOf[b.intValue()];
+      }
+    });
+    int[] componentSizes = new int[components];
+    boolean[] cyclic = new boolean[components];
+    final int[] componentWaves = new int[components];
+    int node, wave;
+    for (int i = 0; i < n; i++) {
+      node = order[i].intValue();
+      componentSizes[component[node]]++;
+      if (selfReferencing[node]) cyclic[component[node]] = true;
+      wave = componentWaves[component[node]];
+      for (int edge = offsets[node]; edge < offsets[node + 1]; edge++) {
+        if (component[targets[edge]] == component[node]) continue;
+        if (componentWaves[component[targets[edge]]] + 1 > wave) wave = componentWaves[component[targets[edge]]] + 1;
+      }
+      componentWaves[component[node]] = wave;
+    }
+    //number the cycles in load order.
+    int[] cycles = new int[components];
+    int cycleCount = 0;
+    for (int i = 0; i < components; i++) {
+      if (componentSizes[i] > 1) cyclic[i] = true;
+      cycles[i] = cyclic[i] ? ++cycleCount : 0;
+    }
+
+    //the rank orders the tables by wave, then by name. As a table only refers to tables in earlier waves
+    //(or to tables in its own cycle), this is a load order too; one that does not depend on the order of the driver.
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int result = componentWaves[componentOf[a.intValue()]] - componentWaves[componentOf[b.intValue()]];
+        Object[] tableA = tables.get(a.intValue());
+        Object[] tableB = tables.get(b.intValue());
+        for (int i = 0; result == 0 && i < 3; i++) {
+          result = MetaDataDependencyGraph.compare((String)tableA[i], (String)tableB[i]);
+        }
+        return result;
+      }
+    });
+
+    List<Object[]> rows = new ArrayList<Object[]>(n);
+    Object[] table, row;
+    int c;
+    for (int i = 0; i < n; i++) {
+      node = order[i].intValue();
+      table = tables.get(node);
+      c = component[node];
+      row = new Object[resultSetDescriptor.length];
+      row[0] = table[0];
+      row[1] = table[1];
+      row[2] = table[2];
+      row[3] = table[3];
+      row[4] = Long.valueOf(i + 1);
+      row[5] = Long.valueOf(componentWaves[c] + 1);
+      row[6] = cyclic[c] ? Long.valueOf(cycles[c]) : null;
+      row[7] = cyclic[c] ? Long.valueOf(componentSizes[c]) : null;
+      row[8] = Long.valueOf(offsets[node + 1] - offsets[node]);
+      row[9] = Long.valueOf(dependents[node]);
+      rows.add(row);
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,387 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Compares metadata rows against a baseline, and reports only the rows that were added, changed or removed.
+ *
+ * Rows are matched by their natural key (for example, catalog, schema, table and column name for getColumns).
+ * A matched row is reported as changed if any of the compared columns has a different value.
+ *
+ * The baseline is loaded first, into a hash table keyed by the natural key.
+ * Each metadata row is then looked up as soon as it arrives, so added and changed rows are reported right away;
+ * baseline rows that were never matched are reported as removed when all rows have arrived.
+ * If the baseline has more rows than fit in memory, both the baseline and the metadata rows are spilled
+ * to temporary files, partitioned by the hash of the key, and each partition is compared on its own at the end.
+ */
+public class MetaDataDiff {
+
+  public static final String CHANGE_ADDED = "ADDED";
+  public static final String CHANGE_MODIFIED = "MODIFIED";
+  public static final String CHANGE_REMOVED = "REMOVED";
+
+  //the natural keys of the methods we know about.
+  //1) name of the method
+  //2) names of the resultset columns that identify a row.
+  //For other methods, all columns together identify a row.
+  private final static Object[][] naturalKeys = new Object[][]{
+    new Object[]{"getCapabilityProfile", new String[]{"CAPABILITY_NAME"}},
+    new Object[]{"getCatalogs", new String[]{"TABLE_CAT"}},
+    new Object[]{"getSchemas", new String[]{"TABLE_CATALOG", "TABLE_SCHEM"}},
+    new Object[]{"getTableTypes", new String[]{"TABLE_TYPE"}},
+    new Object[]{"getTypeInfo", new String[]{"TYPE_NAME"}},
+    new Object[]{"getTables", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}},
+    new Object[]{"getColumns", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME"}},
+    new Object[]{"discoverKeys", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME"}},
+    new Object[]{"getTableDependencies", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}},
+    new Object[]{"getSchemaSnapshot", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME"}},
+    new Object[]{"getSchemaDocuments", new String[]{"TABLE_CAT", "TABLE_SCHEM"}},
+    new Object[]{"getTableDocuments", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}},
+    new Object[]{"getPrimaryKeys", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME"}},
+    new Object[]{"getIndexInfo", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "INDEX_NAME", "TYPE", "ORDINAL_POSITION"}},
+    new Object[]{"getTablePrivileges", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "GRANTOR", "GRANTEE", "PRIVILEGE"}},
+    new Object[]{"getColumnPrivileges", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME", "GRANTOR", "GRANTEE", "PRIVILEGE"}},
+    new Object[]{"getImportedKeys", new String[]{"FKTABLE_CAT", "FKTABLE_SCHEM", "FKTABLE_NAME", "FKCOLUMN_NAME", "PKTABLE_CAT", "PKTABLE_SCHEM", "PKTABLE_NAME", "PKCOLUMN_NAME"}},
+    new Object[]{"getExportedKeys", new String[]{"FKTABLE_CAT", "FKTABLE_SCHEM", "FKTABLE_NAME", "FKCOLUMN_NAME", "PKTABLE_CAT", "PKTABLE_SCHEM", "PKTABLE_NAME", "PKCOLUMN_NAME"}},
+    new Object[]{"getCrossReference", new String[]{"FKTABLE_CAT", "FKTABLE_SCHEM", "FKTABLE_NAME", "FKCOLUMN_NAME", "PKTABLE_CAT", "PKTABLE_SCHEM", "PKTABLE_NAME", "PKCOLUMN_NAME"}}
+  };
+
+  /**
+   * Determine the columns that identify a row of a method's result.
+   * @param methodName name of the metadata method
+   * @param resultSetDescriptor the resultset descriptor of the method
+   * @return the indices of the key columns in the resultset descriptor (0-based).
+   */
+  public static int[] getKeyColumns(String methodName, ValueMetaInterface[] resultSetDescriptor) {
+    String[] columnNames = null;
+    for (Object[] naturalKey : naturalKeys) {
+      if (!naturalKey[0].equals(methodName)) continue;
+      columnNames = (String[])naturalKey[1];
+      break;
+    }
+    List<Integer> keyColumns = new ArrayList<Integer>();
+    for (int i = 0; i < resultSetDescriptor.length; i++) {
+      if (columnNames != null && !Arrays.asList(columnNames).contains(resultSetDescriptor[i].getName())) continue;
+      keyColumns.add(i);
+    }
+    int[] indices = new int[keyColumns.size()];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = keyColumns.get(i);
+    }
+    return indices;
+  }
+
+  /**
+   * Receives the rows that are different from the baseline.
+   */
+  public interface Output {
+    /**
+     * @param inputRow the input row that asked for the metadata row, or null if the row was removed.
+     * @param metaDataRow the metadata row; for removed rows, this is the baseline row.
+     * @param changeType one of CHANGE_ADDED, CHANGE_MODIFIED and CHANGE_REMOVED
+     * @throws Exception
+     */
+    void put(Object[] inputRow, Object[] metaDataRow, String changeType) throws Exception;
+  }
+
+  //number of partitions used once we spill to disk.
+  private static final int PARTITIONS = 64;
+  //number of rows written to a spill file before the stream forgets the objects it wrote.
+  private static final int RESET_INTERVAL = 1000;
+
+  private final ValueMetaInterface[] resultSetDescriptor;
+  private final int[] keyColumns;
+  private final int[] compareColumns;
+  private final int maxMemoryRows;
+
+  //baseline rows by key. Once a baseline row is matched, its value is set to null,
+  //so that what's left at the end are the removed rows.
+  private Map<List<Object>, Object[]> baseline = new HashMap<List<Object>, Object[]>();
+
+  //spill files, once the baseline does not fit in memory.
+  private Partition[] partitions = null;
+  private boolean baselineEnded = false;
+  private boolean finished = false;
+
+  private long added = 0;
+  private long modified = 0;
+  private long removed = 0;
+  private long unchanged = 0;
+
+  /**
+   * A spill file.
+   */
+  private static class Partition {
+    private final File file;
+    private ObjectOutputStream output;
+    private int rowCount = 0;
+    //the number of rows that are baseline rows; the metadata rows come after them.
+    private int baselineRowCount = -1;
+
+    private Partition() throws IOException {
+      file = File.createTempFile("jdbcmetadata-diff", ".tmp");
+      output = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    private void write(Object object) throws IOException {
+      output.writeObject(object);
+      if (++rowCount % RESET_INTERVAL == 0) output.reset();
+    }
+
+    private ObjectInputStream read() throws IOException {
+      output.close();
+      output = null;
+      return new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    private void delete() {
+      try {
+        if (output != null) output.close();
+      }
+      catch (IOException exception) {
+        //we're getting rid of it anyway.
+      }
+      file.delete();
+    }
+  }
+
+  /**
+   * @param resultSetDescriptor the resultset descriptor of the method. Values are compared according to these types.
+   * @param keyColumns the indices of the columns that identify a row (0-based)
+   * @param compareColumns the indices of the columns that are compared to detect a change (0-based)
+   * @param maxMemoryRows the maximum number of baseline rows kept in memory. 0 means no limit.
+   */
+  public MetaDataDiff(ValueMetaInterface[] resultSetDescriptor, int[] keyColumns, int[] compareColumns, int maxMemoryRows) {
+    this.resultSetDescriptor = resultSetDescriptor;
+    this.keyColumns = keyColumns;
+    this.compareColumns = compareColumns;
+    this.maxMemoryRows = maxMemoryRows;
+  }
+
+  /**
+   * Bring a value in a canonical form, so values read from different sources
+   * (a driver, a snapshot, or a kettle row) compare equal if they mean the same.
+   */
+  private Object normalize(int column, Object value) {
+    if (!(value instanceof Number)) return value;
+    int type = column < resultSetDescriptor.length ? resultSetDescriptor[column].getType() : ValueMetaInterface.TYPE_NONE;
+    Number number = (Number)value;
+    switch (type) {
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        //some drivers return a number where the JDBC spec prescribes boolean.
+        return Boolean.valueOf(number.intValue() == 1);
+      case ValueMetaInterface.TYPE_INTEGER:
+        return Long.valueOf(number.longValue());
+      default:
+        if (number instanceof BigDecimal || number instanceof Double || number instanceof Float) {
+          return Double.valueOf(number.doubleValue());
+        }
+        return Long.valueOf(number.longValue());
+    }
+  }
+
+  private List<Object> getKey(Object[] row) {
+    Object[] key = new Object[keyColumns.length];
+    int column;
+    for (int i = 0; i < keyColumns.length; i++) {
+      column = keyColumns[i];
+      key[i] = column < row.length ? normalize(column, row[column]) : null;
+    }
+    return Arrays.asList(key);
+  }
+
+  private boolean isModified(Object[] baselineRow, Object[] row) {
+    int column;
+    Object baselineValue, value;
+    for (int i = 0; i < compareColumns.length; i++) {
+      column = compareColumns[i];
+      baselineValue = column < baselineRow.length ? normalize(column, baselineRow[column]) : null;
+      value = column < row.length ? normalize(column, row[column]) : null;
+      if (baselineValue == null ? value != null : !baselineValue.equals(value)) return true;
+    }
+    return false;
+  }
+
+  private Partition getPartition(List<Object> key) {
+    return partitions[(key.hashCode() & 0x7fffffff) % partitions.length];
+  }
+
+  //move the baseline to disk. Each partition file will hold the baseline rows first, then the metadata rows.
+  private void spill() throws IOException {
+    partitions = new Partition[PARTITIONS];
+    for (int i = 0; i < PARTITIONS; i++) {
+      partitions[i] = new Partition();
+    }
+    for (Entry<List<Object>, Object[]> entry : baseline.entrySet()) {
+      getPartition(entry.getKey()).write(entry.getValue());
+    }
+    baseline = null;
+  }
+
+  /**
+   * Add a row to the baseline. All baseline rows must be added before the first call to add().
+   * @param row a baseline row, with one value for each column of the resultset descriptor.
+   * @throws IOException
+   */
+  public void addBaseline(Object[] row) throws IOException {
+    List<Object> key = getKey(row);
+    if (partitions != null) {
+      getPartition(key).write(row);
+      return;
+    }
+    baseline.put(key, row);
+    if (maxMemoryRows > 0 && baseline.size() > maxMemoryRows) spill();
+  }
+
+  //write a marker in each partition, so we know where the baseline rows end and the metadata rows start.
+  private void endBaseline() throws IOException {
+    baselineEnded = true;
+    for (Partition partition : partitions) {
+      partition.baselineRowCount = partition.rowCount;
+      partition.output.writeObject(null);
+    }
+  }
+
+  private void compare(Map<List<Object>, Object[]> baseline, Object[] inputRow, Object[] row, Output output) throws Exception {
+    List<Object> key = getKey(row);
+    if (!baseline.containsKey(key)) {
+      added++;
+      output.put(inputRow, row, CHANGE_ADDED);
+      return;
+    }
+    Object[] baselineRow = baseline.put(key, null);
+    //a null value means the key was matched before; don't report it twice.
+    if (baselineRow == null) return;
+    if (isModified(baselineRow, row)) {
+      modified++;
+      output.put(inputRow, row, CHANGE_MODIFIED);
+    }
+    else {
+      unchanged++;
+    }
+  }
+
+  private void putRemoved(Map<List<Object>, Object[]> baseline, Output output) throws Exception {
+    for (Object[] baselineRow : baseline.values()) {
+      if (baselineRow == null) continue;
+      removed++;
+      output.put(null, baselineRow, CHANGE_REMOVED);
+    }
+  }
+
+  /**
+   * Compare a metadata row to the baseline.
+   * If the baseline is in memory, added and modified rows are put to the output right away;
+   * otherwise, the row is spilled, and compared when finish() is called.
+   * @param inputRow the input row that asked for the metadata row
+   * @param row the metadata row
+   * @param output receives the row if it is different from the baseline.
+   * @throws Exception
+   */
+  public void add(Object[] inputRow, Object[] row, Output output) throws Exception {
+    if (partitions == null) {
+      compare(baseline, inputRow, row, output);
+      return;
+    }
+    if (!baselineEnded) endBaseline();
+    getPartition(getKey(row)).write(new Object[]{inputRow, row});
+  }
+
+  /**
+   * Finish the comparison: put the rows that are in the baseline but were not matched by any metadata row,
+   * and, if we spilled to disk, compare the spilled rows.
+   * @param output receives the rows that are different from the baseline.
+   * @throws Exception
+   */
+  public void finish(Output output) throws Exception {
+    if (finished) return;
+    finished = true;
+    if (partitions == null) {
+      putRemoved(baseline, output);
+      baseline = null;
+      return;
+    }
+    if (!baselineEnded) endBaseline();
+    Map<List<Object>, Object[]> baseline = new HashMap<List<Object>, Object[]>();
+    ObjectInputStream input;
+    Object object;
+    Object[] baselineRow, pair;
+    for (Partition partition : partitions) {
+      input = partition.read();
+      try {
+        //first the baseline rows, up to the marker.
+        while ((object = input.readObject()) != null) {
+          baselineRow = (Object[])object;
+          baseline.put(getKey(baselineRow), baselineRow);
+        }
+        //then the metadata rows.
+        for (int i = partition.rowCount - partition.baselineRowCount; i > 0; i--) {
+          pair = (Object[])input.readObject();
+          compare(baseline, (Object[])pair[0], (Object[])pair[1], output);
+        }
+      }
+      finally {
+        input.close();
+      }
+      putRemoved(baseline, output);
+      baseline.clear();
+      partition.delete();
+    }
+  }
+
+  /**
+   * Release the resources held by the diff, and remove spill files.
+   */
+  public void close() {
+    baseline = null;
+    if (partitions == null) return;
+    for (Partition partition : partitions) {
+      partition.delete();
+    }
+    partitions = null;
+  }
+
+  @Override
+  public String toString() {
+    return added + " added, " + modified + " modified, " + removed + " removed, " + unchanged + " unchanged" +
+           (partitions == null ? "" : ", spilled to " + partitions.length + " partitions");
+  }
+}
@@ -0,0 +1,484 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Produces the rows of the getTableDocuments and getSchemaDocuments pseudo-methods:
+ * one JSON document for each table, or for each schema, holding the columns, primary key, foreign keys and indexes of its tables.
+ *
+ * Like MetaDataSchemaHarvester, the tables, keys and indexes are read once for the whole schema if the driver allows it,
+ * and otherwise for each table as its columns come by. The columns are streamed, and written straight into the document,
+ * so only the document of the current table (or schema) is in memory.
+ * A table without columns gets no document.
+ *
+ * Document of a table:
+ * {"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "TABLE_TYPE", "REMARKS",
+ *  "COLUMNS": [{"COLUMN_NAME", "ORDINAL_POSITION", "DATA_TYPE", "TYPE_NAME", "COLUMN_SIZE", "DECIMAL_DIGITS",
+ *               "NULLABLE", "IS_NULLABLE", "COLUMN_DEF", "REMARKS", "IS_AUTOINCREMENT"}],
+ *  "PRIMARY_KEY": {"PK_NAME", "COLUMNS": [column names]} or null,
+ *  "FOREIGN_KEYS": [{"FK_NAME", "PKTABLE_CAT", "PKTABLE_SCHEM", "PKTABLE_NAME", "UPDATE_RULE", "DELETE_RULE",
+ *                    "COLUMNS": [column names], "PKCOLUMNS": [column names]}],
+ *  "INDEXES": [{"INDEX_NAME", "NON_UNIQUE", "COLUMNS": [column names]}]}
+ * Document of a schema:
+ * {"TABLE_CAT", "TABLE_SCHEM", "TABLES": [documents of its tables]}
+ * Keys or indexes that could not be read are null rather than empty.
+ */
+public class MetaDataDocumentHarvester implements MetaDataSnapshot.RowSource {
+
+  //the kinds of table data that are added to the documents.
+  private static final int PRIMARY_KEYS = 0;
+  private static final int IMPORTED_KEYS = 1;
+  private static final int INDEXES = 2;
+  //the variants that read each kind for a whole schema.
+  private static final String[] SCHEMA_VARIANTS = new String[]{
+    MetaDataDriverProbe.PRIMARY_KEYS_OF_SCHEMA, MetaDataDriverProbe.IMPORTED_KEYS_OF_SCHEMA, MetaDataDriverProbe.INDEX_INFO_OF_SCHEMA
+  };
+
+  //the columns of getColumns that identify the table, and those that are written to the documents.
+  private static final String[] TABLE_COLUMNS = new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"};
+  private static final String[] COLUMN_COLUMNS = new String[]{
+    "COLUMN_NAME", "ORDINAL_POSITION", "DATA_TYPE", "TYPE_NAME", "COLUMN_SIZE", "DECIMAL_DIGITS",
+    "NULLABLE", "IS_NULLABLE", "COLUMN_DEF", "REMARKS", "IS_AUTOINCREMENT"
+  };
+
+  //the columns of each kind that are kept.
+  private static final String[][] KIND_COLUMNS = new String[][]{
+    new String[]{"PK_NAME", "COLUMN_NAME", "KEY_SEQ"},
+    new String[]{"FK_NAME", "PKTABLE_CAT", "PKTABLE_SCHEM", "PKTABLE_NAME", "UPDATE_RULE", "DELETE_RULE", "FKCOLUMN_NAME", "PKCOLUMN_NAME", "KEY_SEQ"},
+    new String[]{"INDEX_NAME", "NON_UNIQUE", "COLUMN_NAME"}
+  };
+  //the table of each kind.
+  private static final String[][] KIND_TABLE_COLUMNS = new String[][]{
+    TABLE_COLUMNS,
+    new String[]{"FKTABLE_CAT", "FKTABLE_SCHEM", "FKTABLE_NAME"},
+    TABLE_COLUMNS
+  };
+
+  //the drivers return primary keys by column name; they go in the document in key order.
+  private static final Comparator<Object[]> KEY_ORDER = new Comparator<Object[]>() {
+    public int compare(Object[] key1, Object[] key2) {
+      long keySeq1 = key1[2] == null ? 0 : ((Number)key1[2]).longValue();
+      long keySeq2 = key2[2] == null ? 0 : ((Number)key2[2]).longValue();
+      return keySeq1 < keySeq2 ? -1 : (keySeq1 == keySeq2 ? 0 : 1);
+    }
+  };
+
+  private final DatabaseMetaData databaseMetaData;
+  private final String catalog;
+  //the schema, as a name, for the methods that do not take a pattern. null if the schema argument is a pattern.
+  private final String schema;
+  //whether there is a document for each schema, rather than for each table.
+  private final boolean perSchema;
+  private final ValueMetaInterface[] resultSetDescriptor;
+  private final Map<String, Integer> columnIndices = new HashMap<String, Integer>();
+
+  //table type and remarks, by table.
+  private final Map<String, Object[]> tables = new HashMap<String, Object[]>();
+  //the rows of each kind, by table.
+  private final List<Map<String, List<Object[]>>> kinds = new ArrayList<Map<String, List<Object[]>>>();
+  //for each kind, whether it is read for each table rather than for the whole schema.
+  private final boolean[] perTable = new boolean[3];
+  //for each kind, whether it could not be read.
+  private final boolean[] failed = new boolean[3];
+
+  private ResultSet columns;
+  //for each of TABLE_COLUMNS and COLUMN_COLUMNS, its index in the columns resultset (1-based), or 0 if the driver does not return it.
+  private int[] tableColumns;
+  private int[] columnsColumns;
+
+  private final MetaDataJsonWriter json = new MetaDataJsonWriter();
+  //the catalog, schema and table of the open table, and the key of the open table and schema. null if none is open.
+  private final Object[] names = new Object[3];
+  private String currentTable;
+  private String currentSchema;
+
+  private MetaDataDocumentHarvester(
+    DatabaseMetaData databaseMetaData, String catalog, String schema, boolean perSchema, ValueMetaInterface[] resultSetDescriptor
+  ) {
+    this.databaseMetaData = databaseMetaData;
+    this.catalog = catalog;
+    this.schema = schema;
+    this.perSchema = perSchema;
+    this.resultSetDescriptor = resultSetDescriptor;
+    for (int i = 0; i < resultSetDescriptor.length; i++) {
+      columnIndices.put(resultSetDescriptor[i].getName(), i);
+    }
+    for (int kind = PRIMARY_KEYS; kind <= INDEXES; kind++) {
+      kinds.add(new HashMap<String, List<Object[]>>());
+    }
+  }
+
+  /**
+   * Harvest the documents.
+   * @param databaseMetaData the metadata to harvest
+   * @param catalog the catalog, as in getTables
+   * @param schemaPattern the schema pattern, as in getTables
+   * @param tableNamePattern the table name pattern, as in getTables
+   * @param perSchema true for a document for each schema, false for a document for each table.
+   * @param resultSetDescriptor the columns of the method
+   * @return a resultset that streams the rows
+   * @throws SQLException
+   */
+  public static ResultSet harvest(
+    DatabaseMetaData databaseMetaData, String catalog, String schemaPattern, String tableNamePattern,
+    boolean perSchema, ValueMetaInterface[] resultSetDescriptor
+  ) throws SQLException {
+    if (tableNamePattern == null) tableNamePattern = "%";
+    String schema = MetaDataSchemaHarvester.getSchemaName(databaseMetaData, schemaPattern);
+    MetaDataDocumentHarvester harvester = new MetaDataDocumentHarvester(databaseMetaData, catalog, schema, perSchema, resultSetDescriptor);
+    harvester.readTables(schemaPattern, tableNamePattern);
+    harvester.readSchema();
+    harvester.openColumns(schemaPattern, tableNamePattern);
+    return MetaDataSnapshot.createResultSet(resultSetDescriptor, harvester);
+  }
+
+  private static String getKey(Object catalog, Object schema, Object table) {
+    return MetaDataSnapshot.getKey(new Object[]{catalog, schema, table});
+  }
+
+  private static Object getValue(ResultSet resultSet, String column) throws SQLException {
+    Object value = resultSet.getObject(column);
+    return value instanceof Number ? Long.valueOf(((Number)value).longValue()) : value;
+  }
+
+  private void readTables(String schemaPattern, String tableNamePattern) throws SQLException {
+    ResultSet resultSet = databaseMetaData.getTables(catalog, schemaPattern, tableNamePattern, null);
+    try {
+      while (resultSet.next()) {
+        tables.put(
+          getKey(resultSet.getString("TABLE_CAT"), resultSet.getString("TABLE_SCHEM"), resultSet.getString("TABLE_NAME")),
+          new Object[]{resultSet.getString("TABLE_TYPE"), resultSet.getString("REMARKS")}
+        );
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+  }
+
+  private ResultSet call(int kind, String table) throws SQLException {
+    switch (kind) {
+      case PRIMARY_KEYS:
+        return databaseMetaData.getPrimaryKeys(catalog, schema, table);
+      case IMPORTED_KEYS:
+        return databaseMetaData.getImportedKeys(catalog, schema, table);
+      default:
+        return databaseMetaData.getIndexInfo(catalog, schema, table, false, true);
+    }
+  }
+
+  //read the rows of one kind into its map, keeping them in the order of the driver. Returns the number of rows.
+  private int read(int kind, String table) throws SQLException {
+    Map<String, List<Object[]>> rows = kinds.get(kind);
+    String[] tableColumns = KIND_TABLE_COLUMNS[kind];
+    String[] kindColumns = KIND_COLUMNS[kind];
+    ResultSet resultSet = call(kind, table);
+    int count = 0;
+    String key;
+    Object[] row;
+    List<Object[]> tableRows;
+    try {
+      while (resultSet.next()) {
+        count++;
+        row = new Object[kindColumns.length];
+        for (int i = 0; i < kindColumns.length; i++) {
+          row[i] = getValue(resultSet, kindColumns[i]);
+        }
+        //statistics rows are not about an index.
+        if (kind == INDEXES && (row[0] == null || row[2] == null)) continue;
+        key = getKey(resultSet.getString(tableColumns[0]), resultSet.getString(tableColumns[1]), resultSet.getString(tableColumns[2]));
+        tableRows = rows.get(key);
+        if (tableRows == null) {
+          tableRows = new ArrayList<Object[]>();
+          rows.put(key, tableRows);
+        }
+        tableRows.add(row);
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return count;
+  }
+
+  //try to read the keys and indexes of all tables at once.
+  //A driver that needs a table name either fails, or returns nothing; then we read them table by table.
+  private void readSchema() throws SQLException {
+    for (int kind = PRIMARY_KEYS; kind <= INDEXES; kind++) {
+      if (Boolean.FALSE.equals(MetaDataDriverProbe.isSupported(databaseMetaData, SCHEMA_VARIANTS[kind]))) {
+        perTable[kind] = true;
+        continue;
+      }
+      try {
+        if (read(kind, null) > 0) {
+          MetaDataDriverProbe.setSupported(databaseMetaData, SCHEMA_VARIANTS[kind], true);
+        }
+        else
+        if (!tables.isEmpty()) {
+          perTable[kind] = true;
+        }
+      }
+      catch (SQLException exception) {
+        perTable[kind] = true;
+        MetaDataDriverProbe.setFailed(databaseMetaData, SCHEMA_VARIANTS[kind], exception);
+      }
+    }
+  }
+
+  //read the keys and indexes of the table the columns just moved on to.
+  private void readTable(String table) throws SQLException {
+    for (int kind = PRIMARY_KEYS; kind <= INDEXES; kind++) {
+      if (!perTable[kind] || failed[kind]) continue;
+      kinds.get(kind).clear();
+      try {
+        read(kind, table);
+      }
+      catch (SQLException exception) {
+        //without keys, the document is wrong; without indexes, it is only incomplete.
+        if (kind != INDEXES) throw exception;
+        failed[kind] = true;
+      }
+    }
+  }
+
+  private static int[] getColumnIndices(Map<String, Integer> labels, String[] columnNames) {
+    int[] indices = new int[columnNames.length];
+    for (int i = 0; i < columnNames.length; i++) {
+      Integer index = labels.get(columnNames[i]);
+      indices[i] = index == null ? 0 : index.intValue();
+    }
+    return indices;
+  }
+
+  private void openColumns(String schemaPattern, String tableNamePattern) throws SQLException {
+    columns = databaseMetaData.getColumns(catalog, schemaPattern, tableNamePattern, "%");
+    ResultSetMetaData resultSetMetaData = columns.getMetaData();
+    Map<String, Integer> labels = new HashMap<String, Integer>();
+    for (int i = resultSetMetaData.getColumnCount(); i > 0; i--) {
+      labels.put(resultSetMetaData.getColumnLabel(i).toUpperCase(), i);
+    }
+    tableColumns = getColumnIndices(labels, TABLE_COLUMNS);
+    columnsColumns = getColumnIndices(labels, COLUMN_COLUMNS);
+  }
+
+  private Object getColumnValue(int column) throws SQLException {
+    if (column == 0) return null;
+    Object value = columns.getObject(column);
+    return value instanceof Number ? Long.valueOf(((Number)value).longValue()) : value;
+  }
+
+  private void beginSchema() {
+    json.reset().beginObject()
+      .property("TABLE_CAT", names[0])
+      .property("TABLE_SCHEM", names[1])
+      .name("TABLES").beginArray()
+    ;
+  }
+
+  private void beginTable() throws SQLException {
+    readTable(names[2] == null ? null : names[2].toString());
+    if (!perSchema) json.reset();
+    Object[] values = tables.get(currentTable);
+    json.beginObject()
+      .property("TABLE_CAT", names[0])
+      .property("TABLE_SCHEM", names[1])
+      .property("TABLE_NAME", names[2])
+      .property("TABLE_TYPE", values == null ? null : values[0])
+      .property("REMARKS", values == null ? null : values[1])
+      .name("COLUMNS").beginArray()
+    ;
+  }
+
+  private void writeColumn() throws SQLException {
+    json.beginObject();
+    for (int i = 0; i < COLUMN_COLUMNS.length; i++) {
+      json.property(COLUMN_COLUMNS[i], getColumnValue(columnsColumns[i]));
+    }
+    json.endObject();
+  }
+
+  //write the names in a column of some rows of a kind, from the start row up to the end row.
+  private void writeNames(String name, List<Object[]> rows, int start, int end, int column) {
+    json.name(name).beginArray();
+    for (int i = start; i < end; i++) {
+      json.value(rows.get(i)[column]);
+    }
+    json.endArray();
+  }
+
+  private void endTable() {
+    json.endArray();
+    List<Object[]> rows;
+
+    json.name("PRIMARY_KEY");
+    rows = failed[PRIMARY_KEYS] ? null : kinds.get(PRIMARY_KEYS).get(currentTable);
+    if (rows == null || rows.isEmpty()) {
+      json.value(null);
+    }
+    else {
+      Collections.sort(rows, KEY_ORDER);
+      json.beginObject().property("PK_NAME", rows.get(0)[0]);
+      writeNames("COLUMNS", rows, 0, rows.size(), 1);
+      json.endObject();
+    }
+
+    //the columns of a foreign key come together, in key order: a new key starts at key sequence 1, or with another name.
+    json.name("FOREIGN_KEYS");
+    rows = kinds.get(IMPORTED_KEYS).get(currentTable);
+    if (failed[IMPORTED_KEYS]) {
+      json.value(null);
+    }
+    else {
+      json.beginArray();
+      int n = rows == null ? 0 : rows.size();
+      Object[] row;
+      for (int start = 0, end; start < n; start = end) {
+        row = rows.get(start);
+        for (end = start + 1; end < n; end++) {
+          Object[] next = rows.get(end);
+          if (next[8] != null && ((Number)next[8]).longValue() == 1) break;
+          if (next[0] == null ? row[0] != null : !next[0].equals(row[0])) break;
+        }
+        json.beginObject();
+        for (int i = 0; i < 6; i++) {
+          json.property(KIND_COLUMNS[IMPORTED_KEYS][i], row[i]);
+        }
+        writeNames("COLUMNS", rows, start, end, 6);
+        writeNames("PKCOLUMNS", rows, start, end, 7);
+        json.endObject();
+      }
+      json.endArray();
+    }
+
+    //the columns of an index come together, in index order.
+    json.name("INDEXES");
+    rows = kinds.get(INDEXES).get(currentTable);
+    if (failed[INDEXES]) {
+      json.value(null);
+    }
+    else {
+      json.beginArray();
+      int n = rows == null ? 0 : rows.size();
+      Object[] row;
+      Object nonUnique;
+      for (int start = 0, end; start < n; start = end) {
+        row = rows.get(start);
+        end = start + 1;
+        while (end < n && row[0].equals(rows.get(end)[0])) end++;
+        nonUnique = row[1] instanceof Number ? Boolean.valueOf(((Number)row[1]).longValue() != 0) : row[1];
+        json.beginObject().property("INDEX_NAME", row[0]).property("NON_UNIQUE", nonUnique);
+        writeNames("COLUMNS", rows, start, end, 2);
+        json.endObject();
+      }
+      json.endArray();
+    }
+    json.endObject();
+    currentTable = null;
+  }
+
+  private Object[] getDocumentRow(boolean table) {
+    Object[] row = new Object[resultSetDescriptor.length];
+    set(row, "TABLE_CAT", names[0]);
+    set(row, "TABLE_SCHEM", names[1]);
+    if (table) set(row, "TABLE_NAME", names[2]);
+    set(row, "DOCUMENT", json.toString());
+    return row;
+  }
+
+  private void set(Object[] row, String column, Object value) {
+    Integer index = columnIndices.get(column);
+    if (index != null) row[index.intValue()] = value;
+  }
+
+  //close the open table, and if the schema changes too, the open schema.
+  //returns the row of the document that is done, if any.
+  private Object[] endDocument(boolean endSchema) {
+    endTable();
+    if (!perSchema) return getDocumentRow(true);
+    if (!endSchema) return null;
+    json.endArray().endObject();
+    currentSchema = null;
+    return getDocumentRow(false);
+  }
+
+  public Object[] next() throws SQLException {
+    if (columns == null) return null;
+    Object[] row;
+    Object catalog, schema, table;
+    String tableKey, schemaKey;
+    while (true) {
+      if (!columns.next()) {
+        row = currentTable == null ? null : endDocument(true);
+        close();
+        return row;
+      }
+      catalog = getColumnValue(tableColumns[0]);
+      schema = getColumnValue(tableColumns[1]);
+      table = getColumnValue(tableColumns[2]);
+      tableKey = getKey(catalog, schema, table);
+      schemaKey = getKey(catalog, schema, null);
+      row = null;
+      if (currentTable != null && !currentTable.equals(tableKey)) {
+        row = endDocument(!currentSchema.equals(schemaKey));
+      }
+      if (currentTable == null) {
+        names[0] = catalog;
+        names[1] = schema;
+        names[2] = table;
+        currentTable = tableKey;
+        if (perSchema && currentSchema == null) beginSchema();
+        currentSchema = schemaKey;
+        beginTable();
+      }
+      writeColumn();
+      if (row != null) return row;
+    }
+  }
+
+  public void close() throws SQLException {
+    if (columns == null) return;
+    try {
+      columns.close();
+    }
+    finally {
+      columns = null;
+      tables.clear();
+      for (Map<String, List<Object[]>> rows : kinds) {
+        rows.clear();
+      }
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+
+import org.pentaho.di.core.Const;
+
+/**
+ * Remembers which variants of the DatabaseMetaData methods a driver supports.
+ *
+ * Some methods have a cheap variant that not all drivers implement. For example, getSchemas(catalog, schemaPattern)
+ * filters the schemas in the database, but throws AbstractMethodError in h2 and sqlite; and many drivers refuse
+ * getPrimaryKeys without a table name, which would return the keys of a whole schema in one call.
+ * The first time a variant is used with a driver, whether it worked is stored here, by driver name and version.
+ * From then on, the cheap variant is used right away when it works, and the fallback is used right away when it doesn't.
+ *
+ * Passing null for a table name is outside the JDBC contract, and a driver that does not understand it
+ * may return an empty result rather than fail. So for the variants that do that, it is also stored whether
+ * a call was ever seen to return rows: only that proves the driver really returns the data of all tables.
+ *
+ * The results are kept in memory, and in a properties file in the kettle directory, so that they survive restarts.
+ * A variant is only stored as unsupported if the driver said so, by the kind of error it raised; any other failure,
+ * like a lost connection, a missing privilege or an aborted transaction, is not stored.
+ * An unsupported variant is tried again once the result expires, as the driver may have been replaced by one with the same version.
+ * Results obtained from a metadata snapshot are not stored either, as the snapshot only has the calls it captured.
+ */
+public class MetaDataDriverProbe {
+
+  //the variants we probe.
+  public static final String SCHEMAS_BY_PATTERN = "getSchemas(catalog, schemaPattern)";
+  public static final String PRIMARY_KEYS_OF_SCHEMA = "getPrimaryKeys(catalog, schema, null)";
+  public static final String IMPORTED_KEYS_OF_SCHEMA = "getImportedKeys(catalog, schema, null)";
+  public static final String INDEX_INFO_OF_SCHEMA = "getIndexInfo(catalog, schema, null, unique, approximate)";
+  public static final String EXPORTED_KEYS_OF_SCHEMA = "getExportedKeys(catalog, schema, null)";
+  public static final String COLUMN_PRIVILEGES_OF_SCHEMA = "getColumnPrivileges(catalog, schema, null, columnNamePattern)";
+
+  //appended to the key of a variant, for whether it was seen to return rows.
+  private static final String RETURNS_ROWS = " returns rows";
+  //appended to the key of a variant, for when it was found to be unsupported.
+  private static final String UNSUPPORTED_SINCE = " unsupported since";
+
+  //how long a variant is known to be unsupported, in milliseconds.
+  public static final long UNSUPPORTED_EXPIRY = 30L * 24 * 60 * 60 * 1000;
+
+  private static final String FILE_NAME = "jdbcmetadata-driver-probes.properties";
+
+  //the results, by driver, version and variant. null until they are loaded from the file.
+  private static Properties results = null;
+
+  private MetaDataDriverProbe() {
+  }
+
+  private static File getFile() {
+    String directory = Const.getKettleDirectory();
+    return directory == null ? null : new File(directory, FILE_NAME);
+  }
+
+  private static Properties getResults() {
+    if (results != null) return results;
+    results = new Properties();
+    File file = getFile();
+    if (file == null || !file.exists()) return results;
+    try {
+      InputStream input = new FileInputStream(file);
+      try {
+        results.load(input);
+      }
+      finally {
+        input.close();
+      }
+    }
+    catch (IOException exception) {
+      //the file is only a cache. Without it, we probe again.
+    }
+    return results;
+  }
+
+  //write to a temporary file first, so that a crash or another step reading the file never sees half of it.
+  private static void writeResults() {
+    File file = getFile();
+    if (file == null) return;
+    File temporaryFile = new File(file.getAbsolutePath() + ".tmp");
+    try {
+      File directory = file.getParentFile();
+      if (directory != null && !directory.exists()) directory.mkdirs();
+      OutputStream output = new FileOutputStream(temporaryFile);
+      try {
+        results.store(output, "DatabaseMetaData variants supported by JDBC drivers, as found by the JdbcMetaData step");
+      }
+      finally {
+        output.close();
+      }
+      //renaming over an existing file works on most platforms, but not on windows.
+      if (!temporaryFile.renameTo(file)) {
+        file.delete();
+        temporaryFile.renameTo(file);
+      }
+    }
+    catch (IOException exception) {
+      //the file is only a cache. Without it, we probe again after a restart.
+    }
+    finally {
+      if (temporaryFile.exists()) temporaryFile.delete();
+    }
+  }
+
+  /**
+   * Forget all results, in memory and in the file, so that all variants are probed again.
+   */
+  public static synchronized void reset() {
+    File file = getFile();
+    if (file != null && file.exists()) file.delete();
+    results = null;
+  }
+
+  private static String getKey(DatabaseMetaData databaseMetaData, String variant) throws SQLException {
+    return databaseMetaData.getDriverName() + " " + databaseMetaData.getDriverVersion() + ": " + variant;
+  }
+
+  /**
+   * @param databaseMetaData the metadata of a connection
+   * @param variant the variant, one of the constants of this class
+   * @return whether the driver of the connection supports the variant, or null if we don't know yet.
+   * @throws SQLException
+   */
+  public static synchronized Boolean isSupported(DatabaseMetaData databaseMetaData, String variant) throws SQLException {
+    String key = getKey(databaseMetaData, variant);
+    String value = getResults().getProperty(key);
+    if (value == null) return null;
+    if (Boolean.valueOf(value)) return Boolean.TRUE;
+    //results stored without a time predate the expiry, and were stored for any kind of error.
+    long since;
+    try {
+      since = Long.parseLong(results.getProperty(key + UNSUPPORTED_SINCE, "0"));
+    }
+    catch (NumberFormatException exception) {
+      since = 0;
+    }
+    if (System.currentTimeMillis() - since < UNSUPPORTED_EXPIRY) return Boolean.FALSE;
+    results.remove(key);
+    results.remove(key + UNSUPPORTED_SINCE);
+    return null;
+  }
+
+  /**
+   * Store whether the driver of a connection supports a variant. Only the first result for a driver is stored,
+   * until it expires.
+   * @param databaseMetaData the metadata of a connection
+   * @param variant the variant, one of the constants of this class
+   * @param supported whether the variant worked
+   * @throws SQLException
+   */
+  public static synchronized void setSupported(DatabaseMetaData databaseMetaData, String variant, boolean supported) throws SQLException {
+    if (MetaDataSnapshot.isSnapshot(databaseMetaData)) return;
+    if (isSupported(databaseMetaData, variant) != null) return;
+    String key = getKey(databaseMetaData, variant);
+    results.setProperty(key, Boolean.toString(supported));
+    if (!supported) results.setProperty(key + UNSUPPORTED_SINCE, Long.toString(System.currentTimeMillis()));
+    writeResults();
+  }
+
+  /**
+   * @param databaseMetaData the metadata of a connection
+   * @param variant the variant, one of the constants of this class
+   * @return whether a call of the variant was ever seen to return rows with the driver of the connection.
+   * @throws SQLException
+   */
+  public static synchronized boolean isReturningRows(DatabaseMetaData databaseMetaData, String variant) throws SQLException {
+    return Boolean.valueOf(getResults().getProperty(getKey(databaseMetaData, variant) + RETURNS_ROWS));
+  }
+
+  /**
+   * Store that a call of a variant returned rows with the driver of a connection. This also means the variant is supported.
+   * @param databaseMetaData the metadata of a connection
+   * @param variant the variant, one of the constants of this class
+   * @throws SQLException
+   */
+  public static synchronized void setReturningRows(DatabaseMetaData databaseMetaData, String variant) throws SQLException {
+    if (MetaDataSnapshot.isSnapshot(databaseMetaData)) return;
+    String key = getKey(databaseMetaData, variant);
+    if (Boolean.TRUE.toString().equals(getResults().getProperty(key + RETURNS_ROWS))) return;
+    results.setProperty(key, Boolean.TRUE.toString());
+    results.remove(key + UNSUPPORTED_SINCE);
+    results.setProperty(key + RETURNS_ROWS, Boolean.TRUE.toString());
+    writeResults();
+  }
+
+  /**
+   * Store that the driver of a connection does not support a variant, if the exception it threw says so.
+   * @param databaseMetaData the metadata of a connection
+   * @param variant the variant, one of the constants of this class
+   * @param throwable the exception thrown when the variant was tried
+   * @throws SQLException
+   */
+  public static void setFailed(DatabaseMetaData databaseMetaData, String variant, Throwable throwable) throws SQLException {
+    if (isUnsupported(throwable)) setSupported(databaseMetaData, variant, false);
+  }
+
+  /**
+   * Tell whether an exception means the driver does not support what we asked, as opposed to an error in the call,
+   * like a syntax error, a missing privilege or an aborted transaction, or a temporary problem.
+   * @param throwable the exception thrown by the driver
+   * @return whether the exception means "not supported"
+   */
+  public static boolean isUnsupported(Throwable throwable) {
+    if (throwable instanceof AbstractMethodError) return true;
+    if (throwable instanceof UnsupportedOperationException) return true;
+    if (throwable instanceof SQLFeatureNotSupportedException) return true;
+    if (!(throwable instanceof SQLException)) return false;
+    //drivers that predate JDBC 4 throw a plain SQLException, with the SQLSTATE of SQLFeatureNotSupportedException:
+    //class 0A (feature not supported), or HYC00 (optional feature not implemented).
+    String sqlState = ((SQLException)throwable).getSQLState();
+    return sqlState != null && (sqlState.startsWith("0A") || sqlState.equals("HYC00"));
+  }
+}
@@ -0,0 +1,497 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs metadata calls ahead of the step thread, and for different connections concurrently.
+ *
+ * Each connection gets its own lane: calls for one connection are executed one after
+ * the other, so a connection is never used by two threads at the same time.
+ * Lanes share one executor. The total number of concurrent calls, and optionally the
+ * number of concurrent calls per database host, is limited.
+ *
+ * The rows of each call are streamed into a buffer of its own, from which the step thread takes them.
+ * The buffers share a budget of bytes: once it is used up, calls wait until the step thread has taken
+ * enough rows. The call the step thread is currently taking rows from never waits for the budget,
+ * so a single huge result can not stall the pipeline.
+ *
+ * Results are handed back to the step thread either in the order the calls were submitted,
+ * or in the order they complete.
+ */
+public class MetaDataFetcher {
+
+  public static final String executorOptionThreads = "Threads";
+  public static final String executorOptionVirtualThreads = "VirtualThreads";
+
+  public static final String[] executorOptions = new String[]{
+    executorOptionThreads,
+    executorOptionVirtualThreads
+  };
+
+  /**
+   * Does the actual work for one input row. Called on a worker thread.
+   */
+  public interface Fetch {
+    /**
+     * @param inputRow the input row
+     * @param arguments the arguments for the metadata call
+     * @param task receives the metadata rows, see Task.addRow()
+     * @throws Exception
+     */
+    void fetch(Object[] inputRow, Object[] arguments, Task task) throws Exception;
+  }
+
+  /**
+   * The metadata call for one input row.
+   * All state is guarded by the lock of the fetcher.
+   */
+  public class Task implements Runnable {
+    private final Fetch fetch;
+    private final Object[] inputRow;
+    private final Object[] arguments;
+    private final Semaphore hostPermits;
+    private final ArrayDeque<Object[]> rows = new ArrayDeque<Object[]>();
+    private final ArrayDeque<Long> rowSizes = new ArrayDeque<Long>();
+    private Exception exception;
+    private boolean done = false;
+    //whether the step thread is taking rows from this task
+    private boolean head = false;
+    //whether the task was handed to the step thread already (only used when not preserving order)
+    private boolean queued = false;
+    //whether the worker thread holds the permits for this task. Only accessed by the worker thread.
+    private boolean holdingPermits = false;
+
+    private Task(Fetch fetch, Object[] inputRow, Object[] arguments, Semaphore hostPermits) {
+      this.fetch = fetch;
+      this.inputRow = inputRow;
+      this.arguments = arguments;
+      this.hostPermits = hostPermits;
+    }
+
+    private void acquirePermits() throws InterruptedException {
+      permits.acquire();
+      if (hostPermits != null) {
+        try {
+          hostPermits.acquire();
+        }
+        catch (InterruptedException exception) {
+          permits.release();
+          throw exception;
+        }
+      }
+      holdingPermits = true;
+    }
+
+    private void releasePermits() {
+      if (!holdingPermits) return;
+      holdingPermits = false;
+      if (hostPermits != null) hostPermits.release();
+      permits.release();
+    }
+
+    public void run() {
+      Exception exception = null;
+      try {
+        acquirePermits();
+        try {
+          fetch.fetch(inputRow, arguments, this);
+        }
+        finally {
+          releasePermits();
+        }
+      }
+      catch (Exception e) {
+        exception = e;
+      }
+      lock.lock();
+      try {
+        this.exception = exception;
+        this.done = true;
+        enqueue();
+        rowsAvailable.signalAll();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    //hand the task to the step thread, if that did not happen already. Called while holding the lock.
+    private void enqueue() {
+      if (preserveOrder || queued) return;
+      queued = true;
+      completed.offer(this);
+    }
+
+    /**
+     * Add a metadata row to the buffer of this task. Called by Fetch implementations on the worker thread.
+     * Waits if the buffers of all tasks together would exceed the budget.
+     * @param row the metadata row
+     * @param size the estimated size of the row in bytes
+     * @throws InterruptedException
+     */
+    public void addRow(Object[] row, long size) throws InterruptedException {
+      lock.lock();
+      try {
+        if (!head && maxBufferSize > 0 && bufferSize + size > maxBufferSize && bufferSize > 0) {
+          //the budget is used up. Don't hold on to the permits while we wait, other calls may still have work to do.
+          //If the step thread is waiting for any task at all, it can take rows from this one, so let it know.
+          enqueue();
+          releasePermits();
+          waiting++;
+          try {
+            while (!head && bufferSize + size > maxBufferSize && bufferSize > 0) {
+              budgetAvailable.await();
+            }
+          }
+          finally {
+            waiting--;
+            lock.unlock();
+            try {
+              acquirePermits();
+            }
+            finally {
+              lock.lock();
+            }
+          }
+        }
+        rows.offer(row);
+        rowSizes.offer(size);
+        bufferSize += size;
+        if (head) rowsAvailable.signalAll();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Take the next metadata row of this task, waiting for it if necessary. Called by the step thread.
+     * @return the next metadata row, or null if there are no more rows.
+     * @throws Exception the exception thrown by the call, if any.
+     */
+    public Object[] nextRow() throws Exception {
+      lock.lock();
+      try {
+        if (!head) {
+          //from now on, this task does not have to wait for the budget anymore.
+          head = true;
+          budgetAvailable.signalAll();
+        }
+        while (rows.isEmpty() && !done) {
+          rowsAvailable.await();
+        }
+        Object[] row = rows.poll();
+        if (row == null) {
+          if (exception != null) throw exception;
+          return null;
+        }
+        bufferSize -= rowSizes.poll();
+        budgetAvailable.signalAll();
+        return row;
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    private boolean isDone() {
+      lock.lock();
+      try {
+        return done;
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    public Object[] getInputRow() {
+      return inputRow;
+    }
+  }
+
+  /**
+   * Executes the tasks of one connection, one at a time.
+   */
+  private class Lane {
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    private Runnable active;
+
+    synchronized void execute(final Runnable task) {
+      tasks.offer(new Runnable() {
+        public void run() {
+          try {
+            task.run();
+          }
+          finally {
+            scheduleNext();
+          }
+        }
+      });
+      if (active == null) scheduleNext();
+    }
+
+    synchronized void scheduleNext() {
+      active = tasks.poll();
+      if (active != null) executor.execute(active);
+    }
+  }
+
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private final int maxPerHost;
+  private final boolean preserveOrder;
+  private final int maxInFlight;
+  private final long maxBufferSize;
+  private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+  private final Map<String, Semaphore> hostPermits = new HashMap<String, Semaphore>();
+  //guards the buffers of the tasks.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition rowsAvailable = lock.newCondition();
+  private final Condition budgetAvailable = lock.newCondition();
+  private long bufferSize = 0;
+  //number of tasks waiting for the budget
+  private int waiting = 0;
+  //submitted tasks in submission order; used when preserving order.
+  private final ArrayDeque<Task> pending = new ArrayDeque<Task>();
+  //tasks in the order they completed (or got stuck on the budget); used when not preserving order.
+  private final BlockingQueue<Task> completed = new LinkedBlockingQueue<Task>();
+  private int inFlight = 0;
+
+  /**
+   * @param parallelism the maximum number of concurrent calls
+   * @param maxPerHost the maximum number of concurrent calls per database host. 0 means no limit.
+   * @param preserveOrder whether results are handed back in submission order
+   * @param executorOption one of executorOptions
+   * @param maxInFlight the maximum number of calls submitted ahead of the step thread
+   * @param maxBufferSize the maximum number of bytes buffered for all calls together. 0 means no limit.
+   * @param threadNamePrefix used to name the worker threads
+   */
+  public MetaDataFetcher(
+    int parallelism, int maxPerHost, boolean preserveOrder, String executorOption,
+    int maxInFlight, long maxBufferSize, String threadNamePrefix
+  ) {
+    if (parallelism < 1) parallelism = 1;
+    this.permits = new Semaphore(parallelism);
+    this.maxPerHost = maxPerHost;
+    this.preserveOrder = preserveOrder;
+    this.maxInFlight = maxInFlight < 1 ? 1 : maxInFlight;
+    this.maxBufferSize = maxBufferSize;
+    ExecutorService executor = null;
+    if (executorOptionVirtualThreads.equals(executorOption)) {
+      executor = createVirtualThreadExecutor();
+    }
+    if (executor == null) {
+      //a lane only runs one task at a time, so this never has more threads than calls in flight.
+      //Concurrency is limited by the permits, not by the number of threads:
+      //a call that waits for the budget must not keep other calls from starting.
+      executor = Executors.newCachedThreadPool(createThreadFactory(threadNamePrefix));
+    }
+    this.executor = executor;
+  }
+
+  /**
+   * Virtual threads are only available on JDK 21 and up, so we look them up reflectively.
+   * @return an executor that starts a virtual thread per task, or null if virtual threads are not available.
+   */
+  private static ExecutorService createVirtualThreadExecutor() {
+    try {
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+    catch (Exception exception) {
+      return null;
+    }
+  }
+
+  private static ThreadFactory createThreadFactory(final String threadNamePrefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger(1);
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, threadNamePrefix + " fetcher " + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Extract the host from a jdbc url.
+   * Handles the common forms jdbc:subprotocol://host:port/... and jdbc:oracle:thin:@host:port:sid
+   * @param url the jdbc url
+   * @return the host, or null if the url does not have a recognizable host.
+   */
+  public static String getHost(String url) {
+    if (url == null) return null;
+    int start = url.indexOf("//");
+    if (start != -1) {
+      start += 2;
+      //skip user info, if any.
+      int at = url.indexOf('@', start);
+      int slash = url.indexOf('/', start);
+      if (at != -1 && (slash == -1 || at < slash)) start = at + 1;
+    }
+    else {
+      start = url.indexOf('@');
+      if (start == -1) return null;
+      start += 1;
+    }
+    int end = start;
+    char c;
+    while (end < url.length()) {
+      c = url.charAt(end);
+      if (c == ':' || c == '/' || c == ';' || c == '?' || c == ',') break;
+      end++;
+    }
+    if (end == start) return null;
+    return url.substring(start, end).toLowerCase();
+  }
+
+  /**
+   * @return a description of the kind of threads used by this fetcher.
+   */
+  public String getExecutorDescription() {
+    return executor.getClass().getName();
+  }
+
+  private synchronized Lane getLane(String connection) {
+    Lane lane = lanes.get(connection);
+    if (lane == null) {
+      lane = new Lane();
+      lanes.put(connection, lane);
+    }
+    return lane;
+  }
+
+  private synchronized Semaphore getHostPermits(String host) {
+    if (maxPerHost <= 0 || host == null) return null;
+    Semaphore semaphore = hostPermits.get(host);
+    if (semaphore == null) {
+      semaphore = new Semaphore(maxPerHost);
+      hostPermits.put(host, semaphore);
+    }
+    return semaphore;
+  }
+
+  /**
+   * Submit the metadata call for an input row.
+   * @param fetch does the actual call
+   * @param connection identifies the connection; calls for the same connection are executed one at a time
+   * @param host the database host of the connection, used to limit calls per host. May be null.
+   * @param inputRow the input row
+   * @param arguments the arguments for the call (not copied; the caller must not reuse the array)
+   */
+  public void submit(Fetch fetch, String connection, String host, Object[] inputRow, Object[] arguments) {
+    Task task = new Task(fetch, inputRow, arguments, getHostPermits(host));
+    if (preserveOrder) pending.offer(task);
+    inFlight++;
+    getLane(connection).execute(task);
+  }
+
+  /**
+   * @return true if the maximum number of submitted tasks is reached, or if tasks are waiting for the budget,
+   * so results should be taken first.
+   */
+  public boolean isFull() {
+    if (inFlight >= maxInFlight) return true;
+    lock.lock();
+    try {
+      return waiting > 0;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return true if there are submitted tasks whose results were not taken yet.
+   */
+  public boolean hasPending() {
+    return inFlight > 0;
+  }
+
+  /**
+   * Take the next task. Its rows can then be taken with Task.nextRow().
+   * When preserving order, this is the oldest task, which may not have completed yet.
+   * Otherwise, this waits for a task that completed, or that waits for the budget.
+   * @return the next task, or null if no task is pending.
+   * @throws InterruptedException
+   */
+  public Task take() throws InterruptedException {
+    if (inFlight == 0) return null;
+    Task task;
+    if (preserveOrder) {
+      task = pending.poll();
+    }
+    else {
+      task = completed.take();
+    }
+    inFlight--;
+    return task;
+  }
+
+  /**
+   * Take the next task if it has already completed.
+   * @return the next completed task, or null if there is none.
+   */
+  public Task poll() {
+    if (inFlight == 0) return null;
+    Task task;
+    if (preserveOrder) {
+      task = pending.peek();
+      if (!task.isDone()) return null;
+      pending.poll();
+    }
+    else {
+      task = completed.poll();
+      if (task == null) return null;
+    }
+    inFlight--;
+    return task;
+  }
+
+  /**
+   * Stop all work. Calls that are still running are interrupted.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
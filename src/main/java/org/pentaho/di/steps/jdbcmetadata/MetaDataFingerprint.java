@@ -0,0 +1,377 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Computes structural fingerprints of metadata rows, and rolls them up per table, schema and catalog.
+ *
+ * The fingerprint of a row is a hash of the values of its columns. The fingerprint of a table is a hash of its name
+ * and the fingerprints of its rows, in the order they are returned; schemas and catalogs are hashed likewise from their tables and schemas.
+ * This makes a tree of hashes: if the fingerprint of a schema did not change, neither did anything in it,
+ * so two harvests can be compared from the top down, looking only into the parts whose fingerprint differs.
+ *
+ * For most methods, the rollups are computed as the rows stream by, without holding on to them.
+ * This relies on the rows of a table, schema or catalog coming together: the JDBC API orders the results of these methods
+ * by catalog, schema and table, and consecutive calls for the tables of one schema roll up into a single schema.
+ * A table that comes back later, after other tables, gets a rollup row of its own for each time it comes by.
+ *
+ * Other methods are ordered by something else first, like getTables (by TABLE_TYPE) and getIndexInfo (by NON_UNIQUE),
+ * or return the rows of many tables mixed when the table argument is left out, like getImportedKeys (ordered by PKTABLE).
+ * For these, the fingerprint of each table is kept until all rows are in, and the rollups are put at the end,
+ * ordered by catalog, schema and table. This holds one hash per table, not the rows.
+ */
+public class MetaDataFingerprint {
+
+  public static final String LEVEL_ROW = "ROW";
+  public static final String LEVEL_TABLE = "TABLE";
+  public static final String LEVEL_SCHEMA = "SCHEMA";
+  public static final String LEVEL_CATALOG = "CATALOG";
+
+  //the levels of the hierarchy, from the top down.
+  private static final String[] LEVELS = new String[]{LEVEL_CATALOG, LEVEL_SCHEMA, LEVEL_TABLE};
+
+  //the columns that place the rows of each method in the hierarchy.
+  //1) name of the method
+  //2) the names of the catalog, schema and table columns. null if the method has no such level.
+  //   For keys, this is the table that the keys belong to: the foreign key table for imported keys and cross references,
+  //   the primary key table for exported keys.
+  //3) whether the rows are ordered by catalog, schema and table. If not, the rollups are put once all rows are in.
+  //Methods that are not listed have no hierarchy: only their rows get a fingerprint.
+  private final static Object[][] hierarchies = new Object[][]{
+    new Object[]{"discoverKeys", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}, Boolean.TRUE},
+    new Object[]{"getCatalogs", new String[]{"TABLE_CAT", null, null}, Boolean.TRUE},
+    new Object[]{"getColumnPrivileges", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}, Boolean.FALSE},
+    new Object[]{"getColumns", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}, Boolean.TRUE},
+    new Object[]{"getCrossReference", new String[]{"FKTABLE_CAT", "FKTABLE_SCHEM", "FKTABLE_NAME"}, Boolean.TRUE},
+    new Object[]{"getExportedKeys", new String[]{"PKTABLE_CAT", "PKTABLE_SCHEM", "PKTABLE_NAME"}, Boolean.FALSE},
+    new Object[]{"getIndexInfo", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}, Boolean.FALSE},
+    new Object[]{"getImportedKeys", new String[]{"FKTABLE_CAT", "FKTABLE_SCHEM", "FKTABLE_NAME"}, Boolean.FALSE},
+    new Object[]{"getPrimaryKeys", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}, Boolean.FALSE},
+    new Object[]{"getSchemaDocuments", new String[]{"TABLE_CAT", "TABLE_SCHEM", null}, Boolean.TRUE},
+    new Object[]{"getSchemaSnapshot", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}, Boolean.TRUE},
+    new Object[]{"getSchemas", new String[]{"TABLE_CATALOG", "TABLE_SCHEM", null}, Boolean.TRUE},
+    new Object[]{"getTableDocuments", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}, Boolean.TRUE},
+    new Object[]{"getTablePrivileges", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}, Boolean.TRUE},
+    new Object[]{"getTables", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}, Boolean.FALSE}
+  };
+
+  /**
+   * Get the columns that place the rows of a method in the hierarchy.
+   * @param methodName name of the metadata method
+   * @param resultSetDescriptor the columns of the method
+   * @return the indices (0-based) of the catalog, schema and table columns, -1 for a level the method does not have;
+   * or null if the method has no hierarchy.
+   */
+  public static int[] getHierarchyColumns(String methodName, ValueMetaInterface[] resultSetDescriptor) {
+    for (Object[] hierarchy : hierarchies) {
+      if (!hierarchy[0].equals(methodName)) continue;
+      String[] columnNames = (String[])hierarchy[1];
+      int[] columns = new int[columnNames.length];
+      for (int i = 0; i < columnNames.length; i++) {
+        columns[i] = -1;
+        for (int j = 0; j < resultSetDescriptor.length; j++) {
+          if (resultSetDescriptor[j].getName().equals(columnNames[i])) columns[i] = j;
+        }
+      }
+      return columns;
+    }
+    return null;
+  }
+
+  /**
+   * @param methodName name of the metadata method
+   * @return whether the rows of the method come ordered by catalog, schema and table, so that they can be rolled up as they stream by.
+   */
+  public static boolean isOrderedByHierarchy(String methodName) {
+    for (Object[] hierarchy : hierarchies) {
+      if (hierarchy[0].equals(methodName)) return ((Boolean)hierarchy[2]).booleanValue();
+    }
+    return true;
+  }
+
+  /**
+   * Receives the rollup rows.
+   */
+  public interface Output {
+    /**
+     * @param inputRow the input row of the last row that was rolled up.
+     * @param metaDataRow a metadata row that holds only the catalog, schema and table of the rollup.
+     * @param level the level of the rollup (TABLE, SCHEMA or CATALOG)
+     * @param fingerprint the fingerprint
+     * @throws Exception
+     */
+    void put(Object[] inputRow, Object[] metaDataRow, String level, String fingerprint) throws Exception;
+  }
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final ValueMetaInterface[] resultSetDescriptor;
+  //the columns that make up the fingerprint of a row, in the order of the descriptor.
+  private final int[] columns;
+  //the catalog, schema and table columns, or null if there are no rollups.
+  private final int[] hierarchyColumns;
+
+  //the catalog, schema and table we're in, and their fingerprints so far.
+  private final Object[] names = new Object[LEVELS.length];
+  private final long[] hashes = new long[LEVELS.length];
+  private final boolean[] open = new boolean[LEVELS.length];
+  //the input row of the last row, which is passed on with the rollup rows.
+  private Object[] inputRow;
+
+  /**
+   * The fingerprint so far of a table (or whatever the deepest level is), if the rows are not ordered by the hierarchy.
+   */
+  private static class Pending {
+    private final Object[] names;
+    private long hash;
+    private Object[] inputRow;
+
+    private Pending(Object[] names, long hash) {
+      this.names = names;
+      this.hash = hash;
+    }
+  }
+
+  //orders the pending fingerprints by catalog, schema and table; null sorts first.
+  private static final Comparator<Object[]> NAMES_ORDER = new Comparator<Object[]>() {
+    public int compare(Object[] names1, Object[] names2) {
+      int result;
+      for (int i = 0; i < names1.length; i++) {
+        if (names1[i] == null) {
+          result = names2[i] == null ? 0 : -1;
+        }
+        else
+        if (names2[i] == null) {
+          result = 1;
+        }
+        else {
+          result = names1[i].toString().compareTo(names2[i].toString());
+        }
+        if (result != 0) return result;
+      }
+      return 0;
+    }
+  };
+
+  //if the rows are not ordered by the hierarchy, the fingerprints of the deepest level until all rows are in; otherwise null.
+  private final Map<Object[], Pending> pending;
+
+  private long rowCount = 0;
+  private final long[] rollupCounts = new long[LEVELS.length];
+
+  /**
+   * @param resultSetDescriptor the columns of the method
+   * @param columns the columns (0-based) that make up the fingerprint of a row
+   * @param hierarchyColumns the catalog, schema and table columns, as returned by getHierarchyColumns; null for no rollups.
+   */
+  public MetaDataFingerprint(ValueMetaInterface[] resultSetDescriptor, int[] columns, int[] hierarchyColumns) {
+    this(resultSetDescriptor, columns, hierarchyColumns, true);
+  }
+
+  /**
+   * @param resultSetDescriptor the columns of the method
+   * @param columns the columns (0-based) that make up the fingerprint of a row
+   * @param hierarchyColumns the catalog, schema and table columns, as returned by getHierarchyColumns; null for no rollups.
+   * @param ordered whether the rows come ordered by the hierarchy, as returned by isOrderedByHierarchy.
+   * If not, the rollups are put by finish().
+   */
+  public MetaDataFingerprint(ValueMetaInterface[] resultSetDescriptor, int[] columns, int[] hierarchyColumns, boolean ordered) {
+    this.resultSetDescriptor = resultSetDescriptor;
+    this.columns = columns;
+    this.hierarchyColumns = hierarchyColumns;
+    this.pending = hierarchyColumns == null || ordered ? null : new TreeMap<Object[], Pending>(NAMES_ORDER);
+  }
+
+  private static long hash(long hash, long value) {
+    for (int i = 0; i < 8; i++) {
+      hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+      value >>>= 8;
+    }
+    return hash;
+  }
+
+  private static long hash(long hash, String value) {
+    if (value == null) return (hash ^ 0xff) * FNV_PRIME;
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    return (hash ^ 0xfe) * FNV_PRIME;
+  }
+
+  private static String toHex(long hash) {
+    char[] chars = new char[16];
+    for (int i = 15; i >= 0; i--) {
+      chars[i] = HEX[(int)(hash & 0xf)];
+      hash >>>= 4;
+    }
+    return new String(chars);
+  }
+
+  //the value as it is hashed. Numbers are hashed the same whatever type the driver returns them as.
+  private String normalize(int column, Object value) {
+    if (value == null) return null;
+    if (!(value instanceof Number)) return value.toString();
+    Number number = (Number)value;
+    switch (resultSetDescriptor[column].getType()) {
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        //some drivers return a number where the JDBC spec prescribes boolean.
+        return Boolean.toString(number.intValue() == 1);
+      default:
+        return Long.toString(number.longValue());
+    }
+  }
+
+  private long getRowHash(Object[] row) {
+    long hash = FNV_OFFSET;
+    int column;
+    for (int i = 0; i < columns.length; i++) {
+      column = columns[i];
+      hash = hash(hash, column < row.length ? normalize(column, row[column]) : null);
+    }
+    return hash;
+  }
+
+  private Object getName(Object[] row, int level) {
+    int column = hierarchyColumns[level];
+    return column < row.length ? row[column] : null;
+  }
+
+  //put the rollup rows of all open levels from the given level down, and add their fingerprints to their parents.
+  private void close(int level, Output output) throws Exception {
+    Object[] metaDataRow;
+    for (int i = LEVELS.length - 1; i >= level; i--) {
+      if (!open[i]) continue;
+      open[i] = false;
+      metaDataRow = new Object[resultSetDescriptor.length];
+      for (int j = 0; j <= i; j++) {
+        if (hierarchyColumns[j] != -1) metaDataRow[hierarchyColumns[j]] = names[j];
+      }
+      output.put(inputRow, metaDataRow, LEVELS[i], toHex(hashes[i]));
+      rollupCounts[i]++;
+      for (int j = i - 1; j >= 0; j--) {
+        if (!open[j]) continue;
+        hashes[j] = hash(hashes[j], hashes[i]);
+        break;
+      }
+    }
+  }
+
+  /**
+   * Compute the fingerprint of a row, and add it to the fingerprints of its table, schema and catalog.
+   * If the row is not in the same table, schema or catalog as the previous row, the rollups of these are put first.
+   * @param inputRow the input row of the metadata row
+   * @param row the metadata row
+   * @param output receives the rollup rows
+   * @return the fingerprint of the row
+   * @throws Exception
+   */
+  public String add(Object[] inputRow, Object[] row, Output output) throws Exception {
+    long hash = getRowHash(row);
+    rowCount++;
+    if (hierarchyColumns == null) return toHex(hash);
+    Object[] rowNames = new Object[LEVELS.length];
+    int deepest = -1;
+    for (int i = 0; i < LEVELS.length; i++) {
+      if (hierarchyColumns[i] == -1) continue;
+      rowNames[i] = getName(row, i);
+      deepest = i;
+    }
+    if (deepest == -1) return toHex(hash);
+    if (pending != null) {
+      Pending entry = pending.get(rowNames);
+      if (entry == null) {
+        entry = new Pending(rowNames, hash(FNV_OFFSET, rowNames[deepest] == null ? null : rowNames[deepest].toString()));
+        pending.put(rowNames, entry);
+      }
+      entry.hash = hash(entry.hash, hash);
+      entry.inputRow = inputRow;
+    }
+    else {
+      enter(rowNames, inputRow, output);
+      hashes[deepest] = hash(hashes[deepest], hash);
+    }
+    return toHex(hash);
+  }
+
+  //make the given catalog, schema and table the current ones.
+  //If they are not the same as those of the previous row, the rollups of the previous ones are put first.
+  private void enter(Object[] rowNames, Object[] inputRow, Output output) throws Exception {
+    //find the first level that is different from the previous row.
+    int level;
+    Object name;
+    for (level = 0; level < LEVELS.length; level++) {
+      if (hierarchyColumns[level] == -1) continue;
+      name = rowNames[level];
+      if (!open[level] || (names[level] == null ? name != null : !names[level].equals(name))) break;
+    }
+    close(level, output);
+    for (int i = level; i < LEVELS.length; i++) {
+      if (hierarchyColumns[i] == -1) continue;
+      names[i] = rowNames[i];
+      hashes[i] = hash(FNV_OFFSET, names[i] == null ? null : names[i].toString());
+      open[i] = true;
+    }
+    this.inputRow = inputRow;
+  }
+
+  /**
+   * Put the rollup rows of the last table, schema and catalog;
+   * or, if the rows were not ordered by the hierarchy, the rollup rows of all tables, schemas and catalogs.
+   * @param output receives the rollup rows
+   * @throws Exception
+   */
+  public void finish(Output output) throws Exception {
+    if (pending != null) {
+      int deepest = LEVELS.length - 1;
+      while (hierarchyColumns[deepest] == -1) deepest--;
+      for (Pending entry : pending.values()) {
+        enter(entry.names, entry.inputRow, output);
+        //the pending hash already starts with the name, as the hash that enter() just opened does.
+        hashes[deepest] = entry.hash;
+      }
+      pending.clear();
+    }
+    if (hierarchyColumns != null) close(0, output);
+    inputRow = null;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder stringBuilder = new StringBuilder();
+    stringBuilder.append(rowCount).append(" rows");
+    for (int i = LEVELS.length - 1; i >= 0; i--) {
+      if (hierarchyColumns == null || hierarchyColumns[i] == -1) continue;
+      stringBuilder.append(", ").append(rollupCounts[i]).append(" ").append(LEVELS[i].toLowerCase()).append(" rollups");
+    }
+    return stringBuilder.toString();
+  }
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Groups the metadata rows that describe the columns of a table into one row per table,
+ * with the list of its columns, the list of its key columns, and a signature of their types.
+ *
+ * The rows are grouped as they stream by, holding on to the rows of one table only.
+ * Like the rollups of MetaDataFingerprint, this relies on the rows of a table coming together,
+ * which is how the JDBC API orders the results of these methods.
+ * A table that comes back later, after other tables, gets a row of its own for each time it comes by.
+ * The rows of different input rows are never grouped together.
+ */
+public class MetaDataGrouper {
+
+  //the names of the fields that hold the aggregates of a table, and their types.
+  public static final String[] FIELD_NAMES = new String[]{
+    "COLUMN_COUNT", "COLUMN_LIST", "KEY_COLUMN_COUNT", "KEY_COLUMN_LIST", "TYPE_SIGNATURE"
+  };
+  public static final int[] FIELD_TYPES = new int[]{
+    ValueMetaInterface.TYPE_INTEGER, ValueMetaInterface.TYPE_STRING,
+    ValueMetaInterface.TYPE_INTEGER, ValueMetaInterface.TYPE_STRING,
+    ValueMetaInterface.TYPE_STRING
+  };
+
+  //the separator of the lists, the same as that of the CONCAT_COMMA aggregate of the Group By step.
+  private static final String SEPARATOR = ", ";
+
+  //the columns that make up the lists, for each method that can be grouped.
+  //1) name of the method
+  //2) the names of the column name, position and key sequence columns. null if the method has no such column.
+  //   If there is no key sequence, there are no key columns.
+  //Methods that are not listed can't be grouped.
+  private final static Object[][] groupedMethods = new Object[][]{
+    new Object[]{"discoverKeys", new String[]{"COLUMN_NAME", "KEY_SEQ", "KEY_SEQ"}},
+    new Object[]{"getColumns", new String[]{"COLUMN_NAME", "ORDINAL_POSITION", null}},
+    new Object[]{"getPrimaryKeys", new String[]{"COLUMN_NAME", "KEY_SEQ", "KEY_SEQ"}},
+    new Object[]{"getSchemaSnapshot", new String[]{"COLUMN_NAME", "ORDINAL_POSITION", "KEY_SEQ"}}
+  };
+
+  /**
+   * Get the columns that make up the lists of a method.
+   * @param methodName name of the metadata method
+   * @param resultSetDescriptor the columns of the method
+   * @return the indices (0-based) of the column name, position and key sequence columns, -1 for a column the method does not have;
+   * or null if the method can't be grouped.
+   */
+  public static int[] getListColumns(String methodName, ValueMetaInterface[] resultSetDescriptor) {
+    for (Object[] method : groupedMethods) {
+      if (!method[0].equals(methodName)) continue;
+      String[] columnNames = (String[])method[1];
+      int[] columns = new int[columnNames.length];
+      for (int i = 0; i < columnNames.length; i++) {
+        columns[i] = -1;
+        for (int j = 0; j < resultSetDescriptor.length; j++) {
+          if (resultSetDescriptor[j].getName().equals(columnNames[i])) columns[i] = j;
+        }
+      }
+      return columns;
+    }
+    return null;
+  }
+
+  /**
+   * Get all columns the grouper reads.
+   * @param methodName name of the metadata method
+   * @param resultSetDescriptor the columns of the method
+   * @return the indices (0-based) of the columns; or null if the method can't be grouped.
+   */
+  public static int[] getRequiredColumns(String methodName, ValueMetaInterface[] resultSetDescriptor) {
+    int[] listColumns = getListColumns(methodName, resultSetDescriptor);
+    int[] hierarchyColumns = MetaDataFingerprint.getHierarchyColumns(methodName, resultSetDescriptor);
+    if (listColumns == null || hierarchyColumns == null) return null;
+    int[] typeColumns = MetaDataKettleTypes.getTypeColumns(methodName, resultSetDescriptor);
+    List<Integer> columns = new ArrayList<Integer>();
+    for (int[] group : new int[][]{hierarchyColumns, listColumns, typeColumns}) {
+      if (group == null) continue;
+      for (int column : group) {
+        if (column != -1 && !columns.contains(column)) columns.add(column);
+      }
+    }
+    int[] requiredColumns = new int[columns.size()];
+    for (int i = 0; i < requiredColumns.length; i++) {
+      requiredColumns[i] = columns.get(i);
+    }
+    return requiredColumns;
+  }
+
+  /**
+   * Receives the grouped rows.
+   */
+  public interface Output {
+    /**
+     * @param inputRow the input row of the rows of the table.
+     * @param metaDataRow a metadata row that holds only the catalog, schema and table.
+     * @param aggregates the values of the aggregates, in the order of FIELD_NAMES.
+     * @throws Exception
+     */
+    void put(Object[] inputRow, Object[] metaDataRow, Object[] aggregates) throws Exception;
+  }
+
+  //orders the columns of a table by their position, and the key columns by their key sequence.
+  //(Columns without a position keep the order they came in.)
+  private static final Comparator<Object[]> POSITION_ORDER = new Comparator<Object[]>() {
+    public int compare(Object[] column1, Object[] column2) {
+      return compareNumbers((Number)column1[0], (Number)column2[0]);
+    }
+  };
+  private static final Comparator<Object[]> KEY_ORDER = new Comparator<Object[]>() {
+    public int compare(Object[] column1, Object[] column2) {
+      return compareNumbers((Number)column1[2], (Number)column2[2]);
+    }
+  };
+
+  private static int compareNumbers(Number number1, Number number2) {
+    if (number1 == null || number2 == null) return number1 == null ? (number2 == null ? 0 : 1) : -1;
+    long value1 = number1.longValue();
+    long value2 = number2.longValue();
+    return value1 < value2 ? -1 : (value1 == value2 ? 0 : 1);
+  }
+
+  private final int resultSetFieldCount;
+  //the catalog, schema and table columns.
+  private final int[] hierarchyColumns;
+  //the column name, position and key sequence columns.
+  private final int[] listColumns;
+  //the data type, type name, size and scale columns, or null if the method has no column types.
+  private final int[] typeColumns;
+
+  //the table we're in: its input row, its catalog, schema and table, and its columns so far.
+  private boolean open = false;
+  private Object[] inputRow;
+  private final Object[] names;
+  //for each column: its position, name, key sequence and type.
+  private final List<Object[]> columns = new ArrayList<Object[]>();
+  private final Set<String> columnNames = new HashSet<String>();
+
+  private long rowCount = 0;
+  private long groupCount = 0;
+
+  /**
+   * @param methodName name of the metadata method
+   * @param resultSetDescriptor the columns of the method
+   */
+  public MetaDataGrouper(String methodName, ValueMetaInterface[] resultSetDescriptor) {
+    this.resultSetFieldCount = resultSetDescriptor.length;
+    this.hierarchyColumns = MetaDataFingerprint.getHierarchyColumns(methodName, resultSetDescriptor);
+    this.listColumns = getListColumns(methodName, resultSetDescriptor);
+    this.typeColumns = MetaDataKettleTypes.getTypeColumns(methodName, resultSetDescriptor);
+    this.names = new Object[hierarchyColumns.length];
+  }
+
+  private static Object getValue(Object[] row, int column) {
+    return column == -1 || column >= row.length ? null : row[column];
+  }
+
+  private boolean isSameTable(Object[] row) {
+    Object name;
+    for (int i = 0; i < hierarchyColumns.length; i++) {
+      name = getValue(row, hierarchyColumns[i]);
+      if (names[i] == null ? name != null : !names[i].equals(name)) return false;
+    }
+    return true;
+  }
+
+  //the type of a column, as the type name followed by the size and scale, if any.
+  private String getType(Object[] row) {
+    if (typeColumns == null) return null;
+    Object typeName = getValue(row, typeColumns[1]);
+    if (typeName == null) return null;
+    Object size = getValue(row, typeColumns[2]);
+    Object scale = getValue(row, typeColumns[3]);
+    if (size == null) return typeName.toString();
+    return typeName + "(" + size + (scale == null ? "" : "," + scale) + ")";
+  }
+
+  /**
+   * Add a row to the rows of its table.
+   * If the row is not in the same table as the previous row, or belongs to another input row,
+   * the grouped row of the previous table is put first.
+   * @param inputRow the input row of the metadata row
+   * @param row the metadata row
+   * @param output receives the grouped rows
+   * @throws Exception
+   */
+  public void add(Object[] inputRow, Object[] row, Output output) throws Exception {
+    rowCount++;
+    if (open && (inputRow != this.inputRow || !isSameTable(row))) close(output);
+    if (!open) {
+      open = true;
+      this.inputRow = inputRow;
+      for (int i = 0; i < hierarchyColumns.length; i++) {
+        names[i] = getValue(row, hierarchyColumns[i]);
+      }
+    }
+    Object columnName = getValue(row, listColumns[0]);
+    //a column may come by more than once, for instance once for each foreign key it is part of.
+    if (columnName == null || !columnNames.add(columnName.toString())) return;
+    columns.add(new Object[]{
+      getValue(row, listColumns[1]),
+      columnName.toString(),
+      getValue(row, listColumns[2]),
+      getType(row)
+    });
+  }
+
+  //put the grouped row of the table we're in.
+  private void close(Output output) throws Exception {
+    open = false;
+    Collections.sort(columns, POSITION_ORDER);
+    StringBuilder columnList = new StringBuilder();
+    StringBuilder typeSignature = typeColumns == null ? null : new StringBuilder();
+    List<Object[]> keyColumns = new ArrayList<Object[]>();
+    for (Object[] column : columns) {
+      if (columnList.length() > 0) columnList.append(SEPARATOR);
+      columnList.append(column[1]);
+      if (typeSignature != null) {
+        if (typeSignature.length() > 0) typeSignature.append(SEPARATOR);
+        typeSignature.append(column[3]);
+      }
+      if (column[2] != null) keyColumns.add(column);
+    }
+    String keyColumnList = null;
+    if (listColumns[2] != -1) {
+      Collections.sort(keyColumns, KEY_ORDER);
+      StringBuilder stringBuilder = new StringBuilder();
+      for (Object[] column : keyColumns) {
+        if (stringBuilder.length() > 0) stringBuilder.append(SEPARATOR);
+        stringBuilder.append(column[1]);
+      }
+      keyColumnList = stringBuilder.toString();
+    }
+    Object[] metaDataRow = new Object[resultSetFieldCount];
+    for (int i = 0; i < hierarchyColumns.length; i++) {
+      if (hierarchyColumns[i] != -1) metaDataRow[hierarchyColumns[i]] = names[i];
+    }
+    Object[] aggregates = new Object[]{
+      Long.valueOf(columns.size()),
+      columnList.toString(),
+      listColumns[2] == -1 ? null : Long.valueOf(keyColumns.size()),
+      keyColumnList,
+      typeSignature == null ? null : typeSignature.toString()
+    };
+    Object[] inputRow = this.inputRow;
+    this.inputRow = null;
+    columns.clear();
+    columnNames.clear();
+    groupCount++;
+    output.put(inputRow, metaDataRow, aggregates);
+  }
+
+  /**
+   * Put the grouped row of the last table.
+   * @param output receives the grouped rows
+   * @throws Exception
+   */
+  public void finish(Output output) throws Exception {
+    if (open) close(output);
+  }
+
+  @Override
+  public String toString() {
+    return rowCount + " rows, " + groupCount + " tables";
+  }
+}
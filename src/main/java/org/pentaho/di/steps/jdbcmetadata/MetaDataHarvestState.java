@@ -0,0 +1,170 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The state of an incremental harvest: the results of earlier metadata calls, with the watermark they had at the time.
+ *
+ * When the watermark of a call (see MetaDataChangeProbe) is the same as that of the stored result,
+ * the tables it is about did not change, and the stored rows are replayed instead of making the call.
+ * The state is kept in a file between runs. Entries are never dropped, so a run that asks for only some tables
+ * does not lose the state of the others.
+ */
+public class MetaDataHarvestState {
+
+  //marks the file as harvest state, and identifies the version of the format.
+  private static final String MAGIC = "JDBCMETA-STATE-1";
+
+  private final Map<String, Object[]> entries;
+  private boolean changed = false;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  private MetaDataHarvestState(Map<String, Object[]> entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * Read the state from a file.
+   * @param file the file. If it does not exist, the state is empty.
+   * @return the state
+   * @throws IOException
+   */
+  @SuppressWarnings("unchecked")
+  public static MetaDataHarvestState load(File file) throws IOException {
+    if (!file.exists()) return new MetaDataHarvestState(new HashMap<String, Object[]>());
+    ObjectInputStream input = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+    try {
+      if (!MAGIC.equals(input.readObject())) throw new IOException(file + " is not a metadata harvest state file.");
+      return new MetaDataHarvestState((Map<String, Object[]>)input.readObject());
+    }
+    catch (ClassNotFoundException exception) {
+      throw new IOException(file + " is not a metadata harvest state file.", exception);
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Write the state to a file. The file is replaced only once the new state is written completely.
+   * @param file the file
+   * @throws IOException
+   */
+  public synchronized void write(File file) throws IOException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (directory != null && !directory.exists()) directory.mkdirs();
+    File temporaryFile = new File(file.getAbsolutePath() + ".tmp");
+    ObjectOutputStream output = new ObjectOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile))));
+    try {
+      output.writeObject(MAGIC);
+      output.writeObject(entries);
+    }
+    finally {
+      output.close();
+    }
+    if (file.exists() && !file.delete()) throw new IOException("Could not replace " + file);
+    if (!temporaryFile.renameTo(file)) throw new IOException("Could not rename " + temporaryFile + " to " + file);
+    changed = false;
+  }
+
+  /**
+   * Build the key of a call.
+   * @param connectionIdentity identifies the connection
+   * @param method the method, including the selection of columns, as the stored rows only hold the selected columns.
+   * @param arguments the arguments of the call
+   * @return the key
+   */
+  public static String getKey(String connectionIdentity, String method, Object[] arguments) {
+    return connectionIdentity + '\u0003' + method + '\u0003' + MetaDataSnapshot.getKey(arguments);
+  }
+
+  /**
+   * Get the stored rows of a call, if its tables did not change.
+   * @param key the key of the call
+   * @param watermark the current watermark of the call
+   * @return the rows, or null if there are none, or if the watermark is different.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized List<Object[]> getRows(String key, String watermark) {
+    Object[] entry = entries.get(key);
+    if (entry == null || !entry[0].equals(watermark)) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return (List<Object[]>)entry[1];
+  }
+
+  /**
+   * Store the rows of a call.
+   * @param key the key of the call
+   * @param watermark the watermark of the call
+   * @param rows the rows
+   */
+  public synchronized void put(String key, String watermark, List<Object[]> rows) {
+    entries.put(key, new Object[]{watermark, new ArrayList<Object[]>(rows)});
+    changed = true;
+  }
+
+  /**
+   * @return whether anything was stored since the state was loaded or written.
+   */
+  public synchronized boolean isChanged() {
+    return changed;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  @Override
+  public synchronized String toString() {
+    long rows = 0;
+    for (Entry<String, Object[]> entry : entries.entrySet()) {
+      rows += ((List<?>)entry.getValue()[1]).size();
+    }
+    return entries.size() + " calls, " + rows + " rows, " + hits + " unchanged, " + misses + " fetched";
+  }
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Calls one particular DatabaseMetaData method.
+ *
+ * There is one invoker for each method in JdbcMetaDataMeta.methodDescriptors.
+ * Each invoker calls its method directly, so there is no reflection involved in making the call.
+ * The invokers are stateless, and may be shared by all step copies and threads.
+ */
+public abstract class MetaDataInvoker {
+
+  /**
+   * Call the method.
+   * @param databaseMetaData the object to call the method on
+   * @param arguments the arguments, in the types described by the method descriptor.
+   * @return the resultset returned by the method
+   * @throws SQLException
+   */
+  public abstract ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException;
+
+  private static String string(Object argument) {
+    return (String)argument;
+  }
+
+  private static String[] stringArray(Object argument) {
+    return (String[])argument;
+  }
+
+  private static int intValue(Object argument, String name) {
+    if (argument == null) {
+      throw new IllegalArgumentException("Argument " + name + " must not be null.");
+    }
+    return ((Integer)argument).intValue();
+  }
+
+  private static boolean booleanValue(Object argument) {
+    return argument == null ? false : ((Boolean)argument).booleanValue();
+  }
+
+  /**
+   * Wrap an invoker of getIndexInfo, so that it only returns the table statistics rows:
+   * one row for each table, with the number of rows (CARDINALITY) and pages (PAGES) of the table.
+   * With approximate set, most drivers take these from the statistics of the database, without scanning the table.
+   * @param invoker the invoker of getIndexInfo
+   * @return the invoker that leaves out the rows about indexes.
+   */
+  public static MetaDataInvoker getIndexStatistics(final MetaDataInvoker invoker) {
+    final ValueMetaInterface[] resultSetDescriptor = (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("getIndexInfo")[2];
+    return new MetaDataInvoker() {
+      public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+        final ResultSet resultSet = invoker.invoke(databaseMetaData, arguments);
+        return MetaDataSnapshot.createResultSet(resultSetDescriptor, new MetaDataSnapshot.RowSource() {
+          public Object[] next() throws SQLException {
+            while (resultSet.next()) {
+              if (resultSet.getShort("TYPE") != DatabaseMetaData.tableIndexStatistic) continue;
+              Object[] row = new Object[resultSetDescriptor.length];
+              for (int i = 0; i < row.length; i++) {
+                row[i] = resultSet.getObject(i + 1);
+              }
+              return row;
+            }
+            return null;
+          }
+          public void close() throws SQLException {
+            resultSet.close();
+          }
+        });
+      }
+    };
+  }
+
+  public static final MetaDataInvoker GET_CAPABILITY_PROFILE = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return MetaDataCapabilityProfile.harvest(
+        databaseMetaData, (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("getCapabilityProfile")[2]
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_CATALOGS = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getCatalogs();
+    }
+  };
+
+  public static final MetaDataInvoker DISCOVER_KEYS = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return MetaDataKeyDiscovery.harvest(
+        databaseMetaData, string(arguments[0]), string(arguments[1]), string(arguments[2]),
+        (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("discoverKeys")[2]
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_BEST_ROW_IDENTIFIER = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getBestRowIdentifier(
+        string(arguments[0]), string(arguments[1]), string(arguments[2]),
+        intValue(arguments[3], "scope"), booleanValue(arguments[4])
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_COLUMN_PRIVILEGES = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getColumnPrivileges(
+        string(arguments[0]), string(arguments[1]), string(arguments[2]), string(arguments[3])
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_COLUMNS = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getColumns(
+        string(arguments[0]), string(arguments[1]), string(arguments[2]), string(arguments[3])
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_CROSS_REFERENCE = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getCrossReference(
+        string(arguments[0]), string(arguments[1]), string(arguments[2]),
+        string(arguments[3]), string(arguments[4]), string(arguments[5])
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_EXPORTED_KEYS = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getExportedKeys(string(arguments[0]), string(arguments[1]), string(arguments[2]));
+    }
+  };
+
+  public static final MetaDataInvoker GET_IMPORTED_KEYS = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getImportedKeys(string(arguments[0]), string(arguments[1]), string(arguments[2]));
+    }
+  };
+
+  public static final MetaDataInvoker GET_INDEX_INFO = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getIndexInfo(
+        string(arguments[0]), string(arguments[1]), string(arguments[2]),
+        booleanValue(arguments[3]), booleanValue(arguments[4])
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_PRIMARY_KEYS = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getPrimaryKeys(string(arguments[0]), string(arguments[1]), string(arguments[2]));
+    }
+  };
+
+  public static final MetaDataInvoker GET_SCHEMAS = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      String catalog = string(arguments[0]);
+      String schemaPattern = string(arguments[1]);
+      //without filters, the old variant does the same, and all drivers have it.
+      if (catalog == null && schemaPattern == null) return databaseMetaData.getSchemas();
+      if (!Boolean.FALSE.equals(MetaDataDriverProbe.isSupported(databaseMetaData, MetaDataDriverProbe.SCHEMAS_BY_PATTERN))) {
+        try {
+          ResultSet resultSet = databaseMetaData.getSchemas(catalog, schemaPattern);
+          MetaDataDriverProbe.setSupported(databaseMetaData, MetaDataDriverProbe.SCHEMAS_BY_PATTERN, true);
+          return resultSet;
+        }
+        catch (AbstractMethodError error) {
+          //a JDBC 3 driver.
+          MetaDataDriverProbe.setSupported(databaseMetaData, MetaDataDriverProbe.SCHEMAS_BY_PATTERN, false);
+        }
+        catch (SQLException exception) {
+          //only stored if the driver says it does not support the variant; filtering here works either way.
+          MetaDataDriverProbe.setFailed(databaseMetaData, MetaDataDriverProbe.SCHEMAS_BY_PATTERN, exception);
+        }
+      }
+      return filterSchemas(databaseMetaData, catalog, schemaPattern);
+    }
+  };
+
+  /**
+   * Get all schemas, and filter them here, for drivers that can't filter them.
+   * @param databaseMetaData
+   * @param catalog the catalog, as in getSchemas(catalog, schemaPattern)
+   * @param schemaPattern the schema pattern, as in getSchemas(catalog, schemaPattern)
+   * @return the schemas that match
+   * @throws SQLException
+   */
+  private static ResultSet filterSchemas(DatabaseMetaData databaseMetaData, final String catalog, String schemaPattern) throws SQLException {
+    final JdbcPattern pattern = schemaPattern == null ? null : new JdbcPattern(schemaPattern, databaseMetaData.getSearchStringEscape(), false);
+    final ResultSet resultSet = databaseMetaData.getSchemas();
+    //drivers before JDBC 3 do not return the catalog.
+    final boolean hasCatalog = resultSet.getMetaData().getColumnCount() > 1;
+    return MetaDataSnapshot.createResultSet(
+      (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("getSchemas")[2],
+      new MetaDataSnapshot.RowSource() {
+        public Object[] next() throws SQLException {
+          String schemaName, catalogName;
+          while (resultSet.next()) {
+            schemaName = resultSet.getString(1);
+            catalogName = hasCatalog ? resultSet.getString(2) : null;
+            if (pattern != null && (schemaName == null || !pattern.matches(schemaName))) continue;
+            //the empty string stands for the schemas that have no catalog.
+            if (catalog != null && !(catalog.length() == 0 ? catalogName == null : catalog.equals(catalogName))) continue;
+            return new Object[]{schemaName, catalogName};
+          }
+          return null;
+        }
+        public void close() throws SQLException {
+          resultSet.close();
+        }
+      }
+    );
+  }
+
+  public static final MetaDataInvoker GET_SCHEMA_SNAPSHOT = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return MetaDataSchemaHarvester.harvest(
+        databaseMetaData, string(arguments[0]), string(arguments[1]), string(arguments[2]),
+        (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("getSchemaSnapshot")[2]
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_SCHEMA_DOCUMENTS = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return MetaDataDocumentHarvester.harvest(
+        databaseMetaData, string(arguments[0]), string(arguments[1]), string(arguments[2]), true,
+        (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("getSchemaDocuments")[2]
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_TABLE_DOCUMENTS = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return MetaDataDocumentHarvester.harvest(
+        databaseMetaData, string(arguments[0]), string(arguments[1]), string(arguments[2]), false,
+        (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("getTableDocuments")[2]
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_TABLE_DEPENDENCIES = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return MetaDataDependencyGraph.harvest(
+        databaseMetaData, string(arguments[0]), string(arguments[1]), string(arguments[2]),
+        (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("getTableDependencies")[2]
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_TABLE_PRIVILEGES = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getTablePrivileges(string(arguments[0]), string(arguments[1]), string(arguments[2]));
+    }
+  };
+
+  public static final MetaDataInvoker GET_TABLE_TYPES = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getTableTypes();
+    }
+  };
+
+  public static final MetaDataInvoker GET_TABLES = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getTables(
+        string(arguments[0]), string(arguments[1]), string(arguments[2]), stringArray(arguments[3])
+      );
+    }
+  };
+
+  public static final MetaDataInvoker GET_TYPE_INFO = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getTypeInfo();
+    }
+  };
+
+  public static final MetaDataInvoker GET_VERSION_COLUMNS = new MetaDataInvoker() {
+    public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+      return databaseMetaData.getVersionColumns(string(arguments[0]), string(arguments[1]), string(arguments[2]));
+    }
+  };
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.util.Arrays;
+
+/**
+ * Writes JSON text into a buffer that is reused for each document.
+ * Once the buffer has grown to the size of the largest document, writing allocates nothing but the string of the finished document.
+ * The writer keeps track of the commas; it does not check that the calls make a well-formed document.
+ */
+public class MetaDataJsonWriter {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final StringBuilder json = new StringBuilder(4096);
+  //for each open object or array, whether nothing was written in it yet.
+  private boolean[] empty = new boolean[16];
+  private int depth = 0;
+  //whether a name was just written, so that the value that follows gets no comma.
+  private boolean afterName = false;
+
+  /**
+   * Start a new document, dropping the text of the previous one.
+   * @return this writer
+   */
+  public MetaDataJsonWriter reset() {
+    json.setLength(0);
+    depth = 0;
+    afterName = false;
+    return this;
+  }
+
+  private void separate() {
+    if (afterName) {
+      afterName = false;
+      return;
+    }
+    if (depth == 0) return;
+    if (empty[depth - 1]) {
+      empty[depth - 1] = false;
+    }
+    else {
+      json.append(',');
+    }
+  }
+
+  private MetaDataJsonWriter open(char bracket) {
+    separate();
+    json.append(bracket);
+    if (depth == empty.length) empty = Arrays.copyOf(empty, depth * 2);
+    empty[depth++] = true;
+    return this;
+  }
+
+  private MetaDataJsonWriter close(char bracket) {
+    depth--;
+    json.append(bracket);
+    return this;
+  }
+
+  public MetaDataJsonWriter beginObject() {
+    return open('{');
+  }
+
+  public MetaDataJsonWriter endObject() {
+    return close('}');
+  }
+
+  public MetaDataJsonWriter beginArray() {
+    return open('[');
+  }
+
+  public MetaDataJsonWriter endArray() {
+    return close(']');
+  }
+
+  /**
+   * Write the name of a member of an object. The next call writes its value.
+   * @param name the name
+   * @return this writer
+   */
+  public MetaDataJsonWriter name(String name) {
+    separate();
+    string(name);
+    json.append(':');
+    afterName = true;
+    return this;
+  }
+
+  /**
+   * Write a value. Numbers and booleans are written as such; anything else is written as a string.
+   * @param value the value, may be null.
+   * @return this writer
+   */
+  public MetaDataJsonWriter value(Object value) {
+    separate();
+    if (value == null) {
+      json.append("null");
+    }
+    else
+    if (value instanceof Boolean || value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      json.append(value);
+    }
+    else
+    if (value instanceof Number) {
+      double number = ((Number)value).doubleValue();
+      //JSON has no NaN or infinity.
+      if (Double.isNaN(number) || Double.isInfinite(number)) {
+        json.append("null");
+      }
+      else {
+        json.append(value);
+      }
+    }
+    else {
+      string(value.toString());
+    }
+    return this;
+  }
+
+  /**
+   * Write a member of an object.
+   * @param name the name
+   * @param value the value, as in value(Object)
+   * @return this writer
+   */
+  public MetaDataJsonWriter property(String name, Object value) {
+    return name(name).value(value);
+  }
+
+  //write a string, escaping what JSON requires. Runs of characters that need no escaping are appended at once.
+  private void string(String string) {
+    json.append('"');
+    int start = 0;
+    int n = string.length();
+    char c;
+    for (int i = 0; i < n; i++) {
+      c = string.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') continue;
+      json.append(string, start, i);
+      start = i + 1;
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          //other control characters, and the line and paragraph separators that javascript does not allow in strings.
+          json.append("\\u")
+            .append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf])
+            .append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf])
+          ;
+      }
+    }
+    json.append(string, start, n);
+    json.append('"');
+  }
+
+  @Override
+  public String toString() {
+    return json.toString();
+  }
+}
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSetMetaData;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleDatabaseException;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Maps the column types in metadata rows to the Kettle types that a step reading such a column would get.
+ *
+ * The mapping is done by Kettle itself, with the rules of the database dialect, as if the column was in a query result.
+ * The metadata rows of a database have few distinct combinations of data type, type name, size and scale,
+ * so each combination is mapped once, and every later row with that combination is a single hash lookup.
+ */
+public class MetaDataKettleTypes {
+
+  //the names of the fields that hold the Kettle type, and their types.
+  public static final String[] FIELD_NAMES = new String[]{
+    "KETTLE_TYPE", "KETTLE_TYPE_NAME", "KETTLE_LENGTH", "KETTLE_PRECISION", "KETTLE_STORAGE_TYPE"
+  };
+  public static final int[] FIELD_TYPES = new int[]{
+    ValueMetaInterface.TYPE_INTEGER, ValueMetaInterface.TYPE_STRING,
+    ValueMetaInterface.TYPE_INTEGER, ValueMetaInterface.TYPE_INTEGER,
+    ValueMetaInterface.TYPE_STRING
+  };
+
+  //the columns that describe the type of a column, for each method that has them.
+  //1) name of the method
+  //2) the names of the data type, type name, size and scale columns. null if the method has no scale.
+  //Methods that are not listed have no column types.
+  private final static Object[][] typeColumns = new Object[][]{
+    new Object[]{"getBestRowIdentifier", new String[]{"DATA_TYPE", "TYPE_NAME", "COLUMN_SIZE", "DECIMAL_DIGITS"}},
+    new Object[]{"getColumns", new String[]{"DATA_TYPE", "TYPE_NAME", "COLUMN_SIZE", "DECIMAL_DIGITS"}},
+    new Object[]{"getSchemaSnapshot", new String[]{"DATA_TYPE", "TYPE_NAME", "COLUMN_SIZE", "DECIMAL_DIGITS"}},
+    new Object[]{"getTypeInfo", new String[]{"DATA_TYPE", "TYPE_NAME", "PRECISION", null}},
+    new Object[]{"getVersionColumns", new String[]{"DATA_TYPE", "TYPE_NAME", "COLUMN_SIZE", "DECIMAL_DIGITS"}}
+  };
+
+  /**
+   * Get the columns that describe the type of a column.
+   * @param methodName name of the metadata method
+   * @param resultSetDescriptor the columns of the method
+   * @return the indices (0-based) of the data type, type name, size and scale columns, -1 for a column the method does not have;
+   * or null if the method has no column types.
+   */
+  public static int[] getTypeColumns(String methodName, ValueMetaInterface[] resultSetDescriptor) {
+    for (Object[] method : typeColumns) {
+      if (!method[0].equals(methodName)) continue;
+      String[] columnNames = (String[])method[1];
+      int[] columns = new int[columnNames.length];
+      for (int i = 0; i < columnNames.length; i++) {
+        columns[i] = -1;
+        for (int j = 0; j < resultSetDescriptor.length; j++) {
+          if (resultSetDescriptor[j].getName().equals(columnNames[i])) columns[i] = j;
+        }
+      }
+      return columns;
+    }
+    return null;
+  }
+
+  /**
+   * A combination of data type, type name, size and scale.
+   */
+  private static final class Key {
+    private final int dataType;
+    private final String typeName;
+    private final int size;
+    private final int scale;
+
+    private Key(int dataType, String typeName, int size, int scale) {
+      this.dataType = dataType;
+      this.typeName = typeName;
+      this.size = size;
+      this.scale = scale;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof Key)) return false;
+      Key key = (Key)object;
+      return
+        dataType == key.dataType && size == key.size && scale == key.scale &&
+        (typeName == null ? key.typeName == null : typeName.equals(key.typeName))
+      ;
+    }
+
+    @Override
+    public int hashCode() {
+      int hashCode = dataType;
+      hashCode = 31 * hashCode + (typeName == null ? 0 : typeName.hashCode());
+      hashCode = 31 * hashCode + size;
+      hashCode = 31 * hashCode + scale;
+      return hashCode;
+    }
+  }
+
+  /**
+   * The Kettle type of a combination, and the values of its fields.
+   */
+  private static final class KettleType {
+    //null if Kettle does not map the type.
+    private final ValueMetaInterface valueMeta;
+    private final Object[] fields;
+
+    private KettleType(ValueMetaInterface valueMeta) {
+      this.valueMeta = valueMeta;
+      this.fields = valueMeta == null ? new Object[FIELD_NAMES.length] : new Object[]{
+        Long.valueOf(valueMeta.getType()),
+        valueMeta.getTypeDesc(),
+        Long.valueOf(valueMeta.getLength()),
+        Long.valueOf(valueMeta.getPrecision()),
+        valueMeta.getStorageTypeDesc()
+      };
+    }
+  }
+
+  //for rows without a data type.
+  private static final KettleType NO_TYPE = new KettleType(null);
+
+  private final DatabaseMeta databaseMeta;
+  private final int[] columns;
+  private final Map<Key, KettleType> kettleTypes = new HashMap<Key, KettleType>();
+
+  private long rowCount = 0;
+
+  /**
+   * @param databaseMeta the database whose dialect maps the types
+   * @param columns the data type, type name, size and scale columns, as returned by getTypeColumns.
+   */
+  public MetaDataKettleTypes(DatabaseMeta databaseMeta, int[] columns) {
+    this.databaseMeta = databaseMeta;
+    this.columns = columns;
+  }
+
+  private static int getInt(Object[] row, int column) {
+    if (column == -1 || column >= row.length || row[column] == null) return 0;
+    return ((Number)row[column]).intValue();
+  }
+
+  private static String getString(Object[] row, int column) {
+    if (column == -1 || column >= row.length || row[column] == null) return null;
+    return row[column].toString();
+  }
+
+  private KettleType lookup(Object[] row) throws KettleDatabaseException {
+    rowCount++;
+    if (getString(row, columns[0]) == null) return NO_TYPE;
+    Key key = new Key(getInt(row, columns[0]), getString(row, columns[1]), getInt(row, columns[2]), getInt(row, columns[3]));
+    KettleType kettleType = kettleTypes.get(key);
+    if (kettleType == null) {
+      kettleType = new KettleType(mapType(key));
+      kettleTypes.put(key, kettleType);
+    }
+    return kettleType;
+  }
+
+  /**
+   * Get the Kettle type of the column described by a metadata row.
+   * @param row the metadata row
+   * @return the type id, type name, length, precision and storage type, in the order of FIELD_NAMES.
+   * All are null if the data type of the row is unknown, or if Kettle does not map it.
+   * The array is shared by all rows of the same type, so it must not be changed.
+   * @throws KettleDatabaseException
+   */
+  public synchronized Object[] getKettleType(Object[] row) throws KettleDatabaseException {
+    return lookup(row).fields;
+  }
+
+  /**
+   * Get the Kettle type of the column described by a metadata row, as a value meta.
+   * @param row the metadata row
+   * @return the value meta, which is shared by all rows of the same type, so it must not be changed;
+   * or null if the data type of the row is unknown, or if Kettle does not map it.
+   * @throws KettleDatabaseException
+   */
+  public synchronized ValueMetaInterface getValueMeta(Object[] row) throws KettleDatabaseException {
+    return lookup(row).valueMeta;
+  }
+
+  //let Kettle map the type, as it would for a column in a query result.
+  private ValueMetaInterface mapType(final Key key) throws KettleDatabaseException {
+    ResultSetMetaData resultSetMetaData = (ResultSetMetaData)Proxy.newProxyInstance(
+      ResultSetMetaData.class.getClassLoader(),
+      new Class<?>[]{ResultSetMetaData.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          String name = method.getName();
+          if ("getColumnType".equals(name)) return key.dataType;
+          if ("getColumnTypeName".equals(name)) return key.typeName;
+          if ("getPrecision".equals(name) || "getColumnDisplaySize".equals(name)) return key.size;
+          if ("getScale".equals(name)) return key.scale;
+          if ("getColumnName".equals(name) || "getColumnLabel".equals(name)) return FIELD_NAMES[0];
+          if ("getColumnCount".equals(name)) return 1;
+          if ("isSigned".equals(name)) return Boolean.TRUE;
+          if ("isNullable".equals(name)) return ResultSetMetaData.columnNullableUnknown;
+          if ("hashCode".equals(name)) return System.identityHashCode(proxy);
+          if ("equals".equals(name)) return proxy == args[0];
+          Class<?> returnType = method.getReturnType();
+          if (returnType == Boolean.TYPE) return Boolean.FALSE;
+          if (returnType == Integer.TYPE) return 0;
+          return null;
+        }
+      }
+    );
+    return new ValueMeta().getValueFromSQLType(databaseMeta, FIELD_NAMES[0], resultSetMetaData, 1, false, true);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return rowCount + " rows, " + kettleTypes.size() + " distinct types";
+  }
+}
@@ -0,0 +1,308 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Produces the rows of the discoverKeys pseudo-method: for each table, the columns of a key that identifies its rows.
+ *
+ * The key is the first of:
+ * - the primary key;
+ * - the unique index with the fewest columns (by name, if there are several);
+ * - the best row identifier, if it is made of real columns (not, for example, a ROWID).
+ * A table for which none of these is found gets a single row, without key columns.
+ *
+ * The primary keys and unique indexes are read for the whole schema at once, when the tables of the schema come by,
+ * and held until the next schema. If the driver needs a table name, they are read table by table instead.
+ * The best row identifier is only asked for the tables that have neither.
+ */
+public class MetaDataKeyDiscovery implements MetaDataSnapshot.RowSource {
+
+  public static final String SOURCE_PRIMARY_KEY = "PRIMARY_KEY";
+  public static final String SOURCE_UNIQUE_INDEX = "UNIQUE_INDEX";
+  public static final String SOURCE_BEST_ROW_IDENTIFIER = "BEST_ROW_IDENTIFIER";
+
+  private final DatabaseMetaData databaseMetaData;
+  private final int columnCount;
+
+  //the tables: catalog, schema and name.
+  private final List<String[]> tables = new ArrayList<String[]>();
+  private int tableIndex = 0;
+  //the rows of the current table that were not yet returned.
+  private final LinkedList<Object[]> rows = new LinkedList<Object[]>();
+
+  //the schema whose keys and indexes we hold.
+  private String schemaKey;
+  //the primary key columns (name, sequence, column) by table, or null to read them table by table.
+  private Map<String, List<Object[]>> primaryKeys;
+  //the columns of the unique indexes by index name, by table, or null to read them table by table.
+  private Map<String, Map<String, List<Object[]>>> uniqueIndexes;
+  //whether the driver can not return indexes at all.
+  private boolean indexesFailed = false;
+
+  private MetaDataKeyDiscovery(DatabaseMetaData databaseMetaData, int columnCount) {
+    this.databaseMetaData = databaseMetaData;
+    this.columnCount = columnCount;
+  }
+
+  /**
+   * Discover the keys of the tables.
+   * @param databaseMetaData the metadata
+   * @param catalog the catalog, as in getTables
+   * @param schemaPattern the schema pattern, as in getTables
+   * @param tableNamePattern the table name pattern, as in getTables
+   * @param resultSetDescriptor the columns of the discoverKeys method
+   * @return a resultset that streams the rows, table by table.
+   * @throws SQLException
+   */
+  public static ResultSet harvest(
+    DatabaseMetaData databaseMetaData, String catalog, String schemaPattern, String tableNamePattern, ValueMetaInterface[] resultSetDescriptor
+  ) throws SQLException {
+    if (tableNamePattern == null) tableNamePattern = "%";
+    MetaDataKeyDiscovery discovery = new MetaDataKeyDiscovery(databaseMetaData, resultSetDescriptor.length);
+    ResultSet resultSet = databaseMetaData.getTables(catalog, schemaPattern, tableNamePattern, null);
+    try {
+      while (resultSet.next()) {
+        discovery.tables.add(new String[]{
+          resultSet.getString("TABLE_CAT"), resultSet.getString("TABLE_SCHEM"), resultSet.getString("TABLE_NAME")
+        });
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return MetaDataSnapshot.createResultSet(resultSetDescriptor, discovery);
+  }
+
+  private static String getTableKey(Object catalog, Object schema, Object table) {
+    return MetaDataSnapshot.getKey(new Object[]{catalog, schema, table});
+  }
+
+  private static Long getLong(ResultSet resultSet, String column) throws SQLException {
+    long value = resultSet.getLong(column);
+    return resultSet.wasNull() ? null : Long.valueOf(value);
+  }
+
+  //read primary key columns, by table.
+  private Map<String, List<Object[]>> readPrimaryKeys(String catalog, String schema, String table) throws SQLException {
+    Map<String, List<Object[]>> keys = new HashMap<String, List<Object[]>>();
+    ResultSet resultSet = databaseMetaData.getPrimaryKeys(catalog, schema, table);
+    try {
+      String key;
+      List<Object[]> columns;
+      while (resultSet.next()) {
+        key = getTableKey(resultSet.getString("TABLE_CAT"), resultSet.getString("TABLE_SCHEM"), resultSet.getString("TABLE_NAME"));
+        columns = keys.get(key);
+        if (columns == null) keys.put(key, columns = new ArrayList<Object[]>());
+        columns.add(new Object[]{resultSet.getString("PK_NAME"), getLong(resultSet, "KEY_SEQ"), resultSet.getString("COLUMN_NAME")});
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return keys;
+  }
+
+  //read unique index columns, by index name, by table.
+  private Map<String, Map<String, List<Object[]>>> readUniqueIndexes(String catalog, String schema, String table) throws SQLException {
+    Map<String, Map<String, List<Object[]>>> indexes = new HashMap<String, Map<String, List<Object[]>>>();
+    ResultSet resultSet = databaseMetaData.getIndexInfo(catalog, schema, table, true, true);
+    try {
+      String key, indexName, columnName;
+      Map<String, List<Object[]>> tableIndexes;
+      List<Object[]> columns;
+      while (resultSet.next()) {
+        indexName = resultSet.getString("INDEX_NAME");
+        columnName = resultSet.getString("COLUMN_NAME");
+        //statistics rows, and indexes on expressions, are of no use as a key.
+        if (indexName == null || columnName == null) continue;
+        if (resultSet.getBoolean("NON_UNIQUE")) continue;
+        key = getTableKey(resultSet.getString("TABLE_CAT"), resultSet.getString("TABLE_SCHEM"), resultSet.getString("TABLE_NAME"));
+        tableIndexes = indexes.get(key);
+        if (tableIndexes == null) indexes.put(key, tableIndexes = new TreeMap<String, List<Object[]>>());
+        columns = tableIndexes.get(indexName);
+        if (columns == null) tableIndexes.put(indexName, columns = new ArrayList<Object[]>());
+        columns.add(new Object[]{indexName, getLong(resultSet, "ORDINAL_POSITION"), columnName});
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return indexes;
+  }
+
+  //read the primary keys and unique indexes of a whole schema, if the driver lets us.
+  private void readSchema(String catalog, String schema) throws SQLException {
+    primaryKeys = null;
+    if (!Boolean.FALSE.equals(MetaDataDriverProbe.isSupported(databaseMetaData, MetaDataDriverProbe.PRIMARY_KEYS_OF_SCHEMA))) {
+      try {
+        primaryKeys = readPrimaryKeys(catalog, schema, null);
+        if (primaryKeys.isEmpty()) {
+          primaryKeys = null;
+        }
+        else {
+          MetaDataDriverProbe.setSupported(databaseMetaData, MetaDataDriverProbe.PRIMARY_KEYS_OF_SCHEMA, true);
+        }
+      }
+      catch (SQLException exception) {
+        MetaDataDriverProbe.setFailed(databaseMetaData, MetaDataDriverProbe.PRIMARY_KEYS_OF_SCHEMA, exception);
+      }
+    }
+    uniqueIndexes = null;
+    if (indexesFailed) return;
+    if (Boolean.FALSE.equals(MetaDataDriverProbe.isSupported(databaseMetaData, MetaDataDriverProbe.INDEX_INFO_OF_SCHEMA))) return;
+    try {
+      uniqueIndexes = readUniqueIndexes(catalog, schema, null);
+      if (uniqueIndexes.isEmpty()) {
+        uniqueIndexes = null;
+      }
+      else {
+        MetaDataDriverProbe.setSupported(databaseMetaData, MetaDataDriverProbe.INDEX_INFO_OF_SCHEMA, true);
+      }
+    }
+    catch (SQLException exception) {
+      MetaDataDriverProbe.setFailed(databaseMetaData, MetaDataDriverProbe.INDEX_INFO_OF_SCHEMA, exception);
+    }
+  }
+
+  private List<Object[]> getPrimaryKey(String[] table, String key) throws SQLException {
+    Map<String, List<Object[]>> keys = primaryKeys == null ? readPrimaryKeys(table[0], table[1], table[2]) : primaryKeys;
+    return keys.get(key);
+  }
+
+  private List<Object[]> getUniqueIndex(String[] table, String key) throws SQLException {
+    Map<String, Map<String, List<Object[]>>> indexes = uniqueIndexes;
+    if (indexes == null) {
+      if (indexesFailed) return null;
+      try {
+        indexes = readUniqueIndexes(table[0], table[1], table[2]);
+      }
+      catch (SQLException exception) {
+        //an index is only a fallback, so a driver that can not tell us about them is no reason to fail.
+        indexesFailed = true;
+        return null;
+      }
+    }
+    Map<String, List<Object[]>> tableIndexes = indexes.get(key);
+    if (tableIndexes == null) return null;
+    List<Object[]> best = null;
+    for (List<Object[]> columns : tableIndexes.values()) {
+      if (best == null || columns.size() < best.size()) best = columns;
+    }
+    return best;
+  }
+
+  private List<Object[]> getBestRowIdentifier(String[] table) throws SQLException {
+    List<Object[]> columns = new ArrayList<Object[]>();
+    ResultSet resultSet = databaseMetaData.getBestRowIdentifier(table[0], table[1], table[2], DatabaseMetaData.bestRowSession, false);
+    try {
+      while (resultSet.next()) {
+        if (resultSet.getShort("PSEUDO_COLUMN") == DatabaseMetaData.bestRowPseudo) return null;
+        columns.add(new Object[]{null, Long.valueOf(columns.size() + 1), resultSet.getString("COLUMN_NAME")});
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return columns.isEmpty() ? null : columns;
+  }
+
+  private static final Comparator<Object[]> BY_SEQUENCE = new Comparator<Object[]>() {
+    public int compare(Object[] a, Object[] b) {
+      Long sequenceA = (Long)a[1];
+      Long sequenceB = (Long)b[1];
+      if (sequenceA == null) return sequenceB == null ? 0 : -1;
+      if (sequenceB == null) return 1;
+      return sequenceA.compareTo(sequenceB);
+    }
+  };
+
+  private void discover(String[] table) throws SQLException {
+    String key = MetaDataSnapshot.getKey(new Object[]{table[0], table[1]});
+    if (!key.equals(schemaKey)) {
+      schemaKey = key;
+      readSchema(table[0], table[1]);
+    }
+    key = getTableKey(table[0], table[1], table[2]);
+    String source = SOURCE_PRIMARY_KEY;
+    List<Object[]> columns = getPrimaryKey(table, key);
+    if (columns == null) {
+      source = SOURCE_UNIQUE_INDEX;
+      columns = getUniqueIndex(table, key);
+    }
+    if (columns == null) {
+      source = SOURCE_BEST_ROW_IDENTIFIER;
+      columns = getBestRowIdentifier(table);
+    }
+    Object[] row;
+    if (columns == null) {
+      row = new Object[columnCount];
+      row[0] = table[0];
+      row[1] = table[1];
+      row[2] = table[2];
+      rows.add(row);
+      return;
+    }
+    columns = new ArrayList<Object[]>(columns);
+    Collections.sort(columns, BY_SEQUENCE);
+    for (Object[] column : columns) {
+      row = new Object[columnCount];
+      row[0] = table[0];
+      row[1] = table[1];
+      row[2] = table[2];
+      row[3] = source;
+      row[4] = column[0];
+      row[5] = column[1];
+      row[6] = column[2];
+      rows.add(row);
+    }
+  }
+
+  public Object[] next() throws SQLException {
+    while (rows.isEmpty()) {
+      if (tableIndex >= tables.size()) return null;
+      discover(tables.get(tableIndex++));
+    }
+    return rows.removeFirst();
+  }
+
+  public void close() {
+    tables.clear();
+    rows.clear();
+    primaryKeys = null;
+    uniqueIndexes = null;
+  }
+}
@@ -0,0 +1,767 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Answers a metadata call with one query against the native catalog of the database, instead of calling the DatabaseMetaData method.
+ *
+ * Some drivers implement methods like getColumns and getImportedKeys with several statements per call, or one per table.
+ * For the databases we know, this runs a single set-based query that returns the same columns, in the same order,
+ * as described by JdbcMetaDataMeta.methodDescriptors. Only the columns that are actually read are computed by the query;
+ * the others are returned as NULL. The arguments of the call are pushed into the WHERE clause as parameters.
+ *
+ * The dialect is chosen by the database product name. For databases and methods we do not know, the method is called as usual.
+ *
+ * Drivers differ in the details they report (type names, type codes, sizes), so the native query has to earn its place:
+ * until a call that returns rows has been answered identically by the native query and by the driver,
+ * every call runs both, and returns the rows of the driver. If they differ, the method is called as usual from then on.
+ * If the native query fails, for example because this version of the database has a different catalog,
+ * the method is called as usual for a while, and then the native query is tried again.
+ * If the connection is in a transaction, the native query runs within a savepoint, so that a failure does not spoil the
+ * transaction; if the driver has no savepoints, the method is called as usual.
+ */
+public class MetaDataNativeQuery extends MetaDataInvoker {
+
+  //the columns the arguments of each method apply to, in the order of the arguments.
+  private final static Object[][] methodFilters = new Object[][]{
+    new Object[]{"getColumns", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME"}},
+    new Object[]{"getExportedKeys", new String[]{"PKTABLE_CAT", "PKTABLE_SCHEM", "PKTABLE_NAME"}},
+    new Object[]{"getImportedKeys", new String[]{"FKTABLE_CAT", "FKTABLE_SCHEM", "FKTABLE_NAME"}},
+    new Object[]{"getPrimaryKeys", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}},
+    new Object[]{"getTables", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "TABLE_TYPE"}}
+  };
+
+  //the order of the rows of each method, as prescribed by the JDBC API.
+  private final static Object[][] methodOrders = new Object[][]{
+    new Object[]{"getColumns", new String[]{"TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "ORDINAL_POSITION"}},
+    new Object[]{"getExportedKeys", new String[]{"FKTABLE_CAT", "FKTABLE_SCHEM", "FKTABLE_NAME", "KEY_SEQ"}},
+    new Object[]{"getImportedKeys", new String[]{"PKTABLE_CAT", "PKTABLE_SCHEM", "PKTABLE_NAME", "KEY_SEQ"}},
+    new Object[]{"getPrimaryKeys", new String[]{"COLUMN_NAME"}},
+    new Object[]{"getTables", new String[]{"TABLE_TYPE", "TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME"}}
+  };
+
+  private static String[] lookup(Object[][] table, String methodName) {
+    for (Object[] entry : table) {
+      if (entry[0].equals(methodName)) return (String[])entry[1];
+    }
+    return null;
+  }
+
+  //CASE expressions that map the name of a referential action (as in INFORMATION_SCHEMA) to its DatabaseMetaData code.
+  private static String ruleCase(String expression) {
+    return "CASE " + expression +
+      " WHEN 'CASCADE' THEN " + DatabaseMetaData.importedKeyCascade +
+      " WHEN 'RESTRICT' THEN " + DatabaseMetaData.importedKeyRestrict +
+      " WHEN 'SET NULL' THEN " + DatabaseMetaData.importedKeySetNull +
+      " WHEN 'SET DEFAULT' THEN " + DatabaseMetaData.importedKeySetDefault +
+      " ELSE " + DatabaseMetaData.importedKeyNoAction + " END";
+  }
+
+  //a CASE expression that maps a native type name to its java.sql.Types code.
+  private static String typeCase(String expression, Object[][] types, String otherwise) {
+    StringBuilder typeCase = new StringBuilder("CASE ").append(expression);
+    for (Object[] type : types) {
+      typeCase.append(" WHEN '").append(type[0]).append("' THEN ").append(type[1]);
+    }
+    return typeCase.append(" ELSE ").append(otherwise).append(" END").toString();
+  }
+
+  //how the native types map to java.sql.Types, following what the drivers report.
+  private final static Object[][] mysqlTypes = new Object[][]{
+    {"bit", -7}, {"tinyint", -6}, {"smallint", 5}, {"mediumint", 4}, {"int", 4}, {"integer", 4}, {"bigint", -5},
+    {"float", 7}, {"double", 8}, {"decimal", 3}, {"numeric", 3},
+    {"date", 91}, {"year", 91}, {"time", 92}, {"datetime", 93}, {"timestamp", 93},
+    {"char", 1}, {"enum", 1}, {"set", 1}, {"varchar", 12}, {"tinytext", 12},
+    {"text", -1}, {"mediumtext", -1}, {"longtext", -1}, {"json", -1},
+    {"binary", -2}, {"varbinary", -3}, {"tinyblob", -3}, {"blob", -4}, {"mediumblob", -4}, {"longblob", -4}
+  };
+
+  private final static Object[][] postgresqlTypes = new Object[][]{
+    {"int2", 5}, {"int4", 4}, {"int8", -5}, {"oid", -5}, {"numeric", 2}, {"float4", 7}, {"float8", 8}, {"money", 8},
+    {"bool", -7}, {"bit", -7}, {"bpchar", 1}, {"char", 1}, {"varchar", 12}, {"text", 12}, {"name", 12}, {"bytea", -2},
+    {"date", 91}, {"time", 92}, {"timetz", 92}, {"timestamp", 93}, {"timestamptz", 93}, {"xml", 2009}
+  };
+
+  private final static Object[][] monetdbTypes = new Object[][]{
+    {"boolean", 16}, {"tinyint", -6}, {"smallint", 5}, {"int", 4}, {"bigint", -5}, {"hugeint", 3}, {"decimal", 3},
+    {"real", 7}, {"double", 8}, {"float", 8}, {"char", 1}, {"varchar", 12}, {"clob", 2005}, {"blob", 2004},
+    {"date", 91}, {"time", 92}, {"timetz", 92}, {"timestamp", 93}, {"timestamptz", 93}
+  };
+
+  //the dialects. For each:
+  //1) the start of the database product name
+  //2) the methods it answers. For each:
+  //   a) name of the method
+  //   b) the FROM clause
+  //   c) a condition that is always applied, or null
+  //   d) the expression of each column, by column name. Columns that are not listed are NULL.
+  //      An expression that starts with '=' is a constant: the driver has no such level, so arguments for it are ignored.
+  //      If there are no expressions at all, the FROM clause has all columns under their own name.
+  private final static Object[] H2_KEYS = new Object[]{
+    "INFORMATION_SCHEMA.CROSS_REFERENCES", null, new String[][]{
+      {"PKTABLE_CAT", "PKTABLE_CATALOG"}, {"PKTABLE_SCHEM", "PKTABLE_SCHEMA"}, {"PKTABLE_NAME", "PKTABLE_NAME"},
+      {"PKCOLUMN_NAME", "PKCOLUMN_NAME"},
+      {"FKTABLE_CAT", "FKTABLE_CATALOG"}, {"FKTABLE_SCHEM", "FKTABLE_SCHEMA"}, {"FKTABLE_NAME", "FKTABLE_NAME"},
+      {"FKCOLUMN_NAME", "FKCOLUMN_NAME"},
+      {"KEY_SEQ", "ORDINAL_POSITION"}, {"UPDATE_RULE", "UPDATE_RULE"}, {"DELETE_RULE", "DELETE_RULE"},
+      {"FK_NAME", "FK_NAME"}, {"PK_NAME", "PK_NAME"}, {"DEFERRABILITY", "DEFERRABILITY"}
+    }
+  };
+
+  private final static Object[] MYSQL_KEYS = new Object[]{
+    "INFORMATION_SCHEMA.KEY_COLUMN_USAGE k" +
+    " JOIN INFORMATION_SCHEMA.REFERENTIAL_CONSTRAINTS r" +
+    " ON r.CONSTRAINT_SCHEMA = k.CONSTRAINT_SCHEMA AND r.CONSTRAINT_NAME = k.CONSTRAINT_NAME AND r.TABLE_NAME = k.TABLE_NAME",
+    "k.REFERENCED_TABLE_NAME IS NOT NULL", new String[][]{
+      {"PKTABLE_CAT", "k.REFERENCED_TABLE_SCHEMA"}, {"PKTABLE_SCHEM", "=NULL"}, {"PKTABLE_NAME", "k.REFERENCED_TABLE_NAME"},
+      {"PKCOLUMN_NAME", "k.REFERENCED_COLUMN_NAME"},
+      {"FKTABLE_CAT", "k.TABLE_SCHEMA"}, {"FKTABLE_SCHEM", "=NULL"}, {"FKTABLE_NAME", "k.TABLE_NAME"},
+      {"FKCOLUMN_NAME", "k.COLUMN_NAME"},
+      {"KEY_SEQ", "k.ORDINAL_POSITION"}, {"UPDATE_RULE", ruleCase("r.UPDATE_RULE")}, {"DELETE_RULE", ruleCase("r.DELETE_RULE")},
+      {"FK_NAME", "k.CONSTRAINT_NAME"}, {"PK_NAME", "r.UNIQUE_CONSTRAINT_NAME"},
+      {"DEFERRABILITY", "=" + DatabaseMetaData.importedKeyNotDeferrable}
+    }
+  };
+
+  private final static String POSTGRESQL_RULE =
+    " WHEN 'c' THEN " + DatabaseMetaData.importedKeyCascade +
+    " WHEN 'r' THEN " + DatabaseMetaData.importedKeyRestrict +
+    " WHEN 'n' THEN " + DatabaseMetaData.importedKeySetNull +
+    " WHEN 'd' THEN " + DatabaseMetaData.importedKeySetDefault +
+    " ELSE " + DatabaseMetaData.importedKeyNoAction + " END";
+
+  private final static Object[] POSTGRESQL_KEYS = new Object[]{
+    "pg_catalog.pg_constraint k CROSS JOIN LATERAL generate_subscripts(k.conkey, 1) s(i)" +
+    " JOIN pg_catalog.pg_class fc ON fc.oid = k.conrelid JOIN pg_catalog.pg_namespace fn ON fn.oid = fc.relnamespace" +
+    " JOIN pg_catalog.pg_class pc ON pc.oid = k.confrelid JOIN pg_catalog.pg_namespace pn ON pn.oid = pc.relnamespace" +
+    " JOIN pg_catalog.pg_attribute fa ON fa.attrelid = k.conrelid AND fa.attnum = k.conkey[s.i]" +
+    " JOIN pg_catalog.pg_attribute pa ON pa.attrelid = k.confrelid AND pa.attnum = k.confkey[s.i]" +
+    " LEFT JOIN pg_catalog.pg_constraint pk ON pk.conrelid = k.confrelid AND pk.conindid = k.conindid AND pk.contype IN ('p', 'u')",
+    "k.contype = 'f'", new String[][]{
+      {"PKTABLE_CAT", "=NULL"}, {"PKTABLE_SCHEM", "pn.nspname"}, {"PKTABLE_NAME", "pc.relname"}, {"PKCOLUMN_NAME", "pa.attname"},
+      {"FKTABLE_CAT", "=NULL"}, {"FKTABLE_SCHEM", "fn.nspname"}, {"FKTABLE_NAME", "fc.relname"}, {"FKCOLUMN_NAME", "fa.attname"},
+      {"KEY_SEQ", "s.i"},
+      {"UPDATE_RULE", "CASE k.confupdtype" + POSTGRESQL_RULE}, {"DELETE_RULE", "CASE k.confdeltype" + POSTGRESQL_RULE},
+      {"FK_NAME", "k.conname"}, {"PK_NAME", "pk.conname"},
+      {"DEFERRABILITY",
+        "CASE WHEN k.condeferrable AND k.condeferred THEN " + DatabaseMetaData.importedKeyInitiallyDeferred +
+        " WHEN k.condeferrable THEN " + DatabaseMetaData.importedKeyInitiallyImmediate +
+        " ELSE " + DatabaseMetaData.importedKeyNotDeferrable + " END"
+      }
+    }
+  };
+
+  private final static String MONETDB_RULE =
+    " WHEN 1 THEN " + DatabaseMetaData.importedKeyCascade +
+    " WHEN 2 THEN " + DatabaseMetaData.importedKeyRestrict +
+    " WHEN 3 THEN " + DatabaseMetaData.importedKeySetNull +
+    " WHEN 4 THEN " + DatabaseMetaData.importedKeySetDefault +
+    " ELSE " + DatabaseMetaData.importedKeyNoAction + " END";
+
+  private final static Object[] MONETDB_KEYS = new Object[]{
+    "sys.keys fk JOIN sys.objects fo ON fo.id = fk.id" +
+    " JOIN sys.tables ft ON ft.id = fk.table_id JOIN sys.schemas fs ON fs.id = ft.schema_id" +
+    " JOIN sys.keys pk ON pk.id = fk.rkey JOIN sys.objects po ON po.id = pk.id AND po.nr = fo.nr" +
+    " JOIN sys.tables pt ON pt.id = pk.table_id JOIN sys.schemas ps ON ps.id = pt.schema_id",
+    "fk.type = 2", new String[][]{
+      {"PKTABLE_CAT", "=NULL"}, {"PKTABLE_SCHEM", "ps.name"}, {"PKTABLE_NAME", "pt.name"}, {"PKCOLUMN_NAME", "po.name"},
+      {"FKTABLE_CAT", "=NULL"}, {"FKTABLE_SCHEM", "fs.name"}, {"FKTABLE_NAME", "ft.name"}, {"FKCOLUMN_NAME", "fo.name"},
+      {"KEY_SEQ", "fo.nr + 1"},
+      {"UPDATE_RULE", "CASE ((fk.\"action\" / 256) % 256)" + MONETDB_RULE}, {"DELETE_RULE", "CASE (fk.\"action\" % 256)" + MONETDB_RULE},
+      {"FK_NAME", "fk.name"}, {"PK_NAME", "pk.name"}, {"DEFERRABILITY", "=" + DatabaseMetaData.importedKeyNotDeferrable}
+    }
+  };
+
+  private final static Object[][] dialects = new Object[][]{
+    //H2 1.x. (H2 2.x has a different INFORMATION_SCHEMA, so the queries fail and the driver is used.)
+    new Object[]{"H2", new Object[][]{
+      new Object[]{"getTables", "INFORMATION_SCHEMA.TABLES", null, new String[][]{
+        {"TABLE_CAT", "TABLE_CATALOG"}, {"TABLE_SCHEM", "TABLE_SCHEMA"}, {"TABLE_NAME", "TABLE_NAME"},
+        {"TABLE_TYPE", "TABLE_TYPE"}, {"REMARKS", "REMARKS"}
+      }},
+      new Object[]{"getColumns", "INFORMATION_SCHEMA.COLUMNS", null, new String[][]{
+        {"TABLE_CAT", "TABLE_CATALOG"}, {"TABLE_SCHEM", "TABLE_SCHEMA"}, {"TABLE_NAME", "TABLE_NAME"},
+        {"COLUMN_NAME", "COLUMN_NAME"}, {"DATA_TYPE", "DATA_TYPE"}, {"TYPE_NAME", "TYPE_NAME"},
+        {"COLUMN_SIZE", "CHARACTER_MAXIMUM_LENGTH"}, {"BUFFER_LENGTH", "CHARACTER_MAXIMUM_LENGTH"},
+        {"DECIMAL_DIGITS", "NUMERIC_SCALE"}, {"NUM_PREC_RADIX", "NUMERIC_PRECISION_RADIX"}, {"NULLABLE", "NULLABLE"},
+        {"REMARKS", "REMARKS"}, {"COLUMN_DEF", "COLUMN_DEFAULT"}, {"SQL_DATA_TYPE", "DATA_TYPE"}, {"SQL_DATETIME_SUB", "=0"},
+        {"CHAR_OCTET_LENGTH", "CHARACTER_OCTET_LENGTH"}, {"ORDINAL_POSITION", "ORDINAL_POSITION"}, {"IS_NULLABLE", "IS_NULLABLE"},
+        {"SOURCE_DATA_TYPE", "SOURCE_DATA_TYPE"},
+        {"IS_AUTOINCREMENT", "CASE WHEN SEQUENCE_NAME IS NULL THEN 'NO' ELSE 'YES' END"},
+        {"IS_GENERATEDCOLUMN", "CASE WHEN IS_COMPUTED THEN 'YES' ELSE 'NO' END"}
+      }},
+      new Object[]{"getPrimaryKeys", "INFORMATION_SCHEMA.INDEXES", "PRIMARY_KEY = TRUE", new String[][]{
+        {"TABLE_CAT", "TABLE_CATALOG"}, {"TABLE_SCHEM", "TABLE_SCHEMA"}, {"TABLE_NAME", "TABLE_NAME"},
+        {"COLUMN_NAME", "COLUMN_NAME"}, {"KEY_SEQ", "ORDINAL_POSITION"}, {"PK_NAME", "COALESCE(CONSTRAINT_NAME, INDEX_NAME)"}
+      }},
+      new Object[]{"getImportedKeys", H2_KEYS[0], H2_KEYS[1], H2_KEYS[2]},
+      new Object[]{"getExportedKeys", H2_KEYS[0], H2_KEYS[1], H2_KEYS[2]}
+    }},
+    //HSQLDB keeps the JDBC metadata in system tables, with the columns named as in the JDBC API.
+    new Object[]{"HSQL Database Engine", new Object[][]{
+      new Object[]{"getTables", "INFORMATION_SCHEMA.SYSTEM_TABLES", null, null},
+      new Object[]{"getColumns", "INFORMATION_SCHEMA.SYSTEM_COLUMNS", null, null},
+      new Object[]{"getPrimaryKeys", "INFORMATION_SCHEMA.SYSTEM_PRIMARYKEYS", null, null},
+      new Object[]{"getImportedKeys", "INFORMATION_SCHEMA.SYSTEM_CROSSREFERENCE", null, null},
+      new Object[]{"getExportedKeys", "INFORMATION_SCHEMA.SYSTEM_CROSSREFERENCE", null, null}
+    }},
+    //MySQL drivers report databases as catalogs.
+    new Object[]{"MySQL", new Object[][]{
+      new Object[]{"getTables", "INFORMATION_SCHEMA.TABLES", null, new String[][]{
+        {"TABLE_CAT", "TABLE_SCHEMA"}, {"TABLE_SCHEM", "=NULL"}, {"TABLE_NAME", "TABLE_NAME"},
+        {"TABLE_TYPE",
+          "CASE TABLE_TYPE WHEN 'BASE TABLE' THEN" +
+          " CASE WHEN TABLE_SCHEMA IN ('mysql', 'performance_schema') THEN 'SYSTEM TABLE' ELSE 'TABLE' END" +
+          " WHEN 'TEMPORARY' THEN 'LOCAL TEMPORARY' ELSE TABLE_TYPE END"
+        },
+        {"REMARKS", "TABLE_COMMENT"}
+      }},
+      new Object[]{"getColumns", "INFORMATION_SCHEMA.COLUMNS", null, new String[][]{
+        {"TABLE_CAT", "TABLE_SCHEMA"}, {"TABLE_SCHEM", "=NULL"}, {"TABLE_NAME", "TABLE_NAME"}, {"COLUMN_NAME", "COLUMN_NAME"},
+        {"DATA_TYPE", typeCase("DATA_TYPE", mysqlTypes, "1111")},
+        {"TYPE_NAME", "CASE WHEN COLUMN_TYPE LIKE '%unsigned%' THEN CONCAT(UPPER(DATA_TYPE), ' UNSIGNED') ELSE UPPER(DATA_TYPE) END"},
+        {"COLUMN_SIZE",
+          "CASE DATA_TYPE WHEN 'date' THEN 10 WHEN 'time' THEN 8 WHEN 'datetime' THEN 19 WHEN 'timestamp' THEN 19" +
+          " ELSE COALESCE(CHARACTER_MAXIMUM_LENGTH, NUMERIC_PRECISION) END"
+        },
+        {"BUFFER_LENGTH", "=65535"}, {"DECIMAL_DIGITS", "NUMERIC_SCALE"}, {"NUM_PREC_RADIX", "=10"},
+        {"NULLABLE", "CASE IS_NULLABLE WHEN 'YES' THEN 1 ELSE 0 END"}, {"REMARKS", "COLUMN_COMMENT"},
+        {"COLUMN_DEF", "COLUMN_DEFAULT"}, {"SQL_DATA_TYPE", "=0"}, {"SQL_DATETIME_SUB", "=0"},
+        {"CHAR_OCTET_LENGTH", "CHARACTER_OCTET_LENGTH"}, {"ORDINAL_POSITION", "ORDINAL_POSITION"}, {"IS_NULLABLE", "IS_NULLABLE"},
+        {"IS_AUTOINCREMENT", "CASE WHEN EXTRA LIKE '%auto_increment%' THEN 'YES' ELSE 'NO' END"},
+        {"IS_GENERATEDCOLUMN", "CASE WHEN EXTRA LIKE '%GENERATED%' THEN 'YES' ELSE 'NO' END"}
+      }},
+      new Object[]{"getPrimaryKeys", "INFORMATION_SCHEMA.KEY_COLUMN_USAGE", "CONSTRAINT_NAME = 'PRIMARY'", new String[][]{
+        {"TABLE_CAT", "TABLE_SCHEMA"}, {"TABLE_SCHEM", "=NULL"}, {"TABLE_NAME", "TABLE_NAME"},
+        {"COLUMN_NAME", "COLUMN_NAME"}, {"KEY_SEQ", "ORDINAL_POSITION"}, {"PK_NAME", "CONSTRAINT_NAME"}
+      }},
+      new Object[]{"getImportedKeys", MYSQL_KEYS[0], MYSQL_KEYS[1], MYSQL_KEYS[2]},
+      new Object[]{"getExportedKeys", MYSQL_KEYS[0], MYSQL_KEYS[1], MYSQL_KEYS[2]}
+    }},
+    //The PostgreSQL driver does not report catalogs.
+    new Object[]{"PostgreSQL", new Object[][]{
+      new Object[]{"getTables",
+        "pg_catalog.pg_class c JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace" +
+        " LEFT JOIN pg_catalog.pg_description d ON d.objoid = c.oid AND d.objsubid = 0 AND d.classoid = 'pg_catalog.pg_class'::regclass",
+        "c.relkind IN ('r', 'v', 'm', 'f', 'p')", new String[][]{
+        {"TABLE_CAT", "=NULL"}, {"TABLE_SCHEM", "n.nspname"}, {"TABLE_NAME", "c.relname"},
+        {"TABLE_TYPE",
+          "CASE WHEN n.nspname LIKE 'pg!_%' ESCAPE '!' OR n.nspname = 'information_schema' THEN" +
+          " CASE c.relkind WHEN 'v' THEN 'SYSTEM VIEW' ELSE 'SYSTEM TABLE' END" +
+          " ELSE CASE c.relkind WHEN 'r' THEN 'TABLE' WHEN 'p' THEN 'PARTITIONED TABLE' WHEN 'v' THEN 'VIEW'" +
+          " WHEN 'm' THEN 'MATERIALIZED VIEW' ELSE 'FOREIGN TABLE' END END"
+        },
+        {"REMARKS", "d.description"}
+      }},
+      new Object[]{"getColumns",
+        "pg_catalog.pg_attribute a JOIN pg_catalog.pg_class c ON c.oid = a.attrelid" +
+        " JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace JOIN pg_catalog.pg_type t ON t.oid = a.atttypid" +
+        " LEFT JOIN pg_catalog.pg_attrdef def ON def.adrelid = a.attrelid AND def.adnum = a.attnum" +
+        " LEFT JOIN pg_catalog.pg_description dsc ON dsc.objoid = c.oid AND dsc.objsubid = a.attnum",
+        "a.attnum > 0 AND NOT a.attisdropped AND c.relkind IN ('r', 'v', 'm', 'f', 'p')", new String[][]{
+        {"TABLE_CAT", "=NULL"}, {"TABLE_SCHEM", "n.nspname"}, {"TABLE_NAME", "c.relname"}, {"COLUMN_NAME", "a.attname"},
+        {"DATA_TYPE", typeCase("t.typname", postgresqlTypes, "CASE WHEN t.typcategory = 'A' THEN 2003 ELSE 1111 END")},
+        //like the driver, report integer columns that default to a sequence as serial.
+        {"TYPE_NAME",
+          "CASE WHEN pg_catalog.pg_get_expr(def.adbin, def.adrelid) LIKE 'nextval(%' THEN" +
+          " CASE t.typname WHEN 'int4' THEN 'serial' WHEN 'int8' THEN 'bigserial' WHEN 'int2' THEN 'smallserial' ELSE t.typname END" +
+          " ELSE t.typname END"
+        },
+        {"COLUMN_SIZE",
+          "CASE WHEN t.typname IN ('varchar', 'bpchar') AND a.atttypmod > 4 THEN a.atttypmod - 4" +
+          " WHEN t.typname = 'numeric' AND a.atttypmod > 4 THEN ((a.atttypmod - 4) >> 16) & 65535" +
+          " WHEN t.typname = 'int2' THEN 5 WHEN t.typname = 'int4' THEN 10 WHEN t.typname = 'int8' THEN 19" +
+          " WHEN t.typname = 'float4' THEN 8 WHEN t.typname = 'float8' THEN 17 WHEN t.typname IN ('bool', 'bit') THEN 1" +
+          " ELSE 2147483647 END"
+        },
+        {"DECIMAL_DIGITS", "CASE WHEN t.typname = 'numeric' AND a.atttypmod > 4 THEN (a.atttypmod - 4) & 65535 ELSE 0 END"},
+        {"NUM_PREC_RADIX", "=10"}, {"NULLABLE", "CASE WHEN a.attnotnull THEN 0 ELSE 1 END"}, {"REMARKS", "dsc.description"},
+        {"COLUMN_DEF", "pg_catalog.pg_get_expr(def.adbin, def.adrelid)"},
+        {"CHAR_OCTET_LENGTH", "CASE WHEN t.typname IN ('varchar', 'bpchar') AND a.atttypmod > 4 THEN a.atttypmod - 4 ELSE 2147483647 END"},
+        {"ORDINAL_POSITION", "a.attnum"}, {"IS_NULLABLE", "CASE WHEN a.attnotnull THEN 'NO' ELSE 'YES' END"},
+        {"IS_AUTOINCREMENT", "CASE WHEN pg_catalog.pg_get_expr(def.adbin, def.adrelid) LIKE '%nextval(%' THEN 'YES' ELSE 'NO' END"},
+        {"IS_GENERATEDCOLUMN", "='NO'"}
+      }},
+      new Object[]{"getPrimaryKeys",
+        "pg_catalog.pg_constraint k JOIN pg_catalog.pg_class c ON c.oid = k.conrelid" +
+        " JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace" +
+        " JOIN pg_catalog.pg_attribute a ON a.attrelid = c.oid AND a.attnum = ANY(k.conkey)",
+        "k.contype = 'p'", new String[][]{
+        {"TABLE_CAT", "=NULL"}, {"TABLE_SCHEM", "n.nspname"}, {"TABLE_NAME", "c.relname"},
+        {"COLUMN_NAME", "a.attname"}, {"KEY_SEQ", "array_position(k.conkey, a.attnum)"}, {"PK_NAME", "k.conname"}
+      }},
+      new Object[]{"getImportedKeys", POSTGRESQL_KEYS[0], POSTGRESQL_KEYS[1], POSTGRESQL_KEYS[2]},
+      new Object[]{"getExportedKeys", POSTGRESQL_KEYS[0], POSTGRESQL_KEYS[1], POSTGRESQL_KEYS[2]}
+    }},
+    //SQLite has neither catalogs nor schemas. The pragma functions need SQLite 3.16 or later.
+    //The xerial driver takes the names of key constraints from the DDL of the table, so its keys are left to the driver.
+    //It leaves the sqlite_ system tables out unless they are asked for by type, so the queries leave them out too:
+    //asking for system tables then fails verification, and is left to the driver.
+    new Object[]{"SQLite", new Object[][]{
+      new Object[]{"getTables", "sqlite_master", "type IN ('table', 'view') AND name NOT LIKE 'sqlite!_%' ESCAPE '!'", new String[][]{
+        {"TABLE_CAT", "=NULL"}, {"TABLE_SCHEM", "=NULL"}, {"TABLE_NAME", "name"}, {"TABLE_TYPE", "UPPER(type)"}
+      }},
+      new Object[]{"getColumns", "sqlite_master m JOIN pragma_table_info(m.name) p",
+        "m.type IN ('table', 'view') AND m.name NOT LIKE 'sqlite!_%' ESCAPE '!'", new String[][]{
+        {"TABLE_CAT", "=NULL"}, {"TABLE_SCHEM", "=NULL"}, {"TABLE_NAME", "m.name"}, {"COLUMN_NAME", "p.name"},
+        //the type mapping of the xerial driver, which is looser than the type affinity rules of SQLite.
+        {"DATA_TYPE",
+          "CASE WHEN UPPER(p.type) LIKE '%INT%' OR UPPER(p.type) LIKE '%BOOL%' THEN 4" +
+          " WHEN UPPER(p.type) LIKE '%CHAR%' OR UPPER(p.type) LIKE '%CLOB%' OR UPPER(p.type) LIKE '%TEXT%' OR UPPER(p.type) LIKE '%BLOB%' THEN 12" +
+          " WHEN UPPER(p.type) LIKE '%REAL%' OR UPPER(p.type) LIKE '%FLOA%' OR UPPER(p.type) LIKE '%DOUB%'" +
+          " OR UPPER(p.type) LIKE '%DEC%' OR UPPER(p.type) LIKE '%NUM%' THEN 6" +
+          " ELSE 12 END"
+        },
+        {"TYPE_NAME", "UPPER(p.type)"}, {"COLUMN_SIZE", "=2000000000"},
+        {"BUFFER_LENGTH", "=2000000000"}, {"DECIMAL_DIGITS", "=10"}, {"NUM_PREC_RADIX", "=10"},
+        {"NULLABLE", "CASE WHEN p.\"notnull\" THEN 0 ELSE 1 END"}, {"COLUMN_DEF", "p.dflt_value"},
+        {"SQL_DATA_TYPE", "=0"}, {"SQL_DATETIME_SUB", "=0"}, {"CHAR_OCTET_LENGTH", "=2000000000"},
+        {"ORDINAL_POSITION", "p.cid + 1"}, {"IS_NULLABLE", "CASE WHEN p.\"notnull\" THEN 'NO' ELSE 'YES' END"},
+        {"IS_AUTOINCREMENT", "CASE WHEN p.pk > 0 AND UPPER(p.type) = 'INTEGER' AND UPPER(m.sql) LIKE '%AUTOINCREMENT%' THEN 'YES' ELSE 'NO' END"},
+        {"IS_GENERATEDCOLUMN", "=''"}
+      }}
+    }},
+    //Derby keeps column types and index columns as serialized objects, so only the tables can be read with plain SQL.
+    new Object[]{"Apache Derby", new Object[][]{
+      new Object[]{"getTables", "SYS.SYSTABLES t JOIN SYS.SYSSCHEMAS s ON s.SCHEMAID = t.SCHEMAID", null, new String[][]{
+        {"TABLE_CAT", "=''"}, {"TABLE_SCHEM", "s.SCHEMANAME"}, {"TABLE_NAME", "t.TABLENAME"},
+        {"TABLE_TYPE", "CASE t.TABLETYPE WHEN 'S' THEN 'SYSTEM TABLE' WHEN 'V' THEN 'VIEW' WHEN 'A' THEN 'SYNONYM' ELSE 'TABLE' END"},
+        {"REMARKS", "=''"}
+      }}
+    }},
+    new Object[]{"MonetDB", new Object[][]{
+      new Object[]{"getTables",
+        "sys.tables t JOIN sys.schemas s ON s.id = t.schema_id JOIN sys.table_types tt ON tt.table_type_id = t.type" +
+        " LEFT JOIN sys.comments c ON c.id = t.id",
+        null, new String[][]{
+        {"TABLE_CAT", "=NULL"}, {"TABLE_SCHEM", "s.name"}, {"TABLE_NAME", "t.name"},
+        {"TABLE_TYPE", "tt.table_type_name"}, {"REMARKS", "c.remark"}
+      }},
+      new Object[]{"getColumns",
+        "sys.columns c JOIN sys.tables t ON t.id = c.table_id JOIN sys.schemas s ON s.id = t.schema_id" +
+        " LEFT JOIN sys.comments r ON r.id = c.id",
+        null, new String[][]{
+        {"TABLE_CAT", "=NULL"}, {"TABLE_SCHEM", "s.name"}, {"TABLE_NAME", "t.name"}, {"COLUMN_NAME", "c.name"},
+        {"DATA_TYPE", typeCase("c.type", monetdbTypes, "1111")}, {"TYPE_NAME", "c.type"},
+        {"COLUMN_SIZE", "c.type_digits"}, {"BUFFER_LENGTH", "=0"}, {"DECIMAL_DIGITS", "c.type_scale"},
+        {"NUM_PREC_RADIX", "CASE WHEN c.type IN ('tinyint', 'smallint', 'int', 'bigint', 'hugeint', 'real', 'double', 'float') THEN 2 ELSE 10 END"},
+        {"NULLABLE", "CASE WHEN c.\"null\" THEN 1 ELSE 0 END"}, {"REMARKS", "r.remark"}, {"COLUMN_DEF", "c.\"default\""},
+        {"SQL_DATA_TYPE", "=0"}, {"SQL_DATETIME_SUB", "=0"},
+        {"CHAR_OCTET_LENGTH", "CASE WHEN c.type IN ('char', 'varchar', 'clob') THEN 4 * c.type_digits ELSE NULL END"},
+        {"ORDINAL_POSITION", "c.number + 1"}, {"IS_NULLABLE", "CASE WHEN c.\"null\" THEN 'YES' ELSE 'NO' END"},
+        {"IS_AUTOINCREMENT", "CASE WHEN c.\"default\" LIKE 'next value for %' THEN 'YES' ELSE 'NO' END"},
+        {"IS_GENERATEDCOLUMN", "='NO'"}
+      }},
+      new Object[]{"getPrimaryKeys",
+        "sys.keys k JOIN sys.objects o ON o.id = k.id JOIN sys.tables t ON t.id = k.table_id JOIN sys.schemas s ON s.id = t.schema_id",
+        "k.type = 0", new String[][]{
+        {"TABLE_CAT", "=NULL"}, {"TABLE_SCHEM", "s.name"}, {"TABLE_NAME", "t.name"},
+        {"COLUMN_NAME", "o.name"}, {"KEY_SEQ", "o.nr + 1"}, {"PK_NAME", "k.name"}
+      }},
+      new Object[]{"getImportedKeys", MONETDB_KEYS[0], MONETDB_KEYS[1], MONETDB_KEYS[2]},
+      new Object[]{"getExportedKeys", MONETDB_KEYS[0], MONETDB_KEYS[1], MONETDB_KEYS[2]}
+    }}
+  };
+
+  private static Object[] getDefinition(String productName, String methodName) {
+    if (productName == null) return null;
+    for (Object[] dialect : dialects) {
+      //MariaDB reports itself as MySQL through older drivers, and as MariaDB through its own.
+      if (!productName.startsWith((String)dialect[0]) && !(productName.startsWith("MariaDB") && "MySQL".equals(dialect[0]))) continue;
+      for (Object[] definition : (Object[][])dialect[1]) {
+        if (definition[0].equals(methodName)) return definition;
+      }
+    }
+    return null;
+  }
+
+  //how an argument is pushed into the query.
+  private static final int ARGUMENT_IGNORED = 0;
+  private static final int ARGUMENT_NAME = 1;
+  private static final int ARGUMENT_PATTERN = 2;
+  private static final int ARGUMENT_LIST = 3;
+
+  //how long to call the method as usual after the native query failed, before trying the native query again.
+  private static final long RETRY_INTERVAL = 10 * 60 * 1000;
+
+  private final String methodName;
+  private final String productName;
+  private final MetaDataInvoker fallback;
+  private final ValueMetaInterface[] resultSetDescriptor;
+  //the columns (0-based) the native query computes, and that must match what the driver returns.
+  private final boolean[] readColumns;
+  //the query up to the WHERE clause, the fixed condition, and the ORDER BY clause.
+  private final String select;
+  private final String condition;
+  private final String orderBy;
+  //for each argument, how it is pushed, and the expression it applies to.
+  private final int[] argumentKinds;
+  private final String[] argumentExpressions;
+  private final String searchStringEscape;
+
+  //once the native query failed, the method is called as usual until the retry time.
+  private volatile SQLException failure = null;
+  private volatile long retryTime = 0;
+  //whether the native query returned the same rows as the driver.
+  private volatile boolean verified = false;
+  private long nativeCalls = 0;
+  private long fallbackCalls = 0;
+  private long verifyCalls = 0;
+
+  private MetaDataNativeQuery(
+    String methodName, String productName, MetaDataInvoker fallback,
+    ValueMetaInterface[] resultSetDescriptor, boolean[] readColumns,
+    String select, String condition, String orderBy,
+    int[] argumentKinds, String[] argumentExpressions, String searchStringEscape
+  ) {
+    this.methodName = methodName;
+    this.productName = productName;
+    this.fallback = fallback;
+    this.resultSetDescriptor = resultSetDescriptor;
+    this.readColumns = readColumns.clone();
+    this.select = select;
+    this.condition = condition;
+    this.orderBy = orderBy;
+    this.argumentKinds = argumentKinds;
+    this.argumentExpressions = argumentExpressions;
+    this.searchStringEscape = searchStringEscape;
+  }
+
+  /**
+   * Get the invoker for a method and a database.
+   * @param methodDescriptor the descriptor of the method, from JdbcMetaDataMeta.methodDescriptors
+   * @param readColumns for each column of the method (0-based), whether it is read. Other columns are not computed.
+   * @param databaseMetaData the metadata of the database
+   * @param fallback the invoker that calls the method
+   * @return a native query if we know the database and the method; otherwise the fallback.
+   * @throws SQLException
+   */
+  public static MetaDataInvoker create(
+    Object[] methodDescriptor, boolean[] readColumns, DatabaseMetaData databaseMetaData, MetaDataInvoker fallback
+  ) throws SQLException {
+    String methodName = (String)methodDescriptor[0];
+    String productName = databaseMetaData.getDatabaseProductName();
+    Object[] definition = getDefinition(productName, methodName);
+    if (definition == null) return fallback;
+
+    ValueMetaInterface[] columns = (ValueMetaInterface[])methodDescriptor[2];
+    String[][] columnExpressions = (String[][])definition[3];
+    String[] expressions = new String[columns.length];
+    boolean[] constants = new boolean[columns.length];
+    String name, expression;
+    for (int i = 0; i < columns.length; i++) {
+      name = columns[i].getName();
+      if (columnExpressions == null) {
+        expressions[i] = name;
+        continue;
+      }
+      for (String[] columnExpression : columnExpressions) {
+        if (!columnExpression[0].equals(name)) continue;
+        expression = columnExpression[1];
+        if (expression.startsWith("=")) {
+          expression = expression.substring(1);
+          constants[i] = true;
+        }
+        expressions[i] = expression;
+      }
+    }
+
+    StringBuilder select = new StringBuilder("SELECT ");
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) select.append(", ");
+      expression = readColumns[i] ? expressions[i] : null;
+      if (expression == null || "NULL".equals(expression)) {
+        //some databases need to know the type of a NULL.
+        if (productName.startsWith("MySQL") || productName.startsWith("MariaDB")) {
+          expression = columns[i].getType() == ValueMetaInterface.TYPE_INTEGER ? "CAST(NULL AS SIGNED)" : "CAST(NULL AS CHAR)";
+        }
+        else {
+          expression = columns[i].getType() == ValueMetaInterface.TYPE_INTEGER ? "CAST(NULL AS INTEGER)" : "CAST(NULL AS VARCHAR(128))";
+        }
+      }
+      select.append(expression).append(" AS ").append(columns[i].getName());
+    }
+    select.append(" FROM ").append((String)definition[1]);
+
+    StringBuilder orderBy = new StringBuilder();
+    for (String orderColumn : lookup(methodOrders, methodName)) {
+      for (int i = 0; i < columns.length; i++) {
+        if (!columns[i].getName().equals(orderColumn) || expressions[i] == null || constants[i]) continue;
+        orderBy.append(orderBy.length() == 0 ? " ORDER BY " : ", ").append(expressions[i]);
+      }
+    }
+
+    Object[] arguments = (Object[])methodDescriptor[1];
+    String[] filterColumns = lookup(methodFilters, methodName);
+    int[] argumentKinds = new int[arguments.length];
+    String[] argumentExpressions = new String[arguments.length];
+    Object[] argument;
+    for (int i = 0; i < arguments.length; i++) {
+      argument = (Object[])arguments[i];
+      argumentKinds[i] = ARGUMENT_IGNORED;
+      for (int j = 0; j < columns.length; j++) {
+        if (!columns[j].getName().equals(filterColumns[i]) || expressions[j] == null || constants[j]) continue;
+        argumentExpressions[i] = expressions[j];
+        if (((Class<?>)argument[1]).isArray()) {
+          argumentKinds[i] = ARGUMENT_LIST;
+        }
+        else
+        if (((String)argument[0]).endsWith("Pattern")) {
+          argumentKinds[i] = ARGUMENT_PATTERN;
+        }
+        else {
+          argumentKinds[i] = ARGUMENT_NAME;
+        }
+      }
+    }
+
+    return new MetaDataNativeQuery(
+      methodName, productName, fallback, columns, readColumns,
+      select.toString(), (String)definition[2], orderBy.toString(),
+      argumentKinds, argumentExpressions, databaseMetaData.getSearchStringEscape()
+    );
+  }
+
+  //add the condition for one argument to the WHERE clause, and its values to the parameters.
+  private void addCondition(StringBuilder where, List<String> parameters, int i, Object argument) {
+    String expression = argumentExpressions[i];
+    switch (argumentKinds[i]) {
+      case ARGUMENT_NAME:
+        if (argument == null) return;
+        //an empty name means: without a catalog, or without a schema.
+        if (argument.toString().length() == 0) {
+          where.append(where.length() == 0 ? " WHERE " : " AND ").append(expression).append(" IS NULL");
+          return;
+        }
+        where.append(where.length() == 0 ? " WHERE " : " AND ").append(expression).append(" = ?");
+        parameters.add(argument.toString());
+        return;
+      case ARGUMENT_PATTERN:
+        if (argument == null || "%".equals(argument)) return;
+        JdbcPattern pattern = new JdbcPattern(argument.toString(), searchStringEscape, false);
+        where.append(where.length() == 0 ? " WHERE " : " AND ").append(expression);
+        if (pattern.isLiteral()) {
+          where.append(" = ?");
+          parameters.add(pattern.getLiteral());
+        }
+        else
+        if (searchStringEscape == null || searchStringEscape.length() == 0) {
+          where.append(" LIKE ?");
+          parameters.add(argument.toString());
+        }
+        else {
+          where.append(" LIKE ? ESCAPE ?");
+          parameters.add(argument.toString());
+          parameters.add(searchStringEscape);
+        }
+        return;
+      case ARGUMENT_LIST:
+        if (argument == null) return;
+        String[] values = (String[])argument;
+        where.append(where.length() == 0 ? " WHERE " : " AND ").append(expression).append(" IN (");
+        for (int j = 0; j < values.length; j++) {
+          where.append(j == 0 ? "?" : ", ?");
+          parameters.add(values[j]);
+        }
+        //an empty list matches nothing.
+        if (values.length == 0) where.append("NULL");
+        where.append(")");
+        return;
+      default:
+    }
+  }
+
+  private ResultSet execute(Connection connection, Object[] arguments) throws SQLException {
+    StringBuilder where = new StringBuilder();
+    if (condition != null) where.append(" WHERE ").append(condition);
+    List<String> parameters = new ArrayList<String>();
+    for (int i = 0; i < arguments.length; i++) {
+      addCondition(where, parameters, i, arguments[i]);
+    }
+    PreparedStatement statement = connection.prepareStatement(select + where + orderBy);
+    try {
+      for (int i = 0; i < parameters.size(); i++) {
+        statement.setString(i + 1, parameters.get(i));
+      }
+      //the caller only closes the resultset, so the statement must close with it.
+      statement.closeOnCompletion();
+      return statement.executeQuery();
+    }
+    catch (SQLException exception) {
+      statement.close();
+      throw exception;
+    }
+    catch (AbstractMethodError error) {
+      //drivers that predate JDBC 4.1 do not have closeOnCompletion.
+      statement.close();
+      throw new SQLException("The driver does not support closeOnCompletion", error);
+    }
+  }
+
+  //read all rows of a resultset, and close it.
+  private List<Object[]> readRows(ResultSet resultSet) throws SQLException {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    try {
+      Object[] row;
+      while (resultSet.next()) {
+        row = new Object[resultSetDescriptor.length];
+        for (int i = 0; i < row.length; i++) {
+          if (readColumns[i]) row[i] = resultSet.getObject(i + 1);
+        }
+        rows.add(row);
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return rows;
+  }
+
+  //the values of the columns that are read, as they are compared.
+  //Drivers return numbers as all kinds of types, and some return numbers where the JDBC spec prescribes booleans.
+  private String getRowKey(Object[] row) {
+    StringBuilder key = new StringBuilder();
+    Object value;
+    for (int i = 0; i < row.length; i++) {
+      if (!readColumns[i]) continue;
+      value = row[i];
+      if (value instanceof Boolean) {
+        key.append(((Boolean)value).booleanValue() ? "1" : "0");
+      }
+      else
+      if (value instanceof Number) {
+        key.append(((Number)value).longValue());
+      }
+      else
+      if (value != null) {
+        key.append(value.toString());
+      }
+      key.append(value == null ? '\u0002' : '\u0001');
+    }
+    return key.toString();
+  }
+
+  //the first difference between the rows of the native query and the rows of the driver, or null if there is none.
+  //The order of the rows is not compared: rows that the JDBC order leaves tied may come in any order.
+  private String compare(List<Object[]> nativeRows, List<Object[]> driverRows) {
+    if (nativeRows.size() != driverRows.size()) {
+      return nativeRows.size() + " rows instead of " + driverRows.size();
+    }
+    List<String> nativeKeys = new ArrayList<String>(nativeRows.size());
+    List<String> driverKeys = new ArrayList<String>(driverRows.size());
+    for (int i = 0; i < nativeRows.size(); i++) {
+      nativeKeys.add(getRowKey(nativeRows.get(i)));
+      driverKeys.add(getRowKey(driverRows.get(i)));
+    }
+    Collections.sort(nativeKeys);
+    Collections.sort(driverKeys);
+    for (int i = 0; i < nativeKeys.size(); i++) {
+      if (nativeKeys.get(i).equals(driverKeys.get(i))) continue;
+      return "row " + nativeKeys.get(i).replace('\u0001', '|').replace('\u0002', '|') +
+             " instead of " + driverKeys.get(i).replace('\u0001', '|').replace('\u0002', '|');
+    }
+    return null;
+  }
+
+  //run the native query and the method, and return the rows of the method.
+  //If they return the same rows, the native query is used from now on; if not, never.
+  private ResultSet verify(DatabaseMetaData databaseMetaData, ResultSet nativeResultSet, Object[] arguments) throws SQLException {
+    List<Object[]> nativeRows = readRows(nativeResultSet);
+    List<Object[]> driverRows = readRows(fallback.invoke(databaseMetaData, arguments));
+    synchronized (this) {
+      verifyCalls++;
+    }
+    String difference = compare(nativeRows, driverRows);
+    if (difference != null) {
+      failure = new SQLException("The native query does not return what the driver returns: " + difference);
+      retryTime = Long.MAX_VALUE;
+    }
+    else
+    if (!driverRows.isEmpty()) {
+      //an empty result proves nothing.
+      verified = true;
+    }
+    return MetaDataSnapshot.createResultSet(resultSetDescriptor, driverRows);
+  }
+
+  @Override
+  public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+    if (failure == null || System.currentTimeMillis() >= retryTime) {
+      Connection connection = databaseMetaData.getConnection();
+      Savepoint savepoint = null;
+      boolean transaction = !connection.getAutoCommit();
+      if (transaction) savepoint = MetaDataChangeProbe.setSavepoint(connection, databaseMetaData);
+      if (!transaction || savepoint != null) {
+        ResultSet resultSet = null;
+        try {
+          resultSet = execute(connection, arguments);
+          failure = null;
+        }
+        catch (SQLException exception) {
+          failure = exception;
+          retryTime = System.currentTimeMillis() + RETRY_INTERVAL;
+          //some databases refuse anything else in a transaction after an error.
+          if (savepoint != null) connection.rollback(savepoint);
+        }
+        if (resultSet != null) {
+          if (savepoint != null) MetaDataChangeProbe.releaseSavepoint(connection, savepoint);
+          if (!verified) return verify(databaseMetaData, resultSet, arguments);
+          synchronized (this) {
+            nativeCalls++;
+          }
+          return resultSet;
+        }
+      }
+    }
+    synchronized (this) {
+      fallbackCalls++;
+    }
+    return fallback.invoke(databaseMetaData, arguments);
+  }
+
+  /**
+   * @return the error that made us fall back to calling the method, or null if the native query works.
+   */
+  public SQLException getFailure() {
+    return failure;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return methodName + " on " + productName + ": " + nativeCalls + " native queries, " + fallbackCalls + " calls to the driver, " +
+      verifyCalls + " calls to both" + (verified ? "" : " (not verified)") +
+      (failure == null ? "" : " (native query failed: " + failure.getMessage() + ")");
+  }
+}
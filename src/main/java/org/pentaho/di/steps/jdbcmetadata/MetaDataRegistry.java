@@ -0,0 +1,190 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Process wide registry of metadata results and jdbc connections.
+ *
+ * Steps that use the shared cache get their result cache and their connection cache from here,
+ * rather than creating their own. This way, all step copies in all transformations running in the
+ * same JVM (for example, in a Carte server) share results, and identical harvests against the same
+ * database only hit the database once.
+ *
+ * The caches are created by the first step that asks for them, with the settings of that step.
+ * The result cache is striped, so that concurrent step copies don't contend for one lock.
+ * Results expire after their time to live. Steps that set an epoch only find results of that same epoch,
+ * and when a step starts with another epoch than the one before, the results of the old epoch are dropped right away.
+ *
+ * Results are shared by connection identity, which does not include the password. So that a step never finds results
+ * that were read with other credentials, the result cache keys also hold a hash of the password (see getCredentialHash).
+ */
+public class MetaDataRegistry {
+
+  //number of independently locked segments of the shared result cache.
+  private static final int STRIPES = 16;
+
+  private static final MetaDataRegistry instance = new MetaDataRegistry();
+
+  /**
+   * @return the registry
+   */
+  public static MetaDataRegistry getInstance() {
+    return instance;
+  }
+
+  private MetaDataResultCache resultCache = null;
+  //the epoch of the last step that set one.
+  private String epoch = null;
+  //the password hashes are salted, so that they can only be compared within this JVM.
+  private final byte[] salt = new byte[16];
+  private JdbcConnectionCache connectionCache = null;
+  //closes idle connections of the shared connection cache.
+  private Timer timer = null;
+
+  private MetaDataRegistry() {
+    new SecureRandom().nextBytes(salt);
+  }
+
+  /**
+   * @param password the password of a connection. May be null.
+   * @return a salted hash of the password, for the result cache keys of the connection.
+   */
+  public String getCredentialHash(String password) {
+    if (password == null || password.length() == 0) return "";
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(salt);
+      byte[] hash = digest.digest(password.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(32);
+      for (int i = 0; i < 16; i++) {
+        hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+      }
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException exception) {
+      //every java platform has SHA-256.
+      throw new IllegalStateException(exception);
+    }
+    catch (UnsupportedEncodingException exception) {
+      //every java platform has UTF-8.
+      throw new IllegalStateException(exception);
+    }
+  }
+
+  /**
+   * Get the shared result cache, creating it if it doesn't exist yet.
+   * Callers keep results of different epochs apart by including the epoch in their keys (see MetaDataResultCache.Key),
+   * so results of an old epoch are never found. They are dropped when a step starts with a new epoch (see setEpoch).
+   * The bounds of the cache are those of the caller that created it; callers can compare them with their own settings.
+   * @param maxEntries maximum number of entries to keep. Only used when the cache is created.
+   * @param maxSize maximum (estimated) number of bytes to keep on the heap. Only used when the cache is created.
+   * @param timeToLive number of milliseconds after which an entry expires. Only used when the cache is created.
+   * @param cacheEmptyResults whether to cache calls that did not return any rows. Only used when the cache is created.
+   * @param offHeapThreshold size from which results are stored off the heap. Only used when the cache is created.
+   * @param maxOffHeapSize maximum number of bytes to keep off the heap. Only used when the cache is created.
+   * @return the shared result cache
+   */
+  public synchronized MetaDataResultCache getResultCache(
+    int maxEntries, long maxSize, long timeToLive, boolean cacheEmptyResults, long offHeapThreshold, long maxOffHeapSize
+  ) {
+    if (resultCache == null) {
+      resultCache = new MetaDataResultCache(maxEntries, maxSize, timeToLive, cacheEmptyResults, STRIPES, offHeapThreshold, maxOffHeapSize);
+    }
+    return resultCache;
+  }
+
+  /**
+   * Tell the registry the epoch of a step that starts using the shared result cache.
+   * If it differs from the epoch of the step before, the results of the old epoch can never be found again,
+   * so all results are dropped, rather than left to take up the cache until they are evicted or expire.
+   * Steps that do not set an epoch do not change it.
+   * @param epoch the epoch of the step. May be null or empty.
+   * @return whether the results were dropped.
+   */
+  public synchronized boolean setEpoch(String epoch) {
+    if (epoch == null || epoch.length() == 0 || epoch.equals(this.epoch)) return false;
+    boolean changed = this.epoch != null;
+    this.epoch = epoch;
+    if (!changed || resultCache == null) return false;
+    resultCache.clear();
+    return true;
+  }
+
+  /**
+   * Get the shared connection cache, creating it if it doesn't exist yet.
+   * @param maxOpen the maximum number of open connections. Only used when the cache is created.
+   * @param idleTimeout number of milliseconds after which an idle connection is closed. Only used when the cache is created.
+   * @param validate whether cached connections are validated before they are reused. Only used when the cache is created.
+   * @return the shared connection cache
+   */
+  public synchronized JdbcConnectionCache getConnectionCache(int maxOpen, long idleTimeout, boolean validate) {
+    if (connectionCache == null) {
+      connectionCache = new JdbcConnectionCache(maxOpen, idleTimeout, validate);
+      if (idleTimeout > 0) {
+        //nobody may use the cache for a long time, so we can't rely on the users of the cache to close idle connections.
+        final JdbcConnectionCache cache = connectionCache;
+        long period = Math.max(1000, idleTimeout / 2);
+        timer = new Timer("JdbcMetaData connection registry", true);
+        timer.schedule(new TimerTask() {
+          @Override
+          public void run() {
+            cache.closeIdle();
+          }
+        }, period, period);
+      }
+    }
+    return connectionCache;
+  }
+
+  /**
+   * Drop all cached results and close all cached connections.
+   */
+  public synchronized void clear() {
+    epoch = null;
+    if (resultCache != null) {
+      resultCache.clear();
+      resultCache = null;
+    }
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+    if (connectionCache != null) {
+      connectionCache.clear();
+      connectionCache = null;
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "results: " + (resultCache == null ? "none" : resultCache.toString()) +
+           "; connections: " + (connectionCache == null ? "none" : connectionCache.toString());
+  }
+}
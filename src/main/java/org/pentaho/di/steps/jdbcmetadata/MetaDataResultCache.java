@@ -0,0 +1,598 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of materialized metadata result rows.
+ *
+ * Entries are keyed by connection, method and arguments, and hold the rows
+ * as they were read from the metadata resultset. The cache is bounded both by
+ * number of entries and by (estimated) size in bytes, and evicts the least
+ * recently used entries first. Optionally, entries expire after a time to live.
+ *
+ * The cache may be divided into stripes, each with its own lock, so that many
+ * threads can use it at the same time (see MetaDataRegistry). The bounds apply to
+ * the cache as a whole: when they are exceeded, the stripes take turns to give up
+ * their least recently used entry.
+ *
+ * Large results may be stored in encoded form in direct buffers, which keeps them
+ * off the java heap. These count against a separate off-heap bound rather than
+ * against the (heap) size bound.
+ */
+public class MetaDataResultCache {
+
+  /**
+   * Identifies one metadata method call.
+   * Arguments are compared by value (deeply, as some arguments are arrays).
+   */
+  public static class Key {
+    private final String epoch;
+    private final String connection;
+    private final String method;
+    private final Object[] arguments;
+    private final int hashCode;
+
+    public Key(String connection, String method, Object[] arguments) {
+      this(null, connection, method, arguments);
+    }
+
+    /**
+     * @param epoch the generation of the results. Entries of other epochs are never found, and age out of the cache.
+     * @param connection
+     * @param method
+     * @param arguments
+     */
+    public Key(String epoch, String connection, String method, Object[] arguments) {
+      this.epoch = epoch == null || epoch.length() == 0 ? null : epoch;
+      this.connection = connection;
+      this.method = method;
+      //the arguments array is reused by the step from row to row, so we must take a copy.
+      this.arguments = arguments == null ? new Object[0] : arguments.clone();
+      int hashCode = this.epoch == null ? 0 : this.epoch.hashCode();
+      hashCode = 31 * hashCode + (connection == null ? 0 : connection.hashCode());
+      hashCode = 31 * hashCode + method.hashCode();
+      hashCode = 31 * hashCode + Arrays.deepHashCode(this.arguments);
+      this.hashCode = hashCode;
+    }
+
+    public String getEpoch() {
+      return epoch;
+    }
+
+    public String getConnection() {
+      return connection;
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public Object[] getArguments() {
+      return arguments;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (this == object) return true;
+      if (!(object instanceof Key)) return false;
+      Key key = (Key)object;
+      if (hashCode != key.hashCode) return false;
+      if (epoch == null ? key.epoch != null : !epoch.equals(key.epoch)) return false;
+      if (connection == null ? key.connection != null : !connection.equals(key.connection)) return false;
+      return method.equals(key.method) && Arrays.deepEquals(arguments, key.arguments);
+    }
+
+    @Override
+    public String toString() {
+      return (epoch == null ? "" : epoch + ":") + connection + "/" + method + Arrays.deepToString(arguments);
+    }
+  }
+
+  private static class CacheEntry {
+    //the rows, if they are kept on the heap.
+    private final List<Object[]> rows;
+    //the encoded rows, if they are kept off the heap.
+    private final ByteBuffer buffer;
+    private final long size;
+    private final long created;
+
+    private CacheEntry(List<Object[]> rows, ByteBuffer buffer, long size) {
+      this.rows = rows;
+      this.buffer = buffer;
+      this.size = size;
+      this.created = System.currentTimeMillis();
+    }
+
+    private List<Object[]> getRows() {
+      return buffer == null ? rows : decode(buffer);
+    }
+  }
+
+  /**
+   * One stripe of the cache. Each segment has its own lock and its own least recently used order.
+   * The bounds are kept by the cache as a whole.
+   */
+  private class Segment {
+    //access ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<Key, CacheEntry> entries = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true);
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private void put(Key key, CacheEntry entry) {
+      remove(key);
+      entries.put(key, entry);
+      entryCount.incrementAndGet();
+      if (entry.buffer == null) {
+        size.addAndGet(entry.size);
+      }
+      else {
+        offHeapSize.addAndGet(entry.buffer.capacity());
+      }
+    }
+
+    private void remove(Key key) {
+      CacheEntry entry = entries.remove(key);
+      if (entry != null) removed(entry);
+    }
+
+    private void removed(CacheEntry entry) {
+      entryCount.decrementAndGet();
+      if (entry.buffer == null) {
+        size.addAndGet(-entry.size);
+      }
+      else {
+        offHeapSize.addAndGet(-entry.buffer.capacity());
+      }
+    }
+
+    /**
+     * Evict the least recently used entry of this segment.
+     * @param offHeap null to evict any entry, TRUE to evict an off-heap entry, FALSE to evict a heap entry.
+     * @return whether an entry was evicted.
+     */
+    private boolean evict(Boolean offHeap) {
+      Iterator<Entry<Key, CacheEntry>> iterator = entries.entrySet().iterator();
+      CacheEntry entry;
+      while (iterator.hasNext()) {
+        entry = iterator.next().getValue();
+        if (offHeap != null && offHeap.booleanValue() != (entry.buffer != null)) continue;
+        iterator.remove();
+        removed(entry);
+        evictions++;
+        return true;
+      }
+      return false;
+    }
+
+    private void clear() {
+      for (CacheEntry entry : entries.values()) {
+        removed(entry);
+      }
+      entries.clear();
+    }
+  }
+
+  //rough per-object overhead we assume when estimating the size of cached rows.
+  private static final int OBJECT_OVERHEAD = 16;
+
+  //type tags used when encoding rows off the heap.
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_STRING = 1;
+  private static final byte TAG_LONG = 2;
+  private static final byte TAG_INTEGER = 3;
+  private static final byte TAG_SHORT = 4;
+  private static final byte TAG_BOOLEAN = 5;
+  private static final byte TAG_DOUBLE = 6;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final Segment[] segments;
+  private final int maxEntries;
+  private final long maxSize;
+  private final long timeToLive;
+  private final boolean cacheEmptyResults;
+  private final long offHeapThreshold;
+  private final long maxOffHeapSize;
+  //totals over all segments; these are what the bounds apply to.
+  private final AtomicInteger entryCount = new AtomicInteger();
+  private final AtomicLong size = new AtomicLong();
+  private final AtomicLong offHeapSize = new AtomicLong();
+  //the segment that gives up an entry next when the cache is over its bounds.
+  private final AtomicInteger evictionHand = new AtomicInteger();
+
+  /**
+   * @param maxEntries maximum number of entries to keep.
+   * @param maxSize maximum (estimated) number of bytes to keep.
+   * @param timeToLive number of milliseconds after which an entry expires. 0 means entries never expire.
+   * @param cacheEmptyResults whether to cache calls that did not return any rows.
+   */
+  public MetaDataResultCache(int maxEntries, long maxSize, long timeToLive, boolean cacheEmptyResults) {
+    this(maxEntries, maxSize, timeToLive, cacheEmptyResults, 1, 0, 0);
+  }
+
+  /**
+   * @param maxEntries maximum number of entries to keep.
+   * @param maxSize maximum (estimated) number of bytes to keep.
+   * @param timeToLive number of milliseconds after which an entry expires. 0 means entries never expire.
+   * @param cacheEmptyResults whether to cache calls that did not return any rows.
+   * @param stripes number of independently locked segments. Use more than 1 if many threads use the cache.
+   * @param offHeapThreshold (estimated) size in bytes from which results are stored off the heap. 0 means all results are kept on the heap.
+   * @param maxOffHeapSize maximum number of bytes to keep off the heap. Off-heap results don't count against maxSize.
+   */
+  public MetaDataResultCache(int maxEntries, long maxSize, long timeToLive, boolean cacheEmptyResults, int stripes, long offHeapThreshold, long maxOffHeapSize) {
+    if (stripes < 1) stripes = 1;
+    this.segments = new Segment[stripes];
+    for (int i = 0; i < stripes; i++) {
+      segments[i] = new Segment();
+    }
+    this.maxEntries = maxEntries;
+    this.maxSize = maxSize;
+    this.timeToLive = timeToLive;
+    this.cacheEmptyResults = cacheEmptyResults;
+    this.offHeapThreshold = offHeapThreshold;
+    this.maxOffHeapSize = maxOffHeapSize;
+  }
+
+  private Segment getSegment(Key key) {
+    int hashCode = key.hashCode();
+    //spread the bits, as the low bits of the hashcode may not be very random.
+    hashCode ^= (hashCode >>> 16);
+    return segments[(hashCode & 0x7fffffff) % segments.length];
+  }
+
+  /**
+   * Look up the rows for a metadata call.
+   * @param key identifies the metadata call
+   * @return the cached rows, or null if the call is not cached (or expired).
+   */
+  public List<Object[]> get(Key key) {
+    Segment segment = getSegment(key);
+    CacheEntry entry;
+    synchronized (segment) {
+      entry = segment.entries.get(key);
+      if (entry != null && timeToLive > 0 && System.currentTimeMillis() - entry.created > timeToLive) {
+        segment.remove(key);
+        entry = null;
+      }
+      if (entry == null) {
+        segment.misses++;
+        return null;
+      }
+      segment.hits++;
+    }
+    //decoding off-heap entries happens outside the lock.
+    return entry.getRows();
+  }
+
+  /**
+   * Store the rows for a metadata call, evicting least recently used entries as necessary.
+   * @param key identifies the metadata call
+   * @param rows the rows returned by the call
+   * @param rowsSize the estimated size of the rows, as accumulated with estimateSize()
+   */
+  public void put(Key key, List<Object[]> rows, long rowsSize) {
+    if (rows.isEmpty() && !cacheEmptyResults) return;
+    if (!fits(rowsSize)) return;
+    ByteBuffer buffer = null;
+    if (isOffHeap(rowsSize)) {
+      //encoding happens outside the lock.
+      buffer = encode(rows);
+      if (buffer != null && buffer.capacity() > maxOffHeapSize) return;
+    }
+    if (buffer == null && rowsSize > maxSize) return;
+    CacheEntry entry = new CacheEntry(buffer == null ? rows : null, buffer, rowsSize);
+    Segment segment = getSegment(key);
+    synchronized (segment) {
+      segment.put(key, entry);
+    }
+    evict();
+  }
+
+  /**
+   * Evict least recently used entries until the cache is within its bounds again.
+   * The segments take turns, so each gives up its own least recently used entry;
+   * this approximates a cache wide least recently used order without a cache wide lock.
+   */
+  private void evict() {
+    Boolean offHeap;
+    Segment segment;
+    boolean evicted;
+    //number of segments in a row that had nothing to evict.
+    int idle = 0;
+    while (idle < segments.length) {
+      if (entryCount.get() > maxEntries) {
+        offHeap = null;
+      }
+      else
+      if (size.get() > maxSize) {
+        offHeap = Boolean.FALSE;
+      }
+      else
+      if (offHeapSize.get() > maxOffHeapSize) {
+        offHeap = Boolean.TRUE;
+      }
+      else {
+        return;
+      }
+      segment = segments[(evictionHand.getAndIncrement() & 0x7fffffff) % segments.length];
+      synchronized (segment) {
+        evicted = segment.evict(offHeap);
+      }
+      idle = evicted ? 0 : idle + 1;
+    }
+  }
+
+  private boolean isOffHeap(long rowsSize) {
+    return offHeapThreshold > 0 && maxOffHeapSize > 0 && rowsSize >= offHeapThreshold;
+  }
+
+  /**
+   * Check whether a result of the specified size could be cached at all.
+   * Callers use this to stop collecting rows for results that are too large.
+   */
+  public boolean fits(long rowsSize) {
+    return maxEntries > 0 && rowsSize <= (isOffHeap(rowsSize) ? maxOffHeapSize : maxSize);
+  }
+
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  public long getHits() {
+    long hits = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        hits += segment.hits;
+      }
+    }
+    return hits;
+  }
+
+  public long getMisses() {
+    long misses = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        misses += segment.misses;
+      }
+    }
+    return misses;
+  }
+
+  public long getEvictions() {
+    long evictions = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        evictions += segment.evictions;
+      }
+    }
+    return evictions;
+  }
+
+  public int getEntryCount() {
+    return entryCount.get();
+  }
+
+  /**
+   * @return the (estimated) number of bytes held on the heap.
+   */
+  public long getSize() {
+    return size.get();
+  }
+
+  /**
+   * @return the number of bytes held in off-heap buffers.
+   */
+  public long getOffHeapSize() {
+    return offHeapSize.get();
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public long getMaxOffHeapSize() {
+    return maxOffHeapSize;
+  }
+
+  public long getOffHeapThreshold() {
+    return offHeapThreshold;
+  }
+
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  public boolean getCacheEmptyResults() {
+    return cacheEmptyResults;
+  }
+
+  /**
+   * Encode rows into a direct (off-heap) buffer.
+   * Only the value types that drivers return for metadata are supported.
+   * @param rows
+   * @return the buffer, or null if a row holds a value that can't be encoded; such results stay on the heap.
+   */
+  private static ByteBuffer encode(List<Object[]> rows) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(rows.size());
+      byte[] stringBytes;
+      for (Object[] row : rows) {
+        out.writeInt(row.length);
+        for (Object value : row) {
+          if (value == null) {
+            out.writeByte(TAG_NULL);
+          }
+          else
+          if (value instanceof String) {
+            stringBytes = ((String)value).getBytes(UTF8);
+            out.writeByte(TAG_STRING);
+            out.writeInt(stringBytes.length);
+            out.write(stringBytes);
+          }
+          else
+          if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong(((Long)value).longValue());
+          }
+          else
+          if (value instanceof Integer) {
+            out.writeByte(TAG_INTEGER);
+            out.writeInt(((Integer)value).intValue());
+          }
+          else
+          if (value instanceof Short) {
+            out.writeByte(TAG_SHORT);
+            out.writeShort(((Short)value).shortValue());
+          }
+          else
+          if (value instanceof Boolean) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean(((Boolean)value).booleanValue());
+          }
+          else
+          if (value instanceof Double) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Double)value).doubleValue());
+          }
+          else {
+            return null;
+          }
+        }
+      }
+      out.flush();
+      byte[] encoded = bytes.toByteArray();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length);
+      buffer.put(encoded);
+      buffer.flip();
+      return buffer;
+    }
+    catch (IOException exception) {
+      //can't happen when writing to memory.
+      return null;
+    }
+  }
+
+  /**
+   * Decode rows that were encoded with encode().
+   * @param buffer
+   * @return a fresh list of fresh rows.
+   */
+  private static List<Object[]> decode(ByteBuffer buffer) {
+    //work on a duplicate, so concurrent readers each have their own position.
+    buffer = buffer.duplicate();
+    int rowCount = buffer.getInt();
+    List<Object[]> rows = new ArrayList<Object[]>(rowCount);
+    Object[] row;
+    byte[] stringBytes;
+    for (int i = 0; i < rowCount; i++) {
+      row = new Object[buffer.getInt()];
+      for (int j = 0; j < row.length; j++) {
+        switch (buffer.get()) {
+          case TAG_STRING:
+            stringBytes = new byte[buffer.getInt()];
+            buffer.get(stringBytes);
+            row[j] = new String(stringBytes, UTF8);
+            break;
+          case TAG_LONG:
+            row[j] = Long.valueOf(buffer.getLong());
+            break;
+          case TAG_INTEGER:
+            row[j] = Integer.valueOf(buffer.getInt());
+            break;
+          case TAG_SHORT:
+            row[j] = Short.valueOf(buffer.getShort());
+            break;
+          case TAG_BOOLEAN:
+            row[j] = Boolean.valueOf(buffer.get() != 0);
+            break;
+          case TAG_DOUBLE:
+            row[j] = Double.valueOf(buffer.getDouble());
+            break;
+          default:
+            row[j] = null;
+        }
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /**
+   * Estimate the number of bytes occupied by a metadata row.
+   * This is only a rough approximation, but good enough to bound the cache.
+   */
+  public static long estimateSize(Object[] row) {
+    long rowSize = OBJECT_OVERHEAD + 8 * row.length;
+    Object value;
+    for (int i = 0; i < row.length; i++) {
+      value = row[i];
+      if (value == null) continue;
+      if (value instanceof String) {
+        rowSize += OBJECT_OVERHEAD + 24 + 2 * ((String)value).length();
+      }
+      else {
+        rowSize += OBJECT_OVERHEAD + 8;
+      }
+    }
+    return rowSize;
+  }
+
+  @Override
+  public String toString() {
+    String string = getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions, " +
+                    getEntryCount() + " entries (" + getSize() + " bytes";
+    long offHeapSize = getOffHeapSize();
+    if (offHeapSize > 0) string += ", " + offHeapSize + " bytes off-heap";
+    return string + ")";
+  }
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Reads rows of a metadata resultset into metadata rows.
+ *
+ * A reader is a precompiled plan: it is built once for a method, a driver and a selection of output fields,
+ * and holds one column reader for each selected column. Deciding how to read a column
+ * (which depends on the kettle type of the output field, and on the type the driver reports for the column)
+ * is done when building the plan, not for every value. Unselected columns are not read at all.
+ */
+public class MetaDataRowReader {
+
+  /**
+   * Reads one column of the resultset.
+   */
+  private static abstract class ColumnReader {
+    //the index of the column in the resultset (1-based)
+    protected final int column;
+    //the index of the value in the metadata row (0-based)
+    protected final int index;
+
+    protected ColumnReader(int column) {
+      this.column = column;
+      this.index = column - 1;
+    }
+
+    abstract Object read(ResultSet resultSet) throws SQLException;
+  }
+
+  private static class ObjectColumnReader extends ColumnReader {
+    ObjectColumnReader(int column) {
+      super(column);
+    }
+    Object read(ResultSet resultSet) throws SQLException {
+      return resultSet.getObject(column);
+    }
+  }
+
+  private static class BooleanColumnReader extends ColumnReader {
+    BooleanColumnReader(int column) {
+      super(column);
+    }
+    Object read(ResultSet resultSet) throws SQLException {
+      return Boolean.valueOf(resultSet.getBoolean(column));
+    }
+  }
+
+  /**
+   * While the JDBC spec prescribes boolean, not all drivers actually can deliver.
+   * Some return a number instead, where 1 means true.
+   */
+  private static class IntegerBooleanColumnReader extends ColumnReader {
+    IntegerBooleanColumnReader(int column) {
+      super(column);
+    }
+    Object read(ResultSet resultSet) throws SQLException {
+      return Boolean.valueOf(resultSet.getInt(column) == 1);
+    }
+  }
+
+  private static class IntegerColumnReader extends ColumnReader {
+    IntegerColumnReader(int column) {
+      super(column);
+    }
+    Object read(ResultSet resultSet) throws SQLException {
+      return Long.valueOf(resultSet.getLong(column));
+    }
+  }
+
+  private final ColumnReader[] columnReaders;
+  private final int fieldCount;
+
+  private MetaDataRowReader(ColumnReader[] columnReaders, int fieldCount) {
+    this.columnReaders = columnReaders;
+    this.fieldCount = fieldCount;
+  }
+
+  /**
+   * Build a reader.
+   * @param outputRowMeta the output row structure of the step
+   * @param outputRowOffset the index in the output row of the first metadata field
+   * @param resultSetIndices for each metadata field in the output row, the index of its column in the resultset (1-based), or 0 if it has none.
+   * @param fieldCount the number of columns in the resultset descriptor of the method; this is the size of the metadata rows.
+   * @param requiredColumns the indices of columns (0-based) that must be read even if they are not output, or null if there are none.
+   * @param resultSetMetaData describes the resultset as actually returned by the driver
+   * @return the reader
+   * @throws SQLException
+   */
+  public static MetaDataRowReader create(
+    RowMetaInterface outputRowMeta, int outputRowOffset, int[] resultSetIndices,
+    int fieldCount, int[] requiredColumns, ResultSetMetaData resultSetMetaData
+  ) throws SQLException {
+    int columnCount = resultSetMetaData.getColumnCount();
+    List<ColumnReader> columnReaders = new ArrayList<ColumnReader>();
+    boolean[] read = new boolean[columnCount + 1];
+    ValueMetaInterface valueMetaInterface;
+    ColumnReader columnReader;
+    int k;
+    for (int i = outputRowOffset, j = 0; j < resultSetIndices.length; i++, j++) {
+      k = resultSetIndices[j];
+      if (k == 0 || k > columnCount) continue;
+      valueMetaInterface = outputRowMeta.getValueMeta(i);
+      switch (valueMetaInterface.getType()) {
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          switch (resultSetMetaData.getColumnType(k)) {
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+              columnReader = new IntegerBooleanColumnReader(k);
+              break;
+            default:
+              columnReader = new BooleanColumnReader(k);
+          }
+          break;
+        case ValueMetaInterface.TYPE_INTEGER:
+          columnReader = new IntegerColumnReader(k);
+          break;
+        default:
+          columnReader = new ObjectColumnReader(k);
+      }
+      columnReaders.add(columnReader);
+      read[k] = true;
+    }
+    if (requiredColumns != null) {
+      for (int i = 0; i < requiredColumns.length; i++) {
+        k = requiredColumns[i] + 1;
+        if (k > columnCount || read[k]) continue;
+        columnReaders.add(new ObjectColumnReader(k));
+        read[k] = true;
+      }
+    }
+    return new MetaDataRowReader(columnReaders.toArray(new ColumnReader[columnReaders.size()]), fieldCount);
+  }
+
+  /**
+   * Read the current row of the resultset.
+   * The returned row has one slot for each column of the method's resultset descriptor;
+   * only the columns that are actually output by the step, and the required columns, are filled in.
+   * @param resultSet the resultset, positioned at a row
+   * @return the metadata row
+   * @throws SQLException
+   */
+  public Object[] readRow(ResultSet resultSet) throws SQLException {
+    Object[] metaDataRow = new Object[fieldCount];
+    ColumnReader columnReader;
+    for (int i = 0; i < columnReaders.length; i++) {
+      columnReader = columnReaders[i];
+      metaDataRow[columnReader.index] = columnReader.read(resultSet);
+    }
+    return metaDataRow;
+  }
+}
@@ -0,0 +1,429 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Produces the rows of the getSchemaSnapshot pseudo-method: one wide row for each column,
+ * holding the column, its table, its primary key, the foreign key it is part of and the indexes it is in.
+ *
+ * The tables, primary keys, foreign keys and indexes are read once for the whole schema, and held in hash maps
+ * keyed by catalog, schema, table and column. The columns are then streamed, and each is joined with the maps.
+ * If the driver does not return the keys or indexes of all tables at once (many need a table name),
+ * they are read for each table, and only the keys of the current table are held. The columns are then read table by table too,
+ * so that no resultset is open while the keys of the next table are read: not all drivers can have two open at once.
+ * Either way, the columns themselves are never all in memory.
+ */
+public class MetaDataSchemaHarvester implements MetaDataSnapshot.RowSource {
+
+  //the kinds of table data that are joined to the columns.
+  private static final int PRIMARY_KEYS = 0;
+  private static final int IMPORTED_KEYS = 1;
+  private static final int INDEXES = 2;
+  //the variants that read each kind for a whole schema.
+  private static final String[] SCHEMA_VARIANTS = new String[]{
+    MetaDataDriverProbe.PRIMARY_KEYS_OF_SCHEMA, MetaDataDriverProbe.IMPORTED_KEYS_OF_SCHEMA, MetaDataDriverProbe.INDEX_INFO_OF_SCHEMA
+  };
+
+  //the columns of getColumns that are copied to the rows.
+  private static final String[] COLUMN_COLUMNS = new String[]{
+    "TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME", "ORDINAL_POSITION",
+    "DATA_TYPE", "TYPE_NAME", "COLUMN_SIZE", "DECIMAL_DIGITS", "NULLABLE", "IS_NULLABLE",
+    "COLUMN_DEF", "REMARKS", "IS_AUTOINCREMENT"
+  };
+
+  private final DatabaseMetaData databaseMetaData;
+  private final String catalog;
+  //the schema, as a name, for the methods that do not take a pattern. null if the schema argument is a pattern.
+  private final String schema;
+  private final ValueMetaInterface[] resultSetDescriptor;
+  private final Map<String, Integer> columnIndices = new HashMap<String, Integer>();
+
+  //table type and remarks, by table.
+  private final Map<String, Object[]> tables = new HashMap<String, Object[]>();
+  //the catalog, schema and name of the tables, in the order of getColumns. Only used if the keys are read table by table.
+  private final List<Object[]> tableNames = new ArrayList<Object[]>();
+  private int tableIndex = 0;
+  //the values that are joined to the columns, for each kind, by column.
+  private final Object[] joins = new Object[]{
+    new HashMap<String, Object[]>(), new HashMap<String, Object[]>(), new HashMap<String, Object[]>()
+  };
+  //for each kind, whether it is read for each table rather than for the whole schema.
+  private final boolean[] perTable = new boolean[3];
+  //for each kind, whether it could not be read at all.
+  private final boolean[] failed = new boolean[3];
+
+  private ResultSet columns;
+  //whether the columns are read table by table.
+  private boolean columnsPerTable = false;
+  //for each of COLUMN_COLUMNS, its index in the columns resultset (1-based), or 0 if the driver does not return it.
+  private int[] columnsColumns;
+  private String currentTable;
+
+  private MetaDataSchemaHarvester(DatabaseMetaData databaseMetaData, String catalog, String schema, ValueMetaInterface[] resultSetDescriptor) {
+    this.databaseMetaData = databaseMetaData;
+    this.catalog = catalog;
+    this.schema = schema;
+    this.resultSetDescriptor = resultSetDescriptor;
+    for (int i = 0; i < resultSetDescriptor.length; i++) {
+      columnIndices.put(resultSetDescriptor[i].getName(), i);
+    }
+  }
+
+  /**
+   * Harvest the schema snapshot.
+   * @param databaseMetaData the metadata to harvest
+   * @param catalog the catalog, as in getTables
+   * @param schemaPattern the schema pattern, as in getTables
+   * @param tableNamePattern the table name pattern, as in getTables
+   * @param resultSetDescriptor the columns of the getSchemaSnapshot method
+   * @return a resultset that streams the rows
+   * @throws SQLException
+   */
+  public static ResultSet harvest(
+    DatabaseMetaData databaseMetaData, String catalog, String schemaPattern, String tableNamePattern, ValueMetaInterface[] resultSetDescriptor
+  ) throws SQLException {
+    if (tableNamePattern == null) tableNamePattern = "%";
+    String schema = getSchemaName(databaseMetaData, schemaPattern);
+    MetaDataSchemaHarvester harvester = new MetaDataSchemaHarvester(databaseMetaData, catalog, schema, resultSetDescriptor);
+    harvester.readTables(schemaPattern, tableNamePattern);
+    harvester.readSchema();
+    harvester.columnsPerTable = harvester.perTable[PRIMARY_KEYS] || harvester.perTable[IMPORTED_KEYS] || harvester.perTable[INDEXES];
+    if (harvester.columnsPerTable) {
+      Collections.sort(harvester.tableNames, TABLE_ORDER);
+    }
+    else {
+      harvester.openColumns(catalog, schemaPattern, tableNamePattern);
+    }
+    return MetaDataSnapshot.createResultSet(resultSetDescriptor, harvester);
+  }
+
+  /**
+   * Get the schema name that goes with a schema pattern, for the methods that take a schema name rather than a pattern.
+   * @param databaseMetaData the metadata
+   * @param schemaPattern the schema pattern
+   * @return the name, if the pattern matches only that name; null (all schemas) otherwise.
+   * @throws SQLException
+   */
+  static String getSchemaName(DatabaseMetaData databaseMetaData, String schemaPattern) throws SQLException {
+    if (schemaPattern == null) return null;
+    JdbcPattern pattern = new JdbcPattern(schemaPattern, databaseMetaData.getSearchStringEscape(), false);
+    return pattern.isLiteral() ? pattern.getLiteral() : null;
+  }
+
+  //orders tables by catalog, schema and name, as getColumns does; null sorts first.
+  private static final Comparator<Object[]> TABLE_ORDER = new Comparator<Object[]>() {
+    public int compare(Object[] names1, Object[] names2) {
+      int result;
+      for (int i = 0; i < names1.length; i++) {
+        if (names1[i] == null) {
+          result = names2[i] == null ? 0 : -1;
+        }
+        else
+        if (names2[i] == null) {
+          result = 1;
+        }
+        else {
+          result = names1[i].toString().compareTo(names2[i].toString());
+        }
+        if (result != 0) return result;
+      }
+      return 0;
+    }
+  };
+
+  //turn a name into a pattern that matches only that name. Without an escape, the pattern may match a few more names.
+  private String toPattern(String name) throws SQLException {
+    if (name == null) return null;
+    String escape = databaseMetaData.getSearchStringEscape();
+    if (escape == null || escape.length() == 0) return name;
+    return name.replace(escape, escape + escape).replace("%", escape + "%").replace("_", escape + "_");
+  }
+
+  private static String getTableKey(Object catalog, Object schema, Object table) {
+    return MetaDataSnapshot.getKey(new Object[]{catalog, schema, table});
+  }
+
+  private static String getColumnKey(Object catalog, Object schema, Object table, Object column) {
+    return MetaDataSnapshot.getKey(new Object[]{catalog, schema, table, column});
+  }
+
+  private static Object getNumber(ResultSet resultSet, String column) throws SQLException {
+    Object value = resultSet.getObject(column);
+    return value instanceof Number ? Long.valueOf(((Number)value).longValue()) : value;
+  }
+
+  private void readTables(String schemaPattern, String tableNamePattern) throws SQLException {
+    ResultSet resultSet = databaseMetaData.getTables(catalog, schemaPattern, tableNamePattern, null);
+    try {
+      String tableCatalog, tableSchema, tableName;
+      while (resultSet.next()) {
+        tableCatalog = resultSet.getString("TABLE_CAT");
+        tableSchema = resultSet.getString("TABLE_SCHEM");
+        tableName = resultSet.getString("TABLE_NAME");
+        tables.put(
+          getTableKey(tableCatalog, tableSchema, tableName),
+          new Object[]{resultSet.getString("TABLE_TYPE"), resultSet.getString("REMARKS")}
+        );
+        tableNames.add(new Object[]{tableCatalog, tableSchema, tableName});
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+  }
+
+  private ResultSet call(int kind, String catalog, String schema, String table) throws SQLException {
+    switch (kind) {
+      case PRIMARY_KEYS:
+        return databaseMetaData.getPrimaryKeys(catalog, schema, table);
+      case IMPORTED_KEYS:
+        return databaseMetaData.getImportedKeys(catalog, schema, table);
+      default:
+        return databaseMetaData.getIndexInfo(catalog, schema, table, false, true);
+    }
+  }
+
+  //read the rows of one kind into its map. Returns the number of rows.
+  @SuppressWarnings("unchecked")
+  private int read(int kind, String catalog, String schema, String table) throws SQLException {
+    Map<String, Object[]> join = (Map<String, Object[]>)joins[kind];
+    ResultSet resultSet = call(kind, catalog, schema, table);
+    int count = 0;
+    String key;
+    try {
+      while (resultSet.next()) {
+        count++;
+        switch (kind) {
+          case PRIMARY_KEYS:
+            key = getColumnKey(
+              resultSet.getString("TABLE_CAT"), resultSet.getString("TABLE_SCHEM"), resultSet.getString("TABLE_NAME"), resultSet.getString("COLUMN_NAME")
+            );
+            join.put(key, new Object[]{resultSet.getString("PK_NAME"), getNumber(resultSet, "KEY_SEQ")});
+            break;
+          case IMPORTED_KEYS:
+            key = getColumnKey(
+              resultSet.getString("FKTABLE_CAT"), resultSet.getString("FKTABLE_SCHEM"), resultSet.getString("FKTABLE_NAME"), resultSet.getString("FKCOLUMN_NAME")
+            );
+            //a column that is part of several foreign keys gets the first one.
+            if (join.containsKey(key)) continue;
+            join.put(key, new Object[]{
+              resultSet.getString("FK_NAME"), resultSet.getString("PKTABLE_CAT"), resultSet.getString("PKTABLE_SCHEM"),
+              resultSet.getString("PKTABLE_NAME"), resultSet.getString("PKCOLUMN_NAME")
+            });
+            break;
+          default:
+            //statistics rows are not about a column.
+            String column = resultSet.getString("COLUMN_NAME");
+            String index = resultSet.getString("INDEX_NAME");
+            if (column == null || index == null) continue;
+            key = getColumnKey(resultSet.getString("TABLE_CAT"), resultSet.getString("TABLE_SCHEM"), resultSet.getString("TABLE_NAME"), column);
+            Object[] indexes = join.get(key);
+            if (indexes == null) {
+              join.put(key, new Object[]{index});
+            }
+            else
+            if (!(", " + indexes[0] + ", ").contains(", " + index + ", ")) {
+              indexes[0] = indexes[0] + ", " + index;
+            }
+        }
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return count;
+  }
+
+  //try to read the keys and indexes of all tables at once.
+  //A driver that needs a table name either fails, or returns nothing. If it fails, we read them table by table from now on.
+  //If it returns nothing, the schema may not have any keys, unless the driver never returned anything for all tables at once:
+  //then we read them table by table this time.
+  private void readSchema() throws SQLException {
+    int count;
+    for (int kind = PRIMARY_KEYS; kind <= INDEXES; kind++) {
+      if (Boolean.FALSE.equals(MetaDataDriverProbe.isSupported(databaseMetaData, SCHEMA_VARIANTS[kind]))) {
+        perTable[kind] = true;
+        continue;
+      }
+      try {
+        count = read(kind, catalog, schema, null);
+      }
+      catch (SQLException exception) {
+        perTable[kind] = true;
+        MetaDataDriverProbe.setFailed(databaseMetaData, SCHEMA_VARIANTS[kind], exception);
+        continue;
+      }
+      MetaDataDriverProbe.setSupported(databaseMetaData, SCHEMA_VARIANTS[kind], true);
+      if (count > 0) {
+        MetaDataDriverProbe.setReturningRows(databaseMetaData, SCHEMA_VARIANTS[kind]);
+      }
+      else
+      if (!tables.isEmpty() && !MetaDataDriverProbe.isReturningRows(databaseMetaData, SCHEMA_VARIANTS[kind])) {
+        perTable[kind] = true;
+      }
+    }
+  }
+
+  //read the keys and indexes of the table the columns move on to.
+  private void readTable(String tableCatalog, String tableSchema, String table) throws SQLException {
+    //the catalog and schema of the table itself are more precise than the arguments, which may be patterns.
+    if (tableCatalog == null) tableCatalog = catalog;
+    if (tableSchema == null) tableSchema = schema;
+    for (int kind = PRIMARY_KEYS; kind <= INDEXES; kind++) {
+      if (!perTable[kind] || failed[kind]) continue;
+      ((Map<?, ?>)joins[kind]).clear();
+      try {
+        read(kind, tableCatalog, tableSchema, table);
+      }
+      catch (SQLException exception) {
+        //without keys, the snapshot is wrong; without indexes, it is only incomplete.
+        if (kind != INDEXES) throw exception;
+        failed[kind] = true;
+      }
+    }
+  }
+
+  private void openColumns(String catalog, String schemaPattern, String tableNamePattern) throws SQLException {
+    columns = databaseMetaData.getColumns(catalog, schemaPattern, tableNamePattern, "%");
+    if (columnsColumns != null) return;
+    ResultSetMetaData resultSetMetaData = columns.getMetaData();
+    Map<String, Integer> labels = new HashMap<String, Integer>();
+    for (int i = resultSetMetaData.getColumnCount(); i > 0; i--) {
+      labels.put(resultSetMetaData.getColumnLabel(i).toUpperCase(), i);
+    }
+    columnsColumns = new int[COLUMN_COLUMNS.length];
+    for (int i = 0; i < COLUMN_COLUMNS.length; i++) {
+      Integer index = labels.get(COLUMN_COLUMNS[i]);
+      columnsColumns[i] = index == null ? 0 : index.intValue();
+    }
+  }
+
+  private void set(Object[] row, String column, Object value) {
+    Integer index = columnIndices.get(column);
+    if (index != null) row[index.intValue()] = value;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Object[] get(int kind, String key) {
+    return ((Map<String, Object[]>)joins[kind]).get(key);
+  }
+
+  //move on to the columns of the next table, after reading its keys and indexes.
+  //Returns false if there are no more tables.
+  private boolean nextTable() throws SQLException {
+    if (columns != null) {
+      columns.close();
+      columns = null;
+    }
+    if (tableIndex >= tableNames.size()) return false;
+    Object[] names = tableNames.get(tableIndex++);
+    currentTable = getTableKey(names[0], names[1], names[2]);
+    readTable((String)names[0], (String)names[1], (String)names[2]);
+    openColumns((String)names[0], toPattern((String)names[1]), toPattern((String)names[2]));
+    return true;
+  }
+
+  public Object[] next() throws SQLException {
+    Object[] row;
+    while (true) {
+      if (columns != null && columns.next()) {
+        row = readColumn();
+        if (row != null) return row;
+        continue;
+      }
+      if (!columnsPerTable || !nextTable()) {
+        close();
+        return null;
+      }
+    }
+  }
+
+  //the row of the current column, or null if it is not of the current table (when the columns are read table by table).
+  private Object[] readColumn() throws SQLException {
+    Object[] row = new Object[resultSetDescriptor.length];
+    Object value;
+    for (int i = 0; i < COLUMN_COLUMNS.length; i++) {
+      if (columnsColumns[i] == 0) continue;
+      value = columns.getObject(columnsColumns[i]);
+      if (value instanceof Number && resultSetDescriptor[columnIndices.get(COLUMN_COLUMNS[i])].getType() == ValueMetaInterface.TYPE_INTEGER) {
+        value = Long.valueOf(((Number)value).longValue());
+      }
+      set(row, COLUMN_COLUMNS[i], value);
+    }
+    Object catalog = row[columnIndices.get("TABLE_CAT")];
+    Object schema = row[columnIndices.get("TABLE_SCHEM")];
+    Object table = row[columnIndices.get("TABLE_NAME")];
+    String tableKey = getTableKey(catalog, schema, table);
+    //a pattern without an escape may match other tables too.
+    if (columnsPerTable && !tableKey.equals(currentTable)) return null;
+    Object[] values = tables.get(tableKey);
+    if (values != null) {
+      set(row, "TABLE_TYPE", values[0]);
+      set(row, "TABLE_REMARKS", values[1]);
+    }
+    String columnKey = getColumnKey(catalog, schema, table, row[columnIndices.get("COLUMN_NAME")]);
+    values = get(PRIMARY_KEYS, columnKey);
+    if (values != null) {
+      set(row, "PK_NAME", values[0]);
+      set(row, "KEY_SEQ", values[1]);
+    }
+    values = get(IMPORTED_KEYS, columnKey);
+    if (values != null) {
+      set(row, "FK_NAME", values[0]);
+      set(row, "PKTABLE_CAT", values[1]);
+      set(row, "PKTABLE_SCHEM", values[2]);
+      set(row, "PKTABLE_NAME", values[3]);
+      set(row, "PKCOLUMN_NAME", values[4]);
+    }
+    values = get(INDEXES, columnKey);
+    if (values != null) set(row, "INDEX_NAMES", values[0]);
+    return row;
+  }
+
+  public void close() throws SQLException {
+    try {
+      if (columns != null) columns.close();
+    }
+    finally {
+      columns = null;
+      tableIndex = tableNames.size();
+      tables.clear();
+      for (Object join : joins) {
+        ((Map<?, ?>)join).clear();
+      }
+    }
+  }
+}
@@ -0,0 +1,827 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * A snapshot of database metadata, read from a file written by MetaDataSnapshotWriter.
+ *
+ * A snapshot answers the metadata methods without a database: getConnection() returns a connection
+ * whose DatabaseMetaData looks up the results of its method calls in the snapshot.
+ *
+ * The file is memory-mapped, and nothing is read until it is needed, so opening even a large snapshot is instant.
+ * (As long as the mapping is in use, some platforms don't allow the file to be replaced. Use read() to read a file
+ * that may be replaced while the snapshot is in use.)
+ * The file layout (all numbers big-endian, all positions are absolute file positions):
+ *
+ *   header:     magic (8 bytes), version, dictionary position, properties position, directory position
+ *   dictionary: number of strings, offsets of the strings in the blob (one more than the number of strings), blob of UTF-8 bytes
+ *   properties: number of properties, then for each property its name and value (as dictionary indices)
+ *   directory:  number of sections, then for each section (one per method) the method name, the number of entries,
+ *               and for each entry its key and the position of its data. Entries are sorted by key.
+ *   data:       for each entry the arguments, the number of rows, and for each row its number of values and the values.
+ *
+ * Strings are stored once in the dictionary and referred to by index; -1 means null.
+ * Values are stored as a tag byte followed by the value.
+ */
+public class MetaDataSnapshot {
+
+  static final byte[] MAGIC = new byte[]{'J', 'D', 'B', 'C', 'M', 'E', 'T', 'A'};
+  static final int VERSION = 1;
+
+  static final byte TAG_NULL = 0;
+  static final byte TAG_STRING = 1;
+  static final byte TAG_LONG = 2;
+  static final byte TAG_INTEGER = 3;
+  static final byte TAG_SHORT = 4;
+  static final byte TAG_BOOLEAN = 5;
+  static final byte TAG_DOUBLE = 6;
+  static final byte TAG_STRING_ARRAY = 7;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  //the DatabaseMetaData methods that describe the database, stored as properties of the snapshot.
+  static final String[] PROPERTY_METHODS = new String[]{
+    "getSearchStringEscape", "getIdentifierQuoteString", "getCatalogSeparator", "getCatalogTerm", "getSchemaTerm",
+    "getDatabaseProductName", "getDatabaseProductVersion", "getDriverName", "getDriverVersion", "getURL", "getUserName"
+  };
+
+  //separates the arguments in a key
+  private static final char KEY_SEPARATOR = '\u0001';
+  //separates the elements of an array argument in a key
+  private static final char KEY_ARRAY_SEPARATOR = '\u0002';
+  //stands for null in a key
+  private static final char KEY_NULL = '\u0000';
+
+  /**
+   * Build the key of a method call. Entries are sorted and looked up by this key.
+   * @param arguments the arguments of the call
+   * @return the key
+   */
+  static String getKey(Object[] arguments) {
+    StringBuilder key = new StringBuilder();
+    Object argument;
+    for (int i = 0; i < arguments.length; i++) {
+      if (i > 0) key.append(KEY_SEPARATOR);
+      argument = arguments[i];
+      if (argument == null) {
+        key.append(KEY_NULL);
+      }
+      else
+      if (argument instanceof Object[]) {
+        Object[] array = (Object[])argument;
+        key.append(KEY_ARRAY_SEPARATOR);
+        for (int j = 0; j < array.length; j++) {
+          if (j > 0) key.append(KEY_ARRAY_SEPARATOR);
+          key.append(array[j] == null ? String.valueOf(KEY_NULL) : array[j].toString());
+        }
+      }
+      else {
+        key.append(argument.toString());
+      }
+    }
+    return key.toString();
+  }
+
+  private static class Section {
+    private final String methodName;
+    private final int entryCount;
+    //position of the first index entry of this section
+    private final int indexPosition;
+
+    private Section(String methodName, int entryCount, int indexPosition) {
+      this.methodName = methodName;
+      this.entryCount = entryCount;
+      this.indexPosition = indexPosition;
+    }
+  }
+
+  //size of one index entry: key and data position.
+  private static final int INDEX_ENTRY_SIZE = 8;
+
+  private final File file;
+  //the mapped file. Only absolute gets are used, so it can be shared by all threads.
+  private final ByteBuffer buffer;
+  private final int stringCount;
+  private final int stringOffsetsPosition;
+  private final int stringBlobPosition;
+  //strings that have been decoded already.
+  private final String[] strings;
+  private final Map<String, String> properties = new HashMap<String, String>();
+  private final Map<String, Section> sections = new HashMap<String, Section>();
+  private final String searchStringEscape;
+
+  private MetaDataSnapshot(File file, ByteBuffer buffer) throws IOException {
+    this.file = file;
+    this.buffer = buffer;
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (buffer.get(i) != MAGIC[i]) throw new IOException(file + " is not a metadata snapshot.");
+    }
+    int position = MAGIC.length;
+    int version = buffer.getInt(position);
+    if (version != VERSION) throw new IOException("Unsupported version " + version + " of metadata snapshot " + file);
+    int dictionaryPosition = buffer.getInt(position + 4);
+    int propertiesPosition = buffer.getInt(position + 8);
+    int directoryPosition = buffer.getInt(position + 12);
+
+    stringCount = buffer.getInt(dictionaryPosition);
+    stringOffsetsPosition = dictionaryPosition + 4;
+    stringBlobPosition = stringOffsetsPosition + 4 * (stringCount + 1);
+    strings = new String[stringCount];
+
+    position = propertiesPosition;
+    int propertyCount = buffer.getInt(position);
+    position += 4;
+    for (int i = 0; i < propertyCount; i++, position += 8) {
+      properties.put(getString(buffer.getInt(position)), getString(buffer.getInt(position + 4)));
+    }
+    searchStringEscape = properties.get("getSearchStringEscape");
+
+    position = directoryPosition;
+    int sectionCount = buffer.getInt(position);
+    position += 4;
+    String methodName;
+    int entryCount;
+    for (int i = 0; i < sectionCount; i++) {
+      methodName = getString(buffer.getInt(position));
+      entryCount = buffer.getInt(position + 4);
+      position += 8;
+      sections.put(methodName, new Section(methodName, entryCount, position));
+      position += entryCount * INDEX_ENTRY_SIZE;
+    }
+  }
+
+  /**
+   * Open a snapshot file.
+   * @param file the file
+   * @return the snapshot
+   * @throws IOException
+   */
+  public static MetaDataSnapshot open(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      //the mapping stays valid after the channel is closed.
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new MetaDataSnapshot(file, buffer);
+    }
+    finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /**
+   * Read a snapshot file into memory.
+   * Unlike open(), this does not keep the file mapped, so the file can be replaced or deleted as soon as this returns,
+   * even on platforms (like Windows) that don't allow that for mapped files.
+   * @param file the file
+   * @return the snapshot
+   * @throws IOException
+   */
+  public static MetaDataSnapshot read(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) throw new IOException(file + " is too large to read into memory.");
+      ByteBuffer buffer = ByteBuffer.allocate((int)size);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) == -1) throw new EOFException("Unexpected end of metadata snapshot " + file);
+      }
+      return new MetaDataSnapshot(file, buffer);
+    }
+    finally {
+      randomAccessFile.close();
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @param name the name of a DatabaseMetaData method listed in PROPERTY_METHODS
+   * @return the value it returned when the snapshot was captured.
+   */
+  public String getProperty(String name) {
+    return properties.get(name);
+  }
+
+  private String getString(int index) {
+    if (index < 0) return null;
+    String string = strings[index];
+    if (string == null) {
+      int start = buffer.getInt(stringOffsetsPosition + 4 * index);
+      int end = buffer.getInt(stringOffsetsPosition + 4 * (index + 1));
+      byte[] bytes = new byte[end - start];
+      ByteBuffer duplicate = buffer.duplicate();
+      duplicate.position(stringBlobPosition + start);
+      duplicate.get(bytes);
+      string = new String(bytes, UTF8);
+      //if two threads do this at the same time, they both store the same string. That's fine.
+      strings[index] = string;
+    }
+    return string;
+  }
+
+  /**
+   * Reads values from the data part of the file.
+   */
+  private class Reader {
+    private int position;
+
+    private Reader(int position) {
+      this.position = position;
+    }
+
+    private int readInt() {
+      int value = buffer.getInt(position);
+      position += 4;
+      return value;
+    }
+
+    private Object readValue() {
+      byte tag = buffer.get(position++);
+      Object value;
+      switch (tag) {
+        case TAG_NULL:
+          value = null;
+          break;
+        case TAG_STRING:
+          value = getString(readInt());
+          break;
+        case TAG_LONG:
+          value = Long.valueOf(buffer.getLong(position));
+          position += 8;
+          break;
+        case TAG_INTEGER:
+          value = Integer.valueOf(readInt());
+          break;
+        case TAG_SHORT:
+          value = Short.valueOf(buffer.getShort(position));
+          position += 2;
+          break;
+        case TAG_BOOLEAN:
+          value = Boolean.valueOf(buffer.get(position++) != 0);
+          break;
+        case TAG_DOUBLE:
+          value = Double.valueOf(buffer.getDouble(position));
+          position += 8;
+          break;
+        case TAG_STRING_ARRAY:
+          String[] array = new String[readInt()];
+          for (int i = 0; i < array.length; i++) {
+            array[i] = getString(readInt());
+          }
+          value = array;
+          break;
+        default:
+          throw new IllegalStateException("Corrupt metadata snapshot " + file + ": unknown tag " + tag + " at " + (position - 1));
+      }
+      return value;
+    }
+
+    private Object[] readValues() {
+      Object[] values = new Object[readInt()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = readValue();
+      }
+      return values;
+    }
+
+    private List<Object[]> readRows() {
+      int rowCount = readInt();
+      List<Object[]> rows = new ArrayList<Object[]>(rowCount);
+      for (int i = 0; i < rowCount; i++) {
+        rows.add(readValues());
+      }
+      return rows;
+    }
+  }
+
+  private int getKeyIndex(Section section, int entry) {
+    return buffer.getInt(section.indexPosition + entry * INDEX_ENTRY_SIZE);
+  }
+
+  private int getDataPosition(Section section, int entry) {
+    return buffer.getInt(section.indexPosition + entry * INDEX_ENTRY_SIZE + 4);
+  }
+
+  //binary search for the entry with the key.
+  private int find(Section section, String key) {
+    int low = 0;
+    int high = section.entryCount - 1;
+    int middle, comparison;
+    while (low <= high) {
+      middle = (low + high) >>> 1;
+      comparison = getString(getKeyIndex(section, middle)).compareTo(key);
+      if (comparison < 0) {
+        low = middle + 1;
+      }
+      else
+      if (comparison > 0) {
+        high = middle - 1;
+      }
+      else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Get the rows of a method call.
+   * If the call itself was not captured, but a call that returns a superset of its rows was
+   * (for example, getTables for all tables of the schema, where we want one table), the rows are
+   * filtered from the result of that call.
+   * @param methodName the name of the method
+   * @param arguments the arguments of the call
+   * @return the rows, or null if the snapshot can't answer the call.
+   */
+  public List<Object[]> getRows(String methodName, Object[] arguments) {
+    if (arguments == null) arguments = new Object[0];
+    Section section = sections.get(methodName);
+    if (section == null) return null;
+    int entry = find(section, getKey(arguments));
+    if (entry != -1) {
+      Reader reader = new Reader(getDataPosition(section, entry));
+      reader.readValues();
+      return reader.readRows();
+    }
+    return getFilteredRows(section, arguments);
+  }
+
+  /**
+   * Get the rows of all captured calls of a method, without reading them all into memory at once.
+   * If captured calls overlap, rows may be returned more than once.
+   * @param methodName the name of the method
+   * @return an iterator over the rows, or null if the snapshot has no calls of the method.
+   */
+  public Iterator<Object[]> getRowIterator(String methodName) {
+    final Section section = sections.get(methodName);
+    if (section == null) return null;
+    return new Iterator<Object[]>() {
+      private int entry = 0;
+      private int rowCount = 0;
+      private Reader reader = null;
+
+      public boolean hasNext() {
+        while (rowCount == 0) {
+          if (entry >= section.entryCount) return false;
+          reader = new Reader(getDataPosition(section, entry++));
+          reader.readValues();
+          rowCount = reader.readInt();
+        }
+        return true;
+      }
+
+      public Object[] next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        rowCount--;
+        return reader.readValues();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Determine the column that a method argument can be matched against.
+   * @return the index of the column in the resultset descriptor, or -1 if the argument can't be matched to a column.
+   */
+  private static int getArgumentColumn(String methodName, String argumentName, ValueMetaInterface[] resultSetDescriptor) {
+    String prefix = "TABLE_";
+    if (argumentName.startsWith("parent")) {
+      prefix = "PKTABLE_";
+      argumentName = argumentName.substring("parent".length());
+    }
+    else
+    if (argumentName.startsWith("foreign")) {
+      prefix = "FKTABLE_";
+      argumentName = argumentName.substring("foreign".length());
+    }
+    else
+    if ("getExportedKeys".equals(methodName)) {
+      prefix = "PKTABLE_";
+    }
+    else
+    if ("getImportedKeys".equals(methodName)) {
+      prefix = "FKTABLE_";
+    }
+    argumentName = argumentName.toLowerCase();
+    String[] columnNames;
+    if (argumentName.startsWith("catalog")) {
+      columnNames = new String[]{prefix + "CAT", "TABLE_CATALOG"};
+    }
+    else
+    if (argumentName.startsWith("schema")) {
+      columnNames = new String[]{prefix + "SCHEM"};
+    }
+    else
+    if (argumentName.startsWith("tabletypes")) {
+      columnNames = new String[]{"TABLE_TYPE"};
+    }
+    else
+    if (argumentName.startsWith("table")) {
+      columnNames = new String[]{prefix + "NAME"};
+    }
+    else
+    if (argumentName.startsWith("columnname")) {
+      columnNames = new String[]{"COLUMN_NAME"};
+    }
+    else {
+      return -1;
+    }
+    for (String columnName : columnNames) {
+      for (int i = 0; i < resultSetDescriptor.length; i++) {
+        if (columnName.equals(resultSetDescriptor[i].getName())) return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Find an entry whose arguments are equal to or broader than the requested arguments,
+   * and filter its rows to what the requested call would have returned.
+   * Only entries that have null (or, for patterns, %) where the requested call has a value are considered,
+   * and only for arguments that correspond to a column of the result.
+   */
+  private List<Object[]> getFilteredRows(Section section, Object[] arguments) {
+    Object[] methodDescriptor = JdbcMetaDataMeta.getMethodDescriptor(section.methodName);
+    if (methodDescriptor == null) return null;
+    Object[] argumentDescriptors = (Object[])methodDescriptor[1];
+    if (argumentDescriptors.length != arguments.length) return null;
+    ValueMetaInterface[] resultSetDescriptor = (ValueMetaInterface[])methodDescriptor[2];
+    int n = arguments.length;
+    int[] columns = new int[n];
+    boolean[] patterns = new boolean[n];
+    String argumentName;
+    for (int i = 0; i < n; i++) {
+      argumentName = (String)((Object[])argumentDescriptors[i])[0];
+      columns[i] = getArgumentColumn(section.methodName, argumentName, resultSetDescriptor);
+      patterns[i] = argumentName.endsWith("Pattern");
+    }
+    Reader reader;
+    Object[] entryArguments;
+    Object argument, entryArgument;
+    boolean[] filters = new boolean[n];
+    boolean covers;
+    for (int entry = 0; entry < section.entryCount; entry++) {
+      reader = new Reader(getDataPosition(section, entry));
+      entryArguments = reader.readValues();
+      if (entryArguments.length != n) continue;
+      covers = true;
+      for (int i = 0; i < n && covers; i++) {
+        argument = arguments[i];
+        entryArgument = entryArguments[i];
+        filters[i] = false;
+        if (argument instanceof Object[] && entryArgument instanceof Object[]) {
+          if (Arrays.equals((Object[])argument, (Object[])entryArgument)) continue;
+        }
+        else
+        if (argument == null ? entryArgument == null : argument.equals(entryArgument)) {
+          continue;
+        }
+        if (argument == null || columns[i] == -1) {
+          covers = false;
+        }
+        else
+        if (entryArgument == null || (patterns[i] && "%".equals(entryArgument))) {
+          filters[i] = true;
+        }
+        else {
+          covers = false;
+        }
+      }
+      if (!covers) continue;
+      return filterRows(reader.readRows(), arguments, columns, patterns, filters);
+    }
+    return null;
+  }
+
+  private List<Object[]> filterRows(List<Object[]> rows, Object[] arguments, int[] columns, boolean[] patterns, boolean[] filters) {
+    int n = arguments.length;
+    JdbcPattern[] jdbcPatterns = new JdbcPattern[n];
+    for (int i = 0; i < n; i++) {
+      if (filters[i] && patterns[i]) jdbcPatterns[i] = new JdbcPattern((String)arguments[i], searchStringEscape, false);
+    }
+    List<Object[]> filteredRows = new ArrayList<Object[]>();
+    Object value;
+    boolean matches;
+    for (Object[] row : rows) {
+      matches = true;
+      for (int i = 0; i < n && matches; i++) {
+        if (!filters[i]) continue;
+        value = columns[i] < row.length ? row[columns[i]] : null;
+        if (jdbcPatterns[i] != null) {
+          matches = value != null && jdbcPatterns[i].matches(value.toString());
+        }
+        else
+        if (arguments[i] instanceof Object[]) {
+          matches = value != null && Arrays.asList((Object[])arguments[i]).contains(value.toString());
+        }
+        else
+        if ("".equals(arguments[i])) {
+          //empty means: without a catalog (or schema).
+          matches = value == null || "".equals(value);
+        }
+        else {
+          matches = arguments[i].equals(value);
+        }
+      }
+      if (matches) filteredRows.add(row);
+    }
+    return filteredRows;
+  }
+
+  /**
+   * @return a connection that answers metadata calls from this snapshot.
+   */
+  public Connection getConnection() {
+    return (Connection)Proxy.newProxyInstance(
+      MetaDataSnapshot.class.getClassLoader(), new Class<?>[]{Connection.class}, new ConnectionHandler()
+    );
+  }
+
+  private static SQLException notSupported(Method method) {
+    return new SQLFeatureNotSupportedException(method.getName() + " is not supported by a metadata snapshot.");
+  }
+
+  private class ConnectionHandler implements InvocationHandler {
+    private DatabaseMetaData databaseMetaData = null;
+
+    public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+      String name = method.getName();
+      if ("getMetaData".equals(name)) {
+        if (databaseMetaData == null) {
+          databaseMetaData = (DatabaseMetaData)Proxy.newProxyInstance(
+            MetaDataSnapshot.class.getClassLoader(), new Class<?>[]{DatabaseMetaData.class},
+            new DatabaseMetaDataHandler((Connection)proxy)
+          );
+        }
+        return databaseMetaData;
+      }
+      if ("isClosed".equals(name) || "isReadOnly".equals(name)) return Boolean.valueOf("isReadOnly".equals(name));
+      if ("isValid".equals(name)) return Boolean.TRUE;
+      if ("close".equals(name)) return null;
+      if ("toString".equals(name)) return "Metadata snapshot " + file;
+      if ("hashCode".equals(name)) return Integer.valueOf(System.identityHashCode(proxy));
+      if ("equals".equals(name)) return Boolean.valueOf(proxy == arguments[0]);
+      throw notSupported(method);
+    }
+  }
+
+  private class DatabaseMetaDataHandler implements InvocationHandler {
+    private final Connection connection;
+
+    private DatabaseMetaDataHandler(Connection connection) {
+      this.connection = connection;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+      String name = method.getName();
+      if (method.getReturnType() == ResultSet.class) {
+        List<Object[]> rows = getRows(name, arguments);
+        if (rows == null) {
+          throw new SQLException(
+            "The call " + name + Arrays.deepToString(arguments == null ? new Object[0] : arguments) +
+            " was not captured in metadata snapshot " + file
+          );
+        }
+        Object[] methodDescriptor = JdbcMetaDataMeta.getMethodDescriptor(name);
+        return createResultSet((ValueMetaInterface[])methodDescriptor[2], rows);
+      }
+      if ("getConnection".equals(name)) return connection;
+      if (properties.containsKey(name)) return properties.get(name);
+      if ("toString".equals(name)) return "Metadata snapshot " + file;
+      if ("hashCode".equals(name)) return Integer.valueOf(System.identityHashCode(proxy));
+      if ("equals".equals(name)) return Boolean.valueOf(proxy == arguments[0]);
+      throw notSupported(method);
+    }
+  }
+
+  /**
+   * @param databaseMetaData a DatabaseMetaData
+   * @return whether it replays a snapshot, rather than asking a live connection.
+   */
+  static boolean isSnapshot(DatabaseMetaData databaseMetaData) {
+    if (!Proxy.isProxyClass(databaseMetaData.getClass())) return false;
+    return Proxy.getInvocationHandler(databaseMetaData) instanceof DatabaseMetaDataHandler;
+  }
+
+  /**
+   * Create a forward-only resultset that serves a list of rows.
+   * @param resultSetDescriptor the columns of the resultset
+   * @param rows the rows. Each row holds the values of the columns, in the order of the descriptor.
+   * @return the resultset
+   */
+  static ResultSet createResultSet(ValueMetaInterface[] resultSetDescriptor, List<Object[]> rows) {
+    final Iterator<Object[]> iterator = rows.iterator();
+    return createResultSet(resultSetDescriptor, new RowSource() {
+      public Object[] next() {
+        return iterator.hasNext() ? iterator.next() : null;
+      }
+      public void close() {
+      }
+    });
+  }
+
+  /**
+   * Produces the rows of a resultset, one at a time.
+   */
+  interface RowSource {
+    /**
+     * @return the next row, or null if there are no more rows.
+     * @throws SQLException
+     */
+    Object[] next() throws SQLException;
+    /**
+     * Release any resources. Called when the resultset is closed.
+     * @throws SQLException
+     */
+    void close() throws SQLException;
+  }
+
+  /**
+   * Create a forward-only resultset that serves the rows of a row source.
+   * @param resultSetDescriptor the columns of the resultset
+   * @param rows the rows. Each row holds the values of the columns, in the order of the descriptor.
+   * @return the resultset
+   */
+  static ResultSet createResultSet(ValueMetaInterface[] resultSetDescriptor, RowSource rows) {
+    return (ResultSet)Proxy.newProxyInstance(
+      MetaDataSnapshot.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+      new ResultSetHandler(resultSetDescriptor, rows)
+    );
+  }
+
+  /**
+   * Serves the rows of a row source as a forward-only resultset.
+   * Values are converted as needed by the getters, like a driver would.
+   */
+  private static class ResultSetHandler implements InvocationHandler {
+    private final ValueMetaInterface[] resultSetDescriptor;
+    private final RowSource rows;
+    private Object[] row = null;
+    private boolean wasNull = false;
+    private boolean closed = false;
+
+    private ResultSetHandler(ValueMetaInterface[] resultSetDescriptor, RowSource rows) {
+      this.resultSetDescriptor = resultSetDescriptor;
+      this.rows = rows;
+    }
+
+    private int findColumn(String label) throws SQLException {
+      for (int i = 0; i < resultSetDescriptor.length; i++) {
+        if (resultSetDescriptor[i].getName().equalsIgnoreCase(label)) return i + 1;
+      }
+      throw new SQLException("No such column: " + label);
+    }
+
+    private Object getValue(Object column) throws SQLException {
+      if (row == null) throw new SQLException("Not positioned on a row.");
+      int index = (column instanceof String ? findColumn((String)column) : ((Integer)column).intValue()) - 1;
+      if (index < 0 || index >= resultSetDescriptor.length) throw new SQLException("No such column: " + (index + 1));
+      Object value = index < row.length ? row[index] : null;
+      wasNull = value == null;
+      return value;
+    }
+
+    private static long toLong(Object value) {
+      if (value == null) return 0;
+      if (value instanceof Number) return ((Number)value).longValue();
+      if (value instanceof Boolean) return ((Boolean)value).booleanValue() ? 1 : 0;
+      return Long.parseLong(value.toString().trim());
+    }
+
+    private static boolean toBoolean(Object value) {
+      if (value == null) return false;
+      if (value instanceof Boolean) return ((Boolean)value).booleanValue();
+      if (value instanceof Number) return ((Number)value).intValue() != 0;
+      String string = value.toString().trim();
+      return "true".equalsIgnoreCase(string) || "1".equals(string) || "YES".equalsIgnoreCase(string) || "Y".equalsIgnoreCase(string);
+    }
+
+    private static int getSqlType(ValueMetaInterface valueMeta) {
+      switch (valueMeta.getType()) {
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          return Types.BOOLEAN;
+        case ValueMetaInterface.TYPE_INTEGER:
+          return Types.BIGINT;
+        case ValueMetaInterface.TYPE_NUMBER:
+          return Types.DOUBLE;
+        default:
+          return Types.VARCHAR;
+      }
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+      String name = method.getName();
+      if ("next".equals(name)) {
+        if (closed) throw new SQLException("Resultset is closed.");
+        row = rows.next();
+        return Boolean.valueOf(row != null);
+      }
+      if ("close".equals(name)) {
+        if (!closed) rows.close();
+        closed = true;
+        row = null;
+        return null;
+      }
+      if ("isClosed".equals(name)) return Boolean.valueOf(closed);
+      if ("wasNull".equals(name)) return Boolean.valueOf(wasNull);
+      if ("findColumn".equals(name)) return Integer.valueOf(findColumn((String)arguments[0]));
+      if ("getObject".equals(name) && arguments.length == 1) return getValue(arguments[0]);
+      if ("getString".equals(name)) {
+        Object value = getValue(arguments[0]);
+        return value == null ? null : value.toString();
+      }
+      if ("getBoolean".equals(name)) return Boolean.valueOf(toBoolean(getValue(arguments[0])));
+      if ("getLong".equals(name)) return Long.valueOf(toLong(getValue(arguments[0])));
+      if ("getInt".equals(name)) return Integer.valueOf((int)toLong(getValue(arguments[0])));
+      if ("getShort".equals(name)) return Short.valueOf((short)toLong(getValue(arguments[0])));
+      if ("getDouble".equals(name)) {
+        Object value = getValue(arguments[0]);
+        return Double.valueOf(value instanceof Number ? ((Number)value).doubleValue() : value == null ? 0 : Double.parseDouble(value.toString()));
+      }
+      if ("getStatement".equals(name)) return null;
+      if ("getMetaData".equals(name)) {
+        return Proxy.newProxyInstance(
+          MetaDataSnapshot.class.getClassLoader(), new Class<?>[]{ResultSetMetaData.class},
+          new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+              String name = method.getName();
+              if ("getColumnCount".equals(name)) return Integer.valueOf(resultSetDescriptor.length);
+              ValueMetaInterface valueMeta = resultSetDescriptor[((Integer)arguments[0]).intValue() - 1];
+              if ("getColumnName".equals(name) || "getColumnLabel".equals(name)) return valueMeta.getName();
+              if ("getColumnType".equals(name)) return Integer.valueOf(getSqlType(valueMeta));
+              if ("isNullable".equals(name)) return Integer.valueOf(ResultSetMetaData.columnNullable);
+              throw notSupported(method);
+            }
+          }
+        );
+      }
+      if ("toString".equals(name)) return "Metadata snapshot resultset";
+      if ("hashCode".equals(name)) return Integer.valueOf(System.identityHashCode(proxy));
+      if ("equals".equals(name)) return Boolean.valueOf(proxy == arguments[0]);
+      throw notSupported(method);
+    }
+  }
+
+  @Override
+  public String toString() {
+    int entryCount = 0;
+    for (Section section : sections.values()) {
+      entryCount += section.entryCount;
+    }
+    return "Metadata snapshot " + file + " (" + sections.size() + " methods, " + entryCount + " calls)";
+  }
+}
@@ -0,0 +1,467 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Captures the results of metadata calls while harvesting, and writes them to a snapshot file
+ * that can be read with MetaDataSnapshot.
+ *
+ * Calls are captured by wrapping the DatabaseMetaData (see capture()): every metadata resultset
+ * that is read to the end is recorded, with all its columns. If the same call is made for several connections,
+ * the rows of all connections are stored together; if it is made more than once for the same connection,
+ * it is only stored once.
+ */
+public class MetaDataSnapshotWriter {
+
+  private static class Call {
+    private final Object[] arguments;
+    //rows of each connection, in the order the connections were captured.
+    private final Map<String, List<Object[]>> rows = new LinkedHashMap<String, List<Object[]>>();
+
+    private Call(Object[] arguments) {
+      this.arguments = arguments;
+    }
+  }
+
+  //captured calls, by method and key. Keys are sorted, as the snapshot needs them.
+  private final Map<String, TreeMap<String, Call>> calls = new TreeMap<String, TreeMap<String, Call>>();
+  private final Map<String, String> properties = new LinkedHashMap<String, String>();
+  private int callCount = 0;
+
+  /**
+   * Record the result of a call.
+   * @param methodName the name of the method
+   * @param arguments the arguments of the call
+   * @param connection identifies the connection
+   * @param rows the rows returned by the call
+   */
+  public synchronized void add(String methodName, Object[] arguments, String connection, List<Object[]> rows) {
+    if (arguments == null) arguments = new Object[0];
+    TreeMap<String, Call> methodCalls = calls.get(methodName);
+    if (methodCalls == null) {
+      methodCalls = new TreeMap<String, Call>();
+      calls.put(methodName, methodCalls);
+    }
+    String key = MetaDataSnapshot.getKey(arguments);
+    Call call = methodCalls.get(key);
+    if (call == null) {
+      call = new Call(arguments.clone());
+      methodCalls.put(key, call);
+    }
+    if (call.rows.containsKey(connection)) return;
+    call.rows.put(connection, rows);
+    callCount++;
+  }
+
+  /**
+   * @return the number of calls captured so far.
+   */
+  public synchronized int getCallCount() {
+    return callCount;
+  }
+
+  private synchronized void captureProperties(DatabaseMetaData databaseMetaData) {
+    if (!properties.isEmpty()) return;
+    Method method;
+    Object value;
+    for (String name : MetaDataSnapshot.PROPERTY_METHODS) {
+      try {
+        method = DatabaseMetaData.class.getMethod(name);
+        value = method.invoke(databaseMetaData);
+        if (value != null) properties.put(name, value.toString());
+      }
+      catch (Exception exception) {
+        //not all drivers support all of these. Leave it out.
+      }
+    }
+  }
+
+  /**
+   * Wrap a DatabaseMetaData so that the metadata calls made through it are captured.
+   * @param databaseMetaData the DatabaseMetaData of a live connection
+   * @param connection identifies the connection
+   * @return the wrapped DatabaseMetaData
+   */
+  public DatabaseMetaData capture(DatabaseMetaData databaseMetaData, String connection) {
+    captureProperties(databaseMetaData);
+    return (DatabaseMetaData)Proxy.newProxyInstance(
+      MetaDataSnapshotWriter.class.getClassLoader(), new Class<?>[]{DatabaseMetaData.class},
+      new DatabaseMetaDataHandler(databaseMetaData, connection)
+    );
+  }
+
+  /**
+   * @param databaseMetaData a DatabaseMetaData, possibly wrapped by capture()
+   * @return the DatabaseMetaData of the live connection
+   */
+  public static DatabaseMetaData getTarget(DatabaseMetaData databaseMetaData) {
+    if (!Proxy.isProxyClass(databaseMetaData.getClass())) return databaseMetaData;
+    InvocationHandler handler = Proxy.getInvocationHandler(databaseMetaData);
+    if (!(handler instanceof DatabaseMetaDataHandler)) return databaseMetaData;
+    return ((DatabaseMetaDataHandler)handler).target;
+  }
+
+  private static Object invokeTarget(Object target, Method method, Object[] arguments) throws Throwable {
+    try {
+      return method.invoke(target, arguments);
+    }
+    catch (InvocationTargetException exception) {
+      throw exception.getCause();
+    }
+  }
+
+  private class DatabaseMetaDataHandler implements InvocationHandler {
+    private final DatabaseMetaData target;
+    private final String connection;
+
+    private DatabaseMetaDataHandler(DatabaseMetaData target, String connection) {
+      this.target = target;
+      this.connection = connection;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+      Object result = invokeTarget(target, method, arguments);
+      if (!(result instanceof ResultSet)) return result;
+      if (JdbcMetaDataMeta.getMethodDescriptorIndex(method.getName()) == -1) return result;
+      return Proxy.newProxyInstance(
+        MetaDataSnapshotWriter.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+        new ResultSetHandler((ResultSet)result, method.getName(), arguments, connection)
+      );
+    }
+  }
+
+  /**
+   * Records every row of a resultset as it is read.
+   * Only resultsets that are read to the end are captured, so a snapshot never holds a partial result.
+   */
+  private class ResultSetHandler implements InvocationHandler {
+    private final ResultSet target;
+    private final String methodName;
+    private final Object[] arguments;
+    private final String connection;
+    private final List<Object[]> rows = new ArrayList<Object[]>();
+    private int columnCount = -1;
+    private boolean exhausted = false;
+    private boolean captured = false;
+
+    private ResultSetHandler(ResultSet target, String methodName, Object[] arguments, String connection) {
+      this.target = target;
+      this.methodName = methodName;
+      this.arguments = arguments == null ? new Object[0] : arguments.clone();
+      this.connection = connection;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+      String name = method.getName();
+      Object result = invokeTarget(target, method, arguments);
+      if ("next".equals(name)) {
+        if (Boolean.TRUE.equals(result)) {
+          if (columnCount == -1) columnCount = target.getMetaData().getColumnCount();
+          Object[] row = new Object[columnCount];
+          for (int i = 0; i < columnCount; i++) {
+            row[i] = normalize(target.getObject(i + 1));
+          }
+          rows.add(row);
+        }
+        else {
+          exhausted = true;
+        }
+      }
+      else
+      if ("close".equals(name) && exhausted && !captured) {
+        captured = true;
+        add(methodName, this.arguments, connection, rows);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Convert a value returned by a driver to one of the types a snapshot can store.
+   */
+  private static Object normalize(Object value) {
+    if (value == null || value instanceof String || value instanceof Long || value instanceof Integer ||
+        value instanceof Short || value instanceof Boolean || value instanceof Double) {
+      return value;
+    }
+    if (value instanceof Byte) {
+      return Short.valueOf(((Byte)value).shortValue());
+    }
+    if (value instanceof Float) {
+      return Double.valueOf(((Float)value).doubleValue());
+    }
+    if (value instanceof BigInteger && ((BigInteger)value).bitLength() < 64) {
+      return Long.valueOf(((BigInteger)value).longValue());
+    }
+    if (value instanceof BigDecimal) {
+      //some drivers (oracle) return numeric metadata as decimals.
+      BigDecimal decimal = (BigDecimal)value;
+      try {
+        return Long.valueOf(decimal.longValueExact());
+      }
+      catch (ArithmeticException exception) {
+        return Double.valueOf(decimal.doubleValue());
+      }
+    }
+    return value.toString();
+  }
+
+  /**
+   * Assigns an index to each distinct string.
+   */
+  private static class Dictionary {
+    private final Map<String, Integer> indices = new HashMap<String, Integer>();
+    private final List<String> strings = new ArrayList<String>();
+
+    private int getIndex(String string) {
+      if (string == null) return -1;
+      Integer index = indices.get(string);
+      if (index == null) {
+        index = Integer.valueOf(strings.size());
+        strings.add(string);
+        indices.put(string, index);
+      }
+      return index.intValue();
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, Dictionary dictionary, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(MetaDataSnapshot.TAG_NULL);
+    }
+    else
+    if (value instanceof String) {
+      out.writeByte(MetaDataSnapshot.TAG_STRING);
+      out.writeInt(dictionary.getIndex((String)value));
+    }
+    else
+    if (value instanceof Long) {
+      out.writeByte(MetaDataSnapshot.TAG_LONG);
+      out.writeLong(((Long)value).longValue());
+    }
+    else
+    if (value instanceof Integer) {
+      out.writeByte(MetaDataSnapshot.TAG_INTEGER);
+      out.writeInt(((Integer)value).intValue());
+    }
+    else
+    if (value instanceof Short) {
+      out.writeByte(MetaDataSnapshot.TAG_SHORT);
+      out.writeShort(((Short)value).shortValue());
+    }
+    else
+    if (value instanceof Boolean) {
+      out.writeByte(MetaDataSnapshot.TAG_BOOLEAN);
+      out.writeBoolean(((Boolean)value).booleanValue());
+    }
+    else
+    if (value instanceof Double) {
+      out.writeByte(MetaDataSnapshot.TAG_DOUBLE);
+      out.writeDouble(((Double)value).doubleValue());
+    }
+    else
+    if (value instanceof Object[]) {
+      Object[] array = (Object[])value;
+      out.writeByte(MetaDataSnapshot.TAG_STRING_ARRAY);
+      out.writeInt(array.length);
+      for (Object element : array) {
+        out.writeInt(dictionary.getIndex(element == null ? null : element.toString()));
+      }
+    }
+    else {
+      out.writeByte(MetaDataSnapshot.TAG_STRING);
+      out.writeInt(dictionary.getIndex(value.toString()));
+    }
+  }
+
+  private static void writeValues(DataOutputStream out, Dictionary dictionary, Object[] values) throws IOException {
+    out.writeInt(values.length);
+    for (Object value : values) {
+      writeValue(out, dictionary, value);
+    }
+  }
+
+  /**
+   * Write the captured calls to a snapshot file. See MetaDataSnapshot for the layout.
+   * The snapshot is written to a temporary file in the same directory first, and then renamed,
+   * so steps that read the snapshot never see a partially written file.
+   * @param file the file
+   * @throws IOException
+   */
+  public synchronized void write(File file) throws IOException {
+    Dictionary dictionary = new Dictionary();
+
+    //the data goes last, but we encode it first to collect the strings.
+    //data positions are relative to the start of the data for now.
+    ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(dataBytes);
+    Map<String, int[]> keyIndices = new HashMap<String, int[]>();
+    Map<String, int[]> dataPositions = new HashMap<String, int[]>();
+    int[] methodKeyIndices, methodDataPositions;
+    int i, rowCount;
+    Call call;
+    for (Map.Entry<String, TreeMap<String, Call>> method : calls.entrySet()) {
+      methodKeyIndices = new int[method.getValue().size()];
+      methodDataPositions = new int[methodKeyIndices.length];
+      i = 0;
+      for (Map.Entry<String, Call> entry : method.getValue().entrySet()) {
+        call = entry.getValue();
+        methodKeyIndices[i] = dictionary.getIndex(entry.getKey());
+        methodDataPositions[i] = data.size();
+        writeValues(data, dictionary, call.arguments);
+        rowCount = 0;
+        for (List<Object[]> rows : call.rows.values()) {
+          rowCount += rows.size();
+        }
+        data.writeInt(rowCount);
+        for (List<Object[]> rows : call.rows.values()) {
+          for (Object[] row : rows) {
+            writeValues(data, dictionary, row);
+          }
+        }
+        i++;
+      }
+      keyIndices.put(method.getKey(), methodKeyIndices);
+      dataPositions.put(method.getKey(), methodDataPositions);
+    }
+    data.flush();
+    for (String method : calls.keySet()) {
+      dictionary.getIndex(method);
+    }
+    int[] propertyIndices = new int[2 * properties.size()];
+    i = 0;
+    for (Map.Entry<String, String> property : properties.entrySet()) {
+      propertyIndices[i++] = dictionary.getIndex(property.getKey());
+      propertyIndices[i++] = dictionary.getIndex(property.getValue());
+    }
+
+    //encode the dictionary
+    ByteArrayOutputStream blob = new ByteArrayOutputStream();
+    int stringCount = dictionary.strings.size();
+    int[] stringOffsets = new int[stringCount + 1];
+    byte[] bytes;
+    for (i = 0; i < stringCount; i++) {
+      stringOffsets[i] = blob.size();
+      bytes = dictionary.strings.get(i).getBytes(MetaDataSnapshot.UTF8);
+      blob.write(bytes, 0, bytes.length);
+    }
+    stringOffsets[stringCount] = blob.size();
+
+    //work out the positions of the parts of the file
+    int dictionaryPosition = MetaDataSnapshot.MAGIC.length + 16;
+    int propertiesPosition = dictionaryPosition + 4 + 4 * stringOffsets.length + blob.size();
+    int directoryPosition = propertiesPosition + 4 + 4 * propertyIndices.length;
+    int dataPosition = directoryPosition + 4;
+    for (TreeMap<String, Call> methodCalls : calls.values()) {
+      dataPosition += 8 + 8 * methodCalls.size();
+    }
+    if ((long)dataPosition + data.size() > Integer.MAX_VALUE) {
+      throw new IOException("Metadata snapshot is too large (more than 2GB).");
+    }
+
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (directory != null && !directory.exists()) directory.mkdirs();
+    File temporaryFile = new File(file.getAbsolutePath() + ".tmp");
+    boolean written = false;
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+    try {
+      out.write(MetaDataSnapshot.MAGIC);
+      out.writeInt(MetaDataSnapshot.VERSION);
+      out.writeInt(dictionaryPosition);
+      out.writeInt(propertiesPosition);
+      out.writeInt(directoryPosition);
+
+      out.writeInt(stringCount);
+      for (int stringOffset : stringOffsets) {
+        out.writeInt(stringOffset);
+      }
+      blob.writeTo(out);
+
+      out.writeInt(properties.size());
+      for (int propertyIndex : propertyIndices) {
+        out.writeInt(propertyIndex);
+      }
+
+      out.writeInt(calls.size());
+      for (String method : calls.keySet()) {
+        methodKeyIndices = keyIndices.get(method);
+        methodDataPositions = dataPositions.get(method);
+        out.writeInt(dictionary.getIndex(method));
+        out.writeInt(methodKeyIndices.length);
+        for (i = 0; i < methodKeyIndices.length; i++) {
+          out.writeInt(methodKeyIndices[i]);
+          out.writeInt(dataPosition + methodDataPositions[i]);
+        }
+      }
+
+      dataBytes.writeTo(out);
+      out.close();
+      written = true;
+    }
+    finally {
+      if (!written) {
+        try {
+          out.close();
+        }
+        catch (IOException exception) {
+          //we're already failing, with a more interesting exception.
+        }
+        temporaryFile.delete();
+      }
+    }
+    //renaming over an existing file works on most platforms, but not on windows.
+    if (!temporaryFile.renameTo(file)) {
+      if (file.exists() && !file.delete()) {
+        temporaryFile.delete();
+        throw new IOException("Could not replace " + file);
+      }
+      if (!temporaryFile.renameTo(file)) throw new IOException("Could not rename " + temporaryFile + " to " + file);
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return callCount + " calls for " + calls.size() + " methods";
+  }
+}
@@ -0,0 +1,258 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class JdbcConnectionCacheTest {
+
+  /**
+   * A driver whose connections only know whether they are closed.
+   * Opening a connection can be held up, to have other threads ask for the same connection meanwhile.
+   */
+  public static class TestDriver implements Driver {
+    private static final String PREFIX = "jdbc:connectioncachetest:";
+    private static final AtomicInteger opens = new AtomicInteger();
+    private static final AtomicInteger closes = new AtomicInteger();
+    private static volatile CountDownLatch opening;
+    private static volatile CountDownLatch proceed;
+
+    static {
+      try {
+        DriverManager.registerDriver(new TestDriver());
+      }
+      catch (SQLException exception) {
+        throw new IllegalStateException(exception);
+      }
+    }
+
+    static void reset() {
+      opens.set(0);
+      closes.set(0);
+      opening = null;
+      proceed = null;
+    }
+
+    public Connection connect(String url, Properties info) throws SQLException {
+      if (!acceptsURL(url)) return null;
+      if (url.endsWith("fail")) throw new SQLException("Can't connect to " + url, "08001");
+      if (opening != null) opening.countDown();
+      if (proceed != null) {
+        try {
+          if (!proceed.await(10, TimeUnit.SECONDS)) throw new SQLException("Timed out");
+        }
+        catch (InterruptedException exception) {
+          throw new SQLException(exception);
+        }
+      }
+      opens.incrementAndGet();
+      return (Connection)Proxy.newProxyInstance(
+        Connection.class.getClassLoader(),
+        new Class<?>[]{Connection.class},
+        new InvocationHandler() {
+          private boolean closed = false;
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("close".equals(name)) {
+              if (!closed) closes.incrementAndGet();
+              closed = true;
+              return null;
+            }
+            if ("isClosed".equals(name)) return Boolean.valueOf(closed);
+            if ("isValid".equals(name)) return Boolean.valueOf(!closed);
+            if ("hashCode".equals(name)) return Integer.valueOf(System.identityHashCode(proxy));
+            if ("equals".equals(name)) return Boolean.valueOf(proxy == args[0]);
+            if ("toString".equals(name)) return "connection@" + Integer.toHexString(System.identityHashCode(proxy));
+            throw new UnsupportedOperationException(name);
+          }
+        }
+      );
+    }
+
+    public boolean acceptsURL(String url) {
+      return url != null && url.startsWith(PREFIX);
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+      return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() {
+      return 1;
+    }
+
+    public int getMinorVersion() {
+      return 0;
+    }
+
+    public boolean jdbcCompliant() {
+      return false;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      throw new SQLFeatureNotSupportedException();
+    }
+  }
+
+  private static JdbcConnectionCache.Key getKey(String database) {
+    return new JdbcConnectionCache.Key(TestDriver.class.getName(), TestDriver.PREFIX + database, "user", "password");
+  }
+
+  @Before
+  public void setUp() {
+    TestDriver.reset();
+  }
+
+  @Test
+  public void reusesReleasedConnection() throws Exception {
+    JdbcConnectionCache cache = new JdbcConnectionCache(0, 0, true);
+    JdbcConnectionCache.Key key = getKey("a");
+    Connection connection = cache.checkout(key);
+    cache.release(key, connection);
+    assertSame(connection, cache.checkout(getKey("a")));
+    assertEquals(1, cache.getOpens());
+    assertEquals(1, cache.getReuses());
+  }
+
+  @Test
+  public void concurrentCheckoutsOfOneKeyOpenOneConnection() throws Exception {
+    final JdbcConnectionCache cache = new JdbcConnectionCache(0, 0, true);
+    final JdbcConnectionCache.Key key = getKey("a");
+    TestDriver.opening = new CountDownLatch(1);
+    TestDriver.proceed = new CountDownLatch(1);
+    final Connection[] connections = new Connection[2];
+    final Exception[] exceptions = new Exception[2];
+    Thread[] threads = new Thread[2];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            connections[index] = cache.checkout(key);
+            cache.release(key, connections[index]);
+          }
+          catch (Exception exception) {
+            exceptions[index] = exception;
+          }
+        }
+      };
+    }
+    threads[0].start();
+    //the first thread is opening the connection; the second one must wait for it, rather than open another.
+    assertTrue(TestDriver.opening.await(10, TimeUnit.SECONDS));
+    threads[1].start();
+    Thread.sleep(100);
+    TestDriver.proceed.countDown();
+    for (Thread thread : threads) {
+      thread.join(10000);
+    }
+    for (Exception exception : exceptions) {
+      if (exception != null) throw exception;
+    }
+    assertSame(connections[0], connections[1]);
+    assertEquals(1, TestDriver.opens.get());
+    assertEquals(1, cache.getOpenCount());
+    cache.clear();
+    assertEquals(1, TestDriver.closes.get());
+  }
+
+  @Test
+  public void connectionOpenedWhileClearingIsClosedOnRelease() throws Exception {
+    final JdbcConnectionCache cache = new JdbcConnectionCache(0, 0, true);
+    final JdbcConnectionCache.Key key = getKey("a");
+    TestDriver.opening = new CountDownLatch(1);
+    TestDriver.proceed = new CountDownLatch(1);
+    final Connection[] connection = new Connection[1];
+    Thread thread = new Thread() {
+      public void run() {
+        try {
+          connection[0] = cache.checkout(key);
+        }
+        catch (Exception exception) {
+          //checked below
+        }
+      }
+    };
+    thread.start();
+    assertTrue(TestDriver.opening.await(10, TimeUnit.SECONDS));
+    cache.clear();
+    TestDriver.proceed.countDown();
+    thread.join(10000);
+    assertFalse(connection[0].isClosed());
+    cache.release(key, connection[0]);
+    assertTrue(connection[0].isClosed());
+    assertEquals(0, cache.getOpenCount());
+  }
+
+  @Test
+  public void failedOpenDoesNotHoldASlot() throws Exception {
+    JdbcConnectionCache cache = new JdbcConnectionCache(1, 0, true);
+    try {
+      cache.checkout(getKey("fail"));
+      fail("Opening a connection to a failing database should fail.");
+    }
+    catch (SQLException exception) {
+      //expected
+    }
+    assertEquals(0, cache.getOpenCount());
+    //with a maximum of one open connection, this would wait forever if the failed open kept its slot.
+    JdbcConnectionCache.Key key = getKey("b");
+    cache.release(key, cache.checkout(key));
+    assertEquals(1, cache.getOpenCount());
+  }
+
+  @Test
+  public void evictsIdleConnectionWhenFull() throws Exception {
+    JdbcConnectionCache cache = new JdbcConnectionCache(1, 0, true);
+    JdbcConnectionCache.Key a = getKey("a");
+    JdbcConnectionCache.Key b = getKey("b");
+    Connection connection = cache.checkout(a);
+    cache.release(a, connection);
+    cache.release(b, cache.checkout(b));
+    assertTrue(connection.isClosed());
+    assertEquals(1, cache.getEvictions());
+    assertEquals(1, cache.getOpenCount());
+  }
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.junit.Test;
+import org.pentaho.di.repository.Repository;
+
+public class JdbcMetaDataMetaTest {
+
+  @Test
+  public void cloneCopiesTheArrays() {
+    JdbcMetaDataMeta meta = new JdbcMetaDataMeta();
+    meta.setArguments(new String[]{"catalog", "schema"});
+    meta.setOutputFields(new Object[]{new String[]{"TABLE_NAME", "name"}});
+    meta.setTargetMethods(new Object[]{new String[]{"getColumns", "columns"}});
+    JdbcMetaDataMeta copy = (JdbcMetaDataMeta)meta.clone();
+
+    meta.getArguments()[0] = "other";
+    ((String[])meta.getOutputFields()[0])[1] = "other";
+    ((String[])meta.getTargetMethods()[0])[1] = "other";
+
+    assertArrayEquals(new String[]{"catalog", "schema"}, copy.getArguments());
+    assertArrayEquals(new String[]{"TABLE_NAME", "name"}, (String[])copy.getOutputFields()[0]);
+    assertArrayEquals(new String[]{"getColumns", "columns"}, (String[])copy.getTargetMethods()[0]);
+    assertEquals(-1, copy.getTargetMethodIndex("other"));
+    assertEquals(0, copy.getTargetMethodIndex("columns"));
+  }
+
+  @Test
+  public void cloneBuildsItsOwnStreams() {
+    JdbcMetaDataMeta meta = new JdbcMetaDataMeta();
+    meta.setTargetMethods(new Object[]{new String[]{"getColumns", "columns"}});
+    meta.getStepIOMeta();
+    JdbcMetaDataMeta copy = (JdbcMetaDataMeta)meta.clone();
+    assertNotSame(meta.getStepIOMeta(), copy.getStepIOMeta());
+  }
+
+  @Test
+  public void readRepDefaultsAsLoadXml() throws Exception {
+    //a repository in which the step was saved before the attributes existed.
+    Repository repository = (Repository)Proxy.newProxyInstance(
+      getClass().getClassLoader(), new Class<?>[]{Repository.class}, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] arguments) {
+          Class<?> type = method.getReturnType();
+          if (type == boolean.class) return arguments.length == 4 ? arguments[3] : Boolean.FALSE;
+          if (type == long.class) return Long.valueOf(0);
+          if (type == int.class) return Integer.valueOf(0);
+          return null;
+        }
+      }
+    );
+    JdbcMetaDataMeta meta = new JdbcMetaDataMeta();
+    meta.readRep(repository, null, null, null);
+    assertTrue(meta.getCacheEmptyResults());
+    assertTrue(meta.getParallelPreserveOrder());
+    assertTrue(meta.getConnectionPoolValidate());
+    assertTrue(meta.getFingerprintRollup());
+  }
+}
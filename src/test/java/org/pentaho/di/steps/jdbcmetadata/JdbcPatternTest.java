@@ -0,0 +1,103 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class JdbcPatternTest {
+
+  private static JdbcPattern pattern(String pattern) {
+    return new JdbcPattern(pattern, "\\", false);
+  }
+
+  @Test
+  public void literalPatterns() {
+    JdbcPattern pattern = pattern("ORDERS");
+    assertTrue(pattern.isLiteral());
+    assertEquals("ORDERS", pattern.getLiteral());
+    assertTrue(pattern.matches("ORDERS"));
+    assertFalse(pattern.matches("ORDER"));
+    assertFalse(pattern.matches("ORDERSX"));
+    assertFalse(pattern.matches("orders"));
+    assertFalse(pattern.matches(null));
+  }
+
+  @Test
+  public void escapedWildcardsAreLiteral() {
+    JdbcPattern pattern = pattern("ORDER\\_LINES");
+    assertTrue(pattern.isLiteral());
+    assertEquals("ORDER_LINES", pattern.getLiteral());
+    assertTrue(pattern.matches("ORDER_LINES"));
+    assertFalse(pattern.matches("ORDERXLINES"));
+    //an escape at the end escapes nothing.
+    assertEquals("A\\", pattern("A\\").getLiteral());
+    //without an escape, every % and _ is a wildcard.
+    assertFalse(new JdbcPattern("ORDER\\_LINES", null, false).isLiteral());
+    assertTrue(new JdbcPattern("ORDER\\_LINES", "", false).matches("ORDER\\XLINES"));
+  }
+
+  @Test
+  public void wildcards() {
+    assertTrue(pattern("%").matches(""));
+    assertTrue(pattern("%").matches("ANYTHING"));
+    assertTrue(pattern("ORD%").matches("ORD"));
+    assertTrue(pattern("ORD%").matches("ORDERS"));
+    assertFalse(pattern("ORD%").matches("WORDS"));
+    assertTrue(pattern("%LINES").matches("ORDER_LINES"));
+    assertTrue(pattern("O_DERS").matches("ORDERS"));
+    assertFalse(pattern("O_DERS").matches("ODERS"));
+    assertFalse(pattern("_").matches(""));
+    assertTrue(pattern("%_%").matches("X"));
+    assertEquals("ORD", pattern("ORD%S").getPrefix());
+    assertEquals("", pattern("_RDERS").getPrefix());
+    assertEquals("ORDER_", pattern("ORDER\\_%").getPrefix());
+  }
+
+  @Test
+  public void backtracksOverRepeatedParts() {
+    assertTrue(pattern("%AB%AB").matches("XABYABAB"));
+    assertTrue(pattern("A%B%C").matches("AXBXBXC"));
+    assertFalse(pattern("A%B%C").matches("AXCXB"));
+    assertTrue(pattern("%%A").matches("BA"));
+  }
+
+  @Test
+  public void ignoresCaseIfAsked() {
+    JdbcPattern pattern = new JdbcPattern("Order%", "\\", true);
+    assertTrue(pattern.matches("ORDERS"));
+    assertTrue(pattern.matches("order_lines"));
+    assertFalse(pattern.matches("CUSTOMERS"));
+  }
+
+  @Test
+  public void toLikeEscapesLiteralCharacters() {
+    assertEquals("ORDER!_%", pattern("ORDER\\_%").toLike('!'));
+    assertEquals("A!!B_", pattern("A!B_").toLike('!'));
+    assertEquals("100!%", pattern("100\\%").toLike('!'));
+  }
+}
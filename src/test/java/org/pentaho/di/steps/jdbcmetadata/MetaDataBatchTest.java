@@ -0,0 +1,106 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+public class MetaDataBatchTest {
+
+  private static final ValueMetaInterface[] COLUMNS =
+    (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("getColumns")[2];
+
+  private static Object[] column(String tableName, String columnName) {
+    Object[] row = new Object[COLUMNS.length];
+    row[2] = tableName;
+    row[3] = columnName;
+    return row;
+  }
+
+  //buffer one input row for each table argument, and fill in the rows of the coalesced call.
+  private static MetaDataBatch batch(boolean ignoreCase, String... tables) {
+    MetaDataBatch batch = new MetaDataBatch("getColumns", COLUMNS);
+    for (String table : tables) {
+      batch.add(new Object[]{table}, new Object[]{null, "S", table, "%"}, "connection");
+    }
+    MetaDataBatch.Group group = batch.getGroups().iterator().next();
+    group.setSearchStringEscape("\\");
+    group.setIgnoreCase(ignoreCase);
+    group.addRow(column("Orders", "ID"));
+    group.addRow(column("Orders", "TOTAL"));
+    group.addRow(column("ORDER_LINES", "LINE"));
+    group.addRow(column("CUSTOMERS", "ID"));
+    return batch;
+  }
+
+  private static int count(MetaDataBatch batch, int entry) {
+    MetaDataBatch.Entry bufferedRow = batch.getEntries().get(entry);
+    List<Object[]> rows = bufferedRow.getGroup().getRows(bufferedRow);
+    return rows.size();
+  }
+
+  @Test
+  public void matchesNamesExactlyIfTheDatabaseDoes() {
+    MetaDataBatch batch = batch(false, "Orders", "ORDERS", "order%", "ORDER\\_%");
+    assertEquals(2, count(batch, 0));
+    assertEquals(0, count(batch, 1));
+    assertEquals(0, count(batch, 2));
+    assertEquals(1, count(batch, 3));
+  }
+
+  @Test
+  public void matchesNamesCaseInsensitivelyIfTheDatabaseDoes() {
+    MetaDataBatch batch = batch(true, "Orders", "ORDERS", "order%", "order\\_%", "customers");
+    assertEquals(2, count(batch, 0));
+    assertEquals(2, count(batch, 1));
+    assertEquals(3, count(batch, 2));
+    assertEquals(1, count(batch, 3));
+    assertEquals(1, count(batch, 4));
+  }
+
+  @Test
+  public void groupsRowsThatShareACoalescedCall() {
+    MetaDataBatch batch = new MetaDataBatch("getColumns", COLUMNS);
+    batch.add(new Object[]{"1"}, new Object[]{null, "S", "ORDERS", "%"}, "a");
+    batch.add(new Object[]{"2"}, new Object[]{null, "T", "ORDERS", "%"}, "a");
+    batch.add(new Object[]{"3"}, new Object[]{null, "S", "CUSTOMERS", "%"}, "a");
+    batch.add(new Object[]{"4"}, new Object[]{null, "S", "ORDERS", "%"}, "b");
+    assertEquals(4, batch.size());
+    assertEquals(3, batch.getGroups().size());
+    List<MetaDataBatch.Entry> entries = batch.getEntries();
+    assertSame(entries.get(0).getGroup(), entries.get(2).getGroup());
+    assertArrayEquals(new Object[]{null, "S", "%", "%"}, entries.get(0).getGroup().getArguments());
+    assertArrayEquals(new Object[]{null, "S", "CUSTOMERS", "%"}, entries.get(2).getArguments());
+    assertEquals("3", entries.get(2).getInputRow()[0]);
+    batch.clear();
+    assertEquals(0, batch.size());
+    assertEquals(0, batch.getGroups().size());
+  }
+}
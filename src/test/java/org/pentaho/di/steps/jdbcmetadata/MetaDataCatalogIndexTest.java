@@ -0,0 +1,199 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+public class MetaDataCatalogIndexTest {
+
+  private static final Object[] GET_TABLES = JdbcMetaDataMeta.getMethodDescriptor("getTables");
+  private static final ValueMetaInterface[] COLUMNS = (ValueMetaInterface[])GET_TABLES[2];
+
+  private Connection connection;
+  private DatabaseMetaData databaseMetaData;
+
+  @Before
+  public void setUp() throws Exception {
+    Class.forName("org.h2.Driver");
+    connection = DriverManager.getConnection("jdbc:h2:mem:catalogindex" + System.nanoTime());
+    Statement statement = connection.createStatement();
+    try {
+      for (String sql : new String[]{
+        "CREATE SCHEMA A",
+        "CREATE SCHEMA B",
+        "CREATE TABLE A.ORDERS (ID INT PRIMARY KEY)",
+        "CREATE TABLE A.ORDER_LINES (ID INT)",
+        "CREATE TABLE A.ORDERXLINES (ID INT)",
+        "CREATE TABLE A.\"Mixed\" (ID INT)",
+        "CREATE TABLE B.ORDERS (ID INT)",
+        "CREATE VIEW A.V_ORDERS AS SELECT * FROM A.ORDERS"
+      }) {
+        statement.execute(sql);
+      }
+    }
+    finally {
+      statement.close();
+    }
+    databaseMetaData = connection.getMetaData();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    connection.close();
+  }
+
+  private static List<String> readRows(ResultSet resultSet) throws Exception {
+    List<String> rows = new ArrayList<String>();
+    try {
+      Object[] row;
+      while (resultSet.next()) {
+        row = new Object[COLUMNS.length];
+        for (int i = 0; i < row.length; i++) {
+          row[i] = resultSet.getObject(i + 1);
+        }
+        rows.add(Arrays.toString(row));
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return rows;
+  }
+
+  private static List<String> toStrings(List<Object[]> rows) {
+    List<String> strings = new ArrayList<String>();
+    for (Object[] row : rows) {
+      strings.add(Arrays.toString(row));
+    }
+    return strings;
+  }
+
+  private MetaDataCatalogIndex load() throws Exception {
+    MetaDataCatalogIndex index = new MetaDataCatalogIndex("getTables", COLUMNS, databaseMetaData.getSearchStringEscape(), false);
+    ResultSet resultSet = ((MetaDataInvoker)GET_TABLES[3]).invoke(databaseMetaData, index.getLoadArguments());
+    try {
+      Object[] row;
+      while (resultSet.next()) {
+        row = new Object[COLUMNS.length];
+        for (int i = 0; i < row.length; i++) {
+          row[i] = resultSet.getObject(i + 1);
+        }
+        index.addRow(row);
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    index.finish();
+    return index;
+  }
+
+  @Test
+  public void answersAsTheDriverDoes() throws Exception {
+    MetaDataCatalogIndex index = load();
+    String catalog = connection.getCatalog();
+    Object[][] calls = new Object[][]{
+      {null, null, "%", null},
+      {catalog, "A", "%", null},
+      {null, "A", "ORDER%", null},
+      {null, "A", "ORDER\\_LINES", null},
+      {null, "%", "ORDERS", null},
+      {null, "_", "%", new String[]{"VIEW"}},
+      {null, null, "%", new String[]{"TABLE", "VIEW"}},
+      {null, "A", "Mixed", null},
+      {null, "A", "MIXED", null},
+      {null, "A", "%x%", null},
+      {"NO_SUCH_CATALOG", null, "%", null},
+      {null, "A", "NO_SUCH%", null}
+    };
+    for (Object[] arguments : calls) {
+      List<String> expected = readRows(((MetaDataInvoker)GET_TABLES[3]).invoke(databaseMetaData, arguments));
+      assertEquals(Arrays.deepToString(arguments), expected, toStrings(index.getRows(arguments)));
+    }
+    assertEquals(5, index.getRows(new Object[]{null, "A", "%", null}).size());
+  }
+
+  private static Object[] table(String catalog, String schema, String table, String type) {
+    Object[] row = new Object[COLUMNS.length];
+    row[0] = catalog;
+    row[1] = schema;
+    row[2] = table;
+    row[3] = type;
+    return row;
+  }
+
+  private static List<String> names(List<Object[]> rows) {
+    List<String> names = new ArrayList<String>();
+    for (Object[] row : rows) {
+      names.add((String)row[2]);
+    }
+    return names;
+  }
+
+  @Test
+  public void levelsWithoutNamesAreIgnored() {
+    //like SQLite: neither catalogs nor schemas.
+    MetaDataCatalogIndex index = new MetaDataCatalogIndex("getTables", COLUMNS, "\\", false);
+    index.addRow(table(null, null, "ORDERS", "TABLE"));
+    index.addRow(table(null, null, "ORDER_LINES", "TABLE"));
+    index.finish();
+    assertEquals(Arrays.asList("ORDERS", "ORDER_LINES"), names(index.getRows(new Object[]{"main", "S%", "ORDER%", null})));
+  }
+
+  @Test
+  public void emptyNameMeansNone() {
+    MetaDataCatalogIndex index = new MetaDataCatalogIndex("getTables", COLUMNS, "\\", false);
+    index.addRow(table(null, "S", "ORDERS", "TABLE"));
+    index.addRow(table(null, null, "GLOBALS", "TABLE"));
+    index.finish();
+    assertEquals(Arrays.asList("GLOBALS"), names(index.getRows(new Object[]{null, "", "%", null})));
+    assertEquals(Arrays.asList("ORDERS", "GLOBALS"), names(index.getRows(new Object[]{null, null, "%", null})));
+  }
+
+  @Test
+  public void ignoresCaseIfTheDatabaseDoes() {
+    MetaDataCatalogIndex index = new MetaDataCatalogIndex("getTables", COLUMNS, "\\", true);
+    index.addRow(table(null, "dbo", "Orders", "TABLE"));
+    index.addRow(table(null, "dbo", "ORDER_LINES", "TABLE"));
+    index.addRow(table(null, "DBO", "Customers", "TABLE"));
+    index.finish();
+    assertEquals(Arrays.asList("Orders"), names(index.getRows(new Object[]{null, "DBO", "orders", null})));
+    assertEquals(Arrays.asList("Orders", "ORDER_LINES"), names(index.getRows(new Object[]{null, "Dbo", "order%", null})));
+    assertEquals(Arrays.asList("Orders", "ORDER_LINES", "Customers"), names(index.getRows(new Object[]{null, "dbo", "%", null})));
+  }
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetaDataChangeProbeTest {
+
+  private Connection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    Class.forName("org.h2.Driver");
+    connection = DriverManager.getConnection("jdbc:h2:mem:changeprobe" + System.nanoTime());
+    execute(
+      "CREATE SCHEMA A",
+      "CREATE SCHEMA B",
+      "CREATE TABLE A.T1 (ID INT PRIMARY KEY, NAME VARCHAR(50))",
+      "CREATE TABLE A.T2 (ID INT PRIMARY KEY)",
+      "CREATE TABLE B.T1 (ID INT PRIMARY KEY)"
+    );
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    connection.close();
+  }
+
+  private void execute(String... statements) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      for (String sql : statements) {
+        statement.execute(sql);
+      }
+    }
+    finally {
+      statement.close();
+    }
+  }
+
+  private static Object[] columns(String schema, String table) {
+    return new Object[]{null, schema, table, "%"};
+  }
+
+  private static void read(MetaDataChangeProbe probe, Connection connection, String methodName, Object[] arguments) throws SQLException {
+    for (String[] scope : probe.getUnreadScopes(methodName, arguments)) {
+      probe.read(connection, scope[0], scope[1]);
+    }
+  }
+
+  @Test
+  public void readsTheScopeOfTheCallOnly() throws Exception {
+    MetaDataChangeProbe probe = new MetaDataChangeProbe();
+    List<String[]> scopes = probe.getUnreadScopes("getColumns", columns("A", "T1"));
+    assertEquals(1, scopes.size());
+    assertEquals(null, scopes.get(0)[0]);
+    assertEquals("A", scopes.get(0)[1]);
+    assertEquals(2, probe.read(connection, null, "A"));
+    assertEquals(2, probe.getTableCount());
+    //the same schema is not read again; another one is.
+    assertTrue(probe.getUnreadScopes("getColumns", columns("A", "%")).isEmpty());
+    assertEquals(1, probe.getUnreadScopes("getColumns", columns("B", "T1")).size());
+    //not a table method.
+    assertTrue(probe.getUnreadScopes("getCatalogs", new Object[0]).isEmpty());
+    //a schema pattern is a scope of its own, read with a LIKE predicate.
+    assertEquals(3, probe.read(connection, null, "_"));
+    //names are not matched against patterns that were read, so B is still unread.
+    assertFalse(probe.getUnreadScopes("getColumns", columns("B", "T1")).isEmpty());
+    assertEquals(3, probe.getTableCount());
+    //reading all schemas covers any schema.
+    probe.read(connection, null, null);
+    assertTrue(probe.getUnreadScopes("getColumns", columns("B", "T1")).isEmpty());
+    assertTrue(probe.getUnreadScopes("getCrossReference", new Object[]{null, "A", "T1", null, "B", "T1"}).isEmpty());
+  }
+
+  @Test
+  public void watermarkFollowsTheTablesOfTheCall() throws Exception {
+    MetaDataChangeProbe probe = new MetaDataChangeProbe();
+    read(probe, connection, "getColumns", columns("A", "T1"));
+    String t1 = probe.getWatermark("getColumns", columns("A", "T1"));
+    String t2 = probe.getWatermark("getColumns", columns("A", "T2"));
+    assertFalse(t1.equals(t2));
+
+    execute("ALTER TABLE A.T1 ADD COLUMN CREATED TIMESTAMP");
+    probe = new MetaDataChangeProbe();
+    read(probe, connection, "getColumns", columns("A", "T1"));
+    assertFalse(t1.equals(probe.getWatermark("getColumns", columns("A", "T1"))));
+    assertEquals(t2, probe.getWatermark("getColumns", columns("A", "T2")));
+  }
+
+  @Test
+  public void usesGetTablesWithoutNativeQueries() throws Exception {
+    Connection otherConnection = MetaDataTestSupport.setDatabaseProductName(connection, "Other");
+    MetaDataChangeProbe probe = new MetaDataChangeProbe();
+    assertEquals(2, probe.read(otherConnection, null, "A"));
+    assertTrue(probe.toString().endsWith("getTables"));
+    String watermark = probe.getWatermark("getTables", new Object[]{null, "A", "%", null});
+    execute("CREATE TABLE A.T3 (ID INT)");
+    probe = new MetaDataChangeProbe();
+    assertEquals(3, probe.read(otherConnection, null, "A"));
+    assertFalse(watermark.equals(probe.getWatermark("getTables", new Object[]{null, "A", "%", null})));
+  }
+
+  @Test
+  public void keepsTheTransaction() throws Exception {
+    connection.setAutoCommit(false);
+    execute("INSERT INTO A.T2 VALUES (1)");
+    MetaDataChangeProbe probe = new MetaDataChangeProbe();
+    probe.read(connection, null, "A");
+    assertTrue(probe.toString().endsWith("H2 catalog"));
+    //the row is still there, in the same transaction.
+    Statement statement = connection.createStatement();
+    try {
+      ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM A.T2");
+      resultSet.next();
+      assertEquals(1, resultSet.getInt(1));
+      resultSet.close();
+    }
+    finally {
+      statement.close();
+    }
+    connection.rollback();
+  }
+}
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.pentaho.di.steps.jdbcmetadata.MetaDataTestSupport.getColumns;
+import static org.pentaho.di.steps.jdbcmetadata.MetaDataTestSupport.row;
+
+import java.io.File;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+public class MetaDataDependencyGraphTest {
+
+  private String kettleHome;
+  private File kettleDirectory;
+  //the tables of schema S, in the order the driver returns them.
+  private List<String> tables;
+  //the foreign keys, as {referring table, referred table}.
+  private List<String[]> foreignKeys;
+
+  private DatabaseMetaData createDatabaseMetaData() {
+    //each graph is another driver, so that what is probed for one does not affect the next.
+    String driverName = "Dependency graph test driver " + System.nanoTime();
+    return MetaDataTestSupport.createDatabaseMetaData(driverName, "\\", new MetaDataTestSupport.Driver() {
+      public List<Object[]> getRows(String methodName, Object[] arguments) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        if ("getTables".equals(methodName)) {
+          for (String table : tables) {
+            rows.add(row(methodName, new String[][]{{"TABLE_SCHEM", "S"}, {"TABLE_NAME", table}, {"TABLE_TYPE", "TABLE"}}));
+          }
+        }
+        else
+        if ("getImportedKeys".equals(methodName)) {
+          for (String[] foreignKey : foreignKeys) {
+            if (arguments[2] != null && !arguments[2].equals(foreignKey[0])) continue;
+            rows.add(row(methodName, new String[][]{
+              {"FKTABLE_SCHEM", "S"}, {"FKTABLE_NAME", foreignKey[0]}, {"PKTABLE_SCHEM", "S"}, {"PKTABLE_NAME", foreignKey[1]}
+            }));
+          }
+        }
+        else {
+          return null;
+        }
+        return rows;
+      }
+    }, null);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    //the driver probes are kept in the kettle directory.
+    kettleHome = System.getProperty("KETTLE_HOME");
+    kettleDirectory = File.createTempFile("jdbcmetadata", "");
+    kettleDirectory.delete();
+    kettleDirectory.mkdirs();
+    System.setProperty("KETTLE_HOME", kettleDirectory.getAbsolutePath());
+    tables = new ArrayList<String>();
+    foreignKeys = new ArrayList<String[]>();
+  }
+
+  @After
+  public void tearDown() {
+    if (kettleHome == null) {
+      System.clearProperty("KETTLE_HOME");
+    }
+    else {
+      System.setProperty("KETTLE_HOME", kettleHome);
+    }
+    File[] files = kettleDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    kettleDirectory.delete();
+  }
+
+  private void addForeignKey(String table, String referredTable) {
+    foreignKeys.add(new String[]{table, referredTable});
+  }
+
+  //the rows of the graph, keyed by table name.
+  private Map<String, Object[]> harvest(List<String> order) throws SQLException {
+    ValueMetaInterface[] columns = getColumns("getTableDependencies");
+    ResultSet resultSet = MetaDataDependencyGraph.harvest(createDatabaseMetaData(), null, "S", "%", columns);
+    Map<String, Object[]> rows = new HashMap<String, Object[]>();
+    try {
+      Object[] row;
+      while (resultSet.next()) {
+        row = new Object[columns.length];
+        for (int i = 0; i < row.length; i++) {
+          row[i] = resultSet.getObject(i + 1);
+        }
+        rows.put((String)row[2], row);
+        if (order != null) order.add((String)row[2]);
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return rows;
+  }
+
+  private static long getLong(Map<String, Object[]> rows, String table, int column) {
+    return ((Long)rows.get(table)[column]).longValue();
+  }
+
+  @Test
+  public void ordersTablesInWaves() throws Exception {
+    //the driver returns them in reverse load order.
+    tables.add("C");
+    tables.add("B");
+    tables.add("A");
+    tables.add("D");
+    addForeignKey("C", "B");
+    addForeignKey("C", "A");
+    addForeignKey("B", "A");
+    addForeignKey("D", "A");
+    //a second foreign key to the same table is the same dependency.
+    addForeignKey("D", "A");
+    List<String> order = new ArrayList<String>();
+    Map<String, Object[]> rows = harvest(order);
+    assertEquals("[A, B, D, C]", order.toString());
+    assertEquals(1, getLong(rows, "A", 5));
+    assertEquals(2, getLong(rows, "B", 5));
+    assertEquals(2, getLong(rows, "D", 5));
+    assertEquals(3, getLong(rows, "C", 5));
+    assertEquals(1, getLong(rows, "A", 4));
+    assertEquals(4, getLong(rows, "C", 4));
+    assertEquals(2, getLong(rows, "C", 8));
+    assertEquals(1, getLong(rows, "D", 8));
+    assertEquals(3, getLong(rows, "A", 9));
+    assertEquals(0, getLong(rows, "C", 9));
+    assertNull(rows.get("A")[6]);
+    assertNull(rows.get("C")[7]);
+  }
+
+  @Test
+  public void findsCycles() throws Exception {
+    tables.add("A");
+    tables.add("B");
+    tables.add("C");
+    tables.add("D");
+    tables.add("E");
+    //B and C refer to each other, and D refers to itself.
+    addForeignKey("B", "A");
+    addForeignKey("B", "C");
+    addForeignKey("C", "B");
+    addForeignKey("D", "D");
+    addForeignKey("E", "C");
+    Map<String, Object[]> rows = harvest(null);
+    assertNull(rows.get("A")[6]);
+    assertEquals(1, getLong(rows, "A", 5));
+    //the tables of a cycle are in the same wave, after the tables the cycle refers to.
+    assertEquals(2, getLong(rows, "B", 5));
+    assertEquals(2, getLong(rows, "C", 5));
+    assertEquals(3, getLong(rows, "E", 5));
+    assertEquals(rows.get("B")[6], rows.get("C")[6]);
+    assertEquals(2, getLong(rows, "B", 7));
+    assertEquals(1, getLong(rows, "D", 5));
+    assertEquals(1, getLong(rows, "D", 7));
+    assertEquals(3, getLong(rows, "B", 6) + getLong(rows, "D", 6));
+    //the table itself is not counted as a dependency.
+    assertEquals(0, getLong(rows, "D", 8));
+  }
+
+  @Test
+  public void ordersLongChainsOfForeignKeys() throws Exception {
+    //deep enough to overflow the stack if the search were recursive.
+    int n = 20000;
+    for (int i = 0; i < n; i++) {
+      tables.add(String.format("T%05d", i));
+      if (i > 0) addForeignKey(String.format("T%05d", i - 1), String.format("T%05d", i));
+    }
+    Map<String, Object[]> rows = harvest(null);
+    assertEquals(n, getLong(rows, "T00000", 5));
+    assertEquals(1, getLong(rows, String.format("T%05d", n - 1), 5));
+    assertEquals(1, getLong(rows, String.format("T%05d", n - 1), 4));
+  }
+}
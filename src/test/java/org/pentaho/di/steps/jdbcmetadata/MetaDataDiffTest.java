@@ -0,0 +1,168 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+public class MetaDataDiffTest {
+
+  private ValueMetaInterface[] columns;
+  private int[] keyColumns;
+  private int[] compareColumns;
+
+  /**
+   * Keeps the changes as "CHANGE table.column".
+   */
+  private class Changes implements MetaDataDiff.Output {
+    private final List<String> changes = new ArrayList<String>();
+    private final List<Object[]> inputRows = new ArrayList<Object[]>();
+
+    public void put(Object[] inputRow, Object[] metaDataRow, String changeType) throws Exception {
+      changes.add(changeType + " " + metaDataRow[2] + "." + metaDataRow[3]);
+      inputRows.add(inputRow);
+    }
+
+    //the changes, in a fixed order: spilled rows come out by partition.
+    private List<String> getChanges() {
+      List<String> sorted = new ArrayList<String>(changes);
+      Collections.sort(sorted);
+      return sorted;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    columns = (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("getColumns")[2];
+    keyColumns = MetaDataDiff.getKeyColumns("getColumns", columns);
+    compareColumns = new int[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      compareColumns[i] = i;
+    }
+  }
+
+  private Object[] column(String table, String column, String typeName, Object size) {
+    Object[] row = new Object[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      String name = columns[i].getName();
+      if ("TABLE_SCHEM".equals(name)) row[i] = "S";
+      if ("TABLE_NAME".equals(name)) row[i] = table;
+      if ("COLUMN_NAME".equals(name)) row[i] = column;
+      if ("TYPE_NAME".equals(name)) row[i] = typeName;
+      if ("COLUMN_SIZE".equals(name)) row[i] = size;
+    }
+    return row;
+  }
+
+  private Changes diff(int maxMemoryRows, List<Object[]> baseline, List<Object[]> rows) throws Exception {
+    MetaDataDiff diff = new MetaDataDiff(columns, keyColumns, compareColumns, maxMemoryRows);
+    Changes changes = new Changes();
+    try {
+      for (Object[] row : baseline) {
+        diff.addBaseline(row);
+      }
+      for (Object[] row : rows) {
+        diff.add(new Object[]{row[3]}, row, changes);
+      }
+      diff.finish(changes);
+    }
+    finally {
+      diff.close();
+    }
+    return changes;
+  }
+
+  @Test
+  public void keysAreTheNaturalKeyOfTheMethod() {
+    assertEquals(4, keyColumns.length);
+    assertEquals("TABLE_CAT", columns[keyColumns[0]].getName());
+    assertEquals("COLUMN_NAME", columns[keyColumns[3]].getName());
+    //for methods we don't know about, all columns are the key.
+    assertEquals(columns.length, MetaDataDiff.getKeyColumns("getSomethingElse", columns).length);
+  }
+
+  @Test
+  public void findsAddedModifiedAndRemovedRows() throws Exception {
+    List<Object[]> baseline = new ArrayList<Object[]>();
+    baseline.add(column("T", "ID", "INTEGER", 10));
+    baseline.add(column("T", "NAME", "VARCHAR", 50));
+    baseline.add(column("T", "OLD", "VARCHAR", 50));
+    List<Object[]> rows = new ArrayList<Object[]>();
+    //the same size, as the driver returns it rather than as a kettle row has it.
+    rows.add(column("T", "ID", "INTEGER", 10L));
+    rows.add(column("T", "NAME", "VARCHAR", 100));
+    rows.add(column("T", "NEW", "DATE", null));
+    Changes changes = diff(0, baseline, rows);
+    assertEquals("[ADDED T.NEW, MODIFIED T.NAME, REMOVED T.OLD]", changes.getChanges().toString());
+    //removed rows have no input row.
+    assertNull(changes.inputRows.get(changes.changes.indexOf("REMOVED T.OLD")));
+    assertEquals("NEW", changes.inputRows.get(changes.changes.indexOf("ADDED T.NEW"))[0]);
+  }
+
+  @Test
+  public void reportsAKeyOnce() throws Exception {
+    List<Object[]> baseline = new ArrayList<Object[]>();
+    baseline.add(column("T", "ID", "INTEGER", 10));
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add(column("T", "ID", "BIGINT", 19));
+    rows.add(column("T", "ID", "BIGINT", 19));
+    assertEquals("[MODIFIED T.ID]", diff(0, baseline, rows).getChanges().toString());
+  }
+
+  @Test
+  public void spillsTheBaselineWithTheSameResult() throws Exception {
+    List<Object[]> baseline = new ArrayList<Object[]>();
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < 500; i++) {
+      baseline.add(column("T" + i, "ID", "INTEGER", 10));
+      //every third table changed, and every fifth dropped.
+      if (i % 5 == 0) continue;
+      rows.add(column("T" + i, "ID", "INTEGER", i % 3 == 0 ? 19 : 10));
+    }
+    rows.add(column("T500", "ID", "INTEGER", 10));
+    List<String> inMemory = diff(0, baseline, rows).getChanges();
+    assertEquals(100 + 133 + 1, inMemory.size());
+    assertEquals(inMemory, diff(50, baseline, rows).getChanges());
+  }
+
+  @Test
+  public void finishesOnce() throws Exception {
+    MetaDataDiff diff = new MetaDataDiff(columns, keyColumns, compareColumns, 0);
+    diff.addBaseline(column("T", "ID", "INTEGER", 10));
+    Changes changes = new Changes();
+    diff.finish(changes);
+    diff.finish(changes);
+    assertEquals("[REMOVED T.ID]", changes.getChanges().toString());
+    assertNull(changes.inputRows.get(0));
+    assertEquals("0 added, 0 modified, 1 removed, 0 unchanged", diff.toString());
+  }
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetaDataDriverProbeTest {
+
+  private static final String VARIANT = MetaDataDriverProbe.PRIMARY_KEYS_OF_SCHEMA;
+
+  private String kettleHome;
+  private File kettleDirectory;
+  private File file;
+  private String driverName;
+  private DatabaseMetaData databaseMetaData;
+
+  @Before
+  public void setUp() throws Exception {
+    //the driver probes are kept in the kettle directory.
+    kettleHome = System.getProperty("KETTLE_HOME");
+    kettleDirectory = File.createTempFile("jdbcmetadata", "");
+    kettleDirectory.delete();
+    kettleDirectory.mkdirs();
+    System.setProperty("KETTLE_HOME", kettleDirectory.getAbsolutePath());
+    MetaDataDriverProbe.reset();
+    file = new File(new File(kettleDirectory, ".kettle"), "jdbcmetadata-driver-probes.properties");
+    //each test is another driver, so the probes of one test don't affect the next.
+    driverName = "Driver probe test driver " + System.nanoTime();
+    databaseMetaData = MetaDataTestSupport.createDatabaseMetaData(driverName, null, null, null);
+  }
+
+  @After
+  public void tearDown() {
+    MetaDataDriverProbe.reset();
+    if (kettleHome == null) System.clearProperty("KETTLE_HOME");
+    else System.setProperty("KETTLE_HOME", kettleHome);
+    new File(kettleDirectory, ".kettle").delete();
+    kettleDirectory.delete();
+  }
+
+  private Properties readFile() throws Exception {
+    Properties properties = new Properties();
+    InputStream input = new FileInputStream(file);
+    try {
+      properties.load(input);
+    }
+    finally {
+      input.close();
+    }
+    return properties;
+  }
+
+  private void writeFile(Properties properties) throws Exception {
+    file.getParentFile().mkdirs();
+    OutputStream output = new FileOutputStream(file);
+    try {
+      properties.store(output, null);
+    }
+    finally {
+      output.close();
+    }
+  }
+
+  @Test
+  public void onlyFeatureErrorsMeanUnsupported() {
+    assertTrue(MetaDataDriverProbe.isUnsupported(new AbstractMethodError()));
+    assertTrue(MetaDataDriverProbe.isUnsupported(new UnsupportedOperationException()));
+    assertTrue(MetaDataDriverProbe.isUnsupported(new SQLFeatureNotSupportedException()));
+    assertTrue(MetaDataDriverProbe.isUnsupported(new SQLException("not implemented", "0A000")));
+    assertTrue(MetaDataDriverProbe.isUnsupported(new SQLException("optional feature not implemented", "HYC00")));
+    //a missing privilege, a syntax error, an aborted transaction, a lost connection.
+    assertFalse(MetaDataDriverProbe.isUnsupported(new SQLException("permission denied", "42501")));
+    assertFalse(MetaDataDriverProbe.isUnsupported(new SQLException("syntax error", "42601")));
+    assertFalse(MetaDataDriverProbe.isUnsupported(new SQLException("current transaction is aborted", "25P02")));
+    assertFalse(MetaDataDriverProbe.isUnsupported(new SQLException("connection reset", "08006")));
+    assertFalse(MetaDataDriverProbe.isUnsupported(new SQLException("table name must not be null")));
+    assertFalse(MetaDataDriverProbe.isUnsupported(new IllegalStateException()));
+  }
+
+  @Test
+  public void otherFailuresAreNotStored() throws Exception {
+    MetaDataDriverProbe.setFailed(databaseMetaData, VARIANT, new SQLException("permission denied", "42501"));
+    assertNull(MetaDataDriverProbe.isSupported(databaseMetaData, VARIANT));
+    MetaDataDriverProbe.setFailed(databaseMetaData, VARIANT, new SQLFeatureNotSupportedException());
+    assertEquals(Boolean.FALSE, MetaDataDriverProbe.isSupported(databaseMetaData, VARIANT));
+  }
+
+  @Test
+  public void resultsAreWrittenToTheFile() throws Exception {
+    MetaDataDriverProbe.setSupported(databaseMetaData, VARIANT, false);
+    assertEquals("false", readFile().getProperty(driverName + " 1.0: " + VARIANT));
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+    MetaDataDriverProbe.setReturningRows(databaseMetaData, VARIANT);
+    assertEquals("true", readFile().getProperty(driverName + " 1.0: " + VARIANT));
+  }
+
+  @Test
+  public void unsupportedVariantsExpire() throws Exception {
+    String key = driverName + " 1.0: " + VARIANT;
+    Properties properties = new Properties();
+    properties.setProperty(key, "false");
+    properties.setProperty(key + " unsupported since",
+      Long.toString(System.currentTimeMillis() - MetaDataDriverProbe.UNSUPPORTED_EXPIRY - 1));
+    writeFile(properties);
+    assertNull(MetaDataDriverProbe.isSupported(databaseMetaData, VARIANT));
+    //once expired, the next result is stored again.
+    MetaDataDriverProbe.setSupported(databaseMetaData, VARIANT, true);
+    assertEquals(Boolean.TRUE, MetaDataDriverProbe.isSupported(databaseMetaData, VARIANT));
+  }
+
+  @Test
+  public void unsupportedVariantsWithoutATimeExpire() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(driverName + " 1.0: " + VARIANT, "false");
+    writeFile(properties);
+    assertNull(MetaDataDriverProbe.isSupported(databaseMetaData, VARIANT));
+  }
+
+  @Test
+  public void resetForgetsTheResults() throws Exception {
+    MetaDataDriverProbe.setSupported(databaseMetaData, VARIANT, false);
+    assertTrue(file.exists());
+    MetaDataDriverProbe.reset();
+    assertFalse(file.exists());
+    assertNull(MetaDataDriverProbe.isSupported(databaseMetaData, VARIANT));
+  }
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MetaDataFetcherTest {
+
+  private MetaDataFetcher fetcher;
+
+  @After
+  public void tearDown() {
+    if (fetcher != null) fetcher.shutdown();
+  }
+
+  private static Object[] input(int i) {
+    return new Object[]{Integer.valueOf(i)};
+  }
+
+  //adds the given number of rows of the given size, each holding the input row number and the row number.
+  private static class Rows implements MetaDataFetcher.Fetch {
+    private final int count;
+    private final long size;
+    private final CountDownLatch start;
+    private final CountDownLatch done;
+    private final AtomicInteger added = new AtomicInteger();
+
+    private Rows(int count, long size, CountDownLatch start, CountDownLatch done) {
+      this.count = count;
+      this.size = size;
+      this.start = start;
+      this.done = done;
+    }
+
+    public void fetch(Object[] inputRow, Object[] arguments, MetaDataFetcher.Task task) throws Exception {
+      if (start != null && !start.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("not started");
+      for (int i = 0; i < count; i++) {
+        task.addRow(new Object[]{inputRow[0], Integer.valueOf(i)}, size);
+        added.incrementAndGet();
+      }
+      if (done != null) done.countDown();
+    }
+  }
+
+  private static void assertRows(MetaDataFetcher.Task task, int input, int count) throws Exception {
+    assertEquals(input, task.getInputRow()[0]);
+    Object[] row;
+    for (int i = 0; i < count; i++) {
+      row = task.nextRow();
+      assertEquals(input, row[0]);
+      assertEquals(i, row[1]);
+    }
+    assertNull(task.nextRow());
+  }
+
+  private void awaitFull() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!fetcher.isFull()) {
+      if (System.currentTimeMillis() > deadline) fail("the fetcher never waited for the budget");
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void preservesTheSubmissionOrder() throws Exception {
+    fetcher = new MetaDataFetcher(3, 0, true, MetaDataFetcher.executorOptionThreads, 10, 0, "test");
+    //the first call only completes after the others.
+    CountDownLatch othersDone = new CountDownLatch(2);
+    fetcher.submit(new Rows(3, 10, othersDone, null), "c0", null, input(0), new Object[0]);
+    fetcher.submit(new Rows(3, 10, null, othersDone), "c1", null, input(1), new Object[0]);
+    fetcher.submit(new Rows(3, 10, null, othersDone), "c2", null, input(2), new Object[0]);
+    for (int i = 0; i < 3; i++) {
+      assertRows(fetcher.take(), i, 3);
+    }
+    assertFalse(fetcher.hasPending());
+    assertNull(fetcher.take());
+  }
+
+  @Test
+  public void handsBackCompletedCallsFirstIfOrderIsNotPreserved() throws Exception {
+    fetcher = new MetaDataFetcher(3, 0, false, MetaDataFetcher.executorOptionThreads, 10, 0, "test");
+    //the first call only completes once the others were handed back.
+    CountDownLatch othersTaken = new CountDownLatch(1);
+    fetcher.submit(new Rows(3, 10, othersTaken, null), "c0", null, input(0), new Object[0]);
+    fetcher.submit(new Rows(3, 10, null, null), "c1", null, input(1), new Object[0]);
+    fetcher.submit(new Rows(3, 10, null, null), "c2", null, input(2), new Object[0]);
+    int first = ((Integer)fetcher.take().getInputRow()[0]).intValue();
+    int second = ((Integer)fetcher.take().getInputRow()[0]).intValue();
+    assertEquals(3, first + second);
+    assertTrue(fetcher.hasPending());
+    othersTaken.countDown();
+    assertRows(fetcher.take(), 0, 3);
+  }
+
+  @Test
+  public void runsTheCallsOfAConnectionOneAtATime() throws Exception {
+    fetcher = new MetaDataFetcher(4, 0, true, MetaDataFetcher.executorOptionThreads, 10, 0, "test");
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger maxActive = new AtomicInteger();
+    MetaDataFetcher.Fetch fetch = new MetaDataFetcher.Fetch() {
+      public void fetch(Object[] inputRow, Object[] arguments, MetaDataFetcher.Task task) throws Exception {
+        int now = active.incrementAndGet();
+        if (now > maxActive.get()) maxActive.set(now);
+        Thread.sleep(5);
+        active.decrementAndGet();
+      }
+    };
+    for (int i = 0; i < 5; i++) {
+      fetcher.submit(fetch, "same connection", null, input(i), new Object[0]);
+    }
+    for (int i = 0; i < 5; i++) {
+      assertRows(fetcher.take(), i, 0);
+    }
+    assertEquals(1, maxActive.get());
+  }
+
+  @Test
+  public void callsWaitForTheBudget() throws Exception {
+    //room for 3 rows of 30 bytes.
+    fetcher = new MetaDataFetcher(2, 0, true, MetaDataFetcher.executorOptionThreads, 10, 100, "test");
+    Rows rows = new Rows(10, 30, null, null);
+    fetcher.submit(rows, "c0", null, input(0), new Object[0]);
+    awaitFull();
+    assertEquals(3, rows.added.get());
+    //once the step thread takes its rows, the call does not wait anymore.
+    assertRows(fetcher.take(), 0, 10);
+    assertFalse(fetcher.isFull());
+  }
+
+  @Test
+  public void theBudgetIsShared() throws Exception {
+    fetcher = new MetaDataFetcher(2, 0, true, MetaDataFetcher.executorOptionThreads, 10, 100, "test");
+    CountDownLatch firstDone = new CountDownLatch(1);
+    Rows first = new Rows(2, 30, null, firstDone);
+    Rows second = new Rows(10, 30, firstDone, null);
+    fetcher.submit(first, "c0", null, input(0), new Object[0]);
+    fetcher.submit(second, "c1", null, input(1), new Object[0]);
+    awaitFull();
+    //the first call holds 60 bytes of the budget, so the second gets only one row in.
+    assertEquals(1, second.added.get());
+    assertRows(fetcher.take(), 0, 2);
+    assertRows(fetcher.take(), 1, 10);
+  }
+
+  @Test
+  public void aRowLargerThanTheBudgetStillGetsThrough() throws Exception {
+    fetcher = new MetaDataFetcher(1, 0, true, MetaDataFetcher.executorOptionThreads, 10, 100, "test");
+    fetcher.submit(new Rows(2, 1000, null, null), "c0", null, input(0), new Object[0]);
+    assertRows(fetcher.take(), 0, 2);
+  }
+
+  @Test
+  public void exceptionsReachTheStepThread() throws Exception {
+    fetcher = new MetaDataFetcher(1, 0, true, MetaDataFetcher.executorOptionThreads, 10, 0, "test");
+    final SQLException failure = new SQLException("connection reset", "08006");
+    fetcher.submit(new MetaDataFetcher.Fetch() {
+      public void fetch(Object[] inputRow, Object[] arguments, MetaDataFetcher.Task task) throws Exception {
+        task.addRow(new Object[]{inputRow[0], Integer.valueOf(0)}, 10);
+        throw failure;
+      }
+    }, "c0", null, input(0), new Object[0]);
+    MetaDataFetcher.Task task = fetcher.take();
+    assertEquals(0, task.nextRow()[1]);
+    try {
+      task.nextRow();
+      fail("the exception of the call was not thrown");
+    }
+    catch (SQLException exception) {
+      assertSame(failure, exception);
+    }
+  }
+
+  @Test
+  public void fullWhenTooManyCallsAreInFlight() throws Exception {
+    fetcher = new MetaDataFetcher(1, 0, true, MetaDataFetcher.executorOptionThreads, 2, 0, "test");
+    fetcher.submit(new Rows(1, 10, null, null), "c0", null, input(0), new Object[0]);
+    assertFalse(fetcher.isFull());
+    fetcher.submit(new Rows(1, 10, null, null), "c1", null, input(1), new Object[0]);
+    assertTrue(fetcher.isFull());
+    assertRows(fetcher.take(), 0, 1);
+    assertFalse(fetcher.isFull());
+  }
+
+  @Test
+  public void hostsOfUrls() {
+    assertEquals("db1", MetaDataFetcher.getHost("jdbc:postgresql://DB1:5432/sales"));
+    assertEquals("db1", MetaDataFetcher.getHost("jdbc:mysql://user:pw@db1/sales"));
+    assertEquals("db2", MetaDataFetcher.getHost("jdbc:oracle:thin:@db2:1521:orcl"));
+    assertEquals("db3", MetaDataFetcher.getHost("jdbc:sqlserver://db3;databaseName=sales"));
+    assertNull(MetaDataFetcher.getHost("jdbc:h2:mem:test"));
+    assertNull(MetaDataFetcher.getHost(null));
+  }
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.pentaho.di.steps.jdbcmetadata.MetaDataTestSupport.getColumns;
+import static org.pentaho.di.steps.jdbcmetadata.MetaDataTestSupport.row;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+public class MetaDataFingerprintTest {
+
+  /**
+   * Keeps the rollups as "LEVEL catalog.schema.table fingerprint".
+   */
+  private static class Rollups implements MetaDataFingerprint.Output {
+    private final int[] hierarchyColumns;
+    private final List<String> rollups = new ArrayList<String>();
+
+    private Rollups(int[] hierarchyColumns) {
+      this.hierarchyColumns = hierarchyColumns;
+    }
+
+    public void put(Object[] inputRow, Object[] metaDataRow, String level, String fingerprint) throws Exception {
+      StringBuilder stringBuilder = new StringBuilder(level).append(' ');
+      for (int i = 0; i < hierarchyColumns.length; i++) {
+        if (i > 0) stringBuilder.append('.');
+        stringBuilder.append(metaDataRow[hierarchyColumns[i]]);
+      }
+      rollups.add(stringBuilder.append(' ').append(fingerprint).toString());
+    }
+  }
+
+  private static Object[] index(String table, String index, boolean nonUnique, Object position) {
+    return row("getIndexInfo", new Object[][]{
+      {"TABLE_SCHEM", "S"}, {"TABLE_NAME", table}, {"INDEX_NAME", index},
+      {"NON_UNIQUE", Boolean.valueOf(nonUnique)}, {"ORDINAL_POSITION", position}
+    });
+  }
+
+  //fingerprint the rows of a method, and return the rollups.
+  private static List<String> fingerprint(String methodName, boolean ordered, Object[]... rows) throws Exception {
+    ValueMetaInterface[] columns = getColumns(methodName);
+    int[] fingerprintColumns = new int[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      fingerprintColumns[i] = i;
+    }
+    int[] hierarchyColumns = MetaDataFingerprint.getHierarchyColumns(methodName, columns);
+    MetaDataFingerprint fingerprint = new MetaDataFingerprint(columns, fingerprintColumns, hierarchyColumns, ordered);
+    Rollups rollups = new Rollups(hierarchyColumns);
+    for (Object[] row : rows) {
+      fingerprint.add(null, row, rollups);
+    }
+    fingerprint.finish(rollups);
+    return rollups.rollups;
+  }
+
+  private static String getLevels(List<String> rollups) {
+    StringBuilder stringBuilder = new StringBuilder();
+    for (String rollup : rollups) {
+      if (stringBuilder.length() > 0) stringBuilder.append(", ");
+      stringBuilder.append(rollup.substring(0, rollup.lastIndexOf(' ')));
+    }
+    return stringBuilder.toString();
+  }
+
+  @Test
+  public void rollsUpOrderedRowsAsTheyCome() throws Exception {
+    ValueMetaInterface[] columns = getColumns("getIndexInfo");
+    final List<String> levels = new ArrayList<String>();
+    MetaDataFingerprint.Output output = new MetaDataFingerprint.Output() {
+      public void put(Object[] inputRow, Object[] metaDataRow, String level, String fingerprint) throws Exception {
+        levels.add(level);
+      }
+    };
+    MetaDataFingerprint fingerprint = new MetaDataFingerprint(
+      columns, new int[]{2, 5}, MetaDataFingerprint.getHierarchyColumns("getIndexInfo", columns), true
+    );
+    fingerprint.add(null, index("T1", "I1", false, 1), output);
+    fingerprint.add(null, index("T1", "I2", true, 1), output);
+    assertTrue(levels.isEmpty());
+    //the next table closes the previous one.
+    fingerprint.add(null, index("T2", "I3", false, 1), output);
+    assertEquals("[TABLE]", levels.toString());
+    fingerprint.finish(output);
+    assertEquals("[TABLE, TABLE, SCHEMA, CATALOG]", levels.toString());
+  }
+
+  @Test
+  public void rollsUpUnorderedRowsAtTheEnd() throws Exception {
+    assertFalse(MetaDataFingerprint.isOrderedByHierarchy("getIndexInfo"));
+    assertTrue(MetaDataFingerprint.isOrderedByHierarchy("getColumns"));
+    //ordered by NON_UNIQUE first, so the rows of the tables are mixed.
+    List<String> unordered = fingerprint("getIndexInfo", false,
+      index("T2", "I3", false, 1), index("T1", "I1", false, 1), index("T1", "I2", true, 1), index("T2", "I4", true, 1)
+    );
+    assertEquals("TABLE null.S.T1, TABLE null.S.T2, SCHEMA null.S.null, CATALOG null.null.null", getLevels(unordered));
+    //the same as if the rows of each table had come together.
+    List<String> ordered = fingerprint("getIndexInfo", true,
+      index("T1", "I1", false, 1), index("T1", "I2", true, 1), index("T2", "I3", false, 1), index("T2", "I4", true, 1)
+    );
+    assertEquals(ordered, unordered);
+    //whereas rolling them up as they come puts a table twice.
+    assertEquals(5, fingerprint("getIndexInfo", true,
+      index("T2", "I3", false, 1), index("T1", "I1", false, 1), index("T1", "I2", true, 1), index("T2", "I4", true, 1)
+    ).size());
+  }
+
+  @Test
+  public void rollupsFollowTheRows() throws Exception {
+    List<String> rollups = fingerprint("getIndexInfo", false, index("T1", "I1", false, 1), index("T2", "I2", false, 1));
+    //numbers hash the same whatever type the driver returns them as.
+    assertEquals(rollups, fingerprint("getIndexInfo", false, index("T1", "I1", false, 1L), index("T2", "I2", false, (short)1)));
+    List<String> changed = fingerprint("getIndexInfo", false, index("T1", "I1", false, 1), index("T2", "I2", true, 1));
+    assertEquals(rollups.get(0), changed.get(0));
+    assertFalse(rollups.get(1).equals(changed.get(1)));
+    assertFalse(rollups.get(2).equals(changed.get(2)));
+    assertFalse(rollups.get(3).equals(changed.get(3)));
+  }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetaDataJsonWriterTest {
+
+  private MetaDataJsonWriter writer;
+
+  @Before
+  public void setUp() {
+    writer = new MetaDataJsonWriter();
+  }
+
+  private String string(String value) {
+    return writer.reset().value(value).toString();
+  }
+
+  @Test
+  public void escapesStrings() {
+    assertEquals("\"plain\"", string("plain"));
+    assertEquals("\"\"", string(""));
+    assertEquals("\"say \\\"hi\\\"\"", string("say \"hi\""));
+    assertEquals("\"C:\\\\temp\"", string("C:\\temp"));
+    assertEquals("\"a\\nb\\r\\nc\\td\"", string("a\nb\r\nc\td"));
+    assertEquals("\"\\u0000\\u001f\\u0008\"", string("\u0000\u001f\b"));
+    //not allowed in javascript strings.
+    assertEquals("\"\\u2028\\u2029\"", string("\u2028\u2029"));
+    //other characters are written as they are.
+    assertEquals("\"\u00e9\u4e2d/\u007f\"", string("\u00e9\u4e2d/\u007f"));
+    assertEquals("\"x\\\"\"", string("x\""));
+  }
+
+  @Test
+  public void writesValuesByType() {
+    writer.beginArray()
+      .value(null).value(Boolean.TRUE).value(Long.valueOf(-1)).value(Integer.valueOf(2)).value((short)3)
+      .value(Double.valueOf(1.5)).value(new BigDecimal("10.25")).value(Double.valueOf(Double.NaN))
+      .value(Float.valueOf(Float.POSITIVE_INFINITY)).value(new StringBuilder("text"))
+      .endArray();
+    assertEquals("[null,true,-1,2,3,1.5,10.25,null,null,\"text\"]", writer.toString());
+  }
+
+  @Test
+  public void separatesMembers() {
+    writer.beginObject()
+      .property("name", "T")
+      .name("columns").beginArray()
+        .beginObject().property("name", "ID").property("key", Boolean.TRUE).endObject()
+        .beginObject().endObject()
+        .beginArray().endArray()
+      .endArray()
+      .name("na\"me").value(null)
+      .endObject();
+    assertEquals("{\"name\":\"T\",\"columns\":[{\"name\":\"ID\",\"key\":true},{},[]],\"na\\\"me\":null}", writer.toString());
+  }
+
+  @Test
+  public void nestsDeeply() {
+    for (int i = 0; i < 40; i++) {
+      writer.beginArray();
+    }
+    writer.value(Integer.valueOf(1));
+    for (int i = 0; i < 40; i++) {
+      writer.endArray();
+      if (i < 39) writer.value(Integer.valueOf(i));
+    }
+    String json = writer.toString();
+    assertEquals(40, json.length() - json.replace("[", "").length());
+    assertEquals("[1],0],1],2]", json.substring(39, 51));
+    assertEquals(",37],38]", json.substring(json.length() - 8));
+  }
+
+  @Test
+  public void resetStartsANewDocument() {
+    writer.beginObject().property("a", Integer.valueOf(1));
+    assertEquals("{\"b\":2}", writer.reset().beginObject().property("b", Integer.valueOf(2)).endObject().toString());
+  }
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Runs the native queries against embedded databases, and checks that they return the rows the driver returns.
+ */
+public class MetaDataNativeQueryConformanceTest {
+
+  private static final String[] SCHEMA = new String[]{
+    "CREATE TABLE ORDERS (ID INTEGER NOT NULL PRIMARY KEY, CUSTOMER VARCHAR(50), TOTAL DECIMAL(10,2) DEFAULT 0)",
+    "CREATE TABLE ORDER_LINES (ORDER_ID INTEGER NOT NULL, LINE INTEGER NOT NULL, PRODUCT VARCHAR(20)," +
+    " PRIMARY KEY (ORDER_ID, LINE)," +
+    " CONSTRAINT FK_LINES FOREIGN KEY (ORDER_ID) REFERENCES ORDERS (ID) ON DELETE CASCADE)",
+    "CREATE VIEW BIG_ORDERS AS SELECT * FROM ORDERS WHERE TOTAL > 100"
+  };
+
+  private Connection connection;
+  private String url;
+
+  @BeforeClass
+  public static void setUpClass() {
+    //keep derby.log out of the working directory.
+    System.setProperty("derby.stream.error.file", new File(System.getProperty("java.io.tmpdir"), "derby.log").getPath());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (connection != null) connection.close();
+    if (url != null && url.startsWith("jdbc:derby:")) {
+      try {
+        DriverManager.getConnection(url.replace(";create=true", ";drop=true"));
+      }
+      catch (SQLException dropped) {
+        //derby reports a dropped database as an exception.
+      }
+    }
+  }
+
+  private void open(String driverClass, String url, String... statements) throws Exception {
+    Class.forName(driverClass);
+    this.url = url;
+    connection = DriverManager.getConnection(url);
+    Statement statement = connection.createStatement();
+    try {
+      for (String sql : SCHEMA) {
+        statement.execute(sql);
+      }
+      for (String sql : statements) {
+        statement.execute(sql);
+      }
+    }
+    finally {
+      statement.close();
+    }
+  }
+
+  //the rows as the native query compares them: drivers return numbers as all kinds of types.
+  private static List<String> readRows(ResultSet resultSet, int columnCount) throws SQLException {
+    List<String> rows = new ArrayList<String>();
+    try {
+      StringBuilder row;
+      Object value;
+      while (resultSet.next()) {
+        row = new StringBuilder();
+        for (int i = 1; i <= columnCount; i++) {
+          value = resultSet.getObject(i);
+          if (value instanceof Boolean) value = ((Boolean)value).booleanValue() ? "1" : "0";
+          else
+          if (value instanceof Number) value = ((Number)value).longValue();
+          row.append(value).append('|');
+        }
+        rows.add(row.toString());
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * Call the method through its native query, and through the driver.
+   * @return false if there is no native query for the method in this database.
+   */
+  private boolean check(String methodName, Object... arguments) throws SQLException {
+    Object[] methodDescriptor = JdbcMetaDataMeta.getMethodDescriptor(methodName);
+    ValueMetaInterface[] columns = (ValueMetaInterface[])methodDescriptor[2];
+    boolean[] readColumns = new boolean[columns.length];
+    Arrays.fill(readColumns, true);
+    final MetaDataInvoker method = (MetaDataInvoker)methodDescriptor[3];
+    final int[] driverCalls = new int[1];
+    MetaDataInvoker fallback = new MetaDataInvoker() {
+      public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+        driverCalls[0]++;
+        return method.invoke(databaseMetaData, arguments);
+      }
+    };
+    DatabaseMetaData databaseMetaData = connection.getMetaData();
+    MetaDataInvoker invoker = MetaDataNativeQuery.create(methodDescriptor, readColumns, databaseMetaData, fallback);
+    if (invoker == fallback) return false;
+
+    //the first call runs both, and compares them.
+    List<String> verifiedRows = readRows(invoker.invoke(databaseMetaData, arguments), columns.length);
+    assertNull(methodName + ": " + invoker, ((MetaDataNativeQuery)invoker).getFailure());
+    assertFalse(methodName + " must return rows to be verified", verifiedRows.isEmpty());
+    //from then on, only the native query runs.
+    List<String> nativeRows = readRows(invoker.invoke(databaseMetaData, arguments), columns.length);
+    assertEquals(methodName + ": " + invoker, 1, driverCalls[0]);
+    assertEquals(methodName, readRows(method.invoke(databaseMetaData, arguments), columns.length), nativeRows);
+    return true;
+  }
+
+  //check the methods, and return the ones that have a native query.
+  private List<String> checkAll(String schema) throws SQLException {
+    List<String> covered = new ArrayList<String>();
+    if (check("getTables", null, schema, "%", null)) covered.add("getTables");
+    String escape = connection.getMetaData().getSearchStringEscape();
+    check("getTables", null, schema, escape == null ? "ORDER_%" : "ORDER" + escape + "_%", new String[]{"TABLE"});
+    check("getTables", null, schema, "BIG%", new String[]{"VIEW", "TABLE"});
+    if (check("getColumns", null, schema, "ORDER%", "%")) covered.add("getColumns");
+    check("getColumns", null, null, "ORDERS", "T%");
+    if (check("getPrimaryKeys", null, schema, "ORDER_LINES")) covered.add("getPrimaryKeys");
+    check("getPrimaryKeys", null, null, "ORDERS");
+    if (check("getImportedKeys", null, schema, "ORDER_LINES")) covered.add("getImportedKeys");
+    if (check("getExportedKeys", null, schema, "ORDERS")) covered.add("getExportedKeys");
+    return covered;
+  }
+
+  private static final List<String> ALL_METHODS =
+    Arrays.asList("getTables", "getColumns", "getPrimaryKeys", "getImportedKeys", "getExportedKeys");
+
+  @Test
+  public void h2() throws Exception {
+    open("org.h2.Driver", "jdbc:h2:mem:conformance" + System.nanoTime());
+    assertEquals(ALL_METHODS, checkAll("PUBLIC"));
+  }
+
+  @Test
+  public void hsqldb() throws Exception {
+    open("org.hsqldb.jdbc.JDBCDriver", "jdbc:hsqldb:mem:conformance" + System.nanoTime());
+    assertEquals(ALL_METHODS, checkAll("PUBLIC"));
+  }
+
+  @Test
+  public void derby() throws Exception {
+    open("org.apache.derby.jdbc.EmbeddedDriver", "jdbc:derby:memory:conformance" + System.nanoTime() + ";create=true");
+    assertEquals(Arrays.asList("getTables"), checkAll("APP"));
+  }
+
+  @Test
+  public void sqlite() throws Exception {
+    //AUTOINCREMENT adds the sqlite_sequence system table, which the driver leaves out.
+    open("org.sqlite.JDBC", "jdbc:sqlite::memory:",
+      "CREATE TABLE MISC (ID INTEGER PRIMARY KEY AUTOINCREMENT, A bigint, B text, C blob, D, E boolean, F double precision, G numeric(5), H date)"
+    );
+    assertEquals(Arrays.asList("getTables", "getColumns"), checkAll(null));
+    assertTrue(check("getColumns", null, null, "MISC", "%"));
+  }
+}
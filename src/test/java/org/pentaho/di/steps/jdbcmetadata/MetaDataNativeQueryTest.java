@@ -0,0 +1,218 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+public class MetaDataNativeQueryTest {
+
+  private static final Object[] METHOD_DESCRIPTOR = JdbcMetaDataMeta.getMethodDescriptor("getPrimaryKeys");
+  private static final ValueMetaInterface[] COLUMNS = (ValueMetaInterface[])METHOD_DESCRIPTOR[2];
+  private static final Object[] ARGUMENTS = new Object[]{null, "public", "t"};
+
+  //what the native query and the driver return.
+  private List<Object[]> nativeRows;
+  private List<Object[]> driverRows;
+  private boolean autoCommit;
+  private boolean failNative;
+  private int nativeCalls;
+  private int driverCalls;
+  //the transaction control calls made on the connection.
+  private List<String> transactionCalls;
+
+  private DatabaseMetaData databaseMetaData;
+  private MetaDataInvoker fallback;
+
+  private static Object proxy(Class<?> type, InvocationHandler handler) {
+    return Proxy.newProxyInstance(MetaDataNativeQueryTest.class.getClassLoader(), new Class<?>[]{type}, handler);
+  }
+
+  private static Object[] row(String columnName, Number keySeq) {
+    return new Object[]{null, "public", "t", columnName, keySeq, "t_pkey"};
+  }
+
+  @Before
+  public void setUp() {
+    nativeRows = new ArrayList<Object[]>();
+    driverRows = new ArrayList<Object[]>();
+    autoCommit = true;
+    failNative = false;
+    nativeCalls = 0;
+    driverCalls = 0;
+    transactionCalls = new ArrayList<String>();
+    final PreparedStatement statement = (PreparedStatement)proxy(PreparedStatement.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+        if ("executeQuery".equals(method.getName())) {
+          nativeCalls++;
+          return MetaDataSnapshot.createResultSet(COLUMNS, new ArrayList<Object[]>(nativeRows));
+        }
+        return null;
+      }
+    });
+    final Connection connection = (Connection)proxy(Connection.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+        String name = method.getName();
+        if ("getAutoCommit".equals(name)) return autoCommit;
+        if ("prepareStatement".equals(name)) {
+          if (failNative) throw new SQLException("relation \"pg_constraint\" does not exist");
+          return statement;
+        }
+        if ("setSavepoint".equals(name)) {
+          transactionCalls.add(name);
+          return proxy(Savepoint.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] arguments) {
+              return null;
+            }
+          });
+        }
+        if ("rollback".equals(name) || "releaseSavepoint".equals(name) || "commit".equals(name)) {
+          transactionCalls.add(name + (arguments == null ? "()" : "(savepoint)"));
+          return null;
+        }
+        throw new UnsupportedOperationException(name);
+      }
+    });
+    databaseMetaData = (DatabaseMetaData)proxy(DatabaseMetaData.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+        String name = method.getName();
+        if ("getDatabaseProductName".equals(name)) return "PostgreSQL";
+        if ("getSearchStringEscape".equals(name)) return "\\";
+        if ("getConnection".equals(name)) return connection;
+        if ("supportsSavepoints".equals(name)) return true;
+        throw new UnsupportedOperationException(name);
+      }
+    });
+    fallback = new MetaDataInvoker() {
+      public ResultSet invoke(DatabaseMetaData databaseMetaData, Object[] arguments) throws SQLException {
+        driverCalls++;
+        return MetaDataSnapshot.createResultSet(COLUMNS, new ArrayList<Object[]>(driverRows));
+      }
+    };
+  }
+
+  private MetaDataInvoker createInvoker() throws SQLException {
+    boolean[] readColumns = new boolean[COLUMNS.length];
+    for (int i = 0; i < readColumns.length; i++) {
+      readColumns[i] = true;
+    }
+    return MetaDataNativeQuery.create(METHOD_DESCRIPTOR, readColumns, databaseMetaData, fallback);
+  }
+
+  private static int count(ResultSet resultSet) throws SQLException {
+    int count = 0;
+    try {
+      while (resultSet.next()) count++;
+    }
+    finally {
+      resultSet.close();
+    }
+    return count;
+  }
+
+  @Test
+  public void nativeQueryIsUsedOnceItReturnsWhatTheDriverReturns() throws Exception {
+    //the driver returns a different number type, and the rows in another order; that is not a difference.
+    nativeRows.add(row("a", Integer.valueOf(2)));
+    nativeRows.add(row("id", Integer.valueOf(1)));
+    driverRows.add(row("id", Short.valueOf((short)1)));
+    driverRows.add(row("a", Short.valueOf((short)2)));
+    MetaDataInvoker invoker = createInvoker();
+    assertTrue(invoker instanceof MetaDataNativeQuery);
+
+    assertEquals(2, count(invoker.invoke(databaseMetaData, ARGUMENTS)));
+    assertEquals(1, nativeCalls);
+    assertEquals(1, driverCalls);
+
+    assertEquals(2, count(invoker.invoke(databaseMetaData, ARGUMENTS)));
+    assertEquals(2, nativeCalls);
+    assertEquals(1, driverCalls);
+    assertNull(((MetaDataNativeQuery)invoker).getFailure());
+  }
+
+  @Test
+  public void emptyResultsDoNotVerifyTheNativeQuery() throws Exception {
+    MetaDataInvoker invoker = createInvoker();
+    assertEquals(0, count(invoker.invoke(databaseMetaData, ARGUMENTS)));
+    assertEquals(0, count(invoker.invoke(databaseMetaData, ARGUMENTS)));
+    assertEquals(2, nativeCalls);
+    assertEquals(2, driverCalls);
+  }
+
+  @Test
+  public void nativeQueryThatDiffersFromTheDriverIsNotUsed() throws Exception {
+    nativeRows.add(new Object[]{null, "public", "t", "id", Integer.valueOf(1), null});
+    driverRows.add(row("id", Short.valueOf((short)1)));
+    MetaDataInvoker invoker = createInvoker();
+
+    ResultSet resultSet = invoker.invoke(databaseMetaData, ARGUMENTS);
+    assertTrue(resultSet.next());
+    assertEquals("t_pkey", resultSet.getObject(6));
+    resultSet.close();
+    assertNotNull(((MetaDataNativeQuery)invoker).getFailure());
+
+    assertEquals(1, count(invoker.invoke(databaseMetaData, ARGUMENTS)));
+    assertEquals(1, nativeCalls);
+    assertEquals(2, driverCalls);
+  }
+
+  @Test
+  public void failingNativeQueryOnlyRollsBackToItsSavepoint() throws Exception {
+    autoCommit = false;
+    failNative = true;
+    driverRows.add(row("id", Short.valueOf((short)1)));
+    MetaDataInvoker invoker = createInvoker();
+
+    assertEquals(1, count(invoker.invoke(databaseMetaData, ARGUMENTS)));
+    assertEquals(1, driverCalls);
+    assertNotNull(((MetaDataNativeQuery)invoker).getFailure());
+    assertTrue(transactionCalls.contains("rollback(savepoint)"));
+    assertFalse(transactionCalls.contains("rollback()"));
+
+    //the native query is not tried again right away.
+    assertEquals(1, count(invoker.invoke(databaseMetaData, ARGUMENTS)));
+    assertEquals(2, driverCalls);
+    assertEquals(1, Collections.frequency(transactionCalls, "setSavepoint"));
+  }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetaDataRegistryTest {
+
+  private MetaDataRegistry registry;
+
+  @Before
+  public void setUp() {
+    registry = MetaDataRegistry.getInstance();
+    registry.clear();
+  }
+
+  @After
+  public void tearDown() {
+    registry.clear();
+  }
+
+  private MetaDataResultCache getResultCache() {
+    return registry.getResultCache(100, 1024 * 1024, 0, true, 0, 0);
+  }
+
+  private static MetaDataResultCache.Key key(String epoch, String password) {
+    String connection = "org.h2.Driver;jdbc:h2:mem:test;sa;" + MetaDataRegistry.getInstance().getCredentialHash(password);
+    return new MetaDataResultCache.Key(epoch, connection, "getTables", new Object[]{null, "S", "%", null});
+  }
+
+  private static List<Object[]> rows() {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add(new Object[]{null, "S", "T", "TABLE"});
+    return rows;
+  }
+
+  @Test
+  public void credentialsAreHashed() {
+    assertEquals(registry.getCredentialHash("secret"), registry.getCredentialHash("secret"));
+    assertFalse(registry.getCredentialHash("secret").equals(registry.getCredentialHash("Secret")));
+    assertFalse(registry.getCredentialHash("secret").contains("secret"));
+    assertEquals("", registry.getCredentialHash(null));
+    assertEquals("", registry.getCredentialHash(""));
+  }
+
+  @Test
+  public void resultsAreNotSharedAcrossPasswords() {
+    MetaDataResultCache cache = getResultCache();
+    cache.put(key(null, "secret"), rows(), 100);
+    assertNotNull(cache.get(key(null, "secret")));
+    assertNull(cache.get(key(null, "wrong")));
+    assertNull(cache.get(key(null, null)));
+  }
+
+  @Test
+  public void newEpochDropsTheResults() {
+    MetaDataResultCache cache = getResultCache();
+    assertFalse(registry.setEpoch("1"));
+    cache.put(key("1", "secret"), rows(), 100);
+    //the same epoch, or none, keeps them.
+    assertFalse(registry.setEpoch("1"));
+    assertFalse(registry.setEpoch(null));
+    assertFalse(registry.setEpoch(""));
+    assertEquals(1, cache.getEntryCount());
+    assertTrue(registry.setEpoch("2"));
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void clearForgetsTheEpoch() {
+    registry.setEpoch("1");
+    registry.clear();
+    MetaDataResultCache cache = getResultCache();
+    cache.put(key("2", "secret"), rows(), 100);
+    assertFalse(registry.setEpoch("2"));
+    assertEquals(1, cache.getEntryCount());
+  }
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MetaDataResultCacheTest {
+
+  private static MetaDataResultCache.Key key(String table) {
+    return new MetaDataResultCache.Key("connection", "getColumns", new Object[]{null, "S", table, null});
+  }
+
+  private static List<Object[]> rows(String table, int count) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < count; i++) {
+      rows.add(new Object[]{null, "S", table, "COLUMN" + i, Integer.valueOf(12), "VARCHAR", Long.valueOf(i), Boolean.TRUE});
+    }
+    return rows;
+  }
+
+  private static long size(List<Object[]> rows) {
+    long size = 0;
+    for (Object[] row : rows) {
+      size += MetaDataResultCache.estimateSize(row);
+    }
+    return size;
+  }
+
+  private static void put(MetaDataResultCache cache, String table, int count) {
+    List<Object[]> rows = rows(table, count);
+    cache.put(key(table), rows, size(rows));
+  }
+
+  @Test
+  public void keysCompareArgumentsByValue() {
+    assertEquals(key("T"), key("T"));
+    assertEquals(key("T").hashCode(), key("T").hashCode());
+    assertFalse(key("T").equals(key("U")));
+    assertEquals(
+      new MetaDataResultCache.Key("c", "getIndexInfo", new Object[]{new String[]{"TABLE"}}),
+      new MetaDataResultCache.Key("c", "getIndexInfo", new Object[]{new String[]{"TABLE"}})
+    );
+    //the key takes a copy of the arguments, as the step reuses its array.
+    Object[] arguments = new Object[]{null, "S", "T", null};
+    MetaDataResultCache.Key key = new MetaDataResultCache.Key("connection", "getColumns", arguments);
+    arguments[2] = "U";
+    assertEquals(key("T"), key);
+  }
+
+  @Test
+  public void keysOfOtherEpochsAreNotFound() {
+    Object[] arguments = new Object[]{null, "S", "T", null};
+    MetaDataResultCache.Key key = new MetaDataResultCache.Key("1", "connection", "getColumns", arguments);
+    assertEquals(key, new MetaDataResultCache.Key("1", "connection", "getColumns", arguments));
+    assertFalse(key.equals(new MetaDataResultCache.Key("2", "connection", "getColumns", arguments)));
+    assertFalse(key.equals(key("T")));
+    //an empty epoch is no epoch.
+    assertEquals(key("T"), new MetaDataResultCache.Key("", "connection", "getColumns", arguments));
+    assertNull(new MetaDataResultCache.Key("", "connection", "getColumns", arguments).getEpoch());
+
+    MetaDataResultCache cache = new MetaDataResultCache(10, 1000000, 0, true);
+    List<Object[]> rows = rows("T", 1);
+    cache.put(key, rows, size(rows));
+    assertNotNull(cache.get(new MetaDataResultCache.Key("1", "connection", "getColumns", arguments)));
+    assertNull(cache.get(new MetaDataResultCache.Key("2", "connection", "getColumns", arguments)));
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedEntry() {
+    MetaDataResultCache cache = new MetaDataResultCache(2, 1000000, 0, true);
+    put(cache, "A", 1);
+    put(cache, "B", 1);
+    assertNotNull(cache.get(key("A")));
+    put(cache, "C", 1);
+    assertEquals(2, cache.getEntryCount());
+    assertNotNull(cache.get(key("A")));
+    assertNull(cache.get(key("B")));
+    assertNotNull(cache.get(key("C")));
+    assertEquals(1, cache.getEvictions());
+  }
+
+  @Test
+  public void boundsHoldAcrossStripes() {
+    long rowSize = size(rows("T000", 1));
+    //room for 20 entries of one row, but at most 10 entries.
+    MetaDataResultCache cache = new MetaDataResultCache(10, 20 * rowSize, 0, true, 8, 0, 0);
+    for (int i = 0; i < 100; i++) {
+      put(cache, String.format("T%03d", i), 1);
+      assertTrue(cache.getEntryCount() <= 10);
+    }
+    assertEquals(10, cache.getEntryCount());
+    assertEquals(90, cache.getEvictions());
+    assertEquals(10 * rowSize, cache.getSize());
+
+    //room for 100 entries, but at most 5 rows.
+    cache = new MetaDataResultCache(100, 5 * rowSize, 0, true, 8, 0, 0);
+    for (int i = 0; i < 100; i++) {
+      put(cache, String.format("T%03d", i), 1);
+      assertTrue(cache.getSize() <= 5 * rowSize);
+    }
+    assertEquals(5, cache.getEntryCount());
+    //a result that is larger than the cache is not kept at all.
+    assertFalse(cache.fits(6 * rowSize));
+    put(cache, "LARGE", 6);
+    assertNull(cache.get(key("LARGEX")));
+    assertEquals(5, cache.getEntryCount());
+  }
+
+  @Test
+  public void keepsLargeResultsOffTheHeap() {
+    List<Object[]> small = rows("SMALL", 1);
+    List<Object[]> large = rows("LARGEX", 50);
+    long threshold = size(large);
+    MetaDataResultCache cache = new MetaDataResultCache(100, 10 * size(small), 0, true, 4, threshold, threshold);
+    //too large for the heap budget, but fits the off-heap one.
+    assertTrue(cache.fits(threshold));
+    assertFalse(cache.fits(2 * threshold));
+    cache.put(key("SMALL"), small, size(small));
+    cache.put(key("LARGEX"), large, threshold);
+    assertEquals(size(small), cache.getSize());
+    assertTrue(cache.getOffHeapSize() > 0);
+    List<Object[]> cached = cache.get(key("LARGEX"));
+    assertEquals(large.size(), cached.size());
+    for (int i = 0; i < large.size(); i++) {
+      assertArrayEquals(large.get(i), cached.get(i));
+    }
+    //the off-heap budget is bounded on its own: more large results evict the first one, not the small one.
+    List<Object[]> more;
+    for (int i = 0; i < 10; i++) {
+      more = rows("LARGE" + i, 50);
+      cache.put(key("LARGE" + i), more, size(more));
+      assertTrue(cache.getOffHeapSize() <= threshold);
+    }
+    assertNull(cache.get(key("LARGEX")));
+    assertNotNull(cache.get(key("LARGE9")));
+    assertNotNull(cache.get(key("SMALL")));
+    assertEquals(size(small), cache.getSize());
+  }
+
+  @Test
+  public void emptyResultsAreCachedOnlyIfAsked() {
+    MetaDataResultCache cache = new MetaDataResultCache(10, 1000000, 0, false);
+    cache.put(key("T"), Collections.<Object[]>emptyList(), 0);
+    assertNull(cache.get(key("T")));
+    cache = new MetaDataResultCache(10, 1000000, 0, true);
+    cache.put(key("T"), Collections.<Object[]>emptyList(), 0);
+    assertEquals(0, cache.get(key("T")).size());
+  }
+
+  @Test
+  public void entriesExpire() throws Exception {
+    MetaDataResultCache cache = new MetaDataResultCache(10, 1000000, 50, true);
+    put(cache, "T", 1);
+    assertNotNull(cache.get(key("T")));
+    Thread.sleep(100);
+    assertNull(cache.get(key("T")));
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+}
@@ -0,0 +1,328 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Checks that the precompiled MetaDataRowReader plan reads the same rows as the step did before it:
+ * looking up the value meta, switching on its type and asking the resultset metadata for the column type
+ * of every boolean value.
+ */
+public class MetaDataRowReaderTest {
+
+  /**
+   * Reads one row of the resultset.
+   */
+  private interface Reader {
+    Object[] readRow(ResultSet resultSet) throws SQLException;
+  }
+
+  /**
+   * Opens a resultset of a metadata method.
+   */
+  private interface Call {
+    ResultSet execute(DatabaseMetaData databaseMetaData) throws SQLException;
+  }
+
+  private Connection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    Class.forName("org.h2.Driver");
+    connection = DriverManager.getConnection("jdbc:h2:mem:rowreader" + System.nanoTime());
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute("CREATE SCHEMA S");
+      statement.execute("CREATE TABLE S.T1 (ID INT PRIMARY KEY, NAME VARCHAR(50) NOT NULL, CREATED TIMESTAMP)");
+      statement.execute("CREATE TABLE S.T2 (ID INT PRIMARY KEY, T1_ID INT REFERENCES S.T1 (ID))");
+      statement.execute("CREATE UNIQUE INDEX T1_NAME ON S.T1 (NAME)");
+    }
+    finally {
+      statement.close();
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    connection.close();
+  }
+
+  /**
+   * The row reading as it was before the reader plan.
+   */
+  private static Reader createLegacyReader(
+    final RowMetaInterface outputRowMeta, final int outputRowOffset, final int[] resultSetIndices, final int fieldCount
+  ) {
+    return new Reader() {
+      @SuppressWarnings("deprecation")
+      public Object[] readRow(ResultSet resultSet) throws SQLException {
+        ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+        int columnCount = resultSetMetaData.getColumnCount();
+        Object[] metaDataRow = new Object[fieldCount];
+        ValueMetaInterface valueMetaInterface;
+        Object value;
+        int k;
+        for (int i = outputRowOffset, j = 0; j < resultSetIndices.length; i++, j++) {
+          k = resultSetIndices[j];
+          if (k == 0 || k > columnCount) continue;
+          valueMetaInterface = outputRowMeta.getValueMeta(i);
+          switch (valueMetaInterface.getType()) {
+            case ValueMetaInterface.TYPE_BOOLEAN:
+              boolean v;
+              switch (resultSetMetaData.getColumnType(k)) {
+                case Types.INTEGER:
+                case Types.SMALLINT:
+                case Types.TINYINT:
+                  v = resultSet.getInt(k) == 1 ? true : false;
+                  break;
+                default:
+                  v = resultSet.getBoolean(k);
+              }
+              value = new Boolean(v);
+              break;
+            case ValueMetaInterface.TYPE_INTEGER:
+              value = new Long(resultSet.getInt(k));
+              break;
+            default:
+              value = resultSet.getObject(k);
+          }
+          metaDataRow[k - 1] = value;
+        }
+        return metaDataRow;
+      }
+    };
+  }
+
+  private static Reader createPlanReader(
+    RowMetaInterface outputRowMeta, int outputRowOffset, int[] resultSetIndices, int fieldCount, ResultSetMetaData resultSetMetaData
+  ) throws SQLException {
+    final MetaDataRowReader rowReader = MetaDataRowReader.create(
+      outputRowMeta, outputRowOffset, resultSetIndices, fieldCount, null, resultSetMetaData
+    );
+    return new Reader() {
+      public Object[] readRow(ResultSet resultSet) throws SQLException {
+        return rowReader.readRow(resultSet);
+      }
+    };
+  }
+
+  private static List<Object[]> readRows(Reader reader, ResultSet resultSet) throws SQLException {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    try {
+      while (resultSet.next()) {
+        rows.add(reader.readRow(resultSet));
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return rows;
+  }
+
+  //the output row: an input field, followed by the given columns of the method, in the given order.
+  //Index 0 is a field without a column, like a string field would be.
+  private static RowMetaInterface getOutputRowMeta(ValueMetaInterface[] descriptor, int[] resultSetIndices) {
+    RowMetaInterface outputRowMeta = new RowMeta();
+    outputRowMeta.addValueMeta(descriptor[0].clone());
+    for (int i = 0; i < resultSetIndices.length; i++) {
+      outputRowMeta.addValueMeta(descriptor[Math.max(resultSetIndices[i] - 1, 0)].clone());
+    }
+    return outputRowMeta;
+  }
+
+  //all columns of the method, in the order of the descriptor.
+  private static int[] getAllColumns(ValueMetaInterface[] descriptor) {
+    int[] resultSetIndices = new int[descriptor.length];
+    for (int i = 0; i < descriptor.length; i++) {
+      resultSetIndices[i] = i + 1;
+    }
+    return resultSetIndices;
+  }
+
+  private static void assertRowsEqual(List<Object[]> expected, List<Object[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertArrayEquals(expected.get(i), actual.get(i));
+    }
+  }
+
+  //read the rows of the call with both readers, check they are equal, and return how many there are.
+  private int check(String methodName, int[] resultSetIndices, Call call) throws SQLException {
+    ValueMetaInterface[] descriptor = MetaDataTestSupport.getColumns(methodName);
+    if (resultSetIndices == null) resultSetIndices = getAllColumns(descriptor);
+    RowMetaInterface outputRowMeta = getOutputRowMeta(descriptor, resultSetIndices);
+    DatabaseMetaData databaseMetaData = connection.getMetaData();
+
+    Reader legacy = createLegacyReader(outputRowMeta, 1, resultSetIndices, descriptor.length);
+    List<Object[]> legacyRows = readRows(legacy, call.execute(databaseMetaData));
+
+    ResultSet resultSet = call.execute(databaseMetaData);
+    Reader plan = createPlanReader(outputRowMeta, 1, resultSetIndices, descriptor.length, resultSet.getMetaData());
+    List<Object[]> planRows = readRows(plan, resultSet);
+
+    assertRowsEqual(legacyRows, planRows);
+    return planRows.size();
+  }
+
+  @Test
+  public void readsTheRowsOfTheDriverAsBefore() throws Exception {
+    assertEquals(2, check("getTables", null, new Call() {
+      public ResultSet execute(DatabaseMetaData databaseMetaData) throws SQLException {
+        return databaseMetaData.getTables(null, "S", "%", null);
+      }
+    }));
+    assertEquals(5, check("getColumns", null, new Call() {
+      public ResultSet execute(DatabaseMetaData databaseMetaData) throws SQLException {
+        return databaseMetaData.getColumns(null, "S", "%", "%");
+      }
+    }));
+    assertEquals(1, check("getPrimaryKeys", null, new Call() {
+      public ResultSet execute(DatabaseMetaData databaseMetaData) throws SQLException {
+        return databaseMetaData.getPrimaryKeys(null, "S", "T1");
+      }
+    }));
+    assertEquals(1, check("getImportedKeys", null, new Call() {
+      public ResultSet execute(DatabaseMetaData databaseMetaData) throws SQLException {
+        return databaseMetaData.getImportedKeys(null, "S", "T2");
+      }
+    }));
+    //NON_UNIQUE is a boolean column.
+    assertTrue(check("getIndexInfo", null, new Call() {
+      public ResultSet execute(DatabaseMetaData databaseMetaData) throws SQLException {
+        return databaseMetaData.getIndexInfo(null, "S", "T1", false, false);
+      }
+    }) >= 2);
+    //so are NULLABLE, CASE_SENSITIVE and others.
+    assertTrue(check("getTypeInfo", null, new Call() {
+      public ResultSet execute(DatabaseMetaData databaseMetaData) throws SQLException {
+        return databaseMetaData.getTypeInfo();
+      }
+    }) > 0);
+  }
+
+  @Test
+  public void readsSomeColumnsInAnyOrderAsBefore() throws Exception {
+    assertEquals(5, check("getColumns", new int[]{4, 3, 0, 5, 18}, new Call() {
+      public ResultSet execute(DatabaseMetaData databaseMetaData) throws SQLException {
+        return databaseMetaData.getColumns(null, "S", "%", "%");
+      }
+    }));
+  }
+
+  //a resultset of one row, whose boolean columns are SMALLINT columns, as some drivers have them.
+  private static ResultSet createSmallIntBooleanResultSet(final ValueMetaInterface[] descriptor) {
+    final ResultSetMetaData resultSetMetaData = (ResultSetMetaData)Proxy.newProxyInstance(
+      MetaDataRowReaderTest.class.getClassLoader(), new Class<?>[]{ResultSetMetaData.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] arguments) {
+          String name = method.getName();
+          if ("getColumnCount".equals(name)) return Integer.valueOf(descriptor.length);
+          if ("getColumnType".equals(name)) {
+            switch (descriptor[((Integer)arguments[0]).intValue() - 1].getType()) {
+              case ValueMetaInterface.TYPE_BOOLEAN:
+                return Integer.valueOf(Types.SMALLINT);
+              case ValueMetaInterface.TYPE_INTEGER:
+                return Integer.valueOf(Types.INTEGER);
+              default:
+                return Integer.valueOf(Types.VARCHAR);
+            }
+          }
+          throw new UnsupportedOperationException(name);
+        }
+      }
+    );
+    return (ResultSet)Proxy.newProxyInstance(
+      MetaDataRowReaderTest.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+      new InvocationHandler() {
+        private boolean read = false;
+        public Object invoke(Object proxy, Method method, Object[] arguments) {
+          String name = method.getName();
+          if ("next".equals(name)) {
+            boolean next = !read;
+            read = true;
+            return Boolean.valueOf(next);
+          }
+          if ("getMetaData".equals(name)) return resultSetMetaData;
+          if ("close".equals(name)) return null;
+          int column = ((Integer)arguments[0]).intValue();
+          switch (descriptor[column - 1].getType()) {
+            case ValueMetaInterface.TYPE_BOOLEAN:
+              if ("getInt".equals(name) || "getLong".equals(name)) return Integer.valueOf(column % 2);
+              break;
+            case ValueMetaInterface.TYPE_INTEGER:
+              if ("getInt".equals(name)) return Integer.valueOf(column * 100 + 7);
+              if ("getLong".equals(name)) return Long.valueOf(column * 100 + 7);
+              break;
+            default:
+              if ("getObject".equals(name)) return descriptor[column - 1].getName().toLowerCase() + "_value";
+          }
+          throw new UnsupportedOperationException(name + "(" + column + ")");
+        }
+      }
+    );
+  }
+
+  @Test
+  public void readsBooleansFromSmallIntColumnsAsBefore() throws Exception {
+    ValueMetaInterface[] descriptor = MetaDataTestSupport.getColumns("getTypeInfo");
+    int[] resultSetIndices = getAllColumns(descriptor);
+    RowMetaInterface outputRowMeta = getOutputRowMeta(descriptor, resultSetIndices);
+    Reader legacy = createLegacyReader(outputRowMeta, 1, resultSetIndices, descriptor.length);
+    List<Object[]> legacyRows = readRows(legacy, createSmallIntBooleanResultSet(descriptor));
+    ResultSet resultSet = createSmallIntBooleanResultSet(descriptor);
+    Reader plan = createPlanReader(outputRowMeta, 1, resultSetIndices, descriptor.length, resultSet.getMetaData());
+    List<Object[]> planRows = readRows(plan, resultSet);
+    assertRowsEqual(legacyRows, planRows);
+    assertEquals(1, planRows.size());
+    boolean hasBoolean = false;
+    for (Object value : planRows.get(0)) {
+      if (value instanceof Boolean) hasBoolean = true;
+    }
+    assertTrue(hasBoolean);
+  }
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.pentaho.di.steps.jdbcmetadata.MetaDataTestSupport.row;
+
+import java.io.File;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+public class MetaDataSchemaHarvesterTest {
+
+  //the schema: S.T1 (ID, NAME) with primary key on ID, and S.T_2 (ID, T1_ID) with a foreign key to T1.
+  private static final String[][] TABLES = new String[][]{{"T1"}, {"T_2"}};
+  private static final String[][] COLUMNS = new String[][]{{"T1", "ID"}, {"T1", "NAME"}, {"T_2", "ID"}, {"T_2", "T1_ID"}};
+
+  private String kettleHome;
+  private File kettleDirectory;
+  private DatabaseMetaData databaseMetaData;
+  //whether the driver returns primary keys for a null table.
+  private boolean primaryKeysOfSchema;
+  private int openResultSets;
+  //calls that were made while another resultset was open.
+  private List<String> nestedCalls;
+  private List<String> calls;
+
+  //an unescaped name, or null for any.
+  private static String unescape(Object pattern) {
+    if (pattern == null || "%".equals(pattern)) return null;
+    return pattern.toString().replace("\\\\_", "_").replace("\\\\%", "%");
+  }
+
+  private List<Object[]> getRows(String methodName, Object[] arguments) throws SQLException {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    if ("getTables".equals(methodName)) {
+      for (String[] table : TABLES) {
+        rows.add(row(methodName, new String[][]{{"TABLE_SCHEM", "S"}, {"TABLE_NAME", table[0]}, {"TABLE_TYPE", "TABLE"}}));
+      }
+    }
+    else
+    if ("getColumns".equals(methodName)) {
+      String table = unescape(arguments[2]);
+      for (int i = 0; i < COLUMNS.length; i++) {
+        if (table != null && !table.equals(COLUMNS[i][0])) continue;
+        rows.add(row(methodName, new String[][]{
+          {"TABLE_SCHEM", "S"}, {"TABLE_NAME", COLUMNS[i][0]}, {"COLUMN_NAME", COLUMNS[i][1]}
+        }));
+      }
+    }
+    else
+    if ("getPrimaryKeys".equals(methodName)) {
+      if (arguments[2] == null && !primaryKeysOfSchema) throw new SQLFeatureNotSupportedException("table is required");
+      if (arguments[2] == null || "T1".equals(arguments[2])) {
+        rows.add(row(methodName, new String[][]{
+          {"TABLE_SCHEM", "S"}, {"TABLE_NAME", "T1"}, {"COLUMN_NAME", "ID"}, {"PK_NAME", "PK_T1"}
+        }));
+      }
+    }
+    else
+    if ("getImportedKeys".equals(methodName)) {
+      //like many drivers, return nothing rather than fail when the table is left out.
+      if ("T_2".equals(arguments[2])) {
+        rows.add(row(methodName, new String[][]{
+          {"PKTABLE_SCHEM", "S"}, {"PKTABLE_NAME", "T1"}, {"PKCOLUMN_NAME", "ID"},
+          {"FKTABLE_SCHEM", "S"}, {"FKTABLE_NAME", "T_2"}, {"FKCOLUMN_NAME", "T1_ID"}, {"FK_NAME", "FK_T2_T1"}
+        }));
+      }
+    }
+    return rows;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    //the driver probes are kept in the kettle directory.
+    kettleHome = System.getProperty("KETTLE_HOME");
+    kettleDirectory = File.createTempFile("jdbcmetadata", "");
+    kettleDirectory.delete();
+    kettleDirectory.mkdirs();
+    System.setProperty("KETTLE_HOME", kettleDirectory.getAbsolutePath());
+    primaryKeysOfSchema = false;
+    openResultSets = 0;
+    nestedCalls = new ArrayList<String>();
+    calls = new ArrayList<String>();
+    //each test is another driver, so the probes of one test don't affect the next.
+    String driverName = "Schema harvester test driver " + System.nanoTime();
+    Runnable onClose = new Runnable() {
+      public void run() {
+        openResultSets--;
+      }
+    };
+    databaseMetaData = MetaDataTestSupport.createDatabaseMetaData(driverName, "\\\\", new MetaDataTestSupport.Driver() {
+      public List<Object[]> getRows(String methodName, Object[] arguments) throws SQLException {
+        calls.add(methodName + "(" + (arguments.length > 2 ? arguments[2] : "") + ")");
+        if (openResultSets > 0) nestedCalls.add(methodName);
+        List<Object[]> rows = MetaDataSchemaHarvesterTest.this.getRows(methodName, arguments);
+        openResultSets++;
+        return rows;
+      }
+    }, onClose);
+  }
+
+  @After
+  public void tearDown() {
+    if (kettleHome == null) {
+      System.clearProperty("KETTLE_HOME");
+    }
+    else {
+      System.setProperty("KETTLE_HOME", kettleHome);
+    }
+    File[] files = kettleDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    kettleDirectory.delete();
+  }
+
+  private List<Object[]> harvest() throws SQLException {
+    ValueMetaInterface[] columns = (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("getSchemaSnapshot")[2];
+    ResultSet resultSet = MetaDataSchemaHarvester.harvest(databaseMetaData, null, "S", "%", columns);
+    List<Object[]> rows = new ArrayList<Object[]>();
+    try {
+      while (resultSet.next()) {
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < row.length; i++) {
+          row[i] = resultSet.getObject(i + 1);
+        }
+        rows.add(row);
+      }
+    }
+    finally {
+      resultSet.close();
+    }
+    return rows;
+  }
+
+  private static Object get(Object[] row, String column) {
+    ValueMetaInterface[] columns = (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor("getSchemaSnapshot")[2];
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i].getName().equals(column)) return row[i];
+    }
+    throw new IllegalArgumentException(column);
+  }
+
+  @Test
+  public void readsKeysTableByTableWithoutAnOpenResultSet() throws Exception {
+    List<Object[]> rows = harvest();
+    assertEquals(4, rows.size());
+    assertEquals(0, openResultSets);
+    assertTrue("nested calls: " + nestedCalls, nestedCalls.isEmpty());
+    assertEquals("T1", get(rows.get(0), "TABLE_NAME"));
+    assertEquals("ID", get(rows.get(0), "COLUMN_NAME"));
+    assertEquals("PK_T1", get(rows.get(0), "PK_NAME"));
+    assertEquals(null, get(rows.get(1), "PK_NAME"));
+    assertEquals("T_2", get(rows.get(3), "TABLE_NAME"));
+    assertEquals("T1_ID", get(rows.get(3), "COLUMN_NAME"));
+    assertEquals("FK_T2_T1", get(rows.get(3), "FK_NAME"));
+    assertEquals("T1", get(rows.get(3), "PKTABLE_NAME"));
+  }
+
+  @Test
+  public void schemaCallThatReturnsNothingIsStillSupported() throws Exception {
+    harvest();
+    assertEquals(Boolean.TRUE, MetaDataDriverProbe.isSupported(databaseMetaData, MetaDataDriverProbe.IMPORTED_KEYS_OF_SCHEMA));
+    assertEquals(Boolean.FALSE, MetaDataDriverProbe.isSupported(databaseMetaData, MetaDataDriverProbe.PRIMARY_KEYS_OF_SCHEMA));
+  }
+
+  @Test
+  public void keysOfSchemaAreReadOnce() throws Exception {
+    primaryKeysOfSchema = true;
+    harvest();
+    assertTrue(calls.toString(), calls.contains("getPrimaryKeys(null)"));
+    assertTrue(calls.toString(), !calls.contains("getPrimaryKeys(T1)"));
+    assertTrue(MetaDataDriverProbe.isReturningRows(databaseMetaData, MetaDataDriverProbe.PRIMARY_KEYS_OF_SCHEMA));
+  }
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetaDataSnapshotTest {
+
+  private File file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = File.createTempFile("snapshot", ".kms");
+  }
+
+  @After
+  public void deleteFile() {
+    file.delete();
+  }
+
+  private static Object[] table(String schema, String tableName, String tableType) {
+    return new Object[]{null, schema, tableName, tableType, null, null, null, null, null, null};
+  }
+
+  private static List<Object[]> rows(Object[]... rows) {
+    return new ArrayList<Object[]>(Arrays.asList(rows));
+  }
+
+  private static void assertRows(List<Object[]> expected, List<Object[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertArrayEquals(expected.get(i), actual.get(i));
+    }
+  }
+
+  private static List<String> tableNames(List<Object[]> rows) {
+    List<String> tableNames = new ArrayList<String>();
+    for (Object[] row : rows) {
+      tableNames.add((String)row[2]);
+    }
+    return tableNames;
+  }
+
+  private void writeTables() throws IOException {
+    MetaDataSnapshotWriter writer = new MetaDataSnapshotWriter();
+    writer.add("getTables", new Object[]{null, "S", "%", null}, "connection", rows(
+      table("S", "ORDERS", "TABLE"),
+      table("S", "ORDER_LINES", "TABLE"),
+      table("S", "ORDERS_V", "VIEW"),
+      table("S", "CUSTOMERS", "TABLE")
+    ));
+    writer.write(file);
+  }
+
+  @Test
+  public void readsWhatWasWritten() throws IOException {
+    List<Object[]> values = rows(
+      new Object[]{"text", Long.valueOf(Long.MAX_VALUE), Integer.valueOf(-1), Short.valueOf((short)7)},
+      new Object[]{Boolean.TRUE, Boolean.FALSE, Double.valueOf(0.5), null},
+      new Object[]{new String[]{"a", null, "é中"}, "", "text"}
+    );
+    MetaDataSnapshotWriter writer = new MetaDataSnapshotWriter();
+    writer.add("getColumns", new Object[]{null, "S", "T", "%"}, "connection", values);
+    writer.add("getColumns", new Object[]{null, "S", "U", "%"}, "connection", rows());
+    writer.add("getSchemas", null, "connection", rows(new Object[]{"S", null}));
+    //a second capture of the same call is ignored.
+    writer.add("getSchemas", new Object[0], "connection", rows(new Object[]{"T", null}));
+    assertEquals(3, writer.getCallCount());
+    writer.write(file);
+
+    MetaDataSnapshot snapshot = MetaDataSnapshot.open(file);
+    assertRows(values, snapshot.getRows("getColumns", new Object[]{null, "S", "T", "%"}));
+    assertEquals(0, snapshot.getRows("getColumns", new Object[]{null, "S", "U", "%"}).size());
+    assertRows(rows(new Object[]{"S", null}), snapshot.getRows("getSchemas", null));
+    assertNull(snapshot.getRows("getTables", new Object[]{null, "S", "%", null}));
+  }
+
+  @Test
+  public void keepsThePropertiesOfTheDatabase() throws Exception {
+    Connection connection = DriverManager.getConnection("jdbc:h2:mem:snapshot" + System.nanoTime());
+    try {
+      Statement statement = connection.createStatement();
+      statement.execute("CREATE TABLE ORDERS (ID INT PRIMARY KEY)");
+      statement.close();
+      MetaDataSnapshotWriter writer = new MetaDataSnapshotWriter();
+      DatabaseMetaData captured = writer.capture(connection.getMetaData(), "connection");
+      ResultSet resultSet = captured.getTables(null, "PUBLIC", "ORDERS", null);
+      while (resultSet.next()) {
+        resultSet.getString("TABLE_NAME");
+      }
+      resultSet.close();
+      writer.write(file);
+
+      MetaDataSnapshot snapshot = MetaDataSnapshot.open(file);
+      DatabaseMetaData databaseMetaData = connection.getMetaData();
+      assertEquals(databaseMetaData.getSearchStringEscape(), snapshot.getProperty("getSearchStringEscape"));
+      assertEquals(databaseMetaData.getDatabaseProductName(), snapshot.getProperty("getDatabaseProductName"));
+      List<Object[]> rows = snapshot.getRows("getTables", new Object[]{null, "PUBLIC", "ORDERS", null});
+      assertEquals(Arrays.asList("ORDERS"), tableNames(rows));
+    }
+    finally {
+      connection.close();
+    }
+  }
+
+  @Test
+  public void answersNarrowerCallsFromBroaderEntries() throws IOException {
+    writeTables();
+    MetaDataSnapshot snapshot = MetaDataSnapshot.open(file);
+    assertEquals(
+      Arrays.asList("ORDERS"),
+      tableNames(snapshot.getRows("getTables", new Object[]{null, "S", "ORDERS", null}))
+    );
+    //without an escape, '_' is a wildcard.
+    assertEquals(
+      Arrays.asList("ORDERS", "ORDER_LINES", "ORDERS_V"),
+      tableNames(snapshot.getRows("getTables", new Object[]{null, "S", "ORDER_%", null}))
+    );
+    assertEquals(
+      Arrays.asList("ORDERS", "ORDER_LINES", "CUSTOMERS"),
+      tableNames(snapshot.getRows("getTables", new Object[]{null, "S", "%", new String[]{"TABLE"}}))
+    );
+    assertEquals(
+      Arrays.asList("ORDERS_V"),
+      tableNames(snapshot.getRows("getTables", new Object[]{null, "S", "ORD%", new String[]{"VIEW"}}))
+    );
+    assertEquals(0, snapshot.getRows("getTables", new Object[]{null, "S", "PRODUCTS", null}).size());
+    //null catalog means any catalog, and none of the tables is in this one.
+    assertEquals(0, snapshot.getRows("getTables", new Object[]{"C", "S", "%", null}).size());
+  }
+
+  @Test
+  public void doesNotAnswerCallsOutsideTheEntries() throws IOException {
+    writeTables();
+    MetaDataSnapshot snapshot = MetaDataSnapshot.open(file);
+    //another schema was not captured.
+    assertNull(snapshot.getRows("getTables", new Object[]{null, "T", "%", null}));
+    //nor were all schemas.
+    assertNull(snapshot.getRows("getTables", new Object[]{null, null, "%", null}));
+    assertNull(snapshot.getRows("getColumns", new Object[]{null, "S", "ORDERS", "%"}));
+  }
+
+  @Test
+  public void readKeepsNoHoldOnTheFile() throws IOException {
+    writeTables();
+    MetaDataSnapshot snapshot = MetaDataSnapshot.read(file);
+    //replace the file, as a run does that diffs against its own snapshot file.
+    MetaDataSnapshotWriter writer = new MetaDataSnapshotWriter();
+    writer.add("getTables", new Object[]{null, "S", "%", null}, "connection", rows(table("S", "PRODUCTS", "TABLE")));
+    writer.write(file);
+    assertEquals(
+      Arrays.asList("ORDERS", "ORDER_LINES", "ORDERS_V", "CUSTOMERS"),
+      tableNames(snapshot.getRows("getTables", new Object[]{null, "S", "%", null}))
+    );
+    assertEquals(
+      Arrays.asList("PRODUCTS"),
+      tableNames(MetaDataSnapshot.read(file).getRows("getTables", new Object[]{null, "S", "%", null}))
+    );
+  }
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ *
+ * JdbcMetaData plugin step for Pentaho Data Integration
+ *
+ * Copyright (C) 2014 by Roland Bouman: roland.bouman@gmail.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.steps.jdbcmetadata;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Fixtures shared by the tests: metadata rows, and DatabaseMetaData objects that answer from them.
+ */
+class MetaDataTestSupport {
+
+  /**
+   * Answers the metadata calls of a DatabaseMetaData created by createDatabaseMetaData().
+   */
+  interface Driver {
+    /**
+     * @param methodName the name of the metadata method
+     * @param arguments the arguments of the call
+     * @return the rows of the call, or null if the driver does not support the method.
+     */
+    List<Object[]> getRows(String methodName, Object[] arguments) throws SQLException;
+  }
+
+  private MetaDataTestSupport() {
+  }
+
+  static ValueMetaInterface[] getColumns(String methodName) {
+    return (ValueMetaInterface[])JdbcMetaDataMeta.getMethodDescriptor(methodName)[2];
+  }
+
+  /**
+   * @param methodName the name of the metadata method
+   * @param values pairs of column name and value. The other columns are null.
+   * @return a row of the resultset of the method.
+   */
+  static Object[] row(String methodName, Object[][] values) {
+    ValueMetaInterface[] columns = getColumns(methodName);
+    Object[] row = new Object[columns.length];
+    for (Object[] value : values) {
+      for (int i = 0; i < columns.length; i++) {
+        if (columns[i].getName().equals(value[0])) row[i] = value[1];
+      }
+    }
+    return row;
+  }
+
+  /**
+   * @param methodName the name of the metadata method
+   * @param rows the rows
+   * @param onClose run when the resultset is closed. May be null.
+   * @return a resultset of the method, with the rows.
+   */
+  static ResultSet createResultSet(String methodName, List<Object[]> rows, final Runnable onClose) {
+    final Iterator<Object[]> iterator = rows.iterator();
+    return MetaDataSnapshot.createResultSet(getColumns(methodName), new MetaDataSnapshot.RowSource() {
+      public Object[] next() {
+        return iterator.hasNext() ? iterator.next() : null;
+      }
+      public void close() {
+        if (onClose != null) onClose.run();
+      }
+    });
+  }
+
+  /**
+   * Create a DatabaseMetaData of a driver that exists only in the test.
+   * Use another driver name in each test, so what MetaDataDriverProbe stores for one test does not affect the next.
+   * @param driverName the name the driver reports. Its version is always 1.0.
+   * @param searchStringEscape the search string escape the driver reports
+   * @param driver answers the metadata calls. If null, every metadata call is unsupported.
+   * @param onClose run when a resultset returned by the DatabaseMetaData is closed. May be null.
+   * @return the DatabaseMetaData
+   */
+  static DatabaseMetaData createDatabaseMetaData(
+    final String driverName, final String searchStringEscape, final Driver driver, final Runnable onClose
+  ) {
+    return (DatabaseMetaData)Proxy.newProxyInstance(
+      MetaDataTestSupport.class.getClassLoader(), new Class<?>[]{DatabaseMetaData.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+          String name = method.getName();
+          if ("getDriverName".equals(name)) return driverName;
+          if ("getDriverVersion".equals(name)) return "1.0";
+          if ("getSearchStringEscape".equals(name)) return searchStringEscape;
+          if (driver == null || !name.startsWith("get") || JdbcMetaDataMeta.getMethodDescriptor(name) == null) {
+            throw new UnsupportedOperationException(name);
+          }
+          List<Object[]> rows = driver.getRows(name, arguments);
+          if (rows == null) throw new UnsupportedOperationException(name);
+          return createResultSet(name, rows, onClose);
+        }
+      }
+    );
+  }
+
+  /**
+   * @param connection a connection
+   * @param databaseProductName the product name to report
+   * @return a connection to the same database, whose DatabaseMetaData reports another product.
+   */
+  static Connection setDatabaseProductName(final Connection connection, final String databaseProductName) {
+    return (Connection)Proxy.newProxyInstance(
+      MetaDataTestSupport.class.getClassLoader(), new Class<?>[]{Connection.class},
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+          if ("getMetaData".equals(method.getName())) {
+            final DatabaseMetaData databaseMetaData = connection.getMetaData();
+            return Proxy.newProxyInstance(
+              MetaDataTestSupport.class.getClassLoader(), new Class<?>[]{DatabaseMetaData.class},
+              new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] arguments) throws Throwable {
+                  if ("getDatabaseProductName".equals(method.getName())) return databaseProductName;
+                  return invokeOn(databaseMetaData, method, arguments);
+                }
+              }
+            );
+          }
+          return invokeOn(connection, method, arguments);
+        }
+      }
+    );
+  }
+
+  private static Object invokeOn(Object target, Method method, Object[] arguments) throws Throwable {
+    try {
+      return method.invoke(target, arguments);
+    }
+    catch (InvocationTargetException exception) {
+      throw exception.getCause();
+    }
+  }
+}